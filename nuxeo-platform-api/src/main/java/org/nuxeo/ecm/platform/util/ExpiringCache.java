@@ -0,0 +1,171 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Concurrent in-memory cache whose entries expire after a time to live,
+ * holding a bounded number of entries.
+ * <p>
+ * Keys are meant to be hashes computed by {@link #hash}, so that caches keyed
+ * by credentials never keep them.
+ *
+ * @since 7.1
+ */
+public class ExpiringCache<V> {
+
+    /**
+     * Selects the values to invalidate.
+     */
+    public interface Filter<V> {
+
+        boolean accept(V value);
+    }
+
+    protected static class Entry<V> {
+
+        protected final V value;
+
+        protected final long expiration;
+
+        protected Entry(V value, long expiration) {
+            this.value = value;
+            this.expiration = expiration;
+        }
+    }
+
+    protected final ConcurrentMap<String, Entry<V>> entries = new ConcurrentHashMap<String, Entry<V>>();
+
+    protected final int maxSize;
+
+    protected final long ttl;
+
+    /**
+     * @param maxSize the maximum number of entries
+     * @param ttl the time to live of the entries, in milliseconds
+     */
+    public ExpiringCache(int maxSize, long ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+    }
+
+    public boolean isEnabled() {
+        return ttl > 0 && maxSize > 0;
+    }
+
+    /**
+     * Gets the value cached for a key, if not expired.
+     */
+    public V get(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiration < System.currentTimeMillis()) {
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    public void put(String key, V value) {
+        if (entries.size() >= maxSize) {
+            evict();
+        }
+        entries.put(key, new Entry<V>(value, System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Removes the expired entries, and if that's not enough a quarter of the
+     * entries in no particular order.
+     */
+    protected void evict() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Entry<V>> it = entries.values().iterator(); it.hasNext();) {
+            if (it.next().expiration < now) {
+                it.remove();
+            }
+        }
+        int toEvict = entries.size() - maxSize * 3 / 4;
+        for (Iterator<Entry<V>> it = entries.values().iterator(); toEvict > 0
+                && it.hasNext(); toEvict--) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Removes the entries whose value is accepted by a filter.
+     */
+    public void invalidate(Filter<V> filter) {
+        for (Iterator<Entry<V>> it = entries.values().iterator(); it.hasNext();) {
+            if (filter.accept(it.next().value)) {
+                it.remove();
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Computes the hexadecimal SHA-256 hash of a salt followed by values.
+     * Each value is prefixed by its length, or by a marker if {@code null}, so
+     * that different values can't give the same input.
+     *
+     * @param salt the salt, or {@code null}
+     */
+    public static String hash(byte[] salt, String... values) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        if (salt != null) {
+            digest.update(salt);
+        }
+        for (String value : values) {
+            if (value == null) {
+                digest.update((byte) 0);
+                continue;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            digest.update((byte) 1);
+            digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+            digest.update(bytes);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", Integer.valueOf(b & 0xff)));
+        }
+        return sb.toString();
+    }
+
+}
@@ -21,6 +21,7 @@
 package org.nuxeo.ecm.platform.commandline.executor.api;
 
 import java.util.List;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 /**
@@ -38,6 +39,23 @@ public interface CommandLineExecutorService {
     ExecResult execCommand(String commandName, CmdParameters params)
             throws CommandNotAvailable;
 
+    /**
+     * Executes a command in the background, in a bounded pool of threads.
+     * <p>
+     * If the command has a concurrency limit, the execution first waits in a
+     * queue of the command for a permit, without holding a thread, then in the
+     * pool queue. Otherwise it directly waits in the pool queue.
+     *
+     * @return the future result of the execution, failing with a
+     *         {@link java.util.concurrent.RejectedExecutionException} if the
+     *         pool queue was full once the command got a permit
+     * @throws java.util.concurrent.RejectedExecutionException if too many
+     *             executions are already waiting
+     * @since 7.1
+     */
+    Future<ExecResult> execCommandAsync(String commandName,
+            CmdParameters params) throws CommandNotAvailable;
+
     List<String> getRegistredCommands();
 
     List<String> getAvailableCommands();
@@ -64,6 +64,22 @@ public class CommandLineDescriptor implements Serializable {
     @XNode("installationDirective")
     protected String installationDirective;
 
+    /** @since 7.1 */
+    @XNode("executor")
+    protected String executor;
+
+    /** @since 7.1 */
+    @XNode("maxConcurrency")
+    protected int maxConcurrency;
+
+    /** @since 7.1 */
+    @XNode("timeout")
+    protected long timeout;
+
+    /** @since 7.1 */
+    @XNode("maxOutputLines")
+    protected int maxOutputLines;
+
     protected String installErrorMessage;
 
     public String getInstallErrorMessage() {
@@ -130,7 +146,40 @@ public class CommandLineDescriptor implements Serializable {
     }
 
     public String getExecutor() {
-        return CommandLineExecutorComponent.DEFAULT_EXECUTOR;
+        if (executor == null) {
+            return CommandLineExecutorComponent.DEFAULT_EXECUTOR;
+        }
+        return executor;
+    }
+
+    /**
+     * Returns the maximum number of executions of this command running at the
+     * same time, {@code 0} for no limit.
+     *
+     * @since 7.1
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Returns the time in seconds after which the command is killed,
+     * {@code 0} for no timeout.
+     *
+     * @since 7.1
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Returns the maximum number of output lines kept in the result,
+     * {@code 0} for no limit. The rest of the output is read and discarded.
+     *
+     * @since 7.1
+     */
+    public int getMaxOutputLines() {
+        return maxOutputLines;
     }
 
 }
@@ -22,6 +22,18 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
@@ -34,11 +46,19 @@ import org.nuxeo.ecm.platform.commandline.executor.api.ExecResult;
 import org.nuxeo.ecm.platform.commandline.executor.service.cmdtesters.CommandTestResult;
 import org.nuxeo.ecm.platform.commandline.executor.service.cmdtesters.CommandTester;
 import org.nuxeo.ecm.platform.commandline.executor.service.executors.Executor;
+import org.nuxeo.ecm.platform.commandline.executor.service.executors.ProcessExecutor;
 import org.nuxeo.ecm.platform.commandline.executor.service.executors.ShellExecutor;
+import org.nuxeo.ecm.platform.util.FrameworkProperties;
+import org.nuxeo.runtime.metrics.MetricsService;
 import org.nuxeo.runtime.model.ComponentContext;
 import org.nuxeo.runtime.model.ComponentInstance;
 import org.nuxeo.runtime.model.DefaultComponent;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+
 /**
  * POJO implementation of the {@link CommandLineExecutorService} interface. Also
  * handles the Extension Point logic.
@@ -58,6 +78,25 @@ public class CommandLineExecutorComponent extends DefaultComponent implements
 
     public static final String DEFAULT_EXECUTOR = "ShellExecutor";
 
+    /** @since 7.1 */
+    public static final String PROCESS_EXECUTOR = "ProcessExecutor";
+
+    /**
+     * Number of threads running asynchronous executions.
+     *
+     * @since 7.1
+     */
+    public static final String THREADS_PROPERTY = "org.nuxeo.ecm.platform.commandline.executor.threads";
+
+    /**
+     * Maximum number of asynchronous executions waiting for a thread.
+     *
+     * @since 7.1
+     */
+    public static final String QUEUE_SIZE_PROPERTY = "org.nuxeo.ecm.platform.commandline.executor.queueSize";
+
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
     protected static Map<String, CommandLineDescriptor> commandDescriptors = new HashMap<String, CommandLineDescriptor>();
 
     protected static EnvironmentDescriptor env = new EnvironmentDescriptor();
@@ -66,8 +105,48 @@ public class CommandLineExecutorComponent extends DefaultComponent implements
 
     protected static Map<String, Executor> executors = new HashMap<String, Executor>();
 
+    protected static Map<String, ConcurrencyLimit> concurrencyLimits = new HashMap<String, ConcurrencyLimit>();
+
+    protected static ThreadPoolExecutor asyncExecutor;
+
+    protected final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
     private static final Log log = LogFactory.getLog(CommandLineExecutorComponent.class);
 
+    /**
+     * Concurrency limit of a command. Its asynchronous executions wait in
+     * their own queue for a permit, and are only then given to a thread of
+     * the shared pool, so that they never hold a thread while waiting.
+     *
+     * @since 7.1
+     */
+    protected static class ConcurrencyLimit {
+
+        protected final Semaphore permits;
+
+        protected final Queue<AsyncExec> pending = new ConcurrentLinkedQueue<AsyncExec>();
+
+        protected ConcurrencyLimit(int maxConcurrency) {
+            permits = new Semaphore(maxConcurrency, true);
+        }
+    }
+
+    /**
+     * Asynchronous execution waiting for a permit of its command.
+     *
+     * @since 7.1
+     */
+    protected static class AsyncExec extends FutureTask<ExecResult> {
+
+        protected AsyncExec(Callable<ExecResult> callable) {
+            super(callable);
+        }
+
+        protected void fail(Throwable t) {
+            setException(t);
+        }
+    }
+
     @Override
     public void activate(ComponentContext context) throws Exception {
         commandDescriptors = new HashMap<String, CommandLineDescriptor>();
@@ -75,14 +154,51 @@ public class CommandLineExecutorComponent extends DefaultComponent implements
         testers = new HashMap<String, CommandTester>();
         executors = new HashMap<String, Executor>();
         executors.put(DEFAULT_EXECUTOR, new ShellExecutor());
+        executors.put(PROCESS_EXECUTOR, new ProcessExecutor());
+        concurrencyLimits = new HashMap<String, ConcurrencyLimit>();
+        int threads = FrameworkProperties.getInt(THREADS_PROPERTY,
+                Runtime.getRuntime().availableProcessors());
+        int queueSize = FrameworkProperties.getInt(QUEUE_SIZE_PROPERTY,
+                DEFAULT_QUEUE_SIZE);
+        asyncExecutor = new ThreadPoolExecutor(threads, threads, 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    protected final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r,
+                                "Nuxeo-CommandLine-Exec-"
+                                        + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        asyncExecutor.allowCoreThreadTimeOut(true);
+        String name = MetricRegistry.name("nuxeo", "commandline", "exec",
+                "queue");
+        registry.remove(name);
+        registry.register(name, new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                ThreadPoolExecutor executor = asyncExecutor;
+                return Integer.valueOf(executor == null ? 0
+                        : executor.getQueue().size());
+            }
+        });
     }
 
     @Override
     public void deactivate(ComponentContext context) throws Exception {
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdownNow();
+            asyncExecutor = null;
+        }
         commandDescriptors = null;
         env = null;
         testers = null;
         executors = null;
+        concurrencyLimits = null;
     }
 
     @Override
@@ -100,6 +216,7 @@ public class CommandLineExecutorComponent extends DefaultComponent implements
 
             if (!desc.isEnabled()) {
                 commandDescriptors.remove(name);
+                concurrencyLimits.remove(name);
                 log.info("Command configured to not be enabled: " + name);
                 return;
             }
@@ -112,7 +229,10 @@ public class CommandLineExecutorComponent extends DefaultComponent implements
 
             CommandTester tester = testers.get(testerName);
             boolean cmdAvailable = false;
-            if (tester == null) {
+            if (!executors.containsKey(desc.getExecutor())) {
+                log.error("Unable to find executor '" + desc.getExecutor()
+                        + "', command will not be available: " + name);
+            } else if (tester == null) {
                 log.error("Unable to find tester '" + testerName
                         + "', command will not be available: " + name);
             } else {
@@ -131,6 +251,12 @@ public class CommandLineExecutorComponent extends DefaultComponent implements
             }
             desc.setAvailable(cmdAvailable);
             commandDescriptors.put(name, desc);
+            if (desc.getMaxConcurrency() > 0) {
+                concurrencyLimits.put(name, new ConcurrencyLimit(
+                        desc.getMaxConcurrency()));
+            } else {
+                concurrencyLimits.remove(name);
+            }
         } else if (EP_CMDTESTER.equals(extensionPoint)) {
             CommandTesterDescriptor desc = (CommandTesterDescriptor) contribution;
             CommandTester tester = (CommandTester) desc.getTesterClass().newInstance();
@@ -150,14 +276,127 @@ public class CommandLineExecutorComponent extends DefaultComponent implements
     @Override
     public ExecResult execCommand(String commandName, CmdParameters params)
             throws CommandNotAvailable {
+        return exec(getAvailableCommand(commandName), params);
+    }
+
+    @Override
+    public Future<ExecResult> execCommandAsync(String commandName,
+            final CmdParameters params) throws CommandNotAvailable {
+        final CommandLineDescriptor cmdDesc = getAvailableCommand(commandName);
+        Callable<ExecResult> callable = new Callable<ExecResult>() {
+            @Override
+            public ExecResult call() {
+                return run(cmdDesc, params);
+            }
+        };
+        ConcurrencyLimit limit = concurrencyLimits.get(cmdDesc.getName());
+        if (limit == null) {
+            return asyncExecutor.submit(callable);
+        }
+        AsyncExec task = new AsyncExec(callable);
+        limit.pending.add(task);
+        dispatch(limit);
+        return task;
+    }
+
+    /**
+     * Gives the pending asynchronous executions of a command to the shared
+     * pool, as long as there are permits for them.
+     *
+     * @since 7.1
+     */
+    protected void dispatch(final ConcurrencyLimit limit) {
+        while (!limit.pending.isEmpty() && limit.permits.tryAcquire()) {
+            final AsyncExec task = limit.pending.poll();
+            if (task == null) {
+                limit.permits.release();
+                continue;
+            }
+            try {
+                asyncExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            release(limit);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                limit.permits.release();
+                task.fail(e);
+            }
+        }
+    }
+
+    /**
+     * Releases a permit, then gives it to a pending asynchronous execution if
+     * any. Releasing first ensures that an execution queued concurrently
+     * either gets the permit itself or is seen here.
+     *
+     * @since 7.1
+     */
+    protected void release(ConcurrencyLimit limit) {
+        limit.permits.release();
+        dispatch(limit);
+    }
+
+    protected CommandLineDescriptor getAvailableCommand(String commandName)
+            throws CommandNotAvailable {
         CommandAvailability availability = getCommandAvailability(commandName);
         if (!availability.isAvailable()) {
             throw new CommandNotAvailable(availability);
         }
+        return commandDescriptors.get(commandName);
+    }
+
+    /**
+     * Executes a command in the calling thread within its concurrency limit.
+     *
+     * @since 7.1
+     */
+    protected ExecResult exec(CommandLineDescriptor cmdDesc,
+            CmdParameters params) {
+        ConcurrencyLimit limit = concurrencyLimits.get(cmdDesc.getName());
+        if (limit == null) {
+            return run(cmdDesc, params);
+        }
+        try {
+            limit.permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ExecResult(cmdDesc.getName(), e);
+        }
+        try {
+            return run(cmdDesc, params);
+        } finally {
+            release(limit);
+        }
+    }
 
-        CommandLineDescriptor cmdDesc = commandDescriptors.get(commandName);
+    /**
+     * Executes a command, timing it.
+     *
+     * @since 7.1
+     */
+    protected ExecResult run(CommandLineDescriptor cmdDesc,
+            CmdParameters params) {
+        String name = cmdDesc.getName();
         Executor executor = executors.get(cmdDesc.getExecutor());
-        return executor.exec(cmdDesc, params);
+        Timer.Context execTime = registry.timer(
+                MetricRegistry.name("nuxeo", "commandline", "exec", name)).time();
+        try {
+            ExecResult result = executor.exec(cmdDesc, params);
+            if (!result.isSuccessful()) {
+                registry.counter(
+                        MetricRegistry.name("nuxeo", "commandline", "exec",
+                                name, "errors")).inc();
+            }
+            return result;
+        } finally {
+            execTime.stop();
+        }
     }
 
     @Override
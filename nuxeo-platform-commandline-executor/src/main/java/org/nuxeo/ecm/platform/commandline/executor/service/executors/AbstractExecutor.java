@@ -19,15 +19,33 @@
 
 package org.nuxeo.ecm.platform.commandline.executor.service.executors;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.platform.commandline.executor.api.CmdParameters;
 import org.nuxeo.ecm.platform.commandline.executor.api.CommandLineExecutorService;
 import org.nuxeo.ecm.platform.commandline.executor.service.CommandLineDescriptor;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
 
 /**
  * Base class for {@link Executor}.
@@ -36,6 +54,24 @@ import org.nuxeo.runtime.api.Framework;
  */
 public abstract class AbstractExecutor implements Executor {
 
+    private static final Log log = LogFactory.getLog(AbstractExecutor.class);
+
+    /**
+     * Kills the commands running longer than their timeout.
+     *
+     * @since 7.1
+     */
+    protected static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Nuxeo-CommandLine-Watchdog");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    protected static final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
     /**
      * @deprecated since 5.7. See
      *             {@link CommandLineExecutorService#checkParameter(String)}.
@@ -48,6 +84,13 @@ public abstract class AbstractExecutor implements Executor {
         return osName.toLowerCase().contains("windows");
     }
 
+    /**
+     * Pid field of the started processes, {@code null} if not accessible.
+     *
+     * @since 7.1
+     */
+    protected static final Field pidField = getPidField();
+
     /**
      * Returns parameters as a String after having replaced parameterized values
      * inside.
@@ -86,6 +129,16 @@ public abstract class AbstractExecutor implements Executor {
 
     private static String replaceParams(Map<String, String> paramsValues,
             String paramString) {
+        return replaceParams(paramsValues, paramString, true);
+    }
+
+    /**
+     * Replaces the parameterized values, quoted for a shell or not.
+     *
+     * @since 7.1
+     */
+    protected static String replaceParams(Map<String, String> paramsValues,
+            String paramString, boolean quote) {
         CommandLineExecutorService commandLineExecutorService = Framework.getLocalService(CommandLineExecutorService.class);
         for (String pname : paramsValues.keySet()) {
             String param = "#{" + pname + "}";
@@ -93,9 +146,175 @@ public abstract class AbstractExecutor implements Executor {
                 String value = paramsValues.get(pname);
                 commandLineExecutorService.checkParameter(value);
                 paramString = paramString.replace("#{" + pname + "}",
-                        String.format("\"%s\"", value));
+                        quote ? String.format("\"%s\"", value) : value);
             }
         }
         return paramString;
     }
+
+    /**
+     * Schedules the kill of a process, with its children, once the timeout of
+     * the command is reached.
+     *
+     * @param killed set to {@code true} if the process is killed
+     * @return the scheduled kill, to cancel once the process is done, or
+     *         {@code null} if the command has no timeout
+     * @since 7.1
+     */
+    protected static ScheduledFuture<?> scheduleKill(
+            final CommandLineDescriptor cmdDesc, final Process process,
+            final AtomicBoolean killed) {
+        if (cmdDesc.getTimeout() <= 0) {
+            return null;
+        }
+        return watchdog.schedule(new Runnable() {
+            @Override
+            public void run() {
+                killed.set(true);
+                registry.counter(
+                        MetricRegistry.name("nuxeo", "commandline", "exec",
+                                cmdDesc.getName(), "timeouts")).inc();
+                log.warn("Killing command " + cmdDesc.getName()
+                        + " running for more than " + cmdDesc.getTimeout()
+                        + "s");
+                killTree(process);
+            }
+        }, cmdDesc.getTimeout(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * Kills a process and the processes it started.
+     *
+     * @since 7.1
+     */
+    public static void killTree(Process process) {
+        Integer pid = getPid(process);
+        if (pid != null && !isWindows()) {
+            // collect the children first, they are reparented once their
+            // parent is gone
+            List<String> descendants = new ArrayList<String>();
+            collectDescendants(pid.toString(), descendants, 0);
+            for (String child : descendants) {
+                try {
+                    new ProcessBuilder("kill", "-KILL", child).start().waitFor();
+                } catch (IOException e) {
+                    log.debug("Cannot kill process " + child, e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        process.destroy();
+    }
+
+    /**
+     * Looks up once the pid field of the processes started by the JDK on
+     * Unix. Returns {@code null} on other systems, other JDKs, or if a
+     * security manager denies the access, in which case only the process
+     * itself is killed.
+     */
+    protected static Field getPidField() {
+        if (isWindows()) {
+            return null;
+        }
+        try {
+            Field field = Class.forName("java.lang.UNIXProcess").getDeclaredField(
+                    "pid");
+            if (field.getType() != int.class) {
+                return null;
+            }
+            field.setAccessible(true);
+            return field;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.info("Cannot get the pid of the started processes, "
+                    + "the children of timed out commands will not be killed");
+            log.debug(e, e);
+            return null;
+        }
+    }
+
+    protected static Integer getPid(Process process) {
+        if (pidField == null
+                || !pidField.getDeclaringClass().isInstance(process)) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(pidField.getInt(process));
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    protected static void collectDescendants(String pid, List<String> pids,
+            int depth) {
+        if (depth > 16) {
+            return;
+        }
+        List<String> children;
+        try {
+            Process pgrep = new ProcessBuilder("pgrep", "-P", pid).redirectErrorStream(
+                    true).start();
+            children = readLines(pgrep.getInputStream(), 0, true);
+            pgrep.waitFor();
+        } catch (IOException e) {
+            log.debug("Cannot list the children of process " + pid, e);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        for (String child : children) {
+            child = child.trim();
+            if (!child.isEmpty()) {
+                pids.add(child);
+                collectDescendants(child, pids, depth + 1);
+            }
+        }
+    }
+
+    /**
+     * Reads a stream until its end, keeping at most {@code maxLines} lines.
+     *
+     * @param maxLines the maximum number of lines kept, {@code 0} for no limit
+     * @param keep {@code false} to discard all the lines
+     * @since 7.1
+     */
+    protected static List<String> readLines(InputStream in, int maxLines,
+            boolean keep) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                in))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (keep && (maxLines <= 0 || lines.size() < maxLines)) {
+                    lines.add(line);
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Creates a thread-safe list of output lines that ignores the lines
+     * added past {@code maxLines}, for the stream gobblers.
+     *
+     * @param maxLines the maximum number of lines kept, {@code 0} for no limit
+     * @since 7.1
+     */
+    protected static List<String> newOutputLines(final int maxLines) {
+        List<String> lines = new ArrayList<String>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public boolean add(String line) {
+                if (maxLines > 0 && size() >= maxLines) {
+                    return false;
+                }
+                return super.add(line);
+            }
+        };
+        return Collections.synchronizedList(lines);
+    }
+
 }
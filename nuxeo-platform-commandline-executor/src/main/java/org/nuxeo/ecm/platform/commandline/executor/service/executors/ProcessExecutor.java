@@ -0,0 +1,161 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ */
+
+package org.nuxeo.ecm.platform.commandline.executor.service.executors;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.platform.commandline.executor.api.CmdParameters;
+import org.nuxeo.ecm.platform.commandline.executor.api.ExecResult;
+import org.nuxeo.ecm.platform.commandline.executor.service.CommandLineDescriptor;
+
+/**
+ * {@link Executor} starting the command directly, without a shell.
+ * <p>
+ * The parameter string is split into arguments on whitespaces, single or
+ * double quotes grouping words into one argument, and parameterized values
+ * are passed as is, each in its argument. Shell features such as
+ * redirections or pipes are not available.
+ * <p>
+ * The output of the command is read by the calling thread, and the command
+ * is killed with its children once its timeout is reached.
+ *
+ * @since 7.1
+ */
+public class ProcessExecutor extends AbstractExecutor {
+
+    private static final Log log = LogFactory.getLog(ProcessExecutor.class);
+
+    @Override
+    public ExecResult exec(CommandLineDescriptor cmdDesc, CmdParameters params) {
+        long t0 = System.currentTimeMillis();
+
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(cmdDesc.getCommand());
+        cmd.addAll(getArguments(cmdDesc, params));
+        String commandLine = StringUtils.join(cmd, " ");
+
+        Process process;
+        try {
+            if (log.isDebugEnabled()) {
+                log.debug("Running process: " + commandLine);
+            }
+            process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        } catch (IOException e) {
+            return new ExecResult(commandLine, e);
+        }
+
+        AtomicBoolean killed = new AtomicBoolean();
+        ScheduledFuture<?> kill = scheduleKill(cmdDesc, process, killed);
+        List<String> output;
+        int exitCode;
+        try {
+            process.getOutputStream().close();
+            output = readLines(process.getInputStream(),
+                    cmdDesc.getMaxOutputLines(), cmdDesc.getReadOutput());
+            exitCode = process.waitFor();
+        } catch (IOException e) {
+            killTree(process);
+            return new ExecResult(commandLine, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            killTree(process);
+            return new ExecResult(commandLine, e);
+        } finally {
+            if (kill != null) {
+                kill.cancel(false);
+            }
+        }
+        if (killed.get()) {
+            return new ExecResult(commandLine, new TimeoutException(
+                    "Command killed after " + cmdDesc.getTimeout() + "s"));
+        }
+
+        long t1 = System.currentTimeMillis();
+        return new ExecResult(commandLine, output, t1 - t0, exitCode);
+    }
+
+    /**
+     * Returns the arguments of a command, with the parameterized values
+     * replaced inside.
+     *
+     * @param cmdDesc CommandLineDescriptor containing parameters
+     * @param params parameterized values
+     * @return the arguments, without the command itself
+     */
+    public static List<String> getArguments(CommandLineDescriptor cmdDesc,
+            CmdParameters params) {
+        List<String> args = new ArrayList<String>();
+        Map<String, String> paramsValues = params.getParameters();
+        for (String arg : split(cmdDesc.getParametersString())) {
+            args.add(replaceParams(paramsValues, arg, false));
+        }
+        return args;
+    }
+
+    /**
+     * Splits a parameter string on whitespaces, quotes grouping words.
+     */
+    protected static List<String> split(String paramString) {
+        List<String> args = new ArrayList<String>();
+        if (paramString == null) {
+            return args;
+        }
+        StringBuilder arg = null;
+        char quote = 0;
+        for (int i = 0; i < paramString.length(); i++) {
+            char c = paramString.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else {
+                    arg.append(c);
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+                if (arg == null) {
+                    arg = new StringBuilder();
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (arg != null) {
+                    args.add(arg.toString());
+                    arg = null;
+                }
+            } else {
+                if (arg == null) {
+                    arg = new StringBuilder();
+                }
+                arg.append(c);
+            }
+        }
+        if (arg != null) {
+            args.add(arg.toString());
+        }
+        return args;
+    }
+
+}
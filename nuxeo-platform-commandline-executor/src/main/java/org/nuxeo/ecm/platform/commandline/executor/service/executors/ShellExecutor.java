@@ -20,9 +20,10 @@
 package org.nuxeo.ecm.platform.commandline.executor.service.executors;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
@@ -47,7 +48,7 @@ public class ShellExecutor extends AbstractExecutor {
     @Override
     public ExecResult exec(CommandLineDescriptor cmdDesc, CmdParameters params) {
         long t0 = System.currentTimeMillis();
-        List<String> output = Collections.synchronizedList(new ArrayList<String>());
+        List<String> output = newOutputLines(cmdDesc.getMaxOutputLines());
 
         String[] cmd;
         if (isWindows()) {
@@ -85,6 +86,8 @@ public class ShellExecutor extends AbstractExecutor {
         err.start();
         out.start();
 
+        AtomicBoolean killed = new AtomicBoolean();
+        ScheduledFuture<?> kill = scheduleKill(cmdDesc, p1, killed);
         int exitCode = 0;
         try {
             exitCode = p1.waitFor();
@@ -92,6 +95,14 @@ public class ShellExecutor extends AbstractExecutor {
             err.join();
         } catch (InterruptedException e) {
             return new ExecResult(commandLine, e);
+        } finally {
+            if (kill != null) {
+                kill.cancel(false);
+            }
+        }
+        if (killed.get()) {
+            return new ExecResult(commandLine, new TimeoutException(
+                    "Command killed after " + cmdDesc.getTimeout() + "s"));
         }
 
         long t1 = System.currentTimeMillis();
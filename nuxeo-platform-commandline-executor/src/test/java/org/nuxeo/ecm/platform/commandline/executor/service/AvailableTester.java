@@ -0,0 +1,32 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.commandline.executor.service;
+
+import org.nuxeo.ecm.platform.commandline.executor.service.cmdtesters.CommandTestResult;
+import org.nuxeo.ecm.platform.commandline.executor.service.cmdtesters.CommandTester;
+
+/**
+ * Tester finding all the commands available.
+ */
+public class AvailableTester implements CommandTester {
+
+    @Override
+    public CommandTestResult test(CommandLineDescriptor cmdDescriptor) {
+        return new CommandTestResult();
+    }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.commandline.executor.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.platform.commandline.executor.api.CmdParameters;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandLineExecutorService;
+import org.nuxeo.ecm.platform.commandline.executor.api.ExecResult;
+import org.nuxeo.ecm.platform.commandline.executor.service.executors.Executor;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.test.NXRuntimeTestCase;
+
+/**
+ * Tests the concurrency limit of the commands, with an executor blocking the
+ * limited command until released.
+ */
+public class TestConcurrencyLimit extends NXRuntimeTestCase {
+
+    protected static final String LIMITED = "limitedCmd";
+
+    protected static final String OTHER = "otherCmd";
+
+    /**
+     * Executor blocking the limited command, counting its executions.
+     */
+    protected static class BlockingExecutor implements Executor {
+
+        protected final CountDownLatch released = new CountDownLatch(1);
+
+        protected final AtomicInteger running = new AtomicInteger();
+
+        protected final AtomicInteger maxRunning = new AtomicInteger();
+
+        protected final AtomicInteger done = new AtomicInteger();
+
+        @Override
+        public ExecResult exec(CommandLineDescriptor cmdDesc,
+                CmdParameters params) {
+            if (!LIMITED.equals(cmdDesc.getName())) {
+                return newResult(cmdDesc);
+            }
+            int n = running.incrementAndGet();
+            synchronized (maxRunning) {
+                if (n > maxRunning.get()) {
+                    maxRunning.set(n);
+                }
+            }
+            try {
+                released.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new ExecResult(cmdDesc.getName(), e);
+            } finally {
+                running.decrementAndGet();
+            }
+            done.incrementAndGet();
+            return newResult(cmdDesc);
+        }
+
+        protected ExecResult newResult(CommandLineDescriptor cmdDesc) {
+            return new ExecResult(cmdDesc.getName(),
+                    Collections.<String> emptyList(), 0, 0);
+        }
+    }
+
+    protected BlockingExecutor executor;
+
+    protected CommandLineExecutorService cles;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        // enough threads for all the executions of the limited command
+        Framework.getProperties().setProperty(
+                CommandLineExecutorComponent.THREADS_PROPERTY, "4");
+        deployBundle("org.nuxeo.ecm.platform.commandline.executor");
+        executor = new BlockingExecutor();
+        CommandLineExecutorComponent.executors.put("BlockingExecutor",
+                executor);
+        deployContrib("org.nuxeo.ecm.platform.commandline.executor",
+                "OSGI-INF/commandline-concurrency-test-contrib.xml");
+        cles = Framework.getLocalService(CommandLineExecutorService.class);
+    }
+
+    protected void waitForRunning(int expected) throws Exception {
+        for (int i = 0; i < 100 && executor.running.get() != expected; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(expected, executor.running.get());
+    }
+
+    @Test
+    public void testAsyncConcurrencyLimit() throws Exception {
+        List<Future<ExecResult>> results = new ArrayList<Future<ExecResult>>();
+        for (int i = 0; i < 6; i++) {
+            results.add(cles.execCommandAsync(LIMITED, new CmdParameters()));
+        }
+        waitForRunning(2);
+        Thread.sleep(200);
+        assertEquals(2, executor.running.get());
+        CommandLineExecutorComponent.ConcurrencyLimit limit = CommandLineExecutorComponent.concurrencyLimits.get(LIMITED);
+        // the waiting executions don't hold any thread of the pool
+        assertEquals(4, limit.pending.size());
+        assertEquals(2, CommandLineExecutorComponent.asyncExecutor.getActiveCount());
+
+        // other commands still run
+        ExecResult other = cles.execCommandAsync(OTHER, new CmdParameters()).get(
+                10, TimeUnit.SECONDS);
+        assertTrue(other.isSuccessful());
+
+        executor.released.countDown();
+        for (Future<ExecResult> result : results) {
+            assertTrue(result.get(10, TimeUnit.SECONDS).isSuccessful());
+        }
+        assertEquals(6, executor.done.get());
+        assertEquals(2, executor.maxRunning.get());
+        assertEquals(2, limit.permits.availablePermits());
+        assertTrue(limit.pending.isEmpty());
+    }
+
+    @Test
+    public void testSyncAndAsyncShareTheLimit() throws Exception {
+        List<Future<ExecResult>> results = new ArrayList<Future<ExecResult>>();
+        for (int i = 0; i < 2; i++) {
+            results.add(cles.execCommandAsync(LIMITED, new CmdParameters()));
+        }
+        waitForRunning(2);
+        // a synchronous execution waits for a permit given back by an
+        // asynchronous one
+        final List<ExecResult> syncResult = new ArrayList<ExecResult>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    syncResult.add(cles.execCommand(LIMITED,
+                            new CmdParameters()));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        Thread.sleep(200);
+        assertEquals(2, executor.running.get());
+        executor.released.countDown();
+        thread.join(10000);
+        assertEquals(1, syncResult.size());
+        assertTrue(syncResult.get(0).isSuccessful());
+        for (Future<ExecResult> result : results) {
+            assertTrue(result.get(10, TimeUnit.SECONDS).isSuccessful());
+        }
+        assertEquals(3, executor.done.get());
+        assertEquals(2, executor.maxRunning.get());
+    }
+
+}
@@ -32,6 +32,7 @@ import org.nuxeo.ecm.platform.commandline.executor.api.CommandLineExecutorServic
 import org.nuxeo.ecm.platform.commandline.executor.service.CommandLineDescriptor;
 import org.nuxeo.ecm.platform.commandline.executor.service.CommandLineExecutorComponent;
 import org.nuxeo.ecm.platform.commandline.executor.service.executors.AbstractExecutor;
+import org.nuxeo.ecm.platform.commandline.executor.service.executors.ProcessExecutor;
 import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.test.NXRuntimeTestCase;
 
@@ -102,4 +103,22 @@ public class TestCommands extends NXRuntimeTestCase {
         assertTrue(res[6].contains("testMe"));
     }
 
+    @Test
+    public void testProcessArguments() throws Exception {
+        deployContrib("org.nuxeo.ecm.platform.commandline.executor",
+                "OSGI-INF/commandline-imagemagic-test-contrib.xml");
+        CommandLineDescriptor cmdDesc = CommandLineExecutorComponent.getCommandDescriptor("identify");
+
+        CmdParameters params = new CmdParameters();
+        params.addNamedParameter("filePath", "/tmp/my image.png");
+        List<String> args = ProcessExecutor.getArguments(cmdDesc, params);
+        assertEquals(5, args.size());
+        assertEquals("-quiet", args.get(0));
+        assertEquals("-ping", args.get(1));
+        assertEquals("-format", args.get(2));
+        assertEquals("%m %w %h", args.get(3));
+        // no quotes, the value is passed as is in a single argument
+        assertEquals("/tmp/my image.png", args.get(4));
+    }
+
 }
@@ -34,6 +34,7 @@ import org.artofsolving.jodconverter.office.OfficeConnectionProtocol;
 import org.artofsolving.jodconverter.office.OfficeManager;
 import org.artofsolving.jodconverter.office.OfficeTask;
 import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.platform.util.FrameworkProperties;
 import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.model.ComponentContext;
 import org.nuxeo.runtime.model.ComponentInstance;
@@ -60,10 +61,33 @@ public class OOoManagerComponent extends DefaultComponent implements
 
     private static final String OFFICE_PORTS_PROPERTY_KEY = "jod.office.ports";
 
+    /**
+     * Number of office processes started when no ports or pipes are
+     * explicitly configured.
+     *
+     * @since 7.1
+     */
+    private static final String OFFICE_PROCESSES_PROPERTY_KEY = "jod.office.processes";
+
+    /**
+     * Maximum number of conversions waiting for an office process.
+     *
+     * @since 7.1
+     */
+    private static final String CONVERSION_QUEUE_SIZE_PROPERTY_KEY = "jod.conversion.queue.size";
+
+    protected static final int DEFAULT_PORT_NUMBER = 2002;
+
+    protected static final int DEFAULT_CONVERSION_QUEUE_SIZE = 100;
+
+    protected static final long DEFAULT_TASK_QUEUE_TIMEOUT = 30000; // 30s
+
     protected static final String CONFIG_EP = "oooManagerConfig";
 
     private static OfficeManager officeManager;
 
+    private static OfficeConversionQueue conversionQueue;
+
     protected OOoManagerDescriptor descriptor = new OOoManagerDescriptor();
 
     protected boolean started = false;
@@ -156,10 +180,12 @@ public class OOoManagerComponent extends DefaultComponent implements
                 configuration.setTaskExecutionTimeout(taskExecutionTimeout);
             }
             String taskQueueTimeoutProperty = Framework.getProperty(TASK_QUEUE_TIMEOUT_PROPERTY_KEY);
+            long queueTimeout = DEFAULT_TASK_QUEUE_TIMEOUT;
             if (taskQueueTimeoutProperty != null
                     && !"".equals(taskQueueTimeoutProperty)) {
                 Long taskQueueTimeout = Long.valueOf(taskQueueTimeoutProperty);
                 configuration.setTaskQueueTimeout(taskQueueTimeout);
+                queueTimeout = taskQueueTimeout.longValue();
             }
             String templateProfileDir = Framework.getProperty(TEMPLATE_PROFILE_DIR_PROPERTY_KEY);
             if (templateProfileDir != null && !"".equals(templateProfileDir)) {
@@ -215,9 +241,42 @@ public class OOoManagerComponent extends DefaultComponent implements
             if (portNumbers != null && portNumbers.length != 0) {
                 configuration.setPortNumbers(portNumbers);
             }
+            int processes = FrameworkProperties.getInt(
+                    OFFICE_PROCESSES_PROPERTY_KEY, 1);
+            boolean usePipes = OfficeConnectionProtocol.PIPE.toString().equals(
+                    connectionProtocol);
+            if (usePipes) {
+                if (pipeNames == null || pipeNames.length == 0) {
+                    if (processes > 1) {
+                        pipeNames = new String[processes];
+                        for (int i = 0; i < processes; i++) {
+                            pipeNames[i] = "office" + i;
+                        }
+                        configuration.setPipeNames(pipeNames);
+                    }
+                } else {
+                    processes = pipeNames.length;
+                }
+            } else {
+                if (portNumbers == null || portNumbers.length == 0) {
+                    if (processes > 1) {
+                        portNumbers = new int[processes];
+                        for (int i = 0; i < processes; i++) {
+                            portNumbers[i] = DEFAULT_PORT_NUMBER + i;
+                        }
+                        configuration.setPortNumbers(portNumbers);
+                    }
+                } else {
+                    processes = portNumbers.length;
+                }
+            }
             try {
                 officeManager = configuration.buildOfficeManager();
                 officeManager.start();
+                conversionQueue = new OfficeConversionQueue(Math.max(1,
+                        processes), FrameworkProperties.getInt(
+                        CONVERSION_QUEUE_SIZE_PROPERTY_KEY,
+                        DEFAULT_CONVERSION_QUEUE_SIZE), queueTimeout);
                 started = true;
                 log.debug("Starting ooo manager.");
             } catch (Exception e) {
@@ -299,4 +358,12 @@ public class OOoManagerComponent extends DefaultComponent implements
     public OfficeManager getOfficeManager() {
         return officeManager;
     }
+
+    @Override
+    public OfficeConversionQueue getConversionQueue() {
+        if (isOOoManagerStarted()) {
+            return conversionQueue;
+        }
+        return null;
+    }
 }
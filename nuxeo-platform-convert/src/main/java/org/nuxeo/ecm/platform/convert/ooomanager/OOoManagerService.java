@@ -39,4 +39,13 @@ public interface OOoManagerService {
 
     boolean isOOoManagerStarted();
 
+    /**
+     * Gets the queue through which conversions must be run to be admitted
+     * to an office process.
+     *
+     * @return the queue, or {@code null} if the manager is not started
+     * @since 7.1
+     */
+    OfficeConversionQueue getConversionQueue();
+
 }
@@ -0,0 +1,223 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.convert.ooomanager;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.nuxeo.ecm.core.convert.api.ConversionException;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+
+/**
+ * Admission control in front of the office processes.
+ * <p>
+ * At most one conversion per office process runs at a time, the other ones
+ * wait in a bounded queue, higher priorities first, then in arrival order. A
+ * conversion is rejected right away when the queue is full, or after waiting
+ * too long in it.
+ *
+ * @since 7.1
+ */
+public class OfficeConversionQueue {
+
+    /**
+     * A conversion to run once admitted.
+     */
+    public interface Conversion<T> {
+        T run() throws Exception;
+    }
+
+    protected static class Waiter implements Comparable<Waiter> {
+
+        protected final int priority;
+
+        protected final long seq;
+
+        protected final Condition condition;
+
+        protected boolean admitted;
+
+        protected Waiter(int priority, long seq, Condition condition) {
+            this.priority = priority;
+            this.seq = seq;
+            this.condition = condition;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+
+    protected final int concurrency;
+
+    protected final int maxQueueSize;
+
+    protected final long queueTimeout;
+
+    protected final ReentrantLock lock = new ReentrantLock();
+
+    protected final PriorityQueue<Waiter> waiters = new PriorityQueue<Waiter>();
+
+    protected int running;
+
+    protected long seq;
+
+    protected final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    protected final Timer waitTimer = registry.timer(MetricRegistry.name(
+            "nuxeo", "convert", "office", "queue", "wait"));
+
+    protected final Counter rejectedCount = registry.counter(MetricRegistry.name(
+            "nuxeo", "convert", "office", "queue", "rejected"));
+
+    /**
+     * @param concurrency the number of conversions running at the same time
+     * @param maxQueueSize the maximum number of waiting conversions
+     * @param queueTimeout the maximum waiting time, in milliseconds
+     */
+    public OfficeConversionQueue(int concurrency, int maxQueueSize,
+            long queueTimeout) {
+        this.concurrency = concurrency;
+        this.maxQueueSize = maxQueueSize;
+        this.queueTimeout = queueTimeout;
+        String name = MetricRegistry.name("nuxeo", "convert", "office",
+                "queue", "depth");
+        registry.remove(name);
+        registry.register(name, new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return Integer.valueOf(getQueueSize());
+            }
+        });
+    }
+
+    /**
+     * Runs a conversion once admitted, timing it under the source mime type.
+     *
+     * @param sourceMimeType the source mime type, for metrics
+     * @param priority the priority, higher values first
+     */
+    public <T> T run(String sourceMimeType, int priority,
+            Conversion<T> conversion) throws Exception {
+        acquire(priority);
+        Timer.Context conversionTime = registry.timer(
+                MetricRegistry.name("nuxeo", "convert", "office",
+                        "conversion", String.valueOf(sourceMimeType))).time();
+        try {
+            return conversion.run();
+        } finally {
+            conversionTime.stop();
+            release();
+        }
+    }
+
+    protected void acquire(int priority) throws ConversionException {
+        Timer.Context waitTime = waitTimer.time();
+        lock.lock();
+        try {
+            if (running < concurrency && waiters.isEmpty()) {
+                running++;
+                return;
+            }
+            if (waiters.size() >= maxQueueSize) {
+                rejectedCount.inc();
+                throw new ConversionException("Office conversion queue full ("
+                        + maxQueueSize + " waiting conversions)");
+            }
+            Waiter waiter = new Waiter(priority, seq++, lock.newCondition());
+            waiters.add(waiter);
+            long nanos = TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+            try {
+                while (!waiter.admitted) {
+                    if (nanos <= 0) {
+                        waiters.remove(waiter);
+                        rejectedCount.inc();
+                        throw new ConversionException(
+                                "Timeout waiting for an office process after "
+                                        + queueTimeout + "ms");
+                    }
+                    nanos = waiter.condition.awaitNanos(nanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (waiter.admitted) {
+                    // give back the slot we were just handed
+                    running--;
+                    admitNext();
+                } else {
+                    waiters.remove(waiter);
+                }
+                throw new ConversionException(
+                        "Interrupted while waiting for an office process", e);
+            }
+        } finally {
+            lock.unlock();
+            waitTime.stop();
+        }
+    }
+
+    protected void release() {
+        lock.lock();
+        try {
+            running--;
+            admitNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called under lock. */
+    protected void admitNext() {
+        while (running < concurrency && !waiters.isEmpty()) {
+            Waiter waiter = waiters.poll();
+            waiter.admitted = true;
+            running++;
+            waiter.condition.signal();
+        }
+    }
+
+    public int getQueueSize() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
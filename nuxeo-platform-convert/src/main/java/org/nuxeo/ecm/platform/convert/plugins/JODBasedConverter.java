@@ -22,6 +22,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -29,6 +30,8 @@ import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.commons.io.FileCleaningTracker;
+import org.apache.commons.io.FileDeleteStrategy;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -40,7 +43,7 @@ import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
-import org.nuxeo.ecm.core.api.impl.blob.StreamingBlob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
 import org.nuxeo.ecm.core.convert.api.ConversionException;
 import org.nuxeo.ecm.core.convert.api.ConverterCheckResult;
@@ -48,9 +51,10 @@ import org.nuxeo.ecm.core.convert.cache.SimpleCachableBlobHolder;
 import org.nuxeo.ecm.core.convert.extension.ConverterDescriptor;
 import org.nuxeo.ecm.core.convert.extension.ExternalConverter;
 import org.nuxeo.ecm.platform.convert.ooomanager.OOoManagerService;
+import org.nuxeo.ecm.platform.convert.ooomanager.OfficeConversionQueue;
+import org.nuxeo.ecm.platform.convert.ooomanager.OfficeConversionQueue.Conversion;
 import org.nuxeo.ecm.platform.mimetype.interfaces.MimetypeRegistry;
 import org.nuxeo.runtime.api.Framework;
-import org.nuxeo.runtime.services.streaming.FileSource;
 
 import com.sun.star.uno.RuntimeException;
 
@@ -64,6 +68,32 @@ public class JODBasedConverter implements ExternalConverter {
 
     private static final Log log = LogFactory.getLog(JODBasedConverter.class);
 
+    /**
+     * Deletes the output directories of HTML conversions with their content.
+     *
+     * @since 7.1
+     */
+    protected static final FileCleaningTracker outDirTracker = new FileCleaningTracker();
+
+    /**
+     * Blob of a file of an HTML conversion output directory, keeping the
+     * directory alive.
+     *
+     * @since 7.1
+     */
+    protected static class OutputFileBlob extends FileBlob {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Tracked by {@link #outDirTracker} for the output directory. */
+        protected final transient Object outDirMarker;
+
+        protected OutputFileBlob(File file, Object outDirMarker) {
+            super(file);
+            this.outDirMarker = outDirMarker;
+        }
+    }
+
     /**
      * Boolean conversion parameter for PDF/A-1.
      *
@@ -78,6 +108,14 @@ public class JODBasedConverter implements ExternalConverter {
      */
     public static final String UPDATE_INDEX_PARAM = StandardConversionTask.UPDATE_DOCUMENT_INDEX;
 
+    /**
+     * Integer conversion parameter for the priority of the conversion in the
+     * office conversion queue, higher values first. Defaults to {@code 0}.
+     *
+     * @since 7.1
+     */
+    public static final String PRIORITY_PARAM = "priority";
+
     protected static final Map<DocumentFamily, String> PDF_FILTER_NAMES = new HashMap<DocumentFamily, String>();
     {
         PDF_FILTER_NAMES.put(DocumentFamily.TEXT, "writer_pdf_Export");
@@ -204,7 +242,7 @@ public class JODBasedConverter implements ExternalConverter {
             return null;
         }
 
-        OfficeDocumentConverter documentConverter = newDocumentConverter();
+        final OfficeDocumentConverter documentConverter = newDocumentConverter();
         // This plugin do deal only with one input source.
         String sourceMimetype = inputBlob.getMimeType();
 
@@ -212,8 +250,10 @@ public class JODBasedConverter implements ExternalConverter {
                 && Boolean.TRUE.equals(parameters.get(PDFA1_PARAM));
 
         File sourceFile = null;
+        boolean deleteSourceFile = false;
         File outFile = null;
-        File[] files = null;
+        File outDir = null;
+        boolean succeeded = false;
         try {
 
             // If the input blob has the HTML mime type, make sure the
@@ -230,13 +270,15 @@ public class JODBasedConverter implements ExternalConverter {
             } else {
                 ext = ext.substring(dotPosition);
             }
-            // Copy in a file to be able to read it several time
-            sourceFile = File.createTempFile("NXJOOoConverterDocumentIn", ext);
-            InputStream stream = inputBlob.getStream();
-            // if (stream.markSupported()) {
-            // stream.reset(); // works on a JCRBlobInputStream
-            // }
-            FileUtils.copyToFile(stream, sourceFile);
+            sourceFile = getLocalFile(inputBlob, ext);
+            if (sourceFile == null) {
+                // Copy in a file to be able to read it several time
+                sourceFile = File.createTempFile("NXJOOoConverterDocumentIn",
+                        ext);
+                deleteSourceFile = true;
+                InputStream stream = inputBlob.getStream();
+                FileUtils.copyToFile(stream, sourceFile);
+            }
 
             DocumentFormat sourceFormat = null;
             if (sourceMimetype != null) {
@@ -260,19 +302,17 @@ public class JODBasedConverter implements ExternalConverter {
             List<Blob> blobs = new ArrayList<Blob>();
 
             if (descriptor.getDestinationMimeType().equals("text/html")) {
-                String tmpDirPath = getTmpDirectory();
-                File myTmpDir = new File(tmpDirPath + "/JODConv_"
-                        + System.currentTimeMillis());
-                boolean created = myTmpDir.mkdir();
-                if (!created) {
-                    throw new ConversionException("Unable to create temp dir");
-                }
+                // a unique name, as parallel conversions may start in the
+                // same millisecond; only a created directory is ours to delete
+                File tmpDir = new File(getTmpDirectory());
+                outDir = Files.createTempDirectory(tmpDir.toPath(),
+                        "JODConv_").toFile();
 
-                outFile = new File(myTmpDir.getAbsolutePath() + "/"
+                outFile = new File(outDir.getAbsolutePath() + "/"
                         + "NXJOOoConverterDocumentOut."
                         + destinationFormat.getExtension());
 
-                created = outFile.createNewFile();
+                boolean created = outFile.createNewFile();
                 if (!created) {
                     throw new ConversionException("Unable to create temp file");
                 }
@@ -280,66 +320,182 @@ public class JODBasedConverter implements ExternalConverter {
                 log.debug("$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$");
                 log.debug("Input File = " + outFile.getAbsolutePath());
                 // Perform the actual conversion.
-                documentConverter.convert(sourceFile, outFile,
-                        destinationFormat);
-
-                files = myTmpDir.listFiles();
-                for (File file : files) {
-                    Blob blob = StreamingBlob.createFromByteArray(new FileSource(
-                            file).getBytes());
-                    blob.setFilename(file.getName());
-                    blobs.add(blob);
-                    // add a blob for the index
-                    if (file.getName().equals(outFile.getName())) {
-                        File indexFile = File.createTempFile("idx-",
-                                file.getName());
-                        FileUtils.copy(file, indexFile);
-                        Blob indexBlob = StreamingBlob.createFromByteArray(new FileSource(
-                                indexFile).getBytes());
-                        indexBlob.setFilename("index.html");
-                        blobs.add(0, indexBlob);
-                        indexFile.delete();
+                final File htmlSourceFile = sourceFile;
+                final File htmlOutFile = outFile;
+                final DocumentFormat htmlFormat = destinationFormat;
+                runConversion(sourceMimetype, parameters, new Conversion<Void>() {
+                    @Override
+                    public Void run() {
+                        documentConverter.convert(htmlSourceFile, htmlOutFile,
+                                htmlFormat);
+                        return null;
                     }
-                }
+                });
+
+                blobs = getHtmlBlobs(outDir, outFile.getName());
 
             } else {
                 outFile = File.createTempFile("NXJOOoConverterDocumentOut",
                         '.' + destinationFormat.getExtension());
 
                 // Perform the actual conversion.
-                documentConverter.convert(sourceFile, outFile,
-                        destinationFormat, parameters);
-
-                // load the content in the file since it will be deleted
-                // soon: TODO: find a way to stream it to the streaming
-                // server without loading it all in memory
-                Blob blob = StreamingBlob.createFromByteArray(new FileSource(
-                        outFile).getBytes(), getDestinationMimeType());
-                blobs.add(blob);
+                final File pdfSourceFile = sourceFile;
+                final File pdfOutFile = outFile;
+                final DocumentFormat format = destinationFormat;
+                final Map<String, Serializable> storeParameters = parameters;
+                runConversion(sourceMimetype, parameters, new Conversion<Void>() {
+                    @Override
+                    public Void run() {
+                        documentConverter.convert(pdfSourceFile, pdfOutFile,
+                                format, storeParameters);
+                        return null;
+                    }
+                });
+
+                blobs.add(newFileBlob(outFile, null, getDestinationMimeType()));
             }
-            return new SimpleCachableBlobHolder(blobs);
+            BlobHolder result = new SimpleCachableBlobHolder(blobs);
+            succeeded = true;
+            return result;
         } catch (Exception e) {
             String msg = String.format(
                     "An error occurred trying to convert file %s to from %s to %s",
                     blobPath, sourceMimetype, getDestinationMimeType());
             throw new ConversionException(msg, e);
         } finally {
-            if (sourceFile != null) {
+            if (deleteSourceFile) {
                 sourceFile.delete();
             }
-            if (outFile != null) {
-                outFile.delete();
+            if (!succeeded) {
+                // on success the result blobs own the files
+                if (outDir != null) {
+                    FileUtils.deleteTree(outDir);
+                } else if (outFile != null) {
+                    outFile.delete();
+                }
             }
+        }
 
-            if (files != null) {
-                for (File file : files) {
-                    if (file.exists()) {
-                        file.delete();
-                    }
-                }
+    }
+
+    /**
+     * Gets the local file of a blob if it can be passed directly to the
+     * converter, which finds the input format from the file extension.
+     *
+     * @since 7.1
+     */
+    protected File getLocalFile(Blob blob, String ext) {
+        if (blob instanceof FileBlob) {
+            File file = ((FileBlob) blob).getFile();
+            if (file != null && file.isFile() && file.getName().endsWith(ext)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates a blob streaming from a conversion result file. The file is
+     * deleted once the blob is garbage collected.
+     *
+     * @since 7.1
+     */
+    protected Blob newFileBlob(File file, String filename, String mimeType) {
+        Blob blob = new FileBlob(file);
+        initBlob(blob, filename, mimeType);
+        Framework.trackFile(file, blob);
+        return blob;
+    }
+
+    protected void initBlob(Blob blob, String filename, String mimeType) {
+        if (filename != null) {
+            blob.setFilename(filename);
+        }
+        if (mimeType != null) {
+            blob.setMimeType(mimeType);
+        }
+    }
+
+    /**
+     * Creates the blobs of the files of an HTML conversion output directory,
+     * the first one being a copy of the main file named index.html. The
+     * directory and all its files are deleted once all the blobs are garbage
+     * collected.
+     *
+     * @since 7.1
+     */
+    protected List<Blob> getHtmlBlobs(File outDir, String outFileName)
+            throws IOException {
+        Object outDirMarker = new Object();
+        List<Blob> blobs = new ArrayList<Blob>();
+        for (File file : outDir.listFiles()) {
+            Blob blob = new OutputFileBlob(file, outDirMarker);
+            initBlob(blob, file.getName(), null);
+            blobs.add(blob);
+            // add a blob for the index
+            if (file.getName().equals(outFileName)) {
+                File indexFile = new File(outDir, "idx-" + file.getName());
+                linkOrCopy(file, indexFile);
+                Blob index = new OutputFileBlob(indexFile, outDirMarker);
+                initBlob(index, "index.html", null);
+                blobs.add(0, index);
             }
         }
+        outDirTracker.track(outDir, outDirMarker, FileDeleteStrategy.FORCE);
+        return blobs;
+    }
 
+    /**
+     * Makes a second name for a file, without copying its content if the
+     * filesystem supports hard links.
+     *
+     * @since 7.1
+     */
+    protected void linkOrCopy(File file, File link) throws IOException {
+        try {
+            Files.createLink(link.toPath(), file.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("Cannot link " + file + ", copying it", e);
+            FileUtils.copy(file, link);
+        }
+    }
+
+    /**
+     * Runs a conversion once admitted by the conversion queue of the office
+     * manager.
+     *
+     * @since 7.1
+     */
+    protected void runConversion(String sourceMimetype,
+            Map<String, Serializable> parameters, Conversion<Void> conversion)
+            throws Exception {
+        OfficeConversionQueue queue = null;
+        try {
+            OOoManagerService oooManagerService = Framework.getService(OOoManagerService.class);
+            queue = oooManagerService.getConversionQueue();
+        } catch (Exception e) {
+            log.debug("No conversion queue available", e);
+        }
+        if (queue == null) {
+            conversion.run();
+        } else {
+            queue.run(sourceMimetype, getPriority(parameters), conversion);
+        }
+    }
+
+    protected int getPriority(Map<String, Serializable> parameters) {
+        Serializable priority = parameters == null ? null
+                : parameters.get(PRIORITY_PARAM);
+        if (priority instanceof Number) {
+            return ((Number) priority).intValue();
+        } else if (priority instanceof String) {
+            try {
+                return Integer.parseInt((String) priority);
+            } catch (NumberFormatException e) {
+                log.warn("Invalid conversion priority: " + priority);
+            }
+        }
+        return 0;
     }
 
     protected OfficeDocumentConverter newDocumentConverter()
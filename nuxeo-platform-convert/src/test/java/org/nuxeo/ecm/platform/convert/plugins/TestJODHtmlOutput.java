@@ -0,0 +1,76 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.convert.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Test;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * Tests the cleanup of the output directory of HTML conversions, without
+ * any office server.
+ */
+public class TestJODHtmlOutput {
+
+    protected static void waitForDeletion(File file) throws Exception {
+        for (int i = 0; i < 100 && file.exists(); i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    public void testOutputDirDeletedWithBlobs() throws Exception {
+        File outDir = Files.createTempDirectory("JODConv_").toFile();
+        FileUtils.writeFile(new File(outDir, "out.html"), "<html>Hello</html>");
+        FileUtils.writeFile(new File(outDir, "out_img.png"), "png");
+
+        List<Blob> blobs = new JODBasedConverter().getHtmlBlobs(outDir,
+                "out.html");
+        assertEquals(3, blobs.size());
+        assertEquals("index.html", blobs.get(0).getFilename());
+        assertEquals("<html>Hello</html>", blobs.get(0).getString());
+
+        // the directory is kept as long as one of its blobs is used
+        Blob image = null;
+        for (Blob blob : blobs) {
+            if ("out_img.png".equals(blob.getFilename())) {
+                image = blob;
+            }
+        }
+        blobs = null;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        assertTrue(outDir.isDirectory());
+        assertEquals("png", image.getString());
+
+        image = null;
+        waitForDeletion(outDir);
+        assertFalse(outDir.exists());
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.convert.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.nuxeo.ecm.core.convert.api.ConversionException;
+import org.nuxeo.ecm.platform.convert.ooomanager.OfficeConversionQueue;
+import org.nuxeo.ecm.platform.convert.ooomanager.OfficeConversionQueue.Conversion;
+
+public class TestOfficeConversionQueue {
+
+    protected final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+
+    protected Thread start(final OfficeConversionQueue queue,
+            final int priority, final CountDownLatch release) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    queue.run("text/plain", priority, new Conversion<Void>() {
+                        @Override
+                        public Void run() throws Exception {
+                            order.add(Integer.valueOf(priority));
+                            release.await(10, TimeUnit.SECONDS);
+                            return null;
+                        }
+                    });
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    protected void waitForQueueSize(OfficeConversionQueue queue, int size)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (queue.getQueueSize() != size
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(size, queue.getQueueSize());
+    }
+
+    @Test
+    public void testPriorities() throws Exception {
+        OfficeConversionQueue queue = new OfficeConversionQueue(1, 10, 10000);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(0);
+        Thread first = start(queue, 0, blocker);
+        while (queue.getRunning() == 0) {
+            Thread.sleep(10);
+        }
+        Thread low = start(queue, 1, done);
+        waitForQueueSize(queue, 1);
+        Thread high = start(queue, 5, done);
+        waitForQueueSize(queue, 2);
+        blocker.countDown();
+        first.join();
+        low.join();
+        high.join();
+        assertEquals(3, order.size());
+        assertEquals(Integer.valueOf(5), order.get(1));
+        assertEquals(Integer.valueOf(1), order.get(2));
+        assertEquals(0, queue.getRunning());
+    }
+
+    @Test
+    public void testAdmissionControl() throws Exception {
+        OfficeConversionQueue queue = new OfficeConversionQueue(1, 1, 10000);
+        CountDownLatch blocker = new CountDownLatch(1);
+        Thread first = start(queue, 0, blocker);
+        while (queue.getRunning() == 0) {
+            Thread.sleep(10);
+        }
+        Thread second = start(queue, 0, blocker);
+        waitForQueueSize(queue, 1);
+        try {
+            queue.run("text/plain", 0, new Conversion<Void>() {
+                @Override
+                public Void run() {
+                    fail();
+                    return null;
+                }
+            });
+            fail("queue should be full");
+        } catch (ConversionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("full"));
+        }
+        blocker.countDown();
+        first.join();
+        second.join();
+    }
+
+    @Test
+    public void testQueueTimeout() throws Exception {
+        OfficeConversionQueue queue = new OfficeConversionQueue(1, 10, 50);
+        CountDownLatch blocker = new CountDownLatch(1);
+        Thread first = start(queue, 0, blocker);
+        while (queue.getRunning() == 0) {
+            Thread.sleep(10);
+        }
+        try {
+            queue.run("text/plain", 0, new Conversion<Void>() {
+                @Override
+                public Void run() {
+                    fail();
+                    return null;
+                }
+            });
+            fail("should time out");
+        } catch (ConversionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Timeout"));
+        }
+        assertEquals(0, queue.getQueueSize());
+        blocker.countDown();
+        first.join();
+    }
+
+}
@@ -19,9 +19,12 @@
 package org.nuxeo.ecm.directory;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -267,6 +270,54 @@ public abstract class BaseSession implements Session {
         return String.format(MULTI_TENANT_ID_FORMAT, tenantId, id);
     }
 
+    /**
+     * Keys the fetched entries by the requested ids, which may differ in case
+     * from the stored ones when the backend compares ids ignoring case.
+     *
+     * @since 7.1
+     */
+    public static Map<String, DocumentModel> getEntriesByRequestedId(
+            Collection<String> ids, Map<String, DocumentModel> entries) {
+        Map<String, DocumentModel> byRequestedId = new LinkedHashMap<String, DocumentModel>();
+        Map<String, DocumentModel> byLowerCaseId = null;
+        for (String id : ids) {
+            DocumentModel entry = entries.get(id);
+            if (entry == null) {
+                if (byLowerCaseId == null) {
+                    byLowerCaseId = new HashMap<String, DocumentModel>();
+                    for (Map.Entry<String, DocumentModel> es : entries.entrySet()) {
+                        byLowerCaseId.put(es.getKey().toLowerCase(),
+                                es.getValue());
+                    }
+                }
+                entry = byLowerCaseId.get(id.toLowerCase());
+            }
+            if (entry != null) {
+                byRequestedId.put(id, entry);
+            }
+        }
+        return byRequestedId;
+    }
+
+    /**
+     * Default implementation fetching entries one by one, to be overridden by
+     * implementations able to fetch several entries at once.
+     *
+     * @since 7.1
+     */
+    @Override
+    public DocumentModelList getEntries(Collection<String> ids,
+            boolean fetchReferences) throws DirectoryException {
+        DocumentModelList entries = new DocumentModelListImpl();
+        for (String id : ids) {
+            DocumentModel entry = getEntry(id, fetchReferences);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
     @Override
     public DocumentModelList query(Map<String, Serializable> filter,
             Set<String> fulltext, Map<String, String> orderBy,
@@ -283,4 +334,99 @@ public abstract class BaseSession implements Session {
         return new DocumentModelListImpl(entries.subList(offset, toIndex));
     }
 
+    /**
+     * Default implementation iterating over the result of a regular query, to
+     * be overridden by implementations able to read entries by chunks.
+     *
+     * @since 7.1
+     */
+    @Override
+    public EntryCursor scroll(Map<String, Serializable> filter,
+            Set<String> fulltext, boolean fetchReferences)
+            throws DirectoryException {
+        final Iterator<DocumentModel> it = query(filter, fulltext,
+                new HashMap<String, String>(),
+                fetchReferences).iterator();
+        return new EntryCursor() {
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public DocumentModel next() {
+                return it.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Gets an entry for a read-only use: its values are read with
+     * {@link DirectoryEntrySnapshot#getValue} and must not be modified. This
+     * default implementation takes a snapshot of the entry, subclasses with a
+     * {@link DirectoryCache} return the cached snapshot without building a
+     * document model.
+     * <p>
+     * Like {@link #getStoredPassword}, this is not part of the
+     * {@link Session} interface.
+     *
+     * @return the entry, or {@code null} if it does not exist
+     * @throws DirectoryException if the entry cannot be represented as a
+     *             snapshot
+     * @since 7.1
+     */
+    public DirectoryEntrySnapshot getEntrySnapshot(String id,
+            boolean fetchReferences) throws DirectoryException {
+        DocumentModel entry = getEntry(id, fetchReferences);
+        if (entry == null) {
+            return null;
+        }
+        DirectoryEntrySnapshot snapshot = DirectoryEntrySnapshot.of(entry);
+        if (snapshot == null) {
+            throw new DirectoryException("Entry " + id
+                    + " cannot be read as a snapshot");
+        }
+        return snapshot;
+    }
+
+    /**
+     * Gets the password stored for an entry, without fetching anything else
+     * such as its references. This default implementation reads the entry
+     * without its references, subclasses may read the password alone.
+     * <p>
+     * This is not part of the {@link Session} interface, so that its
+     * implementations outside of this class hierarchy don't have to provide
+     * it.
+     *
+     * @param username the id of the entry
+     * @return the stored password, possibly hashed, or {@code null} if the
+     *         entry does not exist or its password cannot be read
+     * @since 7.1
+     */
+    public String getStoredPassword(String username) throws ClientException {
+        DocumentModel entry = getEntry(username, false);
+        if (entry == null) {
+            return null;
+        }
+        String passwordField = getPasswordField();
+        for (String schema : entry.getSchemas()) {
+            Object password = entry.getDataModel(schema).getMap().get(
+                    passwordField);
+            if (password != null) {
+                return (String) password;
+            }
+        }
+        return null;
+    }
+
 }
@@ -18,8 +18,19 @@
 package org.nuxeo.ecm.directory;
 
 import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -39,6 +50,15 @@ import com.codahale.metrics.SharedMetricRegistries;
  * <p>
  * Beware that this cache is not transaction aware (which is not a problem for
  * LDAP directories anyway).
+ * <p>
+ * Concurrent lookups of the same missing entry only fetch it once from the
+ * source. Ids of missing entries can also be remembered in an optional
+ * negative cache, unless the source filters entries by context. Fetched
+ * entries are cached under the same lock as invalidations, and only if no
+ * invalidation happened during the fetch.
+ * <p>
+ * Entries are stored as immutable {@link DirectoryEntrySnapshot}s, from which
+ * a new document model is built on each hit instead of cloning a cached one.
  *
  */
 public class DirectoryCache {
@@ -53,10 +73,32 @@ public class DirectoryCache {
 
     protected String entryCacheWithoutReferencesName = null;
 
+    protected Cache negativeEntryCache;
+
+    protected String negativeEntryCacheName = null;
+
+    /**
+     * Entries being fetched from the source, keyed by reference fetching mode
+     * and entry id.
+     */
+    protected final ConcurrentMap<String, FutureTask<Serializable>> loadingTasks = new ConcurrentHashMap<String, FutureTask<Serializable>>();
+
+    /**
+     * Incremented on each invalidation, to avoid caching entries fetched
+     * before it.
+     */
+    protected final AtomicLong invalidationGeneration = new AtomicLong();
+
     protected final MetricRegistry metrics = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
 
     protected final Counter hitsCounter;
 
+    protected final Counter missesCounter;
+
+    protected final Counter negativeHitsCounter;
+
+    protected final Counter coalescedCounter;
+
     protected final Counter invalidationsCounter;
 
     protected final Counter maxCounter;
@@ -70,6 +112,12 @@ public class DirectoryCache {
         this.name = name;
         hitsCounter = metrics.counter(MetricRegistry.name("nuxeo",
                 "directories", name, "cache", "hits"));
+        missesCounter = metrics.counter(MetricRegistry.name("nuxeo",
+                "directories", name, "cache", "misses"));
+        negativeHitsCounter = metrics.counter(MetricRegistry.name("nuxeo",
+                "directories", name, "cache", "negativehits"));
+        coalescedCounter = metrics.counter(MetricRegistry.name("nuxeo",
+                "directories", name, "cache", "coalesced"));
         invalidationsCounter = metrics.counter(MetricRegistry.name("nuxeo",
                 "directories", name, "cache", "invalidations"));
         sizeCounter = metrics.counter(MetricRegistry.name("nuxeo",
@@ -89,10 +137,50 @@ public class DirectoryCache {
 
     public DocumentModel getEntry(String entryId, EntrySource source,
             boolean fetchReferences) throws DirectoryException {
-        if (!isCacheEnabled()) {
+        Cache cache = getUsableCache(fetchReferences);
+        if (cache == null) {
             return source.getEntryFromSource(entryId, fetchReferences);
-        } else if (isCacheEnabled()
-                && (getEntryCache() == null || getEntryCacheWithoutReferences() == null)) {
+        }
+        Serializable cached = lookupEntry(entryId, source, fetchReferences,
+                cache);
+        return cached == null ? null : toEntry(cached);
+    }
+
+    /**
+     * Gets an entry for a read-only use, without building a document model
+     * when it is cached.
+     * <p>
+     * The values of the returned snapshot must not be modified.
+     *
+     * @return the entry, or {@code null} if it does not exist
+     * @throws DirectoryException if the entry cannot be represented as a
+     *             snapshot
+     * @since 7.1
+     */
+    public DirectoryEntrySnapshot getEntrySnapshot(String entryId,
+            EntrySource source, boolean fetchReferences)
+            throws DirectoryException {
+        Cache cache = getUsableCache(fetchReferences);
+        Serializable cached;
+        if (cache == null) {
+            cached = source.getEntryFromSource(entryId, fetchReferences);
+        } else {
+            cached = lookupEntry(entryId, source, fetchReferences, cache);
+        }
+        return toSnapshot(cached);
+    }
+
+    /**
+     * Gets the cache to use for entries with or without references, or
+     * {@code null} if caching is disabled or misconfigured.
+     *
+     * @since 7.1
+     */
+    protected Cache getUsableCache(boolean fetchReferences) {
+        if (!isCacheEnabled()) {
+            return null;
+        } else if (getEntryCache() == null
+                || getEntryCacheWithoutReferences() == null) {
 
             log.warn("Your directory configuration for cache is wrong, directory cache will not be used.");
             if (getEntryCache() == null) {
@@ -105,64 +193,273 @@ public class DirectoryCache {
                         "The cache for entry without references '%s' has not been found, please check the cache name or make sure you have deployed it",
                         entryCacheWithoutReferencesName));
             }
-
-            return source.getEntryFromSource(entryId, fetchReferences);
+            return null;
         }
+        return fetchReferences ? getEntryCache()
+                : getEntryCacheWithoutReferences();
+    }
+
+    /**
+     * Gets the cached representation of an entry, fetching it from the
+     * source on a miss.
+     *
+     * @return the cached representation, or {@code null} if the entry does
+     *         not exist
+     * @since 7.1
+     */
+    protected Serializable lookupEntry(String entryId, EntrySource source,
+            boolean fetchReferences, Cache cache) throws DirectoryException {
         try {
-            DocumentModel dm = null;
-            if (fetchReferences) {
-                dm = (DocumentModel) getEntryCache().get(entryId);
-                if (dm == null) {
-                    // fetch the entry from the backend and cache it for later
-                    // reuse
-                    dm = source.getEntryFromSource(entryId, fetchReferences);
-                    if (dm != null) {
-                        getEntryCache().put(entryId, dm);
+            Serializable cached = cache.get(entryId);
+            if (cached != null) {
+                hitsCounter.inc();
+                return cached;
+            }
+            if (isNegativeEntry(entryId)) {
+                negativeHitsCounter.inc();
+                return null;
+            }
+            missesCounter.inc();
+            // fetch the entry from the backend and cache it for later reuse,
+            // concurrent lookups of the same entry wait for a single fetch
+            return loadEntry(entryId, source, fetchReferences, cache);
+        } catch (IOException e) {
+            throw new DirectoryException(e);
+        }
+    }
+
+    /**
+     * Fetches an entry from the source, coalescing the concurrent calls for
+     * the same entry so that only one of them hits the backend.
+     *
+     * @return the cached representation of the entry, or {@code null} if it
+     *         does not exist
+     * @since 7.1
+     */
+    protected Serializable loadEntry(final String entryId,
+            final EntrySource source, final boolean fetchReferences,
+            final Cache cache) throws DirectoryException {
+        String key = (fetchReferences ? "r:" : "n:") + entryId;
+        final long generation = invalidationGeneration.get();
+        FutureTask<Serializable> task = new FutureTask<Serializable>(
+                new Callable<Serializable>() {
+                    @Override
+                    public Serializable call() throws Exception {
+                        DocumentModel dm = source.getEntryFromSource(entryId,
+                                fetchReferences);
+                        Serializable cached = dm == null ? null
+                                : toCacheValue(dm);
+                        boolean negative = !source.isContextFiltered();
+                        synchronized (DirectoryCache.this) {
+                            // do not cache entries fetched before an
+                            // invalidation
+                            if (generation == invalidationGeneration.get()) {
+                                if (cached != null) {
+                                    cache.put(entryId, cached);
+                                } else if (negative) {
+                                    putNegativeEntry(entryId);
+                                }
+                            }
+                        }
+                        return cached;
                     }
-                } else {
+                });
+        FutureTask<Serializable> loading = loadingTasks.putIfAbsent(key, task);
+        if (loading != null) {
+            coalescedCounter.inc();
+            return getLoadedEntry(loading);
+        }
+        try {
+            task.run();
+            return getLoadedEntry(task);
+        } finally {
+            loadingTasks.remove(key, task);
+        }
+    }
+
+    protected Serializable getLoadedEntry(FutureTask<Serializable> task)
+            throws DirectoryException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DirectoryException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DirectoryException) {
+                throw (DirectoryException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new DirectoryException(cause);
+        }
+    }
+
+    protected boolean isNegativeCacheEnabled() {
+        return negativeEntryCacheName != null
+                && getNegativeEntryCache() != null;
+    }
+
+    protected boolean isNegativeEntry(String entryId) throws IOException {
+        return isNegativeCacheEnabled()
+                && getNegativeEntryCache().get(entryId) != null;
+    }
+
+    protected void putNegativeEntry(String entryId) throws IOException {
+        if (isNegativeCacheEnabled()) {
+            getNegativeEntryCache().put(entryId, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Retrieves several entries, only the ids missing from the cache are
+     * fetched from the source, in a single call.
+     *
+     * @return the found entries, in the order of the given ids
+     * @since 7.1
+     */
+    public List<DocumentModel> getEntries(Collection<String> entryIds,
+            EntrySource source, boolean fetchReferences)
+            throws DirectoryException {
+        List<DocumentModel> entries = new ArrayList<DocumentModel>(
+                entryIds.size());
+        if (!isCacheEnabled() || getEntryCache() == null
+                || getEntryCacheWithoutReferences() == null) {
+            Map<String, DocumentModel> fetched = source.getEntriesFromSource(
+                    entryIds, fetchReferences);
+            for (String entryId : entryIds) {
+                DocumentModel dm = fetched.get(entryId);
+                if (dm != null) {
+                    entries.add(dm);
+                }
+            }
+            return entries;
+        }
+        Cache cache = fetchReferences ? getEntryCache()
+                : getEntryCacheWithoutReferences();
+        try {
+            Map<String, Serializable> found = new LinkedHashMap<String, Serializable>();
+            List<String> missingIds = new ArrayList<String>();
+            for (String entryId : entryIds) {
+                Serializable cached = cache.get(entryId);
+                if (cached != null) {
                     hitsCounter.inc();
+                    found.put(entryId, cached);
+                } else if (isNegativeEntry(entryId)) {
+                    negativeHitsCounter.inc();
+                } else {
+                    missesCounter.inc();
+                    missingIds.add(entryId);
                 }
-            } else {
-                dm = (DocumentModel) getEntryCacheWithoutReferences().get(
-                        entryId);
-                if (dm == null) {
-                    // fetch the entry from the backend and cache it for later
-                    // reuse
-                    dm = source.getEntryFromSource(entryId, fetchReferences);
+            }
+            if (!missingIds.isEmpty()) {
+                // fetch the missing entries from the backend and cache them
+                // for later reuse
+                long generation = invalidationGeneration.get();
+                Map<String, DocumentModel> fetched = source.getEntriesFromSource(
+                        missingIds, fetchReferences);
+                for (String entryId : missingIds) {
+                    DocumentModel dm = fetched.get(entryId);
                     if (dm != null) {
-                        getEntryCacheWithoutReferences().put(entryId, dm);
+                        found.put(entryId, toCacheValue(dm));
                     }
-                } else {
-                    hitsCounter.inc();
                 }
-            }
-            try {
-                if (dm == null) {
-                    return null;
+                boolean negative = !source.isContextFiltered();
+                synchronized (this) {
+                    // do not cache entries fetched before an invalidation
+                    if (generation == invalidationGeneration.get()) {
+                        for (String entryId : missingIds) {
+                            Serializable cached = found.get(entryId);
+                            if (cached != null) {
+                                cache.put(entryId, cached);
+                            } else if (negative) {
+                                putNegativeEntry(entryId);
+                            }
+                        }
+                    }
                 }
-                DocumentModel clone = dm.clone();
-                // DocumentModelImpl#clone does not copy context data, hence
-                // propagate the read-only flag manually
-                if (BaseSession.isReadOnlyEntry(dm)) {
-                    BaseSession.setReadOnlyEntry(clone);
+            }
+            for (String entryId : entryIds) {
+                Serializable cached = found.get(entryId);
+                if (cached != null) {
+                    entries.add(toEntry(cached));
                 }
-                return clone;
-            } catch (CloneNotSupportedException e) {
-                // will never happen as long a DocumentModelImpl is used
-                return dm;
             }
+            return entries;
         } catch (IOException e) {
             throw new DirectoryException(e);
         }
     }
 
+    /**
+     * Gets the representation of an entry to store in the cache: a snapshot
+     * if possible, the entry itself otherwise.
+     *
+     * @since 7.1
+     */
+    protected Serializable toCacheValue(DocumentModel dm) {
+        DirectoryEntrySnapshot snapshot = DirectoryEntrySnapshot.of(dm);
+        return snapshot != null ? snapshot : dm;
+    }
+
+    /**
+     * Builds the entry returned to the caller from its cached representation.
+     *
+     * @since 7.1
+     */
+    protected DocumentModel toEntry(Serializable cached) {
+        if (cached instanceof DirectoryEntrySnapshot) {
+            return ((DirectoryEntrySnapshot) cached).toEntry();
+        }
+        return cloneEntry((DocumentModel) cached);
+    }
+
+    /**
+     * Gets a read-only snapshot from a cached representation or an entry.
+     *
+     * @since 7.1
+     */
+    protected DirectoryEntrySnapshot toSnapshot(Serializable cached)
+            throws DirectoryException {
+        if (cached == null || cached instanceof DirectoryEntrySnapshot) {
+            return (DirectoryEntrySnapshot) cached;
+        }
+        DocumentModel dm = (DocumentModel) cached;
+        DirectoryEntrySnapshot snapshot = DirectoryEntrySnapshot.of(dm);
+        if (snapshot == null) {
+            throw new DirectoryException("Entry " + dm.getId()
+                    + " cannot be read as a snapshot");
+        }
+        return snapshot;
+    }
+
+    protected DocumentModel cloneEntry(DocumentModel dm) {
+        try {
+            DocumentModel clone = dm.clone();
+            // DocumentModelImpl#clone does not copy context data, hence
+            // propagate the read-only flag manually
+            if (BaseSession.isReadOnlyEntry(dm)) {
+                BaseSession.setReadOnlyEntry(clone);
+            }
+            return clone;
+        } catch (CloneNotSupportedException e) {
+            // will never happen as long a DocumentModelImpl is used
+            return dm;
+        }
+    }
+
     public void invalidate(List<String> entryIds) {
         if (isCacheEnabled()) {
             synchronized (this) {
+                invalidationGeneration.incrementAndGet();
                 try {
                     for (String entryId : entryIds) {
                         getEntryCache().invalidate(entryId);
                         getEntryCacheWithoutReferences().invalidate(entryId);
+                        if (isNegativeCacheEnabled()) {
+                            getNegativeEntryCache().invalidate(entryId);
+                        }
                         sizeCounter.dec();
                         invalidationsCounter.inc();
                     }
@@ -180,12 +477,16 @@ public class DirectoryCache {
     public void invalidateAll() {
         if (isCacheEnabled()) {
             synchronized (this) {
+                invalidationGeneration.incrementAndGet();
                 try {
                     long count = sizeCounter.getCount();
                     sizeCounter.dec(count);
                     invalidationsCounter.inc(count);
                     getEntryCache().invalidateAll();
                     getEntryCacheWithoutReferences().invalidateAll();
+                    if (isNegativeCacheEnabled()) {
+                        getNegativeEntryCache().invalidateAll();
+                    }
                 } catch (IOException e) {
                     throw new DirectoryException(e);
                 }
@@ -202,6 +503,16 @@ public class DirectoryCache {
         this.entryCacheWithoutReferencesName = entryCacheWithoutReferencesName;
     }
 
+    /**
+     * Sets the name of the cache remembering the ids of missing entries,
+     * negative caching is disabled if not set.
+     *
+     * @since 7.1
+     */
+    public void setNegativeEntryCacheName(String negativeEntryCacheName) {
+        this.negativeEntryCacheName = negativeEntryCacheName;
+    }
+
     public Cache getEntryCache() {
         if (entryCache == null) {
             entryCache = Framework.getService(CacheService.class).getCache(
@@ -220,4 +531,15 @@ public class DirectoryCache {
         return entryCacheWithoutReferences;
     }
 
+    /**
+     * @since 7.1
+     */
+    public Cache getNegativeEntryCache() {
+        if (negativeEntryCache == null && negativeEntryCacheName != null) {
+            negativeEntryCache = Framework.getService(CacheService.class).getCache(
+                    negativeEntryCacheName);
+        }
+        return negativeEntryCache;
+    }
+
 }
@@ -0,0 +1,187 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+
+/**
+ * Immutable and compact representation of a directory entry, as stored in
+ * the {@link DirectoryCache}.
+ * <p>
+ * Field values are kept in flat arrays indexed like the schema fields, a new
+ * {@link DocumentModel} is only built from them when the entry is returned to
+ * a caller, which is much cheaper than cloning a cached document model.
+ * Read-only callers can also read the values directly with
+ * {@link #getValue}, without building any document model.
+ *
+ * @since 7.1
+ */
+public class DirectoryEntrySnapshot implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Index of each field name, shared by all the snapshots having the same
+     * fields, usually all the entries of a directory.
+     */
+    protected static final ConcurrentMap<List<String>, Map<String, Integer>> fieldIndexes = new ConcurrentHashMap<List<String>, Map<String, Integer>>();
+
+    protected final String sessionId;
+
+    protected final String schema;
+
+    protected final String id;
+
+    protected final String[] fieldNames;
+
+    protected final Serializable[] values;
+
+    protected final boolean readOnly;
+
+    protected transient Map<String, Integer> fieldIndex;
+
+    protected DirectoryEntrySnapshot(String sessionId, String schema,
+            String id, String[] fieldNames, Serializable[] values,
+            boolean readOnly) {
+        this.sessionId = sessionId;
+        this.schema = schema;
+        this.id = id;
+        this.fieldNames = fieldNames;
+        this.values = values;
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Takes a snapshot of a single schema directory entry.
+     *
+     * @return the snapshot, or {@code null} if the entry cannot be
+     *         represented as a snapshot
+     */
+    public static DirectoryEntrySnapshot of(DocumentModel entry) {
+        String[] schemas = entry.getSchemas();
+        if (schemas == null || schemas.length != 1) {
+            return null;
+        }
+        String schema = schemas[0];
+        Map<String, Object> properties = entry.getProperties(schema);
+        String[] fieldNames = new String[properties.size()];
+        Serializable[] values = new Serializable[properties.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            Object value = property.getValue();
+            if (value != null && !(value instanceof Serializable)) {
+                return null;
+            }
+            fieldNames[i] = property.getKey();
+            values[i] = copyValue((Serializable) value);
+            i++;
+        }
+        return new DirectoryEntrySnapshot(entry.getSessionId(), schema,
+                entry.getId(), fieldNames, values,
+                BaseSession.isReadOnlyEntry(entry));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getSchema() {
+        return schema;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Gets the value of a field without building a document model.
+     * <p>
+     * Mutable values are returned as is and must not be modified.
+     */
+    public Serializable getValue(String fieldName) {
+        Integer index = getFieldIndex().get(fieldName);
+        return index == null ? null : values[index.intValue()];
+    }
+
+    protected Map<String, Integer> getFieldIndex() {
+        Map<String, Integer> index = fieldIndex;
+        if (index == null) {
+            List<String> key = Arrays.asList(fieldNames);
+            index = fieldIndexes.get(key);
+            if (index == null) {
+                index = new HashMap<String, Integer>(
+                        (int) (fieldNames.length / 0.75f) + 1);
+                for (int i = 0; i < fieldNames.length; i++) {
+                    index.put(fieldNames[i], Integer.valueOf(i));
+                }
+                Map<String, Integer> previous = fieldIndexes.putIfAbsent(key,
+                        index);
+                if (previous != null) {
+                    index = previous;
+                }
+            }
+            fieldIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Builds a new document model for this entry, which can be freely
+     * modified by the caller.
+     */
+    public DocumentModel toEntry() {
+        Map<String, Object> map = new HashMap<String, Object>(
+                (int) (fieldNames.length / 0.75f) + 1);
+        for (int i = 0; i < fieldNames.length; i++) {
+            map.put(fieldNames[i], copyValue(values[i]));
+        }
+        return BaseSession.createEntryModel(sessionId, schema, id, map,
+                readOnly);
+    }
+
+    /**
+     * Copies the mutable values (lists, arrays and calendars) so that the
+     * snapshot and the entries built from it never share them.
+     */
+    protected static Serializable copyValue(Serializable value) {
+        if (value instanceof Collection) {
+            return new ArrayList<Object>((Collection<?>) value);
+        } else if (value instanceof Object[]) {
+            return ((Object[]) value).clone();
+        } else if (value instanceof Calendar) {
+            return (Serializable) ((Calendar) value).clone();
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + '(' + schema + ':' + id + ')';
+    }
+
+}
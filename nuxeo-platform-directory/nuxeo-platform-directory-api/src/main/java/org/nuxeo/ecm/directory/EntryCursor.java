@@ -0,0 +1,39 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory;
+
+import java.util.Iterator;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+
+/**
+ * Iterator over directory entries read from the backend by chunks, as
+ * returned by {@link Session#scroll}.
+ * <p>
+ * A cursor holds backend resources and must be closed once used, even if not
+ * iterated to the end.
+ *
+ * @since 7.1
+ */
+public interface EntryCursor extends Iterator<DocumentModel> {
+
+    /**
+     * Releases the backend resources held by this cursor.
+     */
+    void close() throws DirectoryException;
+
+}
@@ -18,6 +18,9 @@
 
 package org.nuxeo.ecm.directory;
 
+import java.util.Collection;
+import java.util.Map;
+
 import org.nuxeo.ecm.core.api.DocumentModel;
 
 /**
@@ -30,4 +33,24 @@ public interface EntrySource {
     DocumentModel getEntryFromSource(String entryId, boolean fetchReferences)
             throws DirectoryException;
 
+    /**
+     * Fetches several entries at once from the backend.
+     *
+     * @return a map of the found entries keyed by the requested id, ids not
+     *         matching any entry are absent from the map
+     * @since 7.1
+     */
+    Map<String, DocumentModel> getEntriesFromSource(Collection<String> entryIds,
+            boolean fetchReferences) throws DirectoryException;
+
+    /**
+     * Tells whether the entries seen by this source depend on its context,
+     * for instance on the tenant of the current user. An entry missing for
+     * such a source may exist for other contexts, so it must not be
+     * remembered as missing.
+     *
+     * @since 7.1
+     */
+    boolean isContextFiltered();
+
 }
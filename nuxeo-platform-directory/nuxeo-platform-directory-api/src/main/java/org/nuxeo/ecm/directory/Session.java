@@ -19,6 +19,7 @@
 package org.nuxeo.ecm.directory;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -62,6 +63,22 @@ public interface Session {
     DocumentModel getEntry(String id, boolean fetchReferences)
             throws DirectoryException;
 
+    /**
+     * Retrieves several directory entries using their ids.
+     * <p>
+     * Entries are returned in the order of the given ids, ids that match no
+     * entry are skipped. Implementations should fetch the entries with as few
+     * backend round-trips as possible.
+     *
+     * @param ids the entry ids
+     * @param fetchReferences boolean stating if references have to be fetched
+     * @return a list of DocumentModel representing the found entries
+     * @throws DirectoryException
+     * @since 7.1
+     */
+    DocumentModelList getEntries(Collection<String> ids,
+            boolean fetchReferences) throws DirectoryException;
+
     /**
      * Retrieves all the entries in the directory.
      *
@@ -256,6 +273,27 @@ public interface Session {
             boolean fetchReferences, int limit, int offset)
             throws ClientException, DirectoryException;
 
+    /**
+     * Executes a query and iterates over the matching entries without loading
+     * them all in memory.
+     * <p>
+     * Entries are read from the backend by chunks, and the query size limit of
+     * the directory does not apply. The returned cursor must be closed, and
+     * the session must stay open while it is used.
+     * org.nuxeo.ecm.directory.BaseSession provides a default implementation
+     * iterating over the result of a regular query.
+     *
+     * @param filter a filter to apply to entries in directory
+     * @param fulltext a set of field that should be treated as a fulltext
+     *            search
+     * @param fetchReferences boolean stating if references have to be fetched
+     * @return a cursor over the matching entries
+     * @throws DirectoryException
+     * @since 7.1
+     */
+    EntryCursor scroll(Map<String, Serializable> filter, Set<String> fulltext,
+            boolean fetchReferences) throws DirectoryException;
+
     // TODO: create an API to allow sql AND/OR/NOT/LIKE conditions
     // public DocumentModelList query(Criteria criteria ) throws
     // DirectoryException;
@@ -81,6 +81,16 @@ public class InverseReference extends AbstractReference {
         }
     }
 
+    /**
+     * Gets the reference of the target directory doing the actual job.
+     *
+     * @since 7.1
+     */
+    public Reference getDualReference() throws DirectoryException {
+        checkDualReference();
+        return dualReference;
+    }
+
     public void addLinks(String sourceId, List<String> targetIds)
             throws DirectoryException {
         if (readOnly) {
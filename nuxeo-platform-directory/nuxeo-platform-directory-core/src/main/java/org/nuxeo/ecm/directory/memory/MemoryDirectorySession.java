@@ -69,6 +69,15 @@ public class MemoryDirectorySession extends BaseSession {
         return expected.equals(password);
     }
 
+    @Override
+    public String getStoredPassword(String username) {
+        Map<String, Object> map = data.get(username);
+        if (map == null) {
+            return null;
+        }
+        return (String) map.get(directory.passwordField);
+    }
+
     public void close() {
     }
 
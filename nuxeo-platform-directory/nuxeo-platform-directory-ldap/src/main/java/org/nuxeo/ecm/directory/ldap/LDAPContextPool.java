@@ -0,0 +1,414 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.ldap;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+
+/**
+ * Bounded pool of LDAP contexts bound to the same server, shared by the
+ * sessions of all the directories using this server.
+ * <p>
+ * At most {@link LDAPServerDescriptor#getMaxPoolSize()} threads hold borrowed
+ * contexts at the same time, borrowers waiting up to
+ * {@link LDAPServerDescriptor#getPoolMaxWait()} milliseconds for one of them
+ * to be released. A thread already holding a context borrows more without
+ * waiting: references open the session of their target directory while the
+ * session of their source directory is still open, and waiting for a context
+ * released by another thread doing the same could block all of them until
+ * the maximum wait. Each thread may therefore hold as many contexts as it
+ * nests sessions, usually two.
+ * <p>
+ * Idle contexts are validated before being handed out again, and closed once
+ * they have not been used for
+ * {@link LDAPServerDescriptor#getPoolIdleTimeout()} milliseconds.
+ * <p>
+ * New contexts are opened using the list of server URLs, JNDI connecting to
+ * the first one that answers: invalidating the context of a failed server and
+ * borrowing a new one is therefore enough to fail over to the next server.
+ *
+ * @since 7.1
+ */
+public class LDAPContextPool {
+
+    private static final Log log = LogFactory.getLog(LDAPContextPool.class);
+
+    protected static final String[] NO_ATTRIBUTES = new String[0];
+
+    protected final LDAPServerDescriptor server;
+
+    protected final Properties environment;
+
+    protected final int maxSize;
+
+    protected final long maxWait;
+
+    protected final long idleTimeout;
+
+    protected final boolean validateOnBorrow;
+
+    /**
+     * One permit for each thread holding borrowed contexts.
+     */
+    protected final Semaphore permits;
+
+    /**
+     * The thread holding each borrowed context, guarded by itself.
+     */
+    protected final Map<LdapContext, Thread> borrowers = new IdentityHashMap<LdapContext, Thread>();
+
+    /**
+     * The number of contexts held by each borrowing thread, guarded by
+     * {@link #borrowers}.
+     */
+    protected final Map<Thread, Integer> borrowCounts = new HashMap<Thread, Integer>();
+
+    /**
+     * Idle contexts, most recently released first.
+     */
+    protected final LinkedBlockingDeque<IdleContext> idleContexts = new LinkedBlockingDeque<IdleContext>();
+
+    protected volatile boolean closed;
+
+    protected final MetricRegistry metrics = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    protected final Counter activeCounter;
+
+    protected final Counter idleCounter;
+
+    protected final Counter createdCounter;
+
+    protected final Counter destroyedCounter;
+
+    protected final Counter invalidCounter;
+
+    protected final Counter timeoutsCounter;
+
+    protected final Timer waitTimer;
+
+    protected static class IdleContext {
+
+        protected final LdapContext context;
+
+        protected final long releaseTime;
+
+        protected IdleContext(LdapContext context, long releaseTime) {
+            this.context = context;
+            this.releaseTime = releaseTime;
+        }
+    }
+
+    /**
+     * @param server the server descriptor
+     * @param environment the JNDI environment used to open new contexts
+     */
+    public LDAPContextPool(LDAPServerDescriptor server, Properties environment) {
+        this.server = server;
+        this.environment = environment;
+        maxSize = server.getMaxPoolSize();
+        maxWait = server.getPoolMaxWait();
+        idleTimeout = server.getPoolIdleTimeout();
+        validateOnBorrow = server.isPoolValidateOnBorrow();
+        permits = new Semaphore(maxSize, true);
+        String name = server.getName();
+        activeCounter = metrics.counter(MetricRegistry.name("nuxeo",
+                "directories", "ldap", name, "pool", "active"));
+        idleCounter = metrics.counter(MetricRegistry.name("nuxeo",
+                "directories", "ldap", name, "pool", "idle"));
+        createdCounter = metrics.counter(MetricRegistry.name("nuxeo",
+                "directories", "ldap", name, "pool", "created"));
+        destroyedCounter = metrics.counter(MetricRegistry.name("nuxeo",
+                "directories", "ldap", name, "pool", "destroyed"));
+        invalidCounter = metrics.counter(MetricRegistry.name("nuxeo",
+                "directories", "ldap", name, "pool", "invalid"));
+        timeoutsCounter = metrics.counter(MetricRegistry.name("nuxeo",
+                "directories", "ldap", name, "pool", "timeouts"));
+        waitTimer = metrics.timer(MetricRegistry.name("nuxeo", "directories",
+                "ldap", name, "pool", "wait"));
+    }
+
+    public String getName() {
+        return server.getName();
+    }
+
+    /**
+     * Borrows a context, which must be given back using
+     * {@link #release(LdapContext)} or {@link #invalidate(LdapContext)}.
+     * <p>
+     * Only waits if the current thread holds no other borrowed context.
+     *
+     * @throws DirectoryException if no context could be borrowed within the
+     *             maximum wait time, or if no server could be reached
+     */
+    public LdapContext borrow() throws DirectoryException {
+        if (closed) {
+            throw new DirectoryException("LDAP context pool is closed: "
+                    + getName());
+        }
+        Thread thread = Thread.currentThread();
+        boolean nested = addNestedBorrow(thread);
+        if (!nested) {
+            acquirePermit();
+        }
+        LdapContext context = null;
+        try {
+            context = pollIdleContext();
+            if (context == null) {
+                context = createContext();
+            }
+        } finally {
+            if (context == null) {
+                if (nested) {
+                    removeBorrow(thread);
+                } else {
+                    permits.release();
+                }
+            }
+        }
+        synchronized (borrowers) {
+            if (!nested) {
+                borrowCounts.put(thread, Integer.valueOf(1));
+            }
+            borrowers.put(context, thread);
+        }
+        activeCounter.inc();
+        return context;
+    }
+
+    protected void acquirePermit() throws DirectoryException {
+        Timer.Context waitTime = waitTimer.time();
+        try {
+            if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+                timeoutsCounter.inc();
+                throw new DirectoryException(String.format(
+                        "Timed out after %sms waiting for a connection to LDAP server '%s' (max pool size: %s)",
+                        Long.valueOf(maxWait), getName(),
+                        Integer.valueOf(maxSize)));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DirectoryException("Interrupted while waiting for a "
+                    + "connection to LDAP server '" + getName() + "'", e);
+        } finally {
+            waitTime.stop();
+        }
+    }
+
+    /**
+     * Counts one more context borrowed by a thread if it already holds one.
+     *
+     * @return {@code true} if the thread already held a context
+     */
+    protected boolean addNestedBorrow(Thread thread) {
+        synchronized (borrowers) {
+            Integer count = borrowCounts.get(thread);
+            if (count == null) {
+                return false;
+            }
+            borrowCounts.put(thread, Integer.valueOf(count.intValue() + 1));
+            return true;
+        }
+    }
+
+    /**
+     * Counts one less context borrowed by a thread, releasing its permit once
+     * it holds no other context.
+     */
+    protected void removeBorrow(Thread thread) {
+        synchronized (borrowers) {
+            Integer count = borrowCounts.get(thread);
+            if (count == null) {
+                return;
+            }
+            if (count.intValue() > 1) {
+                borrowCounts.put(thread,
+                        Integer.valueOf(count.intValue() - 1));
+                return;
+            }
+            borrowCounts.remove(thread);
+        }
+        permits.release();
+    }
+
+    /**
+     * Forgets the borrower of a context given back, which may be another
+     * thread than the one giving it back.
+     *
+     * @return the borrower, or {@code null} if the context was not borrowed
+     */
+    protected Thread forgetBorrower(LdapContext context) {
+        synchronized (borrowers) {
+            return borrowers.remove(context);
+        }
+    }
+
+    /**
+     * Gives a borrowed context back to the pool.
+     */
+    public void release(LdapContext context) {
+        activeCounter.dec();
+        Thread borrower = forgetBorrower(context);
+        try {
+            if (closed) {
+                destroy(context);
+            } else {
+                idleContexts.offerFirst(new IdleContext(context,
+                        System.currentTimeMillis()));
+                idleCounter.inc();
+            }
+        } finally {
+            if (borrower != null) {
+                removeBorrow(borrower);
+            }
+        }
+        evictIdleContexts();
+    }
+
+    /**
+     * Gives back a borrowed context that cannot be used anymore, for instance
+     * because its server went down. The context is closed.
+     */
+    public void invalidate(LdapContext context) {
+        activeCounter.dec();
+        invalidCounter.inc();
+        Thread borrower = forgetBorrower(context);
+        try {
+            destroy(context);
+        } finally {
+            if (borrower != null) {
+                removeBorrow(borrower);
+            }
+        }
+    }
+
+    /**
+     * Closes the idle contexts. The contexts still borrowed are closed when
+     * they are released.
+     */
+    public void close() {
+        closed = true;
+        IdleContext idle;
+        while ((idle = idleContexts.pollFirst()) != null) {
+            idleCounter.dec();
+            destroy(idle.context);
+        }
+    }
+
+    /**
+     * Takes the most recently released idle context that is still valid,
+     * closing the stale ones.
+     */
+    protected LdapContext pollIdleContext() {
+        IdleContext idle;
+        while ((idle = idleContexts.pollFirst()) != null) {
+            idleCounter.dec();
+            if (isExpired(idle, System.currentTimeMillis())) {
+                destroy(idle.context);
+            } else if (validateOnBorrow && !validate(idle.context)) {
+                invalidCounter.inc();
+                destroy(idle.context);
+            } else {
+                return idle.context;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Closes the contexts that have been idle for too long, starting from the
+     * least recently released one.
+     */
+    protected void evictIdleContexts() {
+        long now = System.currentTimeMillis();
+        IdleContext idle;
+        while ((idle = idleContexts.peekLast()) != null
+                && isExpired(idle, now)) {
+            if (idleContexts.removeLastOccurrence(idle)) {
+                idleCounter.dec();
+                destroy(idle.context);
+            }
+        }
+    }
+
+    protected boolean isExpired(IdleContext idle, long now) {
+        return idleTimeout > 0 && now - idle.releaseTime > idleTimeout;
+    }
+
+    /**
+     * Checks that the connection of a context is still alive by reading the
+     * entry it is bound to, without any attribute.
+     */
+    protected boolean validate(LdapContext context) {
+        try {
+            context.getAttributes("", NO_ATTRIBUTES);
+            return true;
+        } catch (NamingException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Discarding invalid context of LDAP server "
+                        + getName() + ": " + e.getMessage());
+            }
+            return false;
+        }
+    }
+
+    protected LdapContext createContext() throws DirectoryException {
+        Properties env = environment;
+        if (server.isDynamicServerList()) {
+            // dynamic server list requires re-computation on each access
+            env = (Properties) environment.clone();
+            env.put(Context.PROVIDER_URL, server.getLdapUrls());
+        }
+        try {
+            LdapContext context = new InitialLdapContext(env, null);
+            createdCounter.inc();
+            return context;
+        } catch (NamingException e) {
+            throw new DirectoryException("Cannot connect to LDAP server '"
+                    + getName() + "': " + e.getMessage(), e);
+        }
+    }
+
+    protected void destroy(LdapContext context) {
+        destroyedCounter.inc();
+        try {
+            context.close();
+        } catch (NamingException e) {
+            log.debug("Cannot close LDAP context", e);
+        }
+    }
+
+}
@@ -28,6 +28,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -35,10 +36,11 @@ import java.util.Properties;
 import java.util.Set;
 
 import javax.naming.Context;
+import javax.naming.InvalidNameException;
 import javax.naming.NamingException;
 import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.SearchControls;
+import javax.naming.ldap.InitialLdapContext;
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
@@ -86,6 +88,39 @@ public class LDAPDirectory extends AbstractDirectory {
 
     protected String baseFilter;
 
+    /**
+     * An entry id cached for a distinguished name, until its expiration.
+     *
+     * @since 7.1
+     */
+    protected static class CachedId {
+
+        protected final String id;
+
+        protected final long expiration;
+
+        protected CachedId(String id, long expiration) {
+            this.id = id;
+            this.expiration = expiration;
+        }
+    }
+
+    /**
+     * Ids of the entries of this directory by normalized distinguished name,
+     * least recently used first.
+     *
+     * @since 7.1
+     */
+    protected final Map<String, CachedId> dnIdCache = new LinkedHashMap<String, CachedId>(
+            16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedId> eldest) {
+            return size() > config.getDnIdCacheSize();
+        }
+    };
+
     // the following attribute is only used for testing purpose
     protected ContextProvider testServer;
 
@@ -159,6 +194,7 @@ public class LDAPDirectory extends AbstractDirectory {
         // cache parameterization
         cache.setEntryCacheName(config.cacheEntryName);
         cache.setEntryCacheWithoutReferencesName(config.cacheEntryWithoutReferencesName);
+        cache.setNegativeEntryCacheName(config.cacheNegativeEntryName);
 
         log.debug(String.format(
                 "initialized LDAP directory %s with fields [%s] and references [%s]",
@@ -227,8 +263,9 @@ public class LDAPDirectory extends AbstractDirectory {
                     serverConfig.getBindPassword());
         }
 
-        if (serverConfig.isPoolingEnabled()) {
-            // Enable connection pooling
+        if (serverConfig.isPoolingEnabled()
+                && !serverConfig.isContextPoolEnabled()) {
+            // Enable connection pooling, unless contexts are already pooled
             props.put("com.sun.jndi.ldap.connect.pool", "true");
             props.put("com.sun.jndi.ldap.connect.pool.protocol", "plain ssl");
             props.put("com.sun.jndi.ldap.connect.pool.authentication",
@@ -330,13 +367,35 @@ public class LDAPDirectory extends AbstractDirectory {
                 String ldapUrls = serverConfig.getLdapUrls();
                 contextProperties.put(Context.PROVIDER_URL, ldapUrls);
             }
-            return new InitialDirContext(contextProperties);
+            // LDAP v3 context, needed for paged results
+            return new InitialLdapContext(contextProperties, null);
         } catch (NamingException e) {
             throw new DirectoryException("Cannot connect to LDAP directory '"
                     + getName() + "': " + e.getMessage(), e);
         }
     }
 
+    /**
+     * Gets the pool of contexts of the server of this directory, shared with
+     * the other directories of the same server.
+     *
+     * @since 7.1
+     */
+    protected LDAPContextPool getContextPool() throws DirectoryException {
+        return factory.getContextPool(getServer(), contextProperties);
+    }
+
+    /**
+     * Gets the environment properties specific to this directory, set on the
+     * pooled contexts it borrows.
+     *
+     * @since 7.1
+     */
+    protected Map<String, Object> getPooledContextEnvironment() {
+        return Collections.singletonMap(Context.REFERRAL,
+                contextProperties.get(Context.REFERRAL));
+    }
+
     @Override
     public String getName() {
         return config.getName();
@@ -379,6 +438,9 @@ public class LDAPDirectory extends AbstractDirectory {
         DirContext context;
         if (testServer != null) {
             context = testServer.getContext();
+        } else if (getServer().isContextPoolEnabled()) {
+            context = LdapRetryHandler.wrap(getContextPool(),
+                    getPooledContextEnvironment(), getServer().getRetries());
         } else {
             context = createContext();
         }
@@ -387,6 +449,87 @@ public class LDAPDirectory extends AbstractDirectory {
         return session;
     }
 
+    /**
+     * Gets the cached id of the entry with the given normalized distinguished
+     * name.
+     *
+     * @return the id, or {@code null} if not cached or expired
+     * @since 7.1
+     */
+    public String getCachedIdForDn(String dn) {
+        synchronized (dnIdCache) {
+            CachedId cached = dnIdCache.get(dn);
+            if (cached == null) {
+                return null;
+            }
+            if (cached.expiration < System.currentTimeMillis()) {
+                // the entry may have changed outside of Nuxeo
+                dnIdCache.remove(dn);
+                return null;
+            }
+            return cached.id;
+        }
+    }
+
+    /**
+     * Caches the id of the entry with the given normalized distinguished
+     * name.
+     *
+     * @since 7.1
+     */
+    public void cacheIdForDn(String dn, String id) {
+        if (config.getDnIdCacheSize() <= 0) {
+            return;
+        }
+        int timeout = config.getDnIdCacheTimeout();
+        long expiration = timeout > 0 ? System.currentTimeMillis() + 1000L
+                * timeout : Long.MAX_VALUE;
+        synchronized (dnIdCache) {
+            dnIdCache.put(dn, new CachedId(id, expiration));
+        }
+    }
+
+    /**
+     * Removes the cached id of the entry with the given distinguished name.
+     *
+     * @param dn the distinguished name, normalized or not
+     * @since 7.1
+     */
+    public void evictIdForDn(String dn) {
+        String normalizedDn;
+        try {
+            normalizedDn = LDAPReference.pseudoNormalizeDn(dn);
+        } catch (InvalidNameException e) {
+            return;
+        }
+        synchronized (dnIdCache) {
+            dnIdCache.remove(normalizedDn);
+        }
+    }
+
+    /**
+     * Invalidates the caches after a change of the entry with the given
+     * distinguished name: only the id cached for this name is removed.
+     *
+     * @param dn the distinguished name, or {@code null} if the change can't
+     *            affect the id of the entry
+     * @since 7.1
+     */
+    public void invalidateCaches(String dn) throws DirectoryException {
+        if (dn != null) {
+            evictIdForDn(dn);
+        }
+        super.invalidateCaches();
+    }
+
+    @Override
+    public void invalidateCaches() throws DirectoryException {
+        synchronized (dnIdCache) {
+            dnIdCache.clear();
+        }
+        super.invalidateCaches();
+    }
+
     public String getBaseFilter() {
         // NXP-2461: always add control on id field in base filter
         String idField = getIdField();
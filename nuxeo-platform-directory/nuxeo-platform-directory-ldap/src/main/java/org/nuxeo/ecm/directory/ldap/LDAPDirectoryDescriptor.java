@@ -70,6 +70,12 @@ public class LDAPDirectoryDescriptor {
     @XNode("cacheEntryWithoutReferencesName")
     public String cacheEntryWithoutReferencesName = null;
 
+    /**
+     * @since 7.1
+     */
+    @XNode("cacheNegativeEntryName")
+    public String cacheNegativeEntryName = null;
+
     @XNodeMap(value = "fieldMapping", key = "@name", type = HashMap.class, componentType = String.class)
     public Map<String, String> fieldMapping = new HashMap<String, String>();
 
@@ -130,6 +136,34 @@ public class LDAPDirectoryDescriptor {
 
     @XNode("queryTimeLimit")
     private int queryTimeLimit = 0; // default to wait indefinitely
+
+    /**
+     * Number of entries requested per page when scrolling through entries.
+     *
+     * @since 7.1
+     */
+    @XNode("queryPageSize")
+    private int queryPageSize = 500;
+
+    /**
+     * Maximum number of entry ids kept in memory by distinguished name, to
+     * resolve the references to the entries of this directory. Zero disables
+     * this cache.
+     *
+     * @since 7.1
+     */
+    @XNode("dnIdCacheSize")
+    private int dnIdCacheSize = 10000;
+
+    /**
+     * Number of seconds an entry id is kept by distinguished name, so that
+     * entries renamed or deleted outside of Nuxeo are eventually resolved
+     * again. Zero keeps them until the directory caches are invalidated.
+     *
+     * @since 7.1
+     */
+    @XNode("dnIdCacheTimeout")
+    private int dnIdCacheTimeout = 600;
     
     // Add attribute to allow to ignore referrals resolution
     /**
@@ -362,6 +396,48 @@ public class LDAPDirectoryDescriptor {
         return queryTimeLimit;
     }
 
+    /**
+     * @since 7.1
+     */
+    public int getQueryPageSize() {
+        return queryPageSize;
+    }
+
+    /**
+     * @since 7.1
+     */
+    public void setQueryPageSize(int queryPageSize) {
+        this.queryPageSize = queryPageSize;
+    }
+
+    /**
+     * @since 7.1
+     */
+    public int getDnIdCacheSize() {
+        return dnIdCacheSize;
+    }
+
+    /**
+     * @since 7.1
+     */
+    public void setDnIdCacheSize(int dnIdCacheSize) {
+        this.dnIdCacheSize = dnIdCacheSize;
+    }
+
+    /**
+     * @since 7.1
+     */
+    public int getDnIdCacheTimeout() {
+        return dnIdCacheTimeout;
+    }
+
+    /**
+     * @since 7.1
+     */
+    public void setDnIdCacheTimeout(int dnIdCacheTimeout) {
+        this.dnIdCacheTimeout = dnIdCacheTimeout;
+    }
+
     public EntryAdaptor getEntryAdaptor() {
         return entryAdaptor;
     }
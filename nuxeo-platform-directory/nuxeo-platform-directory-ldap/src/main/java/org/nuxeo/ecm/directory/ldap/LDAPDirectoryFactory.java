@@ -20,7 +20,10 @@
 package org.nuxeo.ecm.directory.ldap;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -47,6 +50,13 @@ public class LDAPDirectoryFactory extends DefaultComponent implements
 
     protected LDAPServerRegistry servers;
 
+    /**
+     * Context pools, keyed by server name.
+     *
+     * @since 7.1
+     */
+    protected final Map<String, LDAPContextPool> contextPools = new HashMap<String, LDAPContextPool>();
+
     public Directory getDirectory(String name) {
         return proxies.getDirectory(name);
     }
@@ -61,6 +71,37 @@ public class LDAPDirectoryFactory extends DefaultComponent implements
         return servers.getServer(name);
     }
 
+    /**
+     * Gets the context pool of a server, creating it if needed.
+     *
+     * @param server the server descriptor
+     * @param environment the JNDI environment used to open new contexts
+     * @since 7.1
+     */
+    public synchronized LDAPContextPool getContextPool(
+            LDAPServerDescriptor server, Properties environment) {
+        LDAPContextPool pool = contextPools.get(server.getName());
+        if (pool == null) {
+            pool = new LDAPContextPool(server, environment);
+            contextPools.put(server.getName(), pool);
+        }
+        return pool;
+    }
+
+    protected synchronized void closeContextPool(String serverName) {
+        LDAPContextPool pool = contextPools.remove(serverName);
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    protected synchronized void closeContextPools() {
+        for (LDAPContextPool pool : contextPools.values()) {
+            pool.close();
+        }
+        contextPools.clear();
+    }
+
     public String getName() {
         return NAME;
     }
@@ -75,6 +116,7 @@ public class LDAPDirectoryFactory extends DefaultComponent implements
     @Override
     public void deactivate(ComponentContext context) {
         log.info("component deactivated");
+        closeContextPools();
         proxies = null;
         servers = null;
     }
@@ -109,6 +151,8 @@ public class LDAPDirectoryFactory extends DefaultComponent implements
         for (Object contrib : contribs) {
             LDAPServerDescriptor descriptor = (LDAPServerDescriptor) contrib;
             servers.addContribution(descriptor);
+            // reopen the contexts with the new configuration
+            closeContextPool(descriptor.getName());
         }
     }
 
@@ -117,6 +161,7 @@ public class LDAPDirectoryFactory extends DefaultComponent implements
         for (Object contrib : contribs) {
             LDAPServerDescriptor descriptor = (LDAPServerDescriptor) contrib;
             servers.removeContribution(descriptor);
+            closeContextPool(descriptor.getName());
         }
     }
 
@@ -145,6 +190,7 @@ public class LDAPDirectoryFactory extends DefaultComponent implements
         for (Directory directory : proxies.getDirectories()) {
             directory.shutdown();
         }
+        closeContextPools();
     }
 
 }
@@ -0,0 +1,173 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.ldap;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.EntryCursor;
+
+/**
+ * Cursor over the results of an LDAP search, using the RFC 2696 paged results
+ * control to fetch one page of entries at a time.
+ * <p>
+ * The paging control is not critical: servers that do not support it send all
+ * the results at once, within their own size limit.
+ *
+ * @since 7.1
+ */
+public class LDAPEntryCursor implements EntryCursor {
+
+    private static final Log log = LogFactory.getLog(LDAPEntryCursor.class);
+
+    protected final LDAPSession session;
+
+    protected final LdapContext context;
+
+    protected final String searchBaseDn;
+
+    protected final String filterExpr;
+
+    protected final Object[] filterArgs;
+
+    protected final SearchControls scts;
+
+    protected final int pageSize;
+
+    protected final boolean fetchReferences;
+
+    protected NamingEnumeration<SearchResult> results;
+
+    protected DocumentModel nextEntry;
+
+    protected boolean closed;
+
+    protected LDAPEntryCursor(LDAPSession session, LdapContext context,
+            String searchBaseDn, String filterExpr, Object[] filterArgs,
+            SearchControls scts, int pageSize, boolean fetchReferences)
+            throws NamingException, IOException {
+        this.session = session;
+        this.context = context;
+        this.searchBaseDn = searchBaseDn;
+        this.filterExpr = filterExpr;
+        this.filterArgs = filterArgs;
+        this.scts = scts;
+        this.pageSize = pageSize;
+        this.fetchReferences = fetchReferences;
+        search(null);
+    }
+
+    protected void search(byte[] cookie) throws NamingException, IOException {
+        context.setRequestControls(new Control[] { new PagedResultsControl(
+                pageSize, cookie, Control.NONCRITICAL) });
+        results = context.search(searchBaseDn, filterExpr, filterArgs, scts);
+    }
+
+    /**
+     * Gets the cookie of the next page sent back by the server, or
+     * {@code null} if there is no more page.
+     */
+    protected byte[] getNextPageCookie() throws NamingException {
+        Control[] controls = context.getResponseControls();
+        if (controls != null) {
+            for (Control control : controls) {
+                if (control instanceof PagedResultsResponseControl) {
+                    byte[] cookie = ((PagedResultsResponseControl) control).getCookie();
+                    if (cookie != null && cookie.length > 0) {
+                        return cookie;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (nextEntry == null && !closed) {
+                if (results.hasMore()) {
+                    nextEntry = session.ldapResultToDocumentModel(
+                            results.next(), null, fetchReferences);
+                } else {
+                    results.close();
+                    byte[] cookie = getNextPageCookie();
+                    if (cookie == null) {
+                        close();
+                    } else {
+                        if (log.isDebugEnabled()) {
+                            log.debug(String.format(
+                                    "LDAPEntryCursor: fetching next page of %s entries [%s]",
+                                    Integer.valueOf(pageSize), session));
+                        }
+                        search(cookie);
+                    }
+                }
+            }
+        } catch (NamingException e) {
+            close();
+            throw new DirectoryException("scroll failed", e);
+        } catch (IOException e) {
+            close();
+            throw new DirectoryException("scroll failed", e);
+        }
+        return nextEntry != null;
+    }
+
+    @Override
+    public DocumentModel next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        DocumentModel entry = nextEntry;
+        nextEntry = null;
+        return entry;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws DirectoryException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            results.close();
+            context.close();
+        } catch (NamingException e) {
+            throw new DirectoryException(e);
+        }
+    }
+
+}
@@ -21,8 +21,12 @@ package org.nuxeo.ecm.directory.ldap;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -110,6 +114,17 @@ public class LDAPReference extends AbstractReference {
     @XNode("@dynamicAttributeId")
     protected String dynamicAttributeId;
 
+    public static final int DEFAULT_DN_RESOLUTION_BATCH_SIZE = 100;
+
+    /**
+     * Maximum number of distinguished names resolved to ids by a single LDAP
+     * search, when the id of the target entries is not their RDN.
+     *
+     * @since 7.1
+     */
+    @XNode("@dnResolutionBatchSize")
+    protected int dnResolutionBatchSize = DEFAULT_DN_RESOLUTION_BATCH_SIZE;
+
     @XNode("@field")
     public void setFieldName(String fieldName) {
         this.fieldName = fieldName;
@@ -784,10 +799,11 @@ public class LDAPReference extends AbstractReference {
             }
 
             if (staticAttribute != null && staticAttributeIdIsDn) {
-                NamingEnumeration<?> targetDns = staticAttribute.getAll();
+                List<String> targetDns = new ArrayList<String>();
+                NamingEnumeration<?> rawTargetDns = staticAttribute.getAll();
                 try {
-                    while (targetDns.hasMore()) {
-                        String targetDn = targetDns.next().toString();
+                    while (rawTargetDns.hasMore()) {
+                        String targetDn = rawTargetDns.next().toString();
 
                         if (!pseudoNormalizeDn(targetDn).endsWith(baseDn)) {
                             // optim: avoid network connections when obvious
@@ -798,52 +814,61 @@ public class LDAPReference extends AbstractReference {
                             }
                             continue;
                         }
-                        // find the id of the referenced entry
-                        String id = null;
-
-                        if (targetSession.rdnMatchesIdField()) {
-                            // optim: do not fetch the entry to get its true id
-                            // but
-                            // guess it by reading the targetDn
-                            LdapName name = new LdapName(targetDn);
-                            String rdn = name.get(name.size() - 1);
-                            int pos = rdn.indexOf("=");
-                            id = rdn.substring(pos + 1);
-                        } else {
-                            id = getIdForDn(targetSession, targetDn);
-                            if (id == null) {
-                                log.warn(String.format(
-                                        "ignoring target '%s' (missing attribute '%s') while resolving reference '%s'",
-                                        targetDn, targetSession.idAttribute,
-                                        this));
-                                continue;
-                            }
+                        targetDns.add(targetDn);
+                    }
+                } finally {
+                    rawTargetDns.close();
+                }
+
+                Map<String, String> idsByDn = null;
+                if (!targetSession.rdnMatchesIdField()) {
+                    // fetch the ids of all the referenced entries at once
+                    idsByDn = getIdsForDns(targetSession, targetDns);
+                }
+                for (String targetDn : targetDns) {
+                    // find the id of the referenced entry
+                    String id = null;
+
+                    if (idsByDn == null) {
+                        // optim: do not fetch the entry to get its true id
+                        // but
+                        // guess it by reading the targetDn
+                        LdapName name = new LdapName(targetDn);
+                        String rdn = name.get(name.size() - 1);
+                        int pos = rdn.indexOf("=");
+                        id = rdn.substring(pos + 1);
+                    } else {
+                        id = idsByDn.get(targetDn);
+                        if (id == null) {
+                            log.warn(String.format(
+                                    "ignoring target '%s' (missing attribute '%s') while resolving reference '%s'",
+                                    targetDn, targetSession.idAttribute,
+                                    this));
+                            continue;
                         }
-                        if (forceDnConsistencyCheck) {
-                            // check that the referenced entry is actually part
-                            // of
-                            // the target directory (takes care of the filters
-                            // and
-                            // the scope)
-                            // this check can be very expensive on large groups
-                            // and thus not enabled by default
-                            if (!targetSession.hasEntry(id)) {
-                                if (log.isTraceEnabled()) {
-                                    log.trace(String.format(
-                                            "ignoring target '%s' when resolving '%s' (not part of target"
-                                                    + " directory by forced DN consistency check)",
-                                            targetDn, this));
-                                }
-                                continue;
+                    }
+                    if (forceDnConsistencyCheck) {
+                        // check that the referenced entry is actually part
+                        // of
+                        // the target directory (takes care of the filters
+                        // and
+                        // the scope)
+                        // this check can be very expensive on large groups
+                        // and thus not enabled by default
+                        if (!targetSession.hasEntry(id)) {
+                            if (log.isTraceEnabled()) {
+                                log.trace(String.format(
+                                        "ignoring target '%s' when resolving '%s' (not part of target"
+                                                + " directory by forced DN consistency check)",
+                                        targetDn, this));
                             }
-                        }
-                        // NXP-2461: check that id field is filled
-                        if (id != null) {
-                            targetIds.add(id);
+                            continue;
                         }
                     }
-                } finally {
-                    targetDns.close();
+                    // NXP-2461: check that id field is filled
+                    if (id != null) {
+                        targetIds.add(id);
+                    }
                 }
             }
             // step #2: fetched dynamically referenced ids
@@ -962,6 +987,23 @@ public class LDAPReference extends AbstractReference {
     }
 
     protected String getIdForDn(LDAPSession session, String dn) {
+        String normalizedDn;
+        try {
+            normalizedDn = pseudoNormalizeDn(dn);
+        } catch (InvalidNameException e) {
+            return null;
+        }
+        String id = session.directory.getCachedIdForDn(normalizedDn);
+        if (id == null) {
+            id = fetchIdForDn(session, dn);
+            if (id != null) {
+                session.directory.cacheIdForDn(normalizedDn, id);
+            }
+        }
+        return id;
+    }
+
+    protected String fetchIdForDn(LDAPSession session, String dn) {
         // the entry id is not based on the rdn, we thus need to
         // fetch the LDAP entry to grab it
         String[] attributeIdsToCollect = { session.idAttribute };
@@ -992,6 +1034,147 @@ public class LDAPReference extends AbstractReference {
         return null;
     }
 
+    /**
+     * Resolves the ids of the entries of the target directory with the given
+     * distinguished names, using the cache of the target directory and OR
+     * filter searches of at most {@link #dnResolutionBatchSize} names.
+     *
+     * @param session a session on the target directory
+     * @param dns the distinguished names
+     * @return the ids by distinguished name, without the names that could not
+     *         be resolved
+     * @since 7.1
+     */
+    protected Map<String, String> getIdsForDns(LDAPSession session,
+            Collection<String> dns) throws DirectoryException {
+        Map<String, String> ids = new HashMap<String, String>();
+        // names to fetch, by normalized name
+        Map<String, List<String>> dnsToFetch = new LinkedHashMap<String, List<String>>();
+        for (String dn : dns) {
+            String normalizedDn;
+            try {
+                normalizedDn = pseudoNormalizeDn(dn);
+            } catch (InvalidNameException e) {
+                log.warn(String.format("ignoring invalid dn '%s' for '%s'",
+                        dn, this));
+                continue;
+            }
+            String id = session.directory.getCachedIdForDn(normalizedDn);
+            if (id != null) {
+                ids.put(dn, id);
+                continue;
+            }
+            List<String> sameDns = dnsToFetch.get(normalizedDn);
+            if (sameDns == null) {
+                sameDns = new ArrayList<String>(1);
+                dnsToFetch.put(normalizedDn, sameDns);
+            }
+            sameDns.add(dn);
+        }
+        if (dnsToFetch.isEmpty()) {
+            return ids;
+        }
+        int batchSize = dnResolutionBatchSize > 0 ? dnResolutionBatchSize
+                : DEFAULT_DN_RESOLUTION_BATCH_SIZE;
+        List<String> normalizedDns = new ArrayList<String>(dnsToFetch.keySet());
+        for (int i = 0; i < normalizedDns.size(); i += batchSize) {
+            Map<String, String> batch = new LinkedHashMap<String, String>();
+            for (String normalizedDn : normalizedDns.subList(i,
+                    Math.min(i + batchSize, normalizedDns.size()))) {
+                batch.put(normalizedDn, dnsToFetch.get(normalizedDn).get(0));
+            }
+            Map<String, String> fetchedIds = fetchIdsForDns(session, batch);
+            for (Map.Entry<String, String> fetched : fetchedIds.entrySet()) {
+                session.directory.cacheIdForDn(fetched.getKey(),
+                        fetched.getValue());
+                for (String dn : dnsToFetch.get(fetched.getKey())) {
+                    ids.put(dn, fetched.getValue());
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Fetches the ids of a batch of entries with a single search on their
+     * RDNs, keeping only the results whose distinguished name was requested.
+     * Falls back to one lookup per entry if the search fails.
+     *
+     * @param session a session on the target directory
+     * @param dns the distinguished names, keyed by normalized name
+     * @return the ids by normalized distinguished name
+     */
+    protected Map<String, String> fetchIdsForDns(LDAPSession session,
+            Map<String, String> dns) {
+        Map<String, String> ids = new HashMap<String, String>();
+        StringBuilder filterExpr = new StringBuilder("(|");
+        List<Object> filterArgs = new ArrayList<Object>(dns.size());
+        try {
+            for (String dn : dns.values()) {
+                LdapName name = new LdapName(dn);
+                Rdn rdn = name.getRdn(name.size() - 1);
+                filterExpr.append('(').append(rdn.getType()).append("={").append(
+                        filterArgs.size()).append("})");
+                filterArgs.add(rdn.getValue());
+            }
+        } catch (InvalidNameException e) {
+            // already checked by the normalization
+            throw new DirectoryException(e);
+        }
+        filterExpr.append(')');
+
+        LDAPDirectoryDescriptor targetConfig = session.directory.getConfig();
+        String searchBaseDn = targetConfig.getSearchBaseDn();
+        SearchControls sctls = new SearchControls(
+                SearchControls.SUBTREE_SCOPE, 0,
+                targetConfig.getQueryTimeLimit(),
+                new String[] { session.idAttribute }, false, false);
+        try {
+            if (log.isDebugEnabled()) {
+                log.debug(String.format(
+                        "LDAPReference.fetchIdsForDns(session, %s dns): LDAP search search base='%s'"
+                                + " filter='%s' args='%s' [%s]",
+                        Integer.valueOf(dns.size()), searchBaseDn,
+                        filterExpr, StringUtils.join(filterArgs.toArray(), ", "),
+                        this));
+            }
+            NamingEnumeration<SearchResult> results = session.dirContext.search(
+                    searchBaseDn, filterExpr.toString(), filterArgs.toArray(),
+                    sctls);
+            try {
+                while (results.hasMore()) {
+                    SearchResult result = results.next();
+                    String normalizedDn = pseudoNormalizeDn(result.getNameInNamespace());
+                    if (!dns.containsKey(normalizedDn)) {
+                        // same RDN elsewhere in the tree
+                        continue;
+                    }
+                    // NXP-2461: check that id field is filled
+                    Attribute attr = result.getAttributes().get(
+                            session.idAttribute);
+                    if (attr != null && attr.get() != null) {
+                        ids.put(normalizedDn, attr.get().toString());
+                    }
+                }
+            } finally {
+                results.close();
+            }
+        } catch (NamingException e) {
+            log.debug(String.format(
+                    "batched dn resolution failed for '%s', resolving them one by one",
+                    this), e);
+            for (Map.Entry<String, String> dn : dns.entrySet()) {
+                if (!ids.containsKey(dn.getKey())) {
+                    String id = fetchIdForDn(session, dn.getValue());
+                    if (id != null) {
+                        ids.put(dn.getKey(), id);
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
     /**
      * Retrieve the elements referenced by the filter/BaseDN/Scope request.
      *
@@ -1383,6 +1566,7 @@ public class LDAPReference extends AbstractReference {
         clone.staticAttributeIdIsDn = staticAttributeIdIsDn;
         clone.staticAttributeId = staticAttributeId;
         clone.dynamicAttributeId = dynamicAttributeId;
+        clone.dnResolutionBatchSize = dnResolutionBatchSize;
         clone.fieldName = fieldName;
         return clone;
     }
@@ -73,6 +73,51 @@ public class LDAPServerDescriptor {
     @XNode("retries")
     public int retries = 5;
 
+    /**
+     * Whether the sessions of this server borrow their context from a bounded
+     * {@link LDAPContextPool} instead of opening a new one each time. The JNDI
+     * connection pool enabled by {@link #poolingEnabled} is then not used.
+     *
+     * @since 7.1
+     */
+    @XNode("contextPoolEnabled")
+    public boolean contextPoolEnabled = false;
+
+    /**
+     * Maximum number of threads using contexts of this server at the same
+     * time when the context pool is enabled. A thread opening nested
+     * sessions, as references do, uses one context for each of them, so
+     * usually up to twice as many contexts are opened.
+     *
+     * @since 7.1
+     */
+    @XNode("maxPoolSize")
+    public int maxPoolSize = 50;
+
+    /**
+     * Time to wait for a pooled context to be released, in milliseconds.
+     *
+     * @since 7.1
+     */
+    @XNode("poolMaxWait")
+    public long poolMaxWait = 5000;
+
+    /**
+     * Time after which unused pooled contexts are closed, in milliseconds.
+     *
+     * @since 7.1
+     */
+    @XNode("poolIdleTimeout")
+    public long poolIdleTimeout = 300000; // 5 min
+
+    /**
+     * Whether pooled contexts are checked before being reused.
+     *
+     * @since 7.1
+     */
+    @XNode("poolValidateOnBorrow")
+    public boolean poolValidateOnBorrow = true;
+
     protected LinkedHashSet<LdapEntry> ldapEntries;
 
     protected boolean isDynamicServerList = false;
@@ -312,6 +357,41 @@ public class LDAPServerDescriptor {
         return poolingEnabled;
     }
 
+    /**
+     * @since 7.1
+     */
+    public boolean isContextPoolEnabled() {
+        return contextPoolEnabled;
+    }
+
+    /**
+     * @since 7.1
+     */
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    /**
+     * @since 7.1
+     */
+    public long getPoolMaxWait() {
+        return poolMaxWait;
+    }
+
+    /**
+     * @since 7.1
+     */
+    public long getPoolIdleTimeout() {
+        return poolIdleTimeout;
+    }
+
+    /**
+     * @since 7.1
+     */
+    public boolean isPoolValidateOnBorrow() {
+        return poolValidateOnBorrow;
+    }
+
     public boolean isVerifyServerCert() {
         return verifyServerCert;
     }
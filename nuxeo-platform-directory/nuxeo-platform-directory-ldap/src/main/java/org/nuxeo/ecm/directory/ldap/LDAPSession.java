@@ -29,6 +29,8 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -50,6 +52,7 @@ import javax.naming.directory.DirContext;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
 import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
@@ -72,6 +75,7 @@ import org.nuxeo.ecm.directory.Directory;
 import org.nuxeo.ecm.directory.DirectoryException;
 import org.nuxeo.ecm.directory.DirectoryFieldMapper;
 import org.nuxeo.ecm.directory.EntryAdaptor;
+import org.nuxeo.ecm.directory.EntryCursor;
 import org.nuxeo.ecm.directory.EntrySource;
 import org.nuxeo.ecm.directory.PasswordHelper;
 import org.nuxeo.ecm.directory.Reference;
@@ -87,6 +91,14 @@ public class LDAPSession extends BaseSession implements EntrySource {
 
     protected static final String MISSING_ID_UPPER_CASE = "upper";
 
+    /**
+     * Maximum number of ids looked up in a single OR filter when fetching
+     * several entries at once.
+     *
+     * @since 7.1
+     */
+    protected static final int MAX_OR_FILTER_SIZE = 100;
+
     private static final Log log = LogFactory.getLog(LDAPSession.class);
 
     protected final String schemaName;
@@ -233,7 +245,7 @@ public class LDAPSession extends BaseSession implements EntrySource {
                 // entry
                 fieldMap.put(dnFieldName, dn);
             }
-            directory.invalidateCaches();
+            directory.invalidateCaches(dn);
             return fieldMapToDocumentModel(fieldMap);
         } catch (Exception e) {
             handleException(e, "createEntry failed");
@@ -270,6 +282,133 @@ public class LDAPSession extends BaseSession implements EntrySource {
         }
     }
 
+    @Override
+    public DocumentModelList getEntries(Collection<String> ids,
+            boolean fetchReferences) throws DirectoryException {
+        if (!isCurrentUserAllowed(SecurityConstants.READ)) {
+            return new DocumentModelListImpl();
+        }
+        return new DocumentModelListImpl(directory.getCache().getEntries(ids,
+                this, fetchReferences));
+    }
+
+    @Override
+    public boolean isContextFiltered() {
+        return false;
+    }
+
+    @Override
+    public Map<String, DocumentModel> getEntriesFromSource(
+            Collection<String> ids, boolean fetchReferences)
+            throws DirectoryException {
+        // LDAP id matching is usually case insensitive: index the requested
+        // ids to map back the results
+        Map<String, String> requestedIds = new LinkedHashMap<String, String>();
+        for (String id : ids) {
+            if (StringUtils.isEmpty(id)) {
+                continue;
+            }
+            requestedIds.put(id.toLowerCase(), id);
+        }
+        Map<String, DocumentModel> entries = new HashMap<String, DocumentModel>();
+        List<String> idList = new ArrayList<String>(requestedIds.values());
+        try {
+            for (int start = 0; start < idList.size(); start += MAX_OR_FILTER_SIZE) {
+                List<String> chunk = idList.subList(start,
+                        Math.min(start + MAX_OR_FILTER_SIZE, idList.size()));
+                Map<String, SearchResult> results = new HashMap<String, SearchResult>();
+                Set<String> ambiguousIds = new HashSet<String>();
+                for (SearchResult result : getLdapEntries(chunk)) {
+                    Attribute attribute = result.getAttributes().get(
+                            idAttribute);
+                    Object value = attribute == null ? null : attribute.get();
+                    String id = value == null ? null
+                            : requestedIds.get(value.toString().toLowerCase());
+                    if (id == null) {
+                        continue;
+                    }
+                    if (results.put(id, result) != null) {
+                        // ignore entries that are ambiguous, as getLdapEntry
+                        // does
+                        log.error(String.format(
+                                "Unable to fetch entry for '%s': found more than one match",
+                                id));
+                        ambiguousIds.add(id);
+                    }
+                }
+                for (Map.Entry<String, SearchResult> es : results.entrySet()) {
+                    String id = es.getKey();
+                    if (ambiguousIds.contains(id)) {
+                        continue;
+                    }
+                    DocumentModel entry = ldapResultToDocumentModel(
+                            es.getValue(), id, fetchReferences);
+                    if (entry != null) {
+                        entries.put(id, entry);
+                    }
+                }
+            }
+        } catch (NamingException e) {
+            throw new DirectoryException("getEntries failed: "
+                    + e.getMessage(), e);
+        }
+        return entries;
+    }
+
+    /**
+     * Searches the entries matching the given ids with a single OR filter.
+     *
+     * @since 7.1
+     */
+    protected List<SearchResult> getLdapEntries(List<String> ids)
+            throws NamingException {
+        List<SearchResult> entries = new ArrayList<SearchResult>(ids.size());
+        if (ids.isEmpty()) {
+            return entries;
+        }
+        StringBuilder idsFilter = new StringBuilder("(|");
+        for (int i = 0; i < ids.size(); i++) {
+            idsFilter.append('(').append(idAttribute).append("={").append(i).append("})");
+        }
+        idsFilter.append(')');
+        String filterExpr;
+        if (directory.getBaseFilter().startsWith("(")) {
+            filterExpr = String.format("(&%s%s)", idsFilter,
+                    directory.getBaseFilter());
+        } else {
+            filterExpr = String.format("(&%s(%s))", idsFilter,
+                    directory.getBaseFilter());
+        }
+        Object[] filterArgs = ids.toArray();
+        SearchControls scts = directory.getSearchControls();
+
+        if (log.isDebugEnabled()) {
+            log.debug(String.format(
+                    "LDAPSession.getLdapEntries(%s): LDAP search base='%s' filter='%s' "
+                            + " scope='%s' [%s]", ids, searchBaseDn,
+                    filterExpr, scts.getSearchScope(), this));
+        }
+        NamingEnumeration<SearchResult> results;
+        try {
+            results = dirContext.search(searchBaseDn, filterExpr, filterArgs,
+                    scts);
+        } catch (NameNotFoundException nnfe) {
+            // same ActiveDirectory workaround as in getLdapEntry
+            log.error(
+                    "Unexpected response from server while performing query: "
+                            + nnfe.getMessage(), nnfe);
+            return entries;
+        }
+        try {
+            while (results.hasMore()) {
+                entries.add(results.next());
+            }
+        } finally {
+            results.close();
+        }
+        return entries;
+    }
+
     @Override
     public boolean hasEntry(String id) throws DirectoryException {
         try {
@@ -394,6 +533,7 @@ public class LDAPSession extends BaseSession implements EntrySource {
         }
         List<String> updateList = new ArrayList<String>();
         List<String> referenceFieldList = new LinkedList<String>();
+        String dn = null;
 
         try {
             DataModel dataModel = docModel.getDataModel(schemaName);
@@ -416,7 +556,7 @@ public class LDAPSession extends BaseSession implements EntrySource {
                             + " not found");
                 }
                 Attributes oldattrs = ldapEntry.getAttributes();
-                String dn = ldapEntry.getNameInNamespace();
+                dn = ldapEntry.getNameInNamespace();
                 Attributes attrsToDel = new BasicAttributes();
                 for (String f : updateList) {
                     Object value = docModel.getProperty(schemaName, f);
@@ -484,7 +624,7 @@ public class LDAPSession extends BaseSession implements EntrySource {
         } catch (Exception e) {
             handleException(e, "updateEntry failed:");
         }
-        directory.invalidateCaches();
+        directory.invalidateCaches(dn);
     }
 
     protected void handleException(Exception e, String message)
@@ -512,6 +652,7 @@ public class LDAPSession extends BaseSession implements EntrySource {
         if (isReadOnly()) {
             return;
         }
+        String dn = null;
         try {
             for (String fieldName : schemaFieldMap.keySet()) {
                 if (directory.isReference(fieldName)) {
@@ -520,17 +661,18 @@ public class LDAPSession extends BaseSession implements EntrySource {
                 }
             }
             SearchResult result = getLdapEntry(id);
+            dn = result.getNameInNamespace();
 
             if (log.isDebugEnabled()) {
                 log.debug(String.format(
                         "LDAPSession.deleteEntry(%s): LDAP destroySubcontext dn='%s' [%s]",
-                        id, result.getNameInNamespace(), this));
+                        id, dn, this));
             }
-            dirContext.destroySubcontext(result.getNameInNamespace());
+            dirContext.destroySubcontext(dn);
         } catch (Exception e) {
             handleException(e, "deleteEntry failed for: " + id);
         }
-        directory.invalidateCaches();
+        directory.invalidateCaches(dn);
     }
 
     @Override
@@ -547,67 +689,8 @@ public class LDAPSession extends BaseSession implements EntrySource {
             // building the query using filterExpr / filterArgs to
             // escape special characters and to fulltext search only on
             // the explicitly specified fields
-            String[] filters = new String[filter.size()];
             String[] filterArgs = new String[filter.size()];
-
-            if (fulltext == null) {
-                fulltext = Collections.emptySet();
-            }
-
-            int index = 0;
-            for (String fieldName : filter.keySet()) {
-                if (directory.isReference(fieldName)) {
-                    log.warn(fieldName
-                            + " is a reference and will be ignored as a query criterion");
-                    continue;
-                }
-
-                String backendFieldName = directory.getFieldMapper().getBackendField(
-                        fieldName);
-                Object fieldValue = filter.get(fieldName);
-
-                StringBuilder currentFilter = new StringBuilder();
-                currentFilter.append("(");
-                if (fieldValue == null) {
-                    currentFilter.append("!(" + backendFieldName + "=*)");
-                } else if ("".equals(fieldValue)) {
-                    if (fulltext.contains(fieldName)) {
-                        currentFilter.append(backendFieldName + "=*");
-                    } else {
-                        currentFilter.append("!(" + backendFieldName + "=*)");
-                    }
-                } else {
-                    currentFilter.append(backendFieldName + "=");
-                    if (fulltext.contains(fieldName)) {
-                        if (LDAPSubstringMatchType.SUBFINAL.equals(substringMatchType)) {
-                            currentFilter.append("*{" + index + "}");
-                        } else if (LDAPSubstringMatchType.SUBANY.equals(substringMatchType)) {
-                            currentFilter.append("*{" + index + "}*");
-                        } else {
-                            // default behavior: subinitial
-                            currentFilter.append("{" + index + "}*");
-                        }
-                    } else {
-                        currentFilter.append("{" + index + "}");
-                    }
-                }
-                currentFilter.append(")");
-                filters[index] = currentFilter.toString();
-                if (fieldValue != null && !"".equals(fieldValue)) {
-                    if (fieldValue instanceof Blob) {
-                        // filter arg could be a sequence of \xx where xx is the
-                        // hexadecimal value of the byte
-                        log.warn("Binary search is not supported");
-                    } else {
-                        // XXX: what kind of Objects can we get here? Is
-                        // toString() enough?
-                        filterArgs[index] = fieldValue.toString();
-                    }
-                }
-                index++;
-            }
-            String filterExpr = "(&" + directory.getBaseFilter()
-                    + StringUtils.join(filters) + ')';
+            String filterExpr = getQueryFilter(filter, fulltext, filterArgs);
             SearchControls scts = directory.getSearchControls();
 
             if (log.isDebugEnabled()) {
@@ -646,6 +729,134 @@ public class LDAPSession extends BaseSession implements EntrySource {
         }
     }
 
+    /**
+     * Builds the LDAP filter expression of a query, the values to bind are
+     * stored in {@code filterArgs} which must be as large as the filter.
+     *
+     * @since 7.1
+     */
+    protected String getQueryFilter(Map<String, Serializable> filter,
+            Set<String> fulltext, String[] filterArgs) {
+        String[] filters = new String[filter.size()];
+
+        if (fulltext == null) {
+            fulltext = Collections.emptySet();
+        }
+
+        int index = 0;
+        for (String fieldName : filter.keySet()) {
+            if (directory.isReference(fieldName)) {
+                log.warn(fieldName
+                        + " is a reference and will be ignored as a query criterion");
+                continue;
+            }
+
+            String backendFieldName = directory.getFieldMapper().getBackendField(
+                    fieldName);
+            Object fieldValue = filter.get(fieldName);
+
+            StringBuilder currentFilter = new StringBuilder();
+            currentFilter.append("(");
+            if (fieldValue == null) {
+                currentFilter.append("!(" + backendFieldName + "=*)");
+            } else if ("".equals(fieldValue)) {
+                if (fulltext.contains(fieldName)) {
+                    currentFilter.append(backendFieldName + "=*");
+                } else {
+                    currentFilter.append("!(" + backendFieldName + "=*)");
+                }
+            } else {
+                currentFilter.append(backendFieldName + "=");
+                if (fulltext.contains(fieldName)) {
+                    if (LDAPSubstringMatchType.SUBFINAL.equals(substringMatchType)) {
+                        currentFilter.append("*{" + index + "}");
+                    } else if (LDAPSubstringMatchType.SUBANY.equals(substringMatchType)) {
+                        currentFilter.append("*{" + index + "}*");
+                    } else {
+                        // default behavior: subinitial
+                        currentFilter.append("{" + index + "}*");
+                    }
+                } else {
+                    currentFilter.append("{" + index + "}");
+                }
+            }
+            currentFilter.append(")");
+            filters[index] = currentFilter.toString();
+            if (fieldValue != null && !"".equals(fieldValue)) {
+                if (fieldValue instanceof Blob) {
+                    // filter arg could be a sequence of \xx where xx is the
+                    // hexadecimal value of the byte
+                    log.warn("Binary search is not supported");
+                } else {
+                    // XXX: what kind of Objects can we get here? Is
+                    // toString() enough?
+                    filterArgs[index] = fieldValue.toString();
+                }
+            }
+            index++;
+        }
+        return "(&" + directory.getBaseFilter() + StringUtils.join(filters)
+                + ')';
+    }
+
+    /**
+     * Scrolls through the entries using the RFC 2696 paged results control,
+     * pages of {@link LDAPDirectoryDescriptor#getQueryPageSize()} entries being
+     * requested one after the other. The query size limit of the directory
+     * does not apply.
+     *
+     * @since 7.1
+     */
+    @Override
+    public EntryCursor scroll(Map<String, Serializable> filter,
+            Set<String> fulltext, boolean fetchReferences)
+            throws DirectoryException {
+        if (!isCurrentUserAllowed(SecurityConstants.READ)
+                || !(dirContext instanceof LdapContext)) {
+            return super.scroll(filter, fulltext, fetchReferences);
+        }
+        String[] filterArgs = new String[filter.size()];
+        String filterExpr = getQueryFilter(filter, fulltext, filterArgs);
+        SearchControls defaultScts = directory.getSearchControls();
+        // no count limit, the size of the pages is enforced instead
+        SearchControls scts = new SearchControls(
+                defaultScts.getSearchScope(), 0, defaultScts.getTimeLimit(),
+                defaultScts.getReturningAttributes(),
+                defaultScts.getReturningObjFlag(),
+                defaultScts.getDerefLinkFlag());
+        if (log.isDebugEnabled()) {
+            log.debug(String.format(
+                    "LDAPSession.scroll(...): LDAP search base='%s' filter='%s' args='%s' scope='%s' [%s]",
+                    searchBaseDn, filterExpr,
+                    StringUtils.join(filterArgs, ","), scts.getSearchScope(),
+                    this));
+        }
+        LdapContext context = null;
+        try {
+            // use a separate context so that the paging request controls do
+            // not apply to the other operations of the session
+            context = ((LdapContext) dirContext).newInstance(null);
+            EntryCursor cursor = new LDAPEntryCursor(this, context,
+                    searchBaseDn, filterExpr, filterArgs, scts,
+                    directory.getConfig().getQueryPageSize(), fetchReferences);
+            // now owned by the cursor
+            context = null;
+            return cursor;
+        } catch (NamingException e) {
+            throw new DirectoryException("scroll failed", e);
+        } catch (IOException e) {
+            throw new DirectoryException("scroll failed", e);
+        } finally {
+            if (context != null) {
+                try {
+                    context.close();
+                } catch (NamingException e) {
+                    log.error("Cannot close LDAP context", e);
+                }
+            }
+        }
+    }
+
     @Override
     public DocumentModelList query(Map<String, Serializable> filter)
             throws DirectoryException {
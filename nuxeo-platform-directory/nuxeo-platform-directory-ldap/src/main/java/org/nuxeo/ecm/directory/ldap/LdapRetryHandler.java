@@ -21,16 +21,27 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.Map;
 
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
 import javax.naming.ServiceUnavailableException;
 import javax.naming.directory.DirContext;
+import javax.naming.ldap.LdapContext;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.directory.DirectoryException;
 
 /**
  * Wrapper to encapsulate the calls to LDAP and retry the requests in case of
  * ServiceUnavailableException errors
+ * <p>
+ * When the context is borrowed from a {@link LDAPContextPool}, closing it
+ * gives it back to the pool, and a context whose server cannot be reached
+ * (ServiceUnavailableException or CommunicationException) is replaced by a
+ * new one from the pool before retrying, which fails over to the next server
+ * URL.
  *
  * @since 5.7
  * @author Thierry Martins <tm@nuxeo.com>
@@ -44,22 +55,61 @@ public class LdapRetryHandler implements InvocationHandler {
 
     protected int attemptsNumber;
 
+    /**
+     * @since 7.1
+     */
+    protected LDAPContextPool pool;
+
+    /**
+     * Environment properties set on each context borrowed from the pool.
+     *
+     * @since 7.1
+     */
+    protected Map<String, Object> environment;
+
     protected LdapRetryHandler(DirContext object, int attempts) {
         dirContext = object;
         attemptsNumber = attempts;
     }
 
+    /**
+     * @since 7.1
+     */
+    protected LdapRetryHandler(LDAPContextPool pool,
+            Map<String, Object> environment, int attempts)
+            throws DirectoryException {
+        this.pool = pool;
+        this.environment = environment;
+        attemptsNumber = attempts;
+        dirContext = borrowContext();
+    }
+
     @Override
     public Object invoke(Object proxy, Method method, Object[] args)
             throws Throwable {
+        if (pool != null && "close".equals(method.getName())
+                && method.getParameterTypes().length == 0) {
+            releaseContext();
+            return null;
+        }
         int attempts = attemptsNumber;
         Throwable e = null;
         while (attempts-- > 0) {
+            if (dirContext == null) {
+                // previous reconnection failed
+                dirContext = borrowContext();
+            }
             try {
                 return method.invoke(dirContext, args);
             } catch (InvocationTargetException sue) {
                 e = sue.getTargetException();
-                if (!(e instanceof ServiceUnavailableException)) {
+                if (pool != null
+                        && (e instanceof ServiceUnavailableException || e instanceof CommunicationException)) {
+                    log.debug("Reconnecting ...", e);
+                    LdapContext failedContext = (LdapContext) dirContext;
+                    dirContext = null;
+                    pool.invalidate(failedContext);
+                } else if (!(e instanceof ServiceUnavailableException)) {
                     throw sue.getTargetException();
                 } else {
                     log.debug("Retrying ...", e);
@@ -69,10 +119,61 @@ public class LdapRetryHandler implements InvocationHandler {
         throw e;
     }
 
+    protected DirContext borrowContext() throws DirectoryException {
+        LdapContext context = pool.borrow();
+        try {
+            for (Map.Entry<String, Object> property : environment.entrySet()) {
+                context.addToEnvironment(property.getKey(),
+                        property.getValue());
+            }
+        } catch (NamingException e) {
+            pool.invalidate(context);
+            throw new DirectoryException(e);
+        }
+        return context;
+    }
+
+    protected void releaseContext() {
+        if (dirContext != null) {
+            LdapContext context = (LdapContext) dirContext;
+            dirContext = null;
+            pool.release(context);
+        }
+    }
+
     public static DirContext wrap(DirContext dirContext, int retries) {
+        if (Proxy.isProxyClass(dirContext.getClass())
+                && Proxy.getInvocationHandler(dirContext) instanceof LdapRetryHandler) {
+            // already wrapped
+            return dirContext;
+        }
         LdapRetryHandler handler = new LdapRetryHandler(dirContext, retries);
+        return newProxy(handler, dirContext instanceof LdapContext);
+    }
+
+    /**
+     * Wraps a context borrowed from a pool, given back to it when the wrapper
+     * is closed.
+     *
+     * @param pool the pool
+     * @param environment environment properties to set on the borrowed
+     *            contexts
+     * @param retries the number of attempts for each call
+     * @since 7.1
+     */
+    public static LdapContext wrap(LDAPContextPool pool,
+            Map<String, Object> environment, int retries)
+            throws DirectoryException {
+        LdapRetryHandler handler = new LdapRetryHandler(pool, environment,
+                retries);
+        return (LdapContext) newProxy(handler, true);
+    }
+
+    protected static DirContext newProxy(LdapRetryHandler handler,
+            boolean ldapContext) {
+        Class<?> iface = ldapContext ? LdapContext.class : DirContext.class;
         return (DirContext) Proxy.newProxyInstance(
                 Thread.currentThread().getContextClassLoader(),
-                new Class<?>[] { DirContext.class }, handler);
+                new Class<?>[] { iface }, handler);
     }
 }
@@ -0,0 +1,199 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.naming.CommunicationException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.ldap.LdapContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.directory.DirectoryException;
+
+/**
+ * Tests the LDAP context pool against fake contexts, without any server.
+ */
+public class TestLDAPContextPool {
+
+    /**
+     * Fake context whose attribute reads fail while its server is down.
+     */
+    protected static class FakeContext implements InvocationHandler {
+
+        protected boolean down;
+
+        protected boolean closed;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                closed = true;
+                return null;
+            }
+            if ("getAttributes".equals(name)) {
+                if (down) {
+                    throw new CommunicationException("server down");
+                }
+                return new BasicAttributes();
+            }
+            if ("addToEnvironment".equals(name)) {
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+
+    protected List<FakeContext> created;
+
+    protected LDAPContextPool pool;
+
+    @Before
+    public void setUp() {
+        created = new ArrayList<FakeContext>();
+        LDAPServerDescriptor server = new LDAPServerDescriptor();
+        server.name = "testPool";
+        server.contextPoolEnabled = true;
+        server.maxPoolSize = 2;
+        server.poolMaxWait = 100;
+        server.poolIdleTimeout = 0;
+        pool = new LDAPContextPool(server, new Properties()) {
+            @Override
+            protected LdapContext createContext() {
+                FakeContext fake = new FakeContext();
+                created.add(fake);
+                return (LdapContext) Proxy.newProxyInstance(
+                        getClass().getClassLoader(),
+                        new Class<?>[] { LdapContext.class }, fake);
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    protected FakeContext getFake(LdapContext context) {
+        return (FakeContext) Proxy.getInvocationHandler(context);
+    }
+
+    protected LdapContext borrowInOtherThread() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            return executor.submit(new Callable<LdapContext>() {
+                @Override
+                public LdapContext call() throws Exception {
+                    return pool.borrow();
+                }
+            }).get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testBorrowAndRelease() throws Exception {
+        LdapContext context = pool.borrow();
+        assertEquals(1, created.size());
+        assertEquals(1, pool.permits.availablePermits());
+        pool.release(context);
+        assertEquals(2, pool.permits.availablePermits());
+        assertEquals(1, pool.idleContexts.size());
+        // the released context is reused
+        assertSame(context, pool.borrow());
+        assertEquals(1, created.size());
+        // a context whose server went down is replaced
+        pool.release(context);
+        getFake(context).down = true;
+        LdapContext other = pool.borrow();
+        assertNotSame(context, other);
+        assertTrue(getFake(context).closed);
+        assertEquals(2, created.size());
+    }
+
+    @Test
+    public void testBorrowTimeout() throws Exception {
+        LdapContext context1 = borrowInOtherThread();
+        borrowInOtherThread();
+        try {
+            pool.borrow();
+            fail("should have timed out");
+        } catch (DirectoryException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Timed out"));
+        }
+        assertEquals(2, created.size());
+        // a released context can be borrowed again
+        pool.release(context1);
+        assertSame(context1, pool.borrow());
+    }
+
+    @Test
+    public void testNestedBorrow() throws Exception {
+        LdapContext outer = pool.borrow();
+        borrowInOtherThread();
+        assertEquals(0, pool.permits.availablePermits());
+        // a thread already holding a context does not wait for another one
+        LdapContext inner = pool.borrow();
+        assertNotSame(outer, inner);
+        assertEquals(3, created.size());
+        pool.release(inner);
+        assertEquals(0, pool.permits.availablePermits());
+        pool.release(outer);
+        assertEquals(1, pool.permits.availablePermits());
+    }
+
+    @Test
+    public void testInvalidateAfterCommunicationError() throws Exception {
+        LdapContext context = LdapRetryHandler.wrap(pool,
+                Collections.<String, Object> emptyMap(), 2);
+        FakeContext first = created.get(0);
+        first.down = true;
+        // the call is retried on a new context
+        context.getAttributes("");
+        assertEquals(2, created.size());
+        assertTrue(first.closed);
+        assertEquals(1, pool.permits.availablePermits());
+        // closing the session gives the new context back
+        context.close();
+        FakeContext second = created.get(1);
+        assertFalse(second.closed);
+        assertEquals(2, pool.permits.availablePermits());
+        assertEquals(1, pool.idleContexts.size());
+    }
+
+}
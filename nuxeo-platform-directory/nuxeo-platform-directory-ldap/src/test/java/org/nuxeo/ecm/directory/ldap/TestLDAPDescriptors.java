@@ -67,6 +67,11 @@ public class TestLDAPDescriptors extends NXRuntimeTestCase {
         assertEquals("uid", directory.getRdnAttribute());
     }
 
+    @Test
+    public void testGetDnIdCacheSize() {
+        assertEquals(500, directory.getDnIdCacheSize());
+    }
+
     @Test
     public void testGetCreationBaseDn() {
         assertEquals("ou=people,dc=example,dc=com",
@@ -221,6 +226,20 @@ public class TestLDAPDescriptors extends NXRuntimeTestCase {
         assertFalse(server2.isPoolingEnabled());
     }
 
+    @Test
+    public void testContextPoolConfiguration() {
+        assertFalse(server1.isContextPoolEnabled());
+        assertTrue(server2.isContextPoolEnabled());
+        assertEquals(50, server1.getMaxPoolSize());
+        assertEquals(5000, server1.getPoolMaxWait());
+        assertEquals(300000, server1.getPoolIdleTimeout());
+        assertTrue(server1.isPoolValidateOnBorrow());
+        assertEquals(10, server2.getMaxPoolSize());
+        assertEquals(1000, server2.getPoolMaxWait());
+        assertEquals(60000, server2.getPoolIdleTimeout());
+        assertFalse(server2.isPoolValidateOnBorrow());
+    }
+
     @Test
     public void testIsVerifyServerCert() {
         assertTrue(server1.isVerifyServerCert());
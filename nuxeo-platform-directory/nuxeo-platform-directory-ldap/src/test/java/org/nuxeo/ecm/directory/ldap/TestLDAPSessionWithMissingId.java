@@ -265,4 +265,69 @@ public class TestLDAPSessionWithMissingId extends LDAPDirectoryTestCase {
         }
     }
 
+    @Test
+    public void testGetIdsForDns() throws Exception {
+        LDAPDirectory directory = getLDAPDirectory("userDirectory");
+        LDAPSession session = (LDAPSession) directory.getSession();
+        try {
+            assertFalse(session.rdnMatchesIdField());
+            LDAPReference reference = new LDAPReference();
+            // more names than a single batch
+            reference.dnResolutionBatchSize = 2;
+            String adminDn = "uid=Administrator,ou=people,dc=example,dc=com";
+            String user1Dn = "uid=user1,ou=people,dc=example,dc=com";
+            String user2Dn = "uid=user2,ou=people,dc=example,dc=com";
+            String user3Dn = "uid=user3,ou=people,dc=example,dc=com";
+            String unknownDn = "uid=unknown,ou=people,dc=example,dc=com";
+            Map<String, String> ids = reference.getIdsForDns(session,
+                    Arrays.asList(adminDn, user1Dn, user2Dn, user3Dn,
+                            unknownDn));
+            Map<String, String> expected = new HashMap<String, String>();
+            expected.put(adminDn, "ogrisel+Administrator@nuxeo.com");
+            expected.put(user1Dn, "ogrisel+user1@nuxeo.com");
+            // user2 has no mail, and thus no id
+            expected.put(user3Dn, "ogrisel+user3@nuxeo.com");
+            assertEquals(expected, ids);
+
+            // resolved ids are cached by normalized name
+            String normalizedUser1Dn = LDAPReference.pseudoNormalizeDn(user1Dn);
+            assertEquals("ogrisel+user1@nuxeo.com",
+                    directory.getCachedIdForDn(normalizedUser1Dn));
+            assertNull(directory.getCachedIdForDn(LDAPReference.pseudoNormalizeDn(user2Dn)));
+
+            // cached ids are used without searching the server again
+            directory.cacheIdForDn(normalizedUser1Dn, "cachedUser1");
+            ids = reference.getIdsForDns(session,
+                    Arrays.asList(user1Dn, user3Dn));
+            assertEquals("cachedUser1", ids.get(user1Dn));
+            assertEquals("ogrisel+user3@nuxeo.com", ids.get(user3Dn));
+
+            // the cache is cleared with the directory caches
+            directory.invalidateCaches();
+            assertNull(directory.getCachedIdForDn(normalizedUser1Dn));
+            ids = reference.getIdsForDns(session, Arrays.asList(user1Dn));
+            assertEquals("ogrisel+user1@nuxeo.com", ids.get(user1Dn));
+
+            // a change of an entry only evicts its name
+            String normalizedUser3Dn = LDAPReference.pseudoNormalizeDn(user3Dn);
+            assertEquals("ogrisel+user3@nuxeo.com",
+                    directory.getCachedIdForDn(normalizedUser3Dn));
+            directory.invalidateCaches("uid=user1, ou=people, dc=example, dc=com");
+            assertNull(directory.getCachedIdForDn(normalizedUser1Dn));
+            assertEquals("ogrisel+user3@nuxeo.com",
+                    directory.getCachedIdForDn(normalizedUser3Dn));
+
+            // expired ids are resolved again
+            synchronized (directory.dnIdCache) {
+                directory.dnIdCache.put(normalizedUser3Dn,
+                        new LDAPDirectory.CachedId("expiredUser3", 0));
+            }
+            assertNull(directory.getCachedIdForDn(normalizedUser3Dn));
+            ids = reference.getIdsForDns(session, Arrays.asList(user3Dn));
+            assertEquals("ogrisel+user3@nuxeo.com", ids.get(user3Dn));
+        } finally {
+            session.close();
+        }
+    }
+
 }
@@ -19,6 +19,13 @@
 
 package org.nuxeo.ecm.directory.multi;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.nuxeo.ecm.directory.AbstractDirectory;
 import org.nuxeo.ecm.directory.Directory;
 import org.nuxeo.ecm.directory.DirectoryException;
@@ -33,6 +40,8 @@ public class MultiDirectory extends AbstractDirectory {
 
     private final MultiDirectoryDescriptor descriptor;
 
+    private ExecutorService executor;
+
     public MultiDirectory(MultiDirectoryDescriptor descriptor) {
         super(descriptor.name);
         this.descriptor = descriptor;
@@ -74,6 +83,52 @@ public class MultiDirectory extends AbstractDirectory {
         return session;
     }
 
+    /**
+     * Gets the executor used to query the subdirectories concurrently, or
+     * {@code null} if they are queried one after the other.
+     * <p>
+     * The executor has at most {@link MultiDirectoryDescriptor#parallelism}
+     * threads and no queue: when all of them are busy, the calling thread
+     * runs the subdirectory query itself.
+     *
+     * @since 7.1
+     */
+    protected synchronized ExecutorService getExecutor() {
+        Integer parallelism = descriptor.parallelism;
+        if (parallelism == null || parallelism.intValue() <= 1) {
+            return null;
+        }
+        if (executor == null) {
+            ThreadPoolExecutor threadPool = new ThreadPoolExecutor(
+                    parallelism.intValue(), parallelism.intValue(), 60,
+                    TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    new ThreadFactory() {
+
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "Nuxeo-MultiDirectory-"
+                                    + getName() + "-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+            threadPool.allowCoreThreadTimeOut(true);
+            executor = threadPool;
+        }
+        return executor;
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        super.shutdown();
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
     protected void addSession(MultiDirectorySession session) {
         sessions.add(session);
     }
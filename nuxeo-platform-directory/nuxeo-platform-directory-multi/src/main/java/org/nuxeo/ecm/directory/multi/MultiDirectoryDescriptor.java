@@ -48,6 +48,16 @@ public class MultiDirectoryDescriptor implements Cloneable {
     @XNode("querySizeLimit")
     public Integer querySizeLimit;
 
+    /**
+     * Maximum number of subdirectories queried concurrently by a session.
+     * Subdirectories are queried one after the other if not greater than 1,
+     * or when a transaction is active.
+     *
+     * @since 7.1
+     */
+    @XNode("parallelism")
+    public Integer parallelism;
+
     @XNode("@remove")
     public boolean remove = false;
 
@@ -77,6 +87,9 @@ public class MultiDirectoryDescriptor implements Cloneable {
         if (other.querySizeLimit != null || overwrite) {
             querySizeLimit = other.querySizeLimit;
         }
+        if (other.parallelism != null || overwrite) {
+            parallelism = other.parallelism;
+        }
         if (other.sources != null || overwrite) {
             if (sources == null) {
                 sources = other.sources;
@@ -106,6 +119,7 @@ public class MultiDirectoryDescriptor implements Cloneable {
         clone.passwordField = passwordField;
         clone.readOnly = readOnly;
         clone.querySizeLimit = querySizeLimit;
+        clone.parallelism = parallelism;
         clone.remove = remove;
         if (sources != null) {
             clone.sources = new SourceDescriptor[sources.length];
@@ -21,21 +21,33 @@ package org.nuxeo.ecm.directory.multi;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
 import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
+import org.nuxeo.ecm.core.api.local.ClientLoginModule;
+import org.nuxeo.ecm.core.api.local.LoginStack;
 import org.nuxeo.ecm.core.api.model.PropertyException;
 import org.nuxeo.ecm.core.api.security.SecurityConstants;
 import org.nuxeo.ecm.core.schema.SchemaManager;
@@ -46,12 +58,19 @@ import org.nuxeo.ecm.directory.DirectoryException;
 import org.nuxeo.ecm.directory.Session;
 import org.nuxeo.ecm.directory.api.DirectoryService;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
 
 /**
  * Directory session aggregating entries from different sources.
  * <p>
  * Each source can build an entry aggregating fields from one or several
  * directories.
+ * <p>
+ * When the multi directory defines a parallelism, the subdirectories are
+ * queried concurrently for entry lookups, queries and authentication, and the
+ * results are merged in the order of the sources as when they are queried
+ * one after the other. Each concurrent call uses its own subdirectory
+ * session.
  *
  * @author Florent Guillaume
  * @author Anahide Tchertchian
@@ -105,12 +124,15 @@ public class MultiDirectorySession extends BaseSession {
 
         final boolean isOptional;
 
+        final long timeout;
+
         Session session;
 
         SubDirectoryInfo(String dirName, String dirSchemaName, String idField,
                 boolean isAuthenticating, Map<String, String> fromSource,
                 Map<String, String> toSource,
-                Map<String, Serializable> defaultEntry, boolean isOptional) {
+                Map<String, Serializable> defaultEntry, boolean isOptional,
+                long timeout) {
             this.dirName = dirName;
             this.dirSchemaName = dirSchemaName;
             this.idField = idField;
@@ -119,6 +141,7 @@ public class MultiDirectorySession extends BaseSession {
             this.toSource = toSource;
             this.defaultEntry = defaultEntry;
             this.isOptional = isOptional;
+            this.timeout = timeout;
         }
 
         Session getSession() throws DirectoryException {
@@ -270,7 +293,8 @@ public class MultiDirectorySession extends BaseSession {
                 }
                 SubDirectoryInfo subDirectoryInfo = new SubDirectoryInfo(
                         dirName, dirSchemaName, dirIdField, dirIsAuth,
-                        fromSource, toSource, defaultEntry, dirIsOptional);
+                        fromSource, toSource, defaultEntry, dirIsOptional,
+                        source.timeout);
                 subDirectoryInfos.add(subDirectoryInfo);
 
                 if (dirIsAuth) {
@@ -306,6 +330,154 @@ public class MultiDirectorySession extends BaseSession {
         sourceInfos = newSourceInfos;
     }
 
+    /**
+     * Call made on a subdirectory, possibly from another thread.
+     *
+     * @since 7.1
+     */
+    protected interface SubDirectoryCall<T> {
+
+        /**
+         * @param dirInfo the subdirectory
+         * @param session the session to use, owned by the calling thread
+         */
+        T call(SubDirectoryInfo dirInfo, Session session)
+                throws ClientException;
+
+    }
+
+    /**
+     * Makes a call on each of the given subdirectories, concurrently if the
+     * multi directory has a parallelism.
+     * <p>
+     * Sessions are not thread-safe, so each concurrent call opens and closes
+     * its own subdirectory session, with the current principal of the calling
+     * thread. When a transaction is active, all the subdirectories are called
+     * from the calling thread, so that they all read through the transaction
+     * and see the changes not committed yet.
+     * <p>
+     * A subdirectory that does not answer within the timeout of its source,
+     * counted from the submission of its call, makes the call fail, unless it is optional: its result is then
+     * {@code null}. The late call keeps running on its own session, which it
+     * closes when done.
+     *
+     * @return the results, by subdirectory
+     * @since 7.1
+     */
+    protected <T> Map<SubDirectoryInfo, T> callSubDirectories(
+            Collection<SubDirectoryInfo> dirInfos,
+            final SubDirectoryCall<T> subDirectoryCall)
+            throws DirectoryException {
+        final Map<SubDirectoryInfo, T> results = new HashMap<SubDirectoryInfo, T>();
+        List<SubDirectoryInfo> localDirInfos = new ArrayList<SubDirectoryInfo>();
+        List<SubDirectoryInfo> concurrentDirInfos = new ArrayList<SubDirectoryInfo>();
+        ExecutorService executor = directory.getExecutor();
+        if (executor == null || dirInfos.size() < 2
+                || TransactionHelper.isTransactionActive()) {
+            localDirInfos.addAll(dirInfos);
+        } else {
+            concurrentDirInfos.addAll(dirInfos);
+        }
+        final NuxeoPrincipal principal = ClientLoginModule.getCurrentPrincipal();
+        final Map<SubDirectoryInfo, Future<T>> futures = new LinkedHashMap<SubDirectoryInfo, Future<T>>();
+        Map<SubDirectoryInfo, Long> submitted = new HashMap<SubDirectoryInfo, Long>();
+        boolean completed = false;
+        try {
+            for (final SubDirectoryInfo dirInfo : concurrentDirInfos) {
+                submitted.put(dirInfo, Long.valueOf(System.currentTimeMillis()));
+                futures.put(dirInfo, executor.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        LoginStack loginStack = ClientLoginModule.getThreadLocalLogin();
+                        if (principal != null) {
+                            loginStack.push(principal, null, null);
+                        }
+                        try {
+                            Session session = directoryService.open(dirInfo.dirName);
+                            try {
+                                return subDirectoryCall.call(dirInfo, session);
+                            } finally {
+                                session.close();
+                            }
+                        } finally {
+                            if (principal != null) {
+                                loginStack.pop();
+                            }
+                        }
+                    }
+                }));
+            }
+            // call the other subdirectories meanwhile
+            for (SubDirectoryInfo dirInfo : localDirInfos) {
+                try {
+                    results.put(dirInfo,
+                            subDirectoryCall.call(dirInfo, dirInfo.getSession()));
+                } catch (DirectoryException e) {
+                    throw e;
+                } catch (ClientException e) {
+                    throw new DirectoryException(e);
+                }
+            }
+            for (Entry<SubDirectoryInfo, Future<T>> future : futures.entrySet()) {
+                SubDirectoryInfo dirInfo = future.getKey();
+                try {
+                    T result;
+                    if (dirInfo.timeout > 0) {
+                        long wait = submitted.get(dirInfo).longValue()
+                                + dirInfo.timeout - System.currentTimeMillis();
+                        result = future.getValue().get(Math.max(wait, 0),
+                                TimeUnit.MILLISECONDS);
+                    } else {
+                        result = future.getValue().get();
+                    }
+                    results.put(dirInfo, result);
+                } catch (TimeoutException e) {
+                    future.getValue().cancel(true);
+                    String message = String.format(
+                            "Directory '%s' subdirectory '%s' did not answer within %sms",
+                            directory.getName(), dirInfo.dirName,
+                            Long.valueOf(dirInfo.timeout));
+                    if (!dirInfo.isOptional) {
+                        throw new DirectoryException(message);
+                    }
+                    log.warn(message + ", ignoring it");
+                    results.put(dirInfo, null);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof DirectoryException) {
+                        throw (DirectoryException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new DirectoryException(cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DirectoryException(
+                            "Interrupted while querying directory "
+                                    + dirInfo.dirName, e);
+                }
+            }
+            completed = true;
+        } finally {
+            if (!completed) {
+                // failure, do not let the other calls run for nothing
+                for (Future<T> future : futures.values()) {
+                    future.cancel(true);
+                }
+            }
+        }
+        return results;
+    }
+
+    private static List<SubDirectoryInfo> getSubDirectoryInfos(
+            List<SourceInfo> sourceInfos) {
+        List<SubDirectoryInfo> dirInfos = new ArrayList<SubDirectoryInfo>();
+        for (SourceInfo sourceInfo : sourceInfos) {
+            dirInfos.addAll(sourceInfo.subDirectoryInfos);
+        }
+        return dirInfos;
+    }
+
     @Override
     public void close() throws DirectoryException {
         try {
@@ -363,15 +535,35 @@ public class MultiDirectorySession extends BaseSession {
     }
 
     @Override
-    public boolean authenticate(String username, String password)
+    public boolean authenticate(final String username, final String password)
             throws ClientException {
         init();
+        Map<SubDirectoryInfo, Boolean> authenticated = null;
+        if (directory.getExecutor() != null) {
+            // authenticate against all the sources at once
+            List<SubDirectoryInfo> authDirInfos = new ArrayList<SubDirectoryInfo>();
+            for (SubDirectoryInfo dirInfo : getSubDirectoryInfos(sourceInfos)) {
+                if (dirInfo.isAuthenticating) {
+                    authDirInfos.add(dirInfo);
+                }
+            }
+            authenticated = callSubDirectories(authDirInfos,
+                    new SubDirectoryCall<Boolean>() {
+                        @Override
+                        public Boolean call(SubDirectoryInfo dirInfo,
+                                Session session) throws ClientException {
+                            return Boolean.valueOf(session.authenticate(
+                                    username, password));
+                        }
+                    });
+        }
         for (SourceInfo sourceInfo : sourceInfos) {
             for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
                 if (!dirInfo.isAuthenticating) {
                     continue;
                 }
-                if (dirInfo.getSession().authenticate(username, password)) {
+                if (authenticated != null ? Boolean.TRUE.equals(authenticated.get(dirInfo))
+                        : dirInfo.getSession().authenticate(username, password)) {
                     return true;
                 }
                 if (dirInfo.isOptional
@@ -395,70 +587,195 @@ public class MultiDirectorySession extends BaseSession {
     }
 
     @Override
-    public DocumentModel getEntry(String id, boolean fetchReferences)
-            throws DirectoryException {
+    public DocumentModel getEntry(final String id,
+            final boolean fetchReferences) throws DirectoryException {
         if (!isCurrentUserAllowed(SecurityConstants.READ)) {
             return null;
         }
         init();
+        Map<SubDirectoryInfo, DocumentModel> fetched = null;
+        if (directory.getExecutor() != null) {
+            // fetch the entry from all the sources at once
+            fetched = callSubDirectories(getSubDirectoryInfos(sourceInfos),
+                    new SubDirectoryCall<DocumentModel>() {
+                        @Override
+                        public DocumentModel call(SubDirectoryInfo dirInfo,
+                                Session session) throws ClientException {
+                            return session.getEntry(id,
+                                    fetchReferences);
+                        }
+                    });
+        }
         source_loop: for (SourceInfo sourceInfo : sourceInfos) {
-            boolean isReadOnlyEntry = true;
-            final Map<String, Object> map = new HashMap<String, Object>();
-
+            final Map<SubDirectoryInfo, DocumentModel> subEntries = new HashMap<SubDirectoryInfo, DocumentModel>();
             for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
-                final DocumentModel entry = dirInfo.getSession().getEntry(id,
-                        fetchReferences);
-                boolean isOptional = dirInfo.isOptional;
-                if (entry == null && !isOptional) {
+                final DocumentModel entry = fetched != null ? fetched.get(dirInfo)
+                        : dirInfo.getSession().getEntry(id, fetchReferences);
+                if (entry == null && !dirInfo.isOptional) {
                     // not in this source
                     continue source_loop;
                 }
-                if (entry != null && !isReadOnlyEntry(entry)) {
-                    // set readonly to false if at least one source is writable
-                    isReadOnlyEntry = false;
+                subEntries.put(dirInfo, entry);
+            }
+            return buildEntry(sourceInfo, id, subEntries);
+        }
+        return null;
+    }
+
+    @Override
+    public DocumentModelList getEntries(Collection<String> ids,
+            final boolean fetchReferences) throws DirectoryException {
+        final DocumentModelList results = new DocumentModelListImpl();
+        if (!isCurrentUserAllowed(SecurityConstants.READ)) {
+            return results;
+        }
+        init();
+        final Map<String, DocumentModel> found = new HashMap<String, DocumentModel>();
+        final Set<String> remainingIds = new LinkedHashSet<String>(ids);
+        for (SourceInfo sourceInfo : sourceInfos) {
+            if (remainingIds.isEmpty()) {
+                break;
+            }
+            // fetch the entries of each subdirectory at once, restricting the
+            // ids to the ones present in all the required subdirectories
+            final Set<String> sourceIds = new LinkedHashSet<String>(
+                    remainingIds);
+            final Map<SubDirectoryInfo, Map<String, DocumentModel>> dirEntries = new HashMap<SubDirectoryInfo, Map<String, DocumentModel>>();
+            if (directory.getExecutor() != null) {
+                // fetch the entries of all the subdirectories at once
+                final Set<String> fetchedIds = new LinkedHashSet<String>(
+                        remainingIds);
+                Map<SubDirectoryInfo, DocumentModelList> fetched = callSubDirectories(
+                        sourceInfo.subDirectoryInfos,
+                        new SubDirectoryCall<DocumentModelList>() {
+                            @Override
+                            public DocumentModelList call(
+                                    SubDirectoryInfo dirInfo, Session session)
+                                    throws ClientException {
+                                return session.getEntries(
+                                        fetchedIds, fetchReferences);
+                            }
+                        });
+                for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
+                    DocumentModelList entries = fetched.get(dirInfo);
+                    dirEntries.put(dirInfo, entries == null ? Collections.<String, DocumentModel> emptyMap()
+                            : mapEntriesByRequestedId(fetchedIds, entries));
                 }
-                try {
-                    if (entry == null && isOptional
-                            && !dirInfo.getSession().isReadOnly()) {
-                        // set readonly to false if null entry is from optional
-                        // and writable directory
-                        isReadOnlyEntry = false;
-                    }
-                } catch (ClientException ce) {
-                    log.error("Cannot get readonly value from directory "
-                            + dirInfo.dirName, ce);
+                for (SubDirectoryInfo dirInfo : sourceInfo.requiredSubDirectoryInfos) {
+                    sourceIds.retainAll(dirEntries.get(dirInfo).keySet());
                 }
-                for (Entry<String, String> e : dirInfo.toSource.entrySet()) {
-                    if (entry != null) {
-                        try {
-                            map.put(e.getValue(),
-                                    entry.getProperty(dirInfo.dirSchemaName,
-                                            e.getKey()));
-                        } catch (ClientException e1) {
-                            throw new DirectoryException(e1);
-                        }
-                    } else {
-                        // fill with default values for this directory
-                        if (!map.containsKey(e.getValue())) {
-                            map.put(e.getValue(),
-                                    dirInfo.defaultEntry.get(e.getKey()));
-                        }
+            } else {
+                for (SubDirectoryInfo dirInfo : sourceInfo.requiredSubDirectoryInfos) {
+                    if (sourceIds.isEmpty()) {
+                        break;
                     }
+                    Map<String, DocumentModel> entries = mapEntriesByRequestedId(
+                            sourceIds, dirInfo.getSession().getEntries(
+                                    sourceIds, fetchReferences));
+                    sourceIds.retainAll(entries.keySet());
+                    dirEntries.put(dirInfo, entries);
+                }
+                if (sourceIds.isEmpty()) {
+                    continue;
+                }
+                for (SubDirectoryInfo dirInfo : sourceInfo.optionalSubDirectoryInfos) {
+                    dirEntries.put(dirInfo, mapEntriesByRequestedId(sourceIds,
+                            dirInfo.getSession().getEntries(sourceIds,
+                                    fetchReferences)));
+                }
+            }
+            if (sourceIds.isEmpty()) {
+                continue;
+            }
+            for (String id : sourceIds) {
+                final Map<SubDirectoryInfo, DocumentModel> subEntries = new HashMap<SubDirectoryInfo, DocumentModel>();
+                for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
+                    subEntries.put(dirInfo, dirEntries.get(dirInfo).get(id));
                 }
+                found.put(id, buildEntry(sourceInfo, id, subEntries));
+                remainingIds.remove(id);
             }
-            // force the entry in readonly if it's defined on the multidirectory
-            if (isReadOnly()) {
-                isReadOnlyEntry = true;
+        }
+        for (String id : ids) {
+            DocumentModel entry = found.get(id);
+            if (entry != null) {
+                results.add(entry);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Keys the entries returned by a subdirectory by the requested ids, which
+     * may differ in case from the returned ones.
+     */
+    private static Map<String, DocumentModel> mapEntriesByRequestedId(
+            Collection<String> ids, DocumentModelList entries) {
+        final Map<String, DocumentModel> map = new HashMap<String, DocumentModel>();
+        for (DocumentModel entry : entries) {
+            map.put(entry.getId(), entry);
+        }
+        return getEntriesByRequestedId(ids, map);
+    }
+
+    /**
+     * Aggregates the entries found in the subdirectories of a source, a
+     * {@code null} entry meaning the entry is missing from an optional
+     * subdirectory.
+     */
+    private DocumentModel buildEntry(SourceInfo sourceInfo, String id,
+            Map<SubDirectoryInfo, DocumentModel> subEntries)
+            throws DirectoryException {
+        boolean isReadOnlyEntry = true;
+        final Map<String, Object> map = new HashMap<String, Object>();
+
+        for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
+            final DocumentModel entry = subEntries.get(dirInfo);
+            boolean isOptional = dirInfo.isOptional;
+            if (entry != null && !isReadOnlyEntry(entry)) {
+                // set readonly to false if at least one source is writable
+                isReadOnlyEntry = false;
             }
-            // ok we have the data
             try {
-                return BaseSession.createEntryModel(null, schemaName, id, map,
-                        isReadOnlyEntry);
-            } catch (PropertyException e) {
-                throw new DirectoryException(e);
+                if (entry == null && isOptional
+                        && !dirInfo.getSession().isReadOnly()) {
+                    // set readonly to false if null entry is from optional
+                    // and writable directory
+                    isReadOnlyEntry = false;
+                }
+            } catch (ClientException ce) {
+                log.error("Cannot get readonly value from directory "
+                        + dirInfo.dirName, ce);
+            }
+            for (Entry<String, String> e : dirInfo.toSource.entrySet()) {
+                if (entry != null) {
+                    try {
+                        map.put(e.getValue(),
+                                entry.getProperty(dirInfo.dirSchemaName,
+                                        e.getKey()));
+                    } catch (ClientException e1) {
+                        throw new DirectoryException(e1);
+                    }
+                } else {
+                    // fill with default values for this directory
+                    if (!map.containsKey(e.getValue())) {
+                        map.put(e.getValue(),
+                                dirInfo.defaultEntry.get(e.getKey()));
+                    }
+                }
             }
         }
-        return null;
+        // force the entry in readonly if it's defined on the multidirectory
+        if (isReadOnly()) {
+            isReadOnlyEntry = true;
+        }
+        // ok we have the data
+        try {
+            return BaseSession.createEntryModel(null, schemaName, id, map,
+                    isReadOnlyEntry);
+        } catch (PropertyException e) {
+            throw new DirectoryException(e);
+        }
     }
 
     @Override
@@ -733,9 +1050,9 @@ public class MultiDirectorySession extends BaseSession {
 
     @Override
     @SuppressWarnings("boxing")
-    public DocumentModelList query(Map<String, Serializable> filter,
+    public DocumentModelList query(final Map<String, Serializable> filter,
             Set<String> fulltext, Map<String, String> orderBy,
-            boolean fetchReferences) throws ClientException {
+            final boolean fetchReferences) throws ClientException {
         // list of entries
         final DocumentModelList results = new DocumentModelListImpl();
         if(!isCurrentUserAllowed(SecurityConstants.READ)){
@@ -750,6 +1067,24 @@ public class MultiDirectorySession extends BaseSession {
         }
         Set<String> readOnlyEntries = new HashSet<String>();
 
+        Map<SubDirectoryInfo, DocumentModelList> queried = null;
+        if (directory.getExecutor() != null) {
+            // query all the subdirectories at once
+            final Set<String> queryFulltext = fulltext;
+            queried = callSubDirectories(getSubDirectoryInfos(sourceInfos),
+                    new SubDirectoryCall<DocumentModelList>() {
+                        @Override
+                        public DocumentModelList call(SubDirectoryInfo dirInfo,
+                                Session session) throws ClientException {
+                            return session.query(
+                                    getSubDirectoryFilter(dirInfo, filter),
+                                    getSubDirectoryFulltext(dirInfo,
+                                            queryFulltext), null,
+                                    fetchReferences);
+                        }
+                    });
+        }
+
         for (SourceInfo sourceInfo : sourceInfos) {
             // accumulated map for each entry
             final Map<String, Map<String, Object>> maps = new HashMap<String, Map<String, Object>>();
@@ -760,14 +1095,8 @@ public class MultiDirectorySession extends BaseSession {
             List<SubDirectoryInfo> optionalDirsMatching = new ArrayList<SubDirectoryInfo>();
             for (SubDirectoryInfo dirInfo : sourceInfo.subDirectoryInfos) {
                 // compute filter
-                final Map<String, Serializable> dirFilter = new HashMap<String, Serializable>();
-                for (Entry<String, Serializable> e : filter.entrySet()) {
-                    final String fieldName = dirInfo.fromSource.get(e.getKey());
-                    if (fieldName == null) {
-                        continue;
-                    }
-                    dirFilter.put(fieldName, e.getValue());
-                }
+                final Map<String, Serializable> dirFilter = getSubDirectoryFilter(
+                        dirInfo, filter);
                 if (dirInfo.isOptional) {
                     // check if filter matches directory default values
                     boolean matches = true;
@@ -785,17 +1114,19 @@ public class MultiDirectorySession extends BaseSession {
                         optionalDirsMatching.add(dirInfo);
                     }
                 }
-                // compute fulltext
-                Set<String> dirFulltext = new HashSet<String>();
-                for (String sourceFieldName : fulltext) {
-                    final String fieldName = dirInfo.fromSource.get(sourceFieldName);
-                    if (fieldName != null) {
-                        dirFulltext.add(fieldName);
+                // make query to subdirectory
+                DocumentModelList l;
+                if (queried != null) {
+                    l = queried.get(dirInfo);
+                    if (l == null) {
+                        // optional subdirectory that timed out
+                        continue;
                     }
+                } else {
+                    l = dirInfo.getSession().query(dirFilter,
+                            getSubDirectoryFulltext(dirInfo, fulltext), null,
+                            fetchReferences);
                 }
-                // make query to subdirectory
-                DocumentModelList l = dirInfo.getSession().query(dirFilter,
-                        dirFulltext, null, fetchReferences);
                 for (DocumentModel entry : l) {
                     final String id = entry.getId();
                     Map<String, Object> map = maps.get(id);
@@ -871,6 +1202,37 @@ public class MultiDirectorySession extends BaseSession {
         return results;
     }
 
+    /**
+     * Maps a query filter to the fields of a subdirectory.
+     */
+    private static Map<String, Serializable> getSubDirectoryFilter(
+            SubDirectoryInfo dirInfo, Map<String, Serializable> filter) {
+        final Map<String, Serializable> dirFilter = new HashMap<String, Serializable>();
+        for (Entry<String, Serializable> e : filter.entrySet()) {
+            final String fieldName = dirInfo.fromSource.get(e.getKey());
+            if (fieldName == null) {
+                continue;
+            }
+            dirFilter.put(fieldName, e.getValue());
+        }
+        return dirFilter;
+    }
+
+    /**
+     * Maps the fulltext fields of a query to the fields of a subdirectory.
+     */
+    private static Set<String> getSubDirectoryFulltext(
+            SubDirectoryInfo dirInfo, Set<String> fulltext) {
+        Set<String> dirFulltext = new HashSet<String>();
+        for (String sourceFieldName : fulltext) {
+            final String fieldName = dirInfo.fromSource.get(sourceFieldName);
+            if (fieldName != null) {
+                dirFulltext.add(fieldName);
+            }
+        }
+        return dirFulltext;
+    }
+
     @Override
     public List<String> getProjection(Map<String, Serializable> filter,
             String columnName) throws ClientException {
@@ -37,6 +37,15 @@ public class SourceDescriptor {
     @XNode("@creation")
     public boolean creation;
 
+    /**
+     * Maximum time to wait for the subdirectories of this source, in
+     * milliseconds, when they are queried concurrently. Zero means no limit.
+     *
+     * @since 7.1
+     */
+    @XNode("@timeout")
+    public long timeout;
+
     @XNodeList(value = "subDirectory", type = SubDirectoryDescriptor[].class, componentType = SubDirectoryDescriptor.class)
     public SubDirectoryDescriptor[] subDirectories;
 
@@ -53,6 +62,7 @@ public class SourceDescriptor {
         SourceDescriptor clone = new SourceDescriptor();
         clone.name = name;
         clone.creation = creation;
+        clone.timeout = timeout;
         if (subDirectories != null) {
             clone.subDirectories = new SubDirectoryDescriptor[subDirectories.length];
             for (int i = 0; i < subDirectories.length; i++) {
@@ -174,6 +174,21 @@ public class TestMultiDirectory {
         assertNull(entry);
     }
 
+    @Test
+    public void testGetEntriesByIds() throws Exception {
+        DocumentModelList l = dir.getEntries(
+                Arrays.asList("4", "no-such-entry", "1"), true);
+        assertEquals(2, l.size());
+        DocumentModel entry = l.get(0);
+        assertEquals("4", entry.getProperty("schema3", "uid"));
+        assertEquals("foo4", entry.getProperty("schema3", "thefoo"));
+        assertEquals("bar4", entry.getProperty("schema3", "thebar"));
+        entry = l.get(1);
+        assertEquals("1", entry.getProperty("schema3", "uid"));
+        assertEquals("foo1", entry.getProperty("schema3", "thefoo"));
+        assertEquals("bar1", entry.getProperty("schema3", "thebar"));
+    }
+
     @Test
     public void testGetEntries() throws Exception {
         DocumentModelList l;
@@ -248,6 +263,39 @@ public class TestMultiDirectory {
         assertFalse(dir.authenticate("3", "haha"));
     }
 
+    @Test
+    public void testParallelSubDirectories() throws Exception {
+        multiDir.getDescriptor().parallelism = Integer.valueOf(4);
+        try {
+            DocumentModel entry = dir.getEntry("1");
+            assertEquals("foo1", entry.getProperty("schema3", "thefoo"));
+            assertEquals("bar1", entry.getProperty("schema3", "thebar"));
+            entry = dir.getEntry("3");
+            assertEquals("foo3", entry.getProperty("schema3", "thefoo"));
+            assertNull(dir.getEntry("no-such-entry"));
+
+            DocumentModelList l = dir.getEntries(
+                    Arrays.asList("4", "no-such-entry", "1"), true);
+            assertEquals(2, l.size());
+            assertEquals("4", l.get(0).getId());
+            assertEquals("1", l.get(1).getId());
+
+            Map<String, Serializable> filter = new HashMap<String, Serializable>();
+            filter.put("thebar", "bar3");
+            l = dir.query(filter);
+            assertEquals(1, l.size());
+            assertEquals("3", l.get(0).getId());
+            l = dir.query(new HashMap<String, Serializable>());
+            assertEquals(4, l.size());
+
+            assertTrue(dir.authenticate("1", "foo1"));
+            assertTrue(dir.authenticate("3", "foo3"));
+            assertFalse(dir.authenticate("3", "haha"));
+        } finally {
+            multiDir.getDescriptor().parallelism = null;
+        }
+    }
+
     @Test
     public void testUpdateEntry() throws Exception {
         Session dir1 = memdir1.getSession();
@@ -148,6 +148,7 @@ public class SQLDirectory extends AbstractDirectory {
         // cache parameterization
         cache.setEntryCacheName(config.cacheEntryName);
         cache.setEntryCacheWithoutReferencesName(config.cacheEntryWithoutReferencesName);
+        cache.setNegativeEntryCacheName(config.cacheNegativeEntryName);
 
     }
 
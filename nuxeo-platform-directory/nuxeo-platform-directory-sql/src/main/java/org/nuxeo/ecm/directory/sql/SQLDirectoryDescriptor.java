@@ -43,6 +43,11 @@ public class SQLDirectoryDescriptor {
 
     public static final int QUERY_SIZE_LIMIT_DEFAULT = 0;
 
+    /**
+     * @since 7.1
+     */
+    public static final int QUERY_FETCH_SIZE_DEFAULT = 500;
+
     public static final boolean AUTO_INCREMENT_ID_FIELD_DEFAULT = false;
 
     public static final boolean READ_ONY_DEFAULT = false;
@@ -112,6 +117,14 @@ public class SQLDirectoryDescriptor {
     @XNode("querySizeLimit")
     private Integer querySizeLimit;
 
+    /**
+     * Number of rows fetched at once when scrolling through entries.
+     *
+     * @since 7.1
+     */
+    @XNode("queryFetchSize")
+    private Integer queryFetchSize;
+
     @XNodeList(value = "references/tableReference", type = TableReference[].class, componentType = TableReference.class)
     private TableReference[] tableReferences;
 
@@ -130,6 +143,12 @@ public class SQLDirectoryDescriptor {
     @XNode("cacheEntryWithoutReferencesName")
     public String cacheEntryWithoutReferencesName = null;
 
+    /**
+     * @since 7.1
+     */
+    @XNode("cacheNegativeEntryName")
+    public String cacheNegativeEntryName = null;
+
     @XNodeList(value = "filters/staticFilter", type = SQLStaticFilter[].class, componentType = SQLStaticFilter.class)
     private SQLStaticFilter[] staticFilters;
 
@@ -340,6 +359,21 @@ public class SQLDirectoryDescriptor {
         this.querySizeLimit = Integer.valueOf(querySizeLimit);
     }
 
+    /**
+     * @since 7.1
+     */
+    public int getQueryFetchSize() {
+        return queryFetchSize == null ? QUERY_FETCH_SIZE_DEFAULT
+                : queryFetchSize.intValue();
+    }
+
+    /**
+     * @since 7.1
+     */
+    public void setQueryFetchSize(int queryFetchSize) {
+        this.queryFetchSize = Integer.valueOf(queryFetchSize);
+    }
+
     public void setRemove(boolean delete) {
         this.remove = delete;
     }
@@ -442,6 +476,9 @@ public class SQLDirectoryDescriptor {
         if (other.querySizeLimit != null || overwite) {
             querySizeLimit = other.querySizeLimit;
         }
+        if (other.queryFetchSize != null || overwite) {
+            queryFetchSize = other.queryFetchSize;
+        }
 
         if ((other.inverseReferences != null && other.inverseReferences.length != 0)
                 || overwite) {
@@ -464,6 +501,9 @@ public class SQLDirectoryDescriptor {
         if (other.cacheEntryWithoutReferencesName != null || overwite) {
             cacheEntryWithoutReferencesName = other.cacheEntryWithoutReferencesName;
         }
+        if (other.cacheNegativeEntryName != null || overwite) {
+            cacheNegativeEntryName = other.cacheNegativeEntryName;
+        }
         if ((other.staticFilters != null && other.staticFilters.length != 0)
                 || overwite) {
             staticFilters = other.staticFilters;
@@ -499,6 +539,7 @@ public class SQLDirectoryDescriptor {
         clone.passwordField = passwordField;
         clone.passwordHashAlgorithm = passwordHashAlgorithm;
         clone.querySizeLimit = querySizeLimit;
+        clone.queryFetchSize = queryFetchSize;
         if (tableReferences != null) {
             clone.tableReferences = new TableReference[tableReferences.length];
             for (int i = 0; i < tableReferences.length; i++) {
@@ -520,6 +561,7 @@ public class SQLDirectoryDescriptor {
         clone.remove = remove;
         clone.cacheEntryName = cacheEntryName;
         clone.cacheEntryWithoutReferencesName = cacheEntryWithoutReferencesName;
+        clone.cacheNegativeEntryName = cacheNegativeEntryName;
         if (staticFilters != null) {
             clone.staticFilters = new SQLStaticFilter[staticFilters.length];
             for (int i = 0; i < staticFilters.length; i++) {
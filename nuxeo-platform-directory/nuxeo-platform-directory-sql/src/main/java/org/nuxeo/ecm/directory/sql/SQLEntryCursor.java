@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.sql;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.EntryCursor;
+
+/**
+ * Cursor over the rows of an SQL directory query.
+ * <p>
+ * Rows are converted to entries by chunks, so that references can be fetched
+ * for a whole chunk at once. The statement is closed when the last row has
+ * been read or when the cursor is closed.
+ *
+ * @since 7.1
+ */
+public class SQLEntryCursor implements EntryCursor {
+
+    protected final SQLSession session;
+
+    protected final PreparedStatement ps;
+
+    protected final ResultSet rs;
+
+    protected final int chunkSize;
+
+    protected final boolean fetchReferences;
+
+    protected final LinkedList<DocumentModel> chunk = new LinkedList<DocumentModel>();
+
+    protected boolean exhausted;
+
+    protected boolean closed;
+
+    protected SQLEntryCursor(SQLSession session, PreparedStatement ps,
+            ResultSet rs, int chunkSize, boolean fetchReferences) {
+        this.session = session;
+        this.ps = ps;
+        this.rs = rs;
+        this.chunkSize = chunkSize > 0 ? chunkSize : 1;
+        this.fetchReferences = fetchReferences;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (chunk.isEmpty() && !exhausted && !closed) {
+            readChunk();
+        }
+        return !chunk.isEmpty();
+    }
+
+    @Override
+    public DocumentModel next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return chunk.removeFirst();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    protected void readChunk() throws DirectoryException {
+        try {
+            while (chunk.size() < chunkSize) {
+                if (!rs.next()) {
+                    exhausted = true;
+                    break;
+                }
+                DocumentModel entry = session.getEntryFromResultSet(rs);
+                if (entry != null) {
+                    chunk.add(entry);
+                }
+            }
+        } catch (SQLException e) {
+            close();
+            throw new DirectoryException("scroll failed", e);
+        }
+        if (fetchReferences) {
+            session.fetchReferences(chunk);
+        }
+        if (exhausted) {
+            close();
+        }
+    }
+
+    @Override
+    public void close() throws DirectoryException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            ps.close();
+        } catch (SQLException e) {
+            throw new DirectoryException(e);
+        }
+    }
+
+}
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Serializable;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
@@ -53,6 +54,7 @@ import org.nuxeo.ecm.core.storage.sql.jdbc.db.Table;
 import org.nuxeo.ecm.core.storage.sql.jdbc.db.TableImpl;
 import org.nuxeo.ecm.core.storage.sql.jdbc.dialect.Dialect;
 import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.platform.util.FrameworkProperties;
 import org.nuxeo.runtime.api.Framework;
 
 public class SQLHelper {
@@ -65,6 +67,16 @@ public class SQLHelper {
 
     private static final Object DIRECTORY_INIT_LOCK = new Object();
 
+    /**
+     * Number of data file rows sent to the database at once.
+     *
+     * @since 7.1
+     */
+    public static final String DATA_BATCH_SIZE_PROP = "org.nuxeo.directory.sql.dataFile.batchSize";
+
+    /** @since 7.1 */
+    public static final int DEFAULT_DATA_BATCH_SIZE = 500;
+
     private final Table table;
 
     private final String tableName;
@@ -128,7 +140,12 @@ public class SQLHelper {
                 return true;
             }
 
-            loadData();
+            long t0 = System.currentTimeMillis();
+            int count = loadData();
+            log.info(String.format(
+                    "Table '%s': loaded %d rows from data file '%s' in %dms",
+                    tableName, Integer.valueOf(count), dataFileName,
+                    Long.valueOf(System.currentTimeMillis() - t0)));
         }
 
         return true;
@@ -277,10 +294,24 @@ public class SQLHelper {
         }
     }
 
-    private void loadData() throws DirectoryException {
+    protected static int getDataBatchSize() {
+        return FrameworkProperties.getInt(DATA_BATCH_SIZE_PROP,
+                DEFAULT_DATA_BATCH_SIZE);
+    }
+
+    /**
+     * Inserts the rows of the data file, in batches when the driver supports
+     * it, and in a single transaction when the connection is in auto-commit
+     * mode.
+     *
+     * @return the number of inserted rows
+     */
+    private int loadData() throws DirectoryException {
         log.debug("loading data file: " + dataFileName);
         CSVParser csvParser = null;
         PreparedStatement ps = null;
+        boolean autoCommit = false;
+        boolean committed = false;
         try {
             InputStream is = getClass().getClassLoader().getResourceAsStream(
                     dataFileName);
@@ -312,6 +343,18 @@ public class SQLHelper {
 
             String insertSql = insert.getStatement();
             log.debug("insert statement: " + insertSql);
+            int batchSize = getDataBatchSize();
+            if (batchSize > 1
+                    && !connection.getMetaData().supportsBatchUpdates()) {
+                batchSize = 1;
+            }
+            autoCommit = connection.getAutoCommit();
+            if (autoCommit) {
+                // one transaction for the whole file
+                connection.setAutoCommit(false);
+            }
+            int count = 0;
+            List<CSVRecord> batch = new ArrayList<>();
             ps = connection.prepareStatement(insertSql);
             for (CSVRecord record : csvParser) {
                 if (record.size() == 0 || record.size() == 1
@@ -376,8 +419,34 @@ public class SQLHelper {
                                         e.getMessage(), record), e);
                     }
                 }
-                ps.execute();
+                count++;
+                if (batchSize > 1) {
+                    ps.addBatch();
+                    batch.add(record);
+                    if (batch.size() == batchSize) {
+                        executeBatch(ps, batch, count);
+                        batch.clear();
+                    }
+                } else {
+                    try {
+                        ps.execute();
+                    } catch (SQLException e) {
+                        throw new DirectoryException(String.format(
+                                "Table '%s' initialization failed: %s, "
+                                        + "data file %s row %d, values: %s",
+                                table.getPhysicalName(), e.getMessage(),
+                                dataFileName, count, record), e);
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                executeBatch(ps, batch, count);
             }
+            if (autoCommit) {
+                connection.commit();
+                committed = true;
+            }
+            return count;
         } catch (IOException e) {
             throw new DirectoryException("Read error while reading data file: "
                     + dataFileName, e);
@@ -401,12 +470,57 @@ public class SQLHelper {
             } catch (SQLException sqle) {
                 e.addSuppressed(sqle);
             }
+            if (autoCommit) {
+                try {
+                    if (!committed) {
+                        connection.rollback();
+                    }
+                    connection.setAutoCommit(true);
+                } catch (SQLException sqle) {
+                    e.addSuppressed(sqle);
+                }
+            }
             if (e.getSuppressed().length > 0) {
                 throw e;
             }
         }
     }
 
+    /**
+     * Executes a batch of data file rows, telling which rows failed.
+     *
+     * @param batch the records of the batch
+     * @param count the number of the last row of the batch
+     */
+    protected void executeBatch(PreparedStatement ps, List<CSVRecord> batch,
+            int count) throws DirectoryException {
+        try {
+            ps.executeBatch();
+        } catch (SQLException e) {
+            int first = count - batch.size() + 1;
+            String msg = String.format(
+                    "Table '%s' initialization failed: %s, data file %s rows %d to %d",
+                    table.getPhysicalName(), e.getMessage(), dataFileName,
+                    first, count);
+            if (e instanceof BatchUpdateException) {
+                // drivers either stop at the first failure or mark the
+                // failed rows
+                int[] counts = ((BatchUpdateException) e).getUpdateCounts();
+                if (counts != null) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        if (i >= counts.length
+                                || counts[i] == Statement.EXECUTE_FAILED) {
+                            msg += String.format(", row %d failed, values: %s",
+                                    first + i, batch.get(i));
+                            break;
+                        }
+                    }
+                }
+            }
+            throw new DirectoryException(msg, e);
+        }
+    }
+
     public static Table addTable(String name, Dialect dialect,
             boolean nativeCase) {
         String physicalName = dialect.getTableName(name);
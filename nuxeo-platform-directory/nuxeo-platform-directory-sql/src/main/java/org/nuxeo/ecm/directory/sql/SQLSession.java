@@ -26,10 +26,12 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -61,8 +63,11 @@ import org.nuxeo.ecm.core.storage.sql.jdbc.dialect.Dialect;
 import org.nuxeo.ecm.core.utils.SIDGenerator;
 import org.nuxeo.ecm.directory.BaseSession;
 import org.nuxeo.ecm.directory.Directory;
+import org.nuxeo.ecm.directory.DirectoryEntrySnapshot;
 import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.EntryCursor;
 import org.nuxeo.ecm.directory.EntrySource;
+import org.nuxeo.ecm.directory.InverseReference;
 import org.nuxeo.ecm.directory.OperationNotAllowedException;
 import org.nuxeo.ecm.directory.PasswordHelper;
 import org.nuxeo.ecm.directory.PermissionDescriptor;
@@ -79,6 +84,14 @@ public class SQLSession extends BaseSession implements EntrySource {
 
     private static final Log log = LogFactory.getLog(SQLSession.class);
 
+    /**
+     * Maximum number of values bound in a single {@code IN (...)} clause when
+     * fetching several entries or references at once.
+     *
+     * @since 7.1
+     */
+    public static final int MAX_IN_CLAUSE_SIZE = 500;
+
     protected final Map<String, Field> schemaFieldMap;
 
     protected final List<String> storedFieldNames;
@@ -332,6 +345,26 @@ public class SQLSession extends BaseSession implements EntrySource {
         return null;
     }
 
+    @Override
+    public DirectoryEntrySnapshot getEntrySnapshot(String id,
+            boolean fetchReferences) throws DirectoryException {
+        if (isCurrentUserAllowed(SecurityConstants.READ)) {
+            return directory.getCache().getEntrySnapshot(id, this,
+                    fetchReferences);
+        }
+        return null;
+    }
+
+    @Override
+    public DocumentModelList getEntries(Collection<String> ids,
+            boolean fetchReferences) throws DirectoryException {
+        if (!isCurrentUserAllowed(SecurityConstants.READ)) {
+            return new DocumentModelListImpl();
+        }
+        return new DocumentModelListImpl(directory.getCache().getEntries(ids,
+                this, fetchReferences));
+    }
+
     protected String addFilterWhereClause(String whereClause)
             throws DirectoryException {
         if (staticFilters.length == 0) {
@@ -415,18 +448,8 @@ public class SQLSession extends BaseSession implements EntrySource {
                 fieldMap.put(fieldName, value);
             }
 
-            if (isMultiTenant()) {
-                // check that the entry is from the current tenant, or no tenant
-                // at all
-                String tenantId = getCurrentTenantId();
-                if (!StringUtils.isBlank(tenantId)) {
-                    String entryTenantId = (String) fieldMap.get(TENANT_ID_FIELD);
-                    if (!StringUtils.isBlank(entryTenantId)) {
-                        if (!entryTenantId.equals(tenantId)) {
-                            return null;
-                        }
-                    }
-                }
+            if (!isFromCurrentTenant(fieldMap)) {
+                return null;
             }
 
             DocumentModel entry = fieldMapToDocumentModel(fieldMap);
@@ -457,6 +480,196 @@ public class SQLSession extends BaseSession implements EntrySource {
         }
     }
 
+    /**
+     * Entries of other tenants are hidden from the users of a tenant.
+     *
+     * @since 7.1
+     */
+    @Override
+    public boolean isContextFiltered() {
+        return isMultiTenant() && !StringUtils.isBlank(getCurrentTenantId());
+    }
+
+    @Override
+    public Map<String, DocumentModel> getEntriesFromSource(
+            Collection<String> ids, boolean fetchReferences)
+            throws DirectoryException {
+        acquireConnection();
+        // keyed by the ids stored in the database
+        Map<String, DocumentModel> entries = new LinkedHashMap<String, DocumentModel>();
+        List<String> idList = new ArrayList<String>(new LinkedHashSet<String>(
+                ids));
+        for (int start = 0; start < idList.size(); start += MAX_IN_CLAUSE_SIZE) {
+            List<String> chunk = idList.subList(start,
+                    Math.min(start + MAX_IN_CLAUSE_SIZE, idList.size()));
+            Select select = new Select(table);
+            select.setFrom(table.getQuotedName());
+            select.setWhat("*");
+
+            String whereClause = table.getPrimaryColumn().getQuotedName()
+                    + " IN (" + getInClausePlaceholders(chunk.size()) + ")";
+            whereClause = addFilterWhereClause(whereClause);
+
+            select.setWhere(whereClause);
+            String sql = select.getStatement();
+
+            if (logger.isLogEnabled()) {
+                List<Serializable> values = new ArrayList<Serializable>(chunk);
+                addFilterValuesForLog(values);
+                logger.logSQL(sql, values);
+            }
+
+            PreparedStatement ps = null;
+            try {
+                ps = sqlConnection.prepareStatement(sql);
+                int index = 1;
+                for (String id : chunk) {
+                    setFieldValue(ps, index++, table.getPrimaryColumn(), id);
+                }
+                addFilterValues(ps, index);
+
+                ResultSet rs = ps.executeQuery();
+                while (rs.next()) {
+                    // fetch the stored fields
+                    Map<String, Object> fieldMap = new HashMap<String, Object>();
+                    for (String fieldName : storedFieldNames) {
+                        Object value = getFieldValue(rs, fieldName);
+                        fieldMap.put(fieldName, value);
+                    }
+                    if (!isFromCurrentTenant(fieldMap)) {
+                        continue;
+                    }
+                    DocumentModel entry = fieldMapToDocumentModel(fieldMap);
+                    if (entry != null) {
+                        entries.put(entry.getId(), entry);
+                    }
+                }
+            } catch (SQLException e) {
+                throw new DirectoryException("getEntries failed", e);
+            } finally {
+                try {
+                    if (ps != null) {
+                        ps.close();
+                    }
+                } catch (SQLException sqle) {
+                    throw new DirectoryException(sqle);
+                }
+            }
+        }
+
+        // fetch the reference fields
+        if (fetchReferences) {
+            fetchReferences(entries.values());
+        }
+        return getEntriesByRequestedId(idList, entries);
+    }
+
+    /**
+     * Fills the reference fields of the given entries, {@link TableReference}
+     * instances, and {@link InverseReference} instances backed by one, being
+     * resolved for all the entries at once.
+     *
+     * @since 7.1
+     */
+    protected void fetchReferences(Collection<DocumentModel> entries)
+            throws DirectoryException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        List<String> entryIds = new ArrayList<String>(entries.size());
+        for (DocumentModel entry : entries) {
+            entryIds.add(entry.getId());
+        }
+        for (Reference reference : directory.getReferences()) {
+            Map<String, List<String>> targetIdsMap = null;
+            if (reference instanceof TableReference) {
+                // optim: reuse the current session and fetch all the links
+                // at once
+                targetIdsMap = ((TableReference) reference).getTargetIdsForSources(
+                        entryIds, this);
+            } else if (reference instanceof InverseReference) {
+                targetIdsMap = getInverseTargetIds(
+                        (InverseReference) reference, entryIds);
+            }
+            for (DocumentModel entry : entries) {
+                List<String> targetIds;
+                if (targetIdsMap != null) {
+                    targetIds = targetIdsMap.get(entry.getId());
+                } else {
+                    targetIds = reference.getTargetIdsForSource(entry.getId());
+                }
+                try {
+                    entry.setProperty(schemaName, reference.getFieldName(),
+                            targetIds);
+                } catch (ClientException e) {
+                    throw new DirectoryException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetches the links of an inverse reference for several entries at once,
+     * if its dual reference is a {@link TableReference}.
+     *
+     * @return a map of entry id to linked ids, or {@code null} if the links
+     *         cannot be fetched at once
+     */
+    protected Map<String, List<String>> getInverseTargetIds(
+            InverseReference reference, List<String> entryIds)
+            throws DirectoryException {
+        Reference dualReference = reference.getDualReference();
+        if (!(dualReference instanceof TableReference)) {
+            return null;
+        }
+        TableReference tableReference = (TableReference) dualReference;
+        // the links belong to the target directory, read them in its session
+        SQLSession session = tableReference.getSQLSession();
+        try {
+            return tableReference.getSourceIdsForTargets(entryIds, session);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Returns the comma separated {@code ?} placeholders of an {@code IN}
+     * clause with the given number of values.
+     *
+     * @since 7.1
+     */
+    protected static String getInClausePlaceholders(int size) {
+        StringBuilder buf = new StringBuilder(size * 3);
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                buf.append(", ");
+            }
+            buf.append('?');
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Checks that the entry is from the current tenant, or from no tenant at
+     * all.
+     *
+     * @since 7.1
+     */
+    protected boolean isFromCurrentTenant(Map<String, Object> fieldMap) {
+        if (isMultiTenant()) {
+            String tenantId = getCurrentTenantId();
+            if (!StringUtils.isBlank(tenantId)) {
+                String entryTenantId = (String) fieldMap.get(TENANT_ID_FIELD);
+                if (!StringUtils.isBlank(entryTenantId)) {
+                    if (!entryTenantId.equals(tenantId)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
     @Override
     public DocumentModelList getEntries() throws ClientException {
         Map<String, Serializable> emptyMap = Collections.emptyMap();
@@ -777,87 +990,13 @@ public class SQLSession extends BaseSession implements EntrySource {
             return new DocumentModelListImpl();
         }
         acquireConnection();
-        Map<String, Object> filterMap = new LinkedHashMap<String, Object>(
-                filter);
-
-        if (isMultiTenant()) {
-            // filter entries on the tenantId field also
-            String tenantId = getCurrentTenantId();
-            if (!StringUtils.isBlank(tenantId)) {
-                filterMap.put(TENANT_ID_FIELD, tenantId);
-            }
-        }
+        Map<String, Object> filterMap = getFilterMap(filter);
 
         try {
             // build count query statement
-            StringBuilder whereClause = new StringBuilder();
-            String separator = "";
             List<Column> orderedColumns = new LinkedList<Column>();
-            for (String columnName : filterMap.keySet()) {
-
-                if (directory.isReference(columnName)) {
-                    log.warn(columnName + " is a reference and will be ignored"
-                            + " as a query criterion");
-                    continue;
-                }
-
-                Object value = filterMap.get(columnName);
-                Column column = table.getColumn(columnName);
-                if (null == column) {
-                    // this might happen if we have a case like a chain
-                    // selection and a directory without parent column
-                    throw new ClientException("cannot find column '"
-                            + columnName + "' for table: " + table);
-                }
-                String leftSide = column.getQuotedName();
-                String rightSide = "?";
-                String operator;
-                boolean substring = fulltext != null
-                        && fulltext.contains(columnName);
-                if ("".equals(value) && dialect.hasNullEmptyString()
-                        && !substring) {
-                    // see NXP-6172, empty values are Null in Oracle
-                    value = null;
-                }
-                if (value != null) {
-                    if (value instanceof SQLComplexFilter) {
-                        SQLComplexFilter complexFilter = (SQLComplexFilter) value;
-                        operator = complexFilter.getOperator();
-                        rightSide = complexFilter.getRightSide();
-                    } else if (substring) {
-                        // NB : remove double % in like query NXGED-833
-                        String searchedValue = null;
-                        switch (substringMatchType) {
-                        case subany:
-                            searchedValue = '%' + String.valueOf(value).toLowerCase() + '%';
-                            break;
-                        case subinitial:
-                            searchedValue = String.valueOf(value).toLowerCase() + '%';
-                            break;
-                        case subfinal:
-                            searchedValue = '%' + String.valueOf(value).toLowerCase();
-                            break;
-                        }
-                        filterMap.put(columnName, searchedValue);
-                        if (dialect.supportsIlike()) {
-                            operator = " ILIKE "; // postgresql rules
-                        } else {
-                            leftSide = "LOWER(" + leftSide + ')';
-                            operator = " LIKE ";
-                        }
-                    } else {
-                        operator = " = ";
-                    }
-                } else {
-                    operator = " IS NULL";
-                }
-                whereClause.append(separator).append(leftSide).append(operator);
-                if (value != null) {
-                    whereClause.append(rightSide);
-                    orderedColumns.add(column);
-                }
-                separator = " AND ";
-            }
+            String whereClause = getWhereClause(filterMap, fulltext,
+                    orderedColumns);
 
             int queryLimitSize = directory.getConfig().getQuerySizeLimit();
             if (queryLimitSize != 0 && (limit <= 0 || limit > queryLimitSize)) {
@@ -872,8 +1011,7 @@ public class SQLSession extends BaseSession implements EntrySource {
                     select.setWhat("count(*)");
                     select.setFrom(table.getQuotedName());
 
-                    String where = whereClause.toString();
-                    where = addFilterWhereClause(where);
+                    String where = addFilterWhereClause(whereClause);
                     select.setWhere(where);
 
                     String countQuery = select.getStatement();
@@ -903,8 +1041,7 @@ public class SQLSession extends BaseSession implements EntrySource {
             select.setWhat("*");
             select.setFrom(table.getQuotedName());
 
-            String where = whereClause.toString();
-            where = addFilterWhereClause(where);
+            String where = addFilterWhereClause(whereClause);
             select.setWhere(where);
 
             StringBuilder orderby = new StringBuilder(128);
@@ -957,24 +1094,13 @@ public class SQLSession extends BaseSession implements EntrySource {
                 while (rs.next()) {
 
                     // fetch values for stored fields
-                    Map<String, Object> map = new HashMap<String, Object>();
-                    for (String fieldName : storedFieldNames) {
-                        Object o = getFieldValue(rs, fieldName);
-                        map.put(fieldName, o);
-                    }
-
-                    DocumentModel docModel = fieldMapToDocumentModel(map);
-
-                    // fetch the reference fields
-                    if (fetchReferences) {
-                        for (Reference reference : directory.getReferences()) {
-                            List<String> targetIds = reference.getTargetIdsForSource(docModel.getId());
-                            docModel.setProperty(schemaName,
-                                    reference.getFieldName(), targetIds);
-                        }
-                    }
+                    DocumentModel docModel = getEntryFromResultSet(rs);
                     list.add(docModel);
                 }
+                // fetch the reference fields for all the entries at once
+                if (fetchReferences) {
+                    fetchReferences(list);
+                }
                 return list;
             } finally {
                 if (ps != null) {
@@ -991,6 +1117,187 @@ public class SQLSession extends BaseSession implements EntrySource {
         }
     }
 
+    /**
+     * Scrolls through the entries using a forward-only result set, rows being
+     * fetched by chunks of {@link SQLDirectoryDescriptor#getQueryFetchSize()}.
+     * <p>
+     * Depending on the JDBC driver, rows may only be streamed when the
+     * connection is not in auto-commit mode, which is the case for sessions
+     * bound to a managed datasource.
+     *
+     * @since 7.1
+     */
+    @Override
+    public EntryCursor scroll(Map<String, Serializable> filter,
+            Set<String> fulltext, boolean fetchReferences)
+            throws DirectoryException {
+        if (!isCurrentUserAllowed(SecurityConstants.READ)) {
+            return super.scroll(filter, fulltext, fetchReferences);
+        }
+        acquireConnection();
+        Map<String, Object> filterMap = getFilterMap(filter);
+        List<Column> orderedColumns = new LinkedList<Column>();
+        String whereClause = getWhereClause(filterMap, fulltext,
+                orderedColumns);
+
+        Select select = new Select(table);
+        select.setWhat("*");
+        select.setFrom(table.getQuotedName());
+        select.setWhere(addFilterWhereClause(whereClause));
+        String query = select.getStatement();
+
+        if (logger.isLogEnabled()) {
+            List<Serializable> values = new ArrayList<Serializable>(
+                    orderedColumns.size());
+            for (Column column : orderedColumns) {
+                Object value = filterMap.get(column.getKey());
+                values.add((Serializable) value);
+            }
+            addFilterValuesForLog(values);
+            logger.logSQL(query, values);
+        }
+
+        int fetchSize = directory.getConfig().getQueryFetchSize();
+        PreparedStatement ps = null;
+        try {
+            ps = sqlConnection.prepareStatement(query,
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(fetchSize);
+            fillPreparedStatementFields(filterMap, orderedColumns, ps);
+            ResultSet rs = ps.executeQuery();
+            EntryCursor cursor = new SQLEntryCursor(this, ps, rs, fetchSize,
+                    fetchReferences);
+            // now owned by the cursor
+            ps = null;
+            return cursor;
+        } catch (SQLException e) {
+            throw new DirectoryException("scroll failed", e);
+        } finally {
+            try {
+                if (ps != null) {
+                    ps.close();
+                }
+            } catch (SQLException sqle) {
+                throw new DirectoryException(sqle);
+            }
+        }
+    }
+
+    /**
+     * Builds an entry from the stored fields of the current row of a result
+     * set, references are not fetched.
+     *
+     * @since 7.1
+     */
+    protected DocumentModel getEntryFromResultSet(ResultSet rs)
+            throws DirectoryException {
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (String fieldName : storedFieldNames) {
+            Object o = getFieldValue(rs, fieldName);
+            map.put(fieldName, o);
+        }
+        return fieldMapToDocumentModel(map);
+    }
+
+    /**
+     * Gets the filter of a query, restricted to the current tenant if needed.
+     *
+     * @since 7.1
+     */
+    protected Map<String, Object> getFilterMap(Map<String, Serializable> filter) {
+        Map<String, Object> filterMap = new LinkedHashMap<String, Object>(
+                filter);
+
+        if (isMultiTenant()) {
+            // filter entries on the tenantId field also
+            String tenantId = getCurrentTenantId();
+            if (!StringUtils.isBlank(tenantId)) {
+                filterMap.put(TENANT_ID_FIELD, tenantId);
+            }
+        }
+        return filterMap;
+    }
+
+    /**
+     * Builds the where clause of a query, without the static filters. The
+     * columns whose values must be bound are added to {@code orderedColumns},
+     * and substring values are rewritten in {@code filterMap}.
+     *
+     * @since 7.1
+     */
+    protected String getWhereClause(Map<String, Object> filterMap,
+            Set<String> fulltext, List<Column> orderedColumns)
+            throws ClientException {
+        StringBuilder whereClause = new StringBuilder();
+        String separator = "";
+        for (String columnName : filterMap.keySet()) {
+
+            if (directory.isReference(columnName)) {
+                log.warn(columnName + " is a reference and will be ignored"
+                        + " as a query criterion");
+                continue;
+            }
+
+            Object value = filterMap.get(columnName);
+            Column column = table.getColumn(columnName);
+            if (null == column) {
+                // this might happen if we have a case like a chain
+                // selection and a directory without parent column
+                throw new ClientException("cannot find column '"
+                        + columnName + "' for table: " + table);
+            }
+            String leftSide = column.getQuotedName();
+            String rightSide = "?";
+            String operator;
+            boolean substring = fulltext != null
+                    && fulltext.contains(columnName);
+            if ("".equals(value) && dialect.hasNullEmptyString()
+                    && !substring) {
+                // see NXP-6172, empty values are Null in Oracle
+                value = null;
+            }
+            if (value != null) {
+                if (value instanceof SQLComplexFilter) {
+                    SQLComplexFilter complexFilter = (SQLComplexFilter) value;
+                    operator = complexFilter.getOperator();
+                    rightSide = complexFilter.getRightSide();
+                } else if (substring) {
+                    // NB : remove double % in like query NXGED-833
+                    String searchedValue = null;
+                    switch (substringMatchType) {
+                    case subany:
+                        searchedValue = '%' + String.valueOf(value).toLowerCase() + '%';
+                        break;
+                    case subinitial:
+                        searchedValue = String.valueOf(value).toLowerCase() + '%';
+                        break;
+                    case subfinal:
+                        searchedValue = '%' + String.valueOf(value).toLowerCase();
+                        break;
+                    }
+                    filterMap.put(columnName, searchedValue);
+                    if (dialect.supportsIlike()) {
+                        operator = " ILIKE "; // postgresql rules
+                    } else {
+                        leftSide = "LOWER(" + leftSide + ')';
+                        operator = " LIKE ";
+                    }
+                } else {
+                    operator = " = ";
+                }
+            } else {
+                operator = " IS NULL";
+            }
+            whereClause.append(separator).append(leftSide).append(operator);
+            if (value != null) {
+                whereClause.append(rightSide);
+                orderedColumns.add(column);
+            }
+            separator = " AND ";
+        }
+        return whereClause.toString();
+    }
+
     protected void fillPreparedStatementFields(Map<String, Object> filterMap,
             List<Column> orderedColumns, PreparedStatement ps)
             throws DirectoryException {
@@ -1125,15 +1432,80 @@ public class SQLSession extends BaseSession implements EntrySource {
     @Override
     public boolean authenticate(String username, String password)
             throws ClientException {
-        DocumentModel entry = getEntry(username);
-        if (entry == null) {
+        String storedPassword = getStoredPassword(username);
+        if (storedPassword == null) {
             return false;
         }
-        String storedPassword = (String) entry.getProperty(schemaName,
-                getPasswordField());
         return PasswordHelper.verifyPassword(password, storedPassword);
     }
 
+    /**
+     * Reads the password column of the entry only.
+     *
+     * @since 7.1
+     */
+    @Override
+    public String getStoredPassword(String username) throws DirectoryException {
+        acquireConnection();
+        Column passwordColumn = table.getColumn(getPasswordField());
+        if (passwordColumn == null) {
+            return null;
+        }
+        Column tenantColumn = isMultiTenant() ? table.getColumn(TENANT_ID_FIELD)
+                : null;
+        // String sql = String.format("SELECT %s FROM %s WHERE %s = ?",
+        // passwordField, tableName, idField);
+        Select select = new Select(table);
+        select.setFrom(table.getQuotedName());
+        if (tenantColumn == null) {
+            select.setWhat(passwordColumn.getQuotedName());
+        } else {
+            select.setWhat(passwordColumn.getQuotedName() + ", "
+                    + tenantColumn.getQuotedName());
+        }
+        String whereClause = table.getPrimaryColumn().getQuotedName() + " = ?";
+        whereClause = addFilterWhereClause(whereClause);
+        select.setWhere(whereClause);
+        String sql = select.getStatement();
+
+        if (logger.isLogEnabled()) {
+            List<Serializable> values = new ArrayList<Serializable>();
+            values.add(username);
+            addFilterValuesForLog(values);
+            logger.logSQL(sql, values);
+        }
+
+        PreparedStatement ps = null;
+        try {
+            ps = sqlConnection.prepareStatement(sql);
+            setFieldValue(ps, 1, table.getPrimaryColumn(), username);
+            addFilterValues(ps, 2);
+            ResultSet rs = ps.executeQuery();
+            if (!rs.next()) {
+                return null;
+            }
+            if (tenantColumn != null) {
+                Map<String, Object> fieldMap = new HashMap<String, Object>();
+                fieldMap.put(TENANT_ID_FIELD,
+                        getFieldValue(rs, TENANT_ID_FIELD));
+                if (!isFromCurrentTenant(fieldMap)) {
+                    return null;
+                }
+            }
+            return (String) getFieldValue(rs, getPasswordField());
+        } catch (SQLException e) {
+            throw new DirectoryException("getStoredPassword failed", e);
+        } finally {
+            try {
+                if (ps != null) {
+                    ps.close();
+                }
+            } catch (SQLException sqle) {
+                throw new DirectoryException(sqle);
+            }
+        }
+    }
+
     @Override
     public boolean isAuthenticating() throws ClientException {
         return schemaFieldMap.containsKey(getPasswordField());
@@ -21,11 +21,16 @@ import java.io.Serializable;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.nuxeo.common.xmap.annotation.XNode;
@@ -44,6 +49,14 @@ import org.nuxeo.ecm.directory.DirectoryException;
 @XObject(value = "tableReference")
 public class TableReference extends AbstractReference {
 
+    /**
+     * Default number of statements sent at once to the database when adding
+     * or removing links.
+     *
+     * @since 7.1
+     */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
     @XNode("@field")
     public void setFieldName(String fieldName) {
         this.fieldName = fieldName;
@@ -70,6 +83,12 @@ public class TableReference extends AbstractReference {
     @XNode("@dataFile")
     protected String dataFileName;
 
+    /**
+     * @since 7.1
+     */
+    @XNode("@batchSize")
+    protected int batchSize = DEFAULT_BATCH_SIZE;
+
     private Table table;
 
     private Dialect dialect;
@@ -123,9 +142,8 @@ public class TableReference extends AbstractReference {
         if (targetIds == null) {
             return;
         }
-        for (String targetId : targetIds) {
-            addLink(sourceId, targetId, session, true);
-        }
+        addMissingLinks(targetColumn, targetIds, sourceColumn, sourceId,
+                session);
     }
 
     public void addLinks(List<String> sourceIds, String targetId,
@@ -133,9 +151,26 @@ public class TableReference extends AbstractReference {
         if (sourceIds == null) {
             return;
         }
-        for (String sourceId : sourceIds) {
-            addLink(sourceId, targetId, session, true);
+        addMissingLinks(sourceColumn, sourceIds, targetColumn, targetId,
+                session);
+    }
+
+    /**
+     * Adds the links that do not exist yet between the given filter value and
+     * ids, existing links are read with a single query.
+     *
+     * @since 7.1
+     */
+    protected void addMissingLinks(String idsColumn, Collection<String> ids,
+            String filterColumn, String filterValue, SQLSession session)
+            throws DirectoryException {
+        if (ids.isEmpty()) {
+            return;
         }
+        Set<String> idsToAdd = new LinkedHashSet<String>(ids);
+        idsToAdd.removeAll(getExistingIds(idsColumn, filterColumn,
+                filterValue, session));
+        insertLinks(idsColumn, idsToAdd, filterColumn, filterValue, session);
     }
 
     public boolean exists(String sourceId, String targetId, SQLSession session)
@@ -277,6 +312,99 @@ public class TableReference extends AbstractReference {
         }
     }
 
+    /**
+     * Fetches the ids linked to several entries at once, issuing one query per
+     * chunk of {@link SQLSession#MAX_IN_CLAUSE_SIZE} entries on the given
+     * session.
+     *
+     * @return a map of filter value to linked ids, containing all the given
+     *         filter values
+     * @since 7.1
+     */
+    protected Map<String, List<String>> getIdsFor(String valueColumn,
+            String filterColumn, Collection<String> filterValues,
+            SQLSession session) throws DirectoryException {
+        Map<String, List<String>> idsMap = new HashMap<String, List<String>>();
+        for (String filterValue : filterValues) {
+            idsMap.put(filterValue, new LinkedList<String>());
+        }
+        List<String> values = new ArrayList<String>(idsMap.keySet());
+        Table table = getTable();
+        for (int start = 0; start < values.size(); start += SQLSession.MAX_IN_CLAUSE_SIZE) {
+            List<String> chunk = values.subList(start, Math.min(start
+                    + SQLSession.MAX_IN_CLAUSE_SIZE, values.size()));
+            // String sql = String.format("SELECT %s, %s FROM %s WHERE %s IN
+            // (?, ?, ...)", valueColumn, filterColumn, tableName, filterColumn);
+            Select select = new Select(table);
+            select.setWhat(table.getColumn(valueColumn).getQuotedName() + ", "
+                    + table.getColumn(filterColumn).getQuotedName());
+            select.setFrom(table.getQuotedName());
+            select.setWhere(table.getColumn(filterColumn).getQuotedName()
+                    + " IN (" + SQLSession.getInClausePlaceholders(chunk.size())
+                    + ")");
+
+            String sql = select.getStatement();
+            if (session.logger.isLogEnabled()) {
+                session.logger.logSQL(sql,
+                        new ArrayList<Serializable>(chunk));
+            }
+
+            PreparedStatement ps = null;
+            try {
+                ps = session.sqlConnection.prepareStatement(sql);
+                int index = 1;
+                for (String filterValue : chunk) {
+                    ps.setString(index++, filterValue);
+                }
+                ResultSet rs = ps.executeQuery();
+                while (rs.next()) {
+                    List<String> ids = idsMap.get(rs.getString(2));
+                    if (ids != null) {
+                        ids.add(rs.getString(1));
+                    }
+                }
+            } catch (SQLException e) {
+                throw new DirectoryException(
+                        "error fetching reference values: ", e);
+            } finally {
+                try {
+                    if (ps != null) {
+                        ps.close();
+                    }
+                } catch (SQLException sqle) {
+                    throw new DirectoryException(sqle);
+                }
+            }
+        }
+        return idsMap;
+    }
+
+    /**
+     * Batched version of {@link #getSourceIdsForTarget(String)} reusing the
+     * given session.
+     *
+     * @since 7.1
+     */
+    public Map<String, List<String>> getSourceIdsForTargets(
+            Collection<String> targetIds, SQLSession session)
+            throws DirectoryException {
+        maybeInitialize(session);
+        return getIdsFor(sourceColumn, targetColumn, targetIds, session);
+    }
+
+    /**
+     * Batched version of {@link #getTargetIdsForSource(String)} reusing the
+     * given session.
+     *
+     * @since 7.1
+     */
+    public Map<String, List<String>> getTargetIdsForSources(
+            Collection<String> sourceIds, SQLSession session)
+            throws DirectoryException {
+        maybeInitialize(session);
+        return getIdsFor(targetColumn, sourceColumn, sourceIds, session);
+    }
+
     @Override
     public List<String> getSourceIdsForTarget(String targetId)
             throws DirectoryException {
@@ -351,32 +479,53 @@ public class TableReference extends AbstractReference {
             throws DirectoryException {
 
         List<String> idsToDelete = new LinkedList<String>();
-        Set<String> idsToAdd = new HashSet<String>();
+        Set<String> idsToAdd = new LinkedHashSet<String>();
         if (ids != null) { // ids may be null
             idsToAdd.addAll(ids);
         }
-        Table table = getTable();
 
-        // iterate over existing links to find what to add and what to remove
+        // compare with existing links to find what to add and what to remove
+        for (String existingId : getExistingIds(idsColumn, filterColumn,
+                filterValue, session)) {
+            if (!idsToAdd.remove(existingId)) {
+                // delete unwanted existing ids
+                idsToDelete.add(existingId);
+            }
+        }
+
+        // remove unwanted links
+        deleteLinks(idsColumn, idsToDelete, filterColumn, filterValue, session);
+        // add missing links
+        insertLinks(idsColumn, idsToAdd, filterColumn, filterValue, session);
+    }
+
+    /**
+     * Reads the ids currently linked to the given filter value.
+     *
+     * @since 7.1
+     */
+    protected Set<String> getExistingIds(String idsColumn,
+            String filterColumn, String filterValue, SQLSession session)
+            throws DirectoryException {
+        Table table = getTable();
         String selectSql = String.format("SELECT %s FROM %s WHERE %s = ?",
                 table.getColumn(idsColumn).getQuotedName(),
                 table.getQuotedName(),
                 table.getColumn(filterColumn).getQuotedName());
+        if (session.logger.isLogEnabled()) {
+            session.logger.logSQL(selectSql,
+                    Collections.<Serializable> singleton(filterValue));
+        }
+        Set<String> existingIds = new HashSet<String>();
         PreparedStatement ps = null;
         try {
             ps = session.sqlConnection.prepareStatement(selectSql);
             ps.setString(1, filterValue);
             ResultSet rs = ps.executeQuery();
             while (rs.next()) {
-                String existingId = rs.getString(1);
-                if (idsToAdd.contains(existingId)) {
-                    // to not add already existing ids
-                    idsToAdd.remove(existingId);
-                } else {
-                    // delete unwanted existing ids
-                    idsToDelete.add(existingId);
-                }
+                existingIds.add(rs.getString(1));
             }
+            return existingIds;
         } catch (SQLException e) {
             throw new DirectoryException("failed to fetch existing links for "
                     + filterValue, e);
@@ -389,60 +538,110 @@ public class TableReference extends AbstractReference {
                 throw new DirectoryException(sqle);
             }
         }
+    }
 
-        if (!idsToDelete.isEmpty()) {
-            // remove unwanted links
-
-            // String deleteSql = String.format(
-            // "DELETE FROM %s WHERE %s = ? AND %s = ?", tableName,
-            // filterColumn, idsColumn);
-            Delete delete = new Delete(table);
-            String whereString = String.format("%s = ? AND %s = ?",
-                    table.getColumn(filterColumn).getQuotedName(),
-                    table.getColumn(idsColumn).getQuotedName());
-            delete.setWhere(whereString);
-            String deleteSql = delete.getStatement();
+    /**
+     * Inserts the links between the given filter value and ids, sending the
+     * statements to the database in batches.
+     *
+     * @since 7.1
+     */
+    protected void insertLinks(String idsColumn, Collection<String> ids,
+            String filterColumn, String filterValue, SQLSession session)
+            throws DirectoryException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        // String insertSql = String.format(
+        // "INSERT INTO %s (%s, %s) VALUES (?, ?)", tableName,
+        // sourceColumn, targetColumn);
+        Table table = getTable();
+        Insert insert = new Insert(table);
+        insert.addColumn(table.getColumn(sourceColumn));
+        insert.addColumn(table.getColumn(targetColumn));
+        String insertSql = insert.getStatement();
+        boolean filterIsSource = filterColumn.equals(sourceColumn);
+        try {
+            executeBatch(insertSql, ids, filterValue, filterIsSource, session);
+        } catch (SQLException e) {
+            throw new DirectoryException("failed to add links for "
+                    + filterValue, e);
+        }
+    }
 
-            try {
-                ps = session.sqlConnection.prepareStatement(deleteSql);
-                for (String unwantedId : idsToDelete) {
-                    if (session.logger.isLogEnabled()) {
-                        session.logger.logSQL(deleteSql,
-                                Arrays.<Serializable> asList(filterValue,
-                                        unwantedId));
-                    }
-                    ps.setString(1, filterValue);
-                    ps.setString(2, unwantedId);
-                    ps.execute();
-                }
-            } catch (SQLException e) {
-                throw new DirectoryException(
-                        "failed to remove unwanted links for " + filterValue, e);
-            } finally {
-                try {
-                    if (ps != null) {
-                        ps.close();
-                    }
-                } catch (SQLException sqle) {
-                    throw new DirectoryException(sqle);
-                }
-            }
+    /**
+     * Deletes the links between the given filter value and ids, sending the
+     * statements to the database in batches.
+     *
+     * @since 7.1
+     */
+    protected void deleteLinks(String idsColumn, Collection<String> ids,
+            String filterColumn, String filterValue, SQLSession session)
+            throws DirectoryException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        // String deleteSql = String.format(
+        // "DELETE FROM %s WHERE %s = ? AND %s = ?", tableName,
+        // filterColumn, idsColumn);
+        Table table = getTable();
+        Delete delete = new Delete(table);
+        String whereString = String.format("%s = ? AND %s = ?",
+                table.getColumn(filterColumn).getQuotedName(),
+                table.getColumn(idsColumn).getQuotedName());
+        delete.setWhere(whereString);
+        String deleteSql = delete.getStatement();
+        try {
+            executeBatch(deleteSql, ids, filterValue, true, session);
+        } catch (SQLException e) {
+            throw new DirectoryException(
+                    "failed to remove unwanted links for " + filterValue, e);
         }
+    }
 
-        if (!idsToAdd.isEmpty()) {
-            // add missing links
-            if (filterColumn.equals(sourceColumn)) {
-                for (String missingId : idsToAdd) {
-                    addLink(filterValue, missingId, session, false);
+    /**
+     * Executes a two parameters statement for each id, the filter value being
+     * bound first or second depending on {@code filterValueFirst}.
+     */
+    protected void executeBatch(String sql, Collection<String> ids,
+            String filterValue, boolean filterValueFirst, SQLSession session)
+            throws SQLException {
+        int batchSize = getBatchSize();
+        PreparedStatement ps = session.sqlConnection.prepareStatement(sql);
+        try {
+            int count = 0;
+            for (String id : ids) {
+                String first = filterValueFirst ? filterValue : id;
+                String second = filterValueFirst ? id : filterValue;
+                if (session.logger.isLogEnabled()) {
+                    session.logger.logSQL(sql,
+                            Arrays.<Serializable> asList(first, second));
                 }
-            } else {
-                for (String missingId : idsToAdd) {
-                    addLink(missingId, filterValue, session, false);
+                ps.setString(1, first);
+                ps.setString(2, second);
+                ps.addBatch();
+                if (++count % batchSize == 0) {
+                    ps.executeBatch();
                 }
             }
+            if (count % batchSize != 0) {
+                ps.executeBatch();
+            }
+        } finally {
+            ps.close();
         }
     }
 
+    /**
+     * Gets the maximum number of statements sent at once to the database when
+     * updating links.
+     *
+     * @since 7.1
+     */
+    public int getBatchSize() {
+        return batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+    }
+
     public void setSourceIdsForTarget(String targetId, List<String> sourceIds,
             SQLSession session) throws DirectoryException {
         setIdsFor(sourceColumn, sourceIds, targetColumn, targetId, session);
@@ -568,6 +767,7 @@ public class TableReference extends AbstractReference {
         clone.targetColumn = targetColumn;
         clone.schemaName = schemaName;
         clone.dataFileName = dataFileName;
+        clone.batchSize = batchSize;
         return clone;
     }
 
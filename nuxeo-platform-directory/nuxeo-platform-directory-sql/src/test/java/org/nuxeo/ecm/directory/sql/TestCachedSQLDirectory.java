@@ -19,14 +19,36 @@
 
 package org.nuxeo.ecm.directory.sql;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.eclipse.jdt.internal.core.Assert;
 import org.junit.Test;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.redis.RedisFeature;
 import org.nuxeo.ecm.directory.AbstractDirectory;
+import org.nuxeo.ecm.directory.BaseSession;
 import org.nuxeo.ecm.directory.DirectoryCache;
+import org.nuxeo.ecm.directory.DirectoryEntrySnapshot;
 import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.EntrySource;
 import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
 
 public class TestCachedSQLDirectory extends TestSQLDirectory {
 
@@ -38,6 +60,8 @@ public class TestCachedSQLDirectory extends TestSQLDirectory {
 
     protected final static String ENTRY_CACHE_WITHOUT_REFERENCES_NAME = "sql-entry-cache-without-references";
 
+    protected final static String NEGATIVE_ENTRY_CACHE_NAME = "sql-negative-entry-cache";
+
     @Override
     public void setUp() throws Exception {
         super.setUp();
@@ -57,6 +81,7 @@ public class TestCachedSQLDirectory extends TestSQLDirectory {
         DirectoryCache cache = dir.getCache();
         cache.setEntryCacheName(ENTRY_CACHE_NAME);
         cache.setEntryCacheWithoutReferencesName(ENTRY_CACHE_WITHOUT_REFERENCES_NAME);
+        cache.setNegativeEntryCacheName(NEGATIVE_ENTRY_CACHE_NAME);
 
     }
 
@@ -73,4 +98,165 @@ public class TestCachedSQLDirectory extends TestSQLDirectory {
         Assert.isNotNull(entry);
     }
 
+    @Test
+    public void testNegativeCache() throws DirectoryException, Exception {
+        Session sqlSession = getSQLDirectory().getSession();
+        try {
+            // missing entry is remembered by the negative cache
+            Assert.isTrue(sqlSession.getEntry("user_0") == null);
+            Assert.isTrue(getSQLDirectory().getCache().getNegativeEntryCache().get(
+                    "user_0") != null);
+            Assert.isTrue(sqlSession.getEntry("user_0") == null);
+
+            // creation invalidates the negative cache
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("username", "user_0");
+            sqlSession.createEntry(map);
+            Assert.isNotNull(sqlSession.getEntry("user_0"));
+        } finally {
+            sqlSession.close();
+        }
+    }
+
+    /**
+     * Source blocking its lookups until released, counting them.
+     */
+    protected static class BlockingEntrySource implements EntrySource {
+
+        protected final AtomicInteger loads = new AtomicInteger();
+
+        protected final CountDownLatch release = new CountDownLatch(1);
+
+        protected final boolean contextFiltered;
+
+        protected BlockingEntrySource(boolean contextFiltered) {
+            this.contextFiltered = contextFiltered;
+        }
+
+        @Override
+        public DocumentModel getEntryFromSource(String entryId,
+                boolean fetchReferences) throws DirectoryException {
+            loads.incrementAndGet();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new DirectoryException(e);
+            }
+            if (entryId.startsWith("missing")) {
+                return null;
+            }
+            return BaseSession.createEntryModel(null, "user", entryId, null);
+        }
+
+        @Override
+        public Map<String, DocumentModel> getEntriesFromSource(
+                Collection<String> entryIds, boolean fetchReferences)
+                throws DirectoryException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isContextFiltered() {
+            return contextFiltered;
+        }
+    }
+
+    @Test
+    public void testConcurrentMissesAreCoalesced() throws Exception {
+        final DirectoryCache cache = getSQLDirectory().getCache();
+        final BlockingEntrySource source = new BlockingEntrySource(false);
+        final int nThreads = 5;
+        final List<DocumentModel> results = Collections.synchronizedList(new ArrayList<DocumentModel>());
+        Counter coalescedCounter = SharedMetricRegistries.getOrCreate(
+                MetricsService.class.getName()).counter(
+                MetricRegistry.name("nuxeo", "directories",
+                        getSQLDirectory().getName(), "cache", "coalesced"));
+        long coalesced = coalescedCounter.getCount();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < nThreads; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    results.add(cache.getEntry("coalesced_user", source, false));
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        // wait for all the threads but the loading one to wait for it
+        long deadline = System.currentTimeMillis() + 10000;
+        while (coalescedCounter.getCount() - coalesced < nThreads - 1
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        source.release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, source.loads.get());
+        assertEquals(nThreads, results.size());
+        for (DocumentModel entry : results) {
+            assertEquals("coalesced_user", entry.getId());
+        }
+        // the loaded entry is cached
+        cache.getEntry("coalesced_user", source, false);
+        assertEquals(1, source.loads.get());
+    }
+
+    @Test
+    public void testNoNegativeCacheForContextFilteredSource() throws Exception {
+        DirectoryCache cache = getSQLDirectory().getCache();
+        BlockingEntrySource source = new BlockingEntrySource(true);
+        source.release.countDown();
+        assertNull(cache.getEntry("missing_user", source, false));
+        assertNull(cache.getNegativeEntryCache().get("missing_user"));
+        assertNull(cache.getEntry("missing_user", source, false));
+        assertEquals(2, source.loads.get());
+
+        source = new BlockingEntrySource(false);
+        source.release.countDown();
+        assertNull(cache.getEntry("missing_user", source, false));
+        assertNotNull(cache.getNegativeEntryCache().get("missing_user"));
+        assertNull(cache.getEntry("missing_user", source, false));
+        assertEquals(1, source.loads.get());
+    }
+
+    @Test
+    public void testCachedEntrySnapshot() throws DirectoryException, Exception {
+        Session sqlSession = getSQLDirectory().getSession();
+        try {
+            DocumentModel entry = sqlSession.getEntry("user_1");
+            Assert.isTrue(getSQLDirectory().getCache().getEntryCache().get(
+                    "user_1") instanceof DirectoryEntrySnapshot);
+
+            // modifying a returned entry does not alter the cached one
+            entry.setProperty("user", "password", "changed");
+            DocumentModel cached = sqlSession.getEntry("user_1");
+            Assert.isTrue(cached != entry);
+            Assert.isTrue("pass_1".equals(cached.getProperty("user", "password")));
+        } finally {
+            sqlSession.close();
+        }
+    }
+
+    @Test
+    public void testGetEntrySnapshot() throws DirectoryException, Exception {
+        BaseSession sqlSession = (BaseSession) getSQLDirectory().getSession();
+        try {
+            DirectoryEntrySnapshot snapshot = sqlSession.getEntrySnapshot(
+                    "user_1", true);
+            Assert.isTrue("user_1".equals(snapshot.getId()));
+            Assert.isTrue("pass_1".equals(snapshot.getValue("password")));
+            Assert.isTrue(snapshot.getValue("nosuchfield") == null);
+            Assert.isTrue(getSQLDirectory().getCache().getEntryCache().get(
+                    "user_1") instanceof DirectoryEntrySnapshot);
+            // served from the cache
+            Assert.isTrue("pass_1".equals(sqlSession.getEntrySnapshot(
+                    "user_1", true).getValue("password")));
+            Assert.isTrue(sqlSession.getEntrySnapshot("nosuchuser", true) == null);
+        } finally {
+            sqlSession.close();
+        }
+    }
+
 }
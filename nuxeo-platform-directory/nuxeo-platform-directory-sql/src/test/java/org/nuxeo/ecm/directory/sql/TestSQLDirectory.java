@@ -23,14 +23,17 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -44,6 +47,7 @@ import org.nuxeo.ecm.directory.AbstractDirectory;
 import org.nuxeo.ecm.directory.BaseSession;
 import org.nuxeo.ecm.directory.Directory;
 import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.EntryCursor;
 import org.nuxeo.ecm.directory.PasswordHelper;
 import org.nuxeo.ecm.directory.Reference;
 import org.nuxeo.ecm.directory.Session;
@@ -101,6 +105,32 @@ public class TestSQLDirectory extends SQLDirectoryTestCase {
         return (SQLDirectory) dir;
     }
 
+    @Test
+    public void testTableReferenceBatchUpdate() throws Exception {
+        deployContrib("org.nuxeo.ecm.directory.sql.tests",
+                "test-sql-directories-batch-config.xml");
+        TableReference groupsRef = (TableReference) getDirectory(
+                "batchUserDirectory").getReference("groups");
+        // small batch size configured to issue several batches
+        assertEquals(2, groupsRef.getBatchSize());
+
+        groupsRef.setTargetIdsForSource("user_1",
+                Arrays.asList("g1", "g2", "g3", "g4", "g5"));
+        List<String> groups = groupsRef.getTargetIdsForSource("user_1");
+        assertEquals(5, groups.size());
+
+        groupsRef.setTargetIdsForSource("user_1",
+                Arrays.asList("g2", "g4", "g6"));
+        groups = groupsRef.getTargetIdsForSource("user_1");
+        assertEquals(3, groups.size());
+        assertTrue(groups.containsAll(Arrays.asList("g2", "g4", "g6")));
+
+        groupsRef.addLinks("user_1", Arrays.asList("g2", "g6", "g7", "g7"));
+        groups = groupsRef.getTargetIdsForSource("user_1");
+        assertEquals(4, groups.size());
+        assertTrue(groups.contains("g7"));
+    }
+
     @Test
     public void testTableReference() throws Exception {
         Session groupSession = getSession("groupDirectory");
@@ -281,6 +311,100 @@ public class TestSQLDirectory extends SQLDirectoryTestCase {
         }
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testGetEntriesByIds() throws Exception {
+        Session session = getSession();
+        try {
+            DocumentModelList entries = session.getEntries(
+                    Arrays.asList("Administrator", "nosuchuser", "user_1"),
+                    true);
+            assertEquals(2, entries.size());
+            // requested order is kept, missing ids are skipped
+            DocumentModel dm = entries.get(0);
+            assertEquals("Administrator", dm.getId());
+            assertEquals(Long.valueOf(10), dm.getProperty(SCHEMA, "intField"));
+            List<String> groups = (List<String>) dm.getProperty(SCHEMA,
+                    "groups");
+            assertEquals(Arrays.asList("administrators"), groups);
+
+            dm = entries.get(1);
+            assertEquals("user_1", dm.getId());
+            assertEquals("pass_1", dm.getProperty(SCHEMA, "password"));
+            groups = (List<String>) dm.getProperty(SCHEMA, "groups");
+            assertEquals(2, groups.size());
+            assertTrue(groups.contains("group_1"));
+            assertTrue(groups.contains("members"));
+
+            entries = session.getEntries(Arrays.asList("user_1"), false);
+            assertEquals(1, entries.size());
+            assertEquals("user_1", entries.get(0).getId());
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testGetEntriesByRequestedIds() throws Exception {
+        // databases comparing ids ignoring case return the stored ids
+        DocumentModel admin = BaseSession.createEntryModel(null, SCHEMA,
+                "Administrator", null);
+        DocumentModel user1 = BaseSession.createEntryModel(null, SCHEMA,
+                "user_1", null);
+        Map<String, DocumentModel> fetched = new LinkedHashMap<String, DocumentModel>();
+        fetched.put("Administrator", admin);
+        fetched.put("user_1", user1);
+        Map<String, DocumentModel> entries = BaseSession.getEntriesByRequestedId(
+                Arrays.asList("administrator", "USER_1", "user_1", "nosuchuser"),
+                fetched);
+        assertEquals(Arrays.asList("administrator", "USER_1", "user_1"),
+                new ArrayList<String>(entries.keySet()));
+        assertSame(admin, entries.get("administrator"));
+        assertSame(user1, entries.get("USER_1"));
+        assertSame(user1, entries.get("user_1"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testScroll() throws Exception {
+        // read the entries by chunks smaller than the directory
+        getSQLDirectory().getConfig().setQueryFetchSize(2);
+        Session session = getSession();
+        try {
+            Map<String, DocumentModel> entryMap = new HashMap<String, DocumentModel>();
+            EntryCursor cursor = session.scroll(
+                    new HashMap<String, Serializable>(), null, true);
+            try {
+                while (cursor.hasNext()) {
+                    DocumentModel entry = cursor.next();
+                    entryMap.put(entry.getId(), entry);
+                }
+            } finally {
+                cursor.close();
+            }
+            assertEquals(3, entryMap.size());
+            List<String> groups = (List<String>) entryMap.get("user_1").getProperty(
+                    SCHEMA, "groups");
+            assertEquals(2, groups.size());
+            assertTrue(groups.contains("group_1"));
+            assertTrue(groups.contains("members"));
+
+            // filtered scroll
+            Map<String, Serializable> filter = new HashMap<String, Serializable>();
+            filter.put("firstName", "f3");
+            cursor = session.scroll(filter, null, false);
+            try {
+                assertTrue(cursor.hasNext());
+                assertEquals("user_3", cursor.next().getId());
+                assertFalse(cursor.hasNext());
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            session.close();
+        }
+    }
+
     @Test
     public void testGetEntries() throws Exception {
         Session session = getSession();
@@ -506,6 +630,35 @@ public class TestSQLDirectory extends SQLDirectoryTestCase {
         }
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testQueryWithInverseReferences() throws Exception {
+        Session session = getSession("groupDirectory");
+        try {
+            DocumentModelList list = session.query(
+                    new HashMap<String, Serializable>(), null, null, true);
+            assertEquals(3, list.size());
+            Map<String, DocumentModel> groups = new HashMap<String, DocumentModel>();
+            for (DocumentModel group : list) {
+                groups.put(group.getId(), group);
+            }
+            List<String> members = (List<String>) groups.get("administrators").getProperty(
+                    "group", "members");
+            assertEquals(Arrays.asList("Administrator"), members);
+            members = (List<String>) groups.get("group_1").getProperty(
+                    "group", "members");
+            assertEquals(Arrays.asList("user_1"), members);
+            members = (List<String>) groups.get("members").getProperty(
+                    "group", "members");
+            assertEquals(Arrays.asList("user_1"), members);
+            List<String> parentGroups = (List<String>) groups.get("members").getProperty(
+                    "group", "parentGroups");
+            assertTrue(parentGroups.isEmpty());
+        } finally {
+            session.close();
+        }
+    }
+
     @Test
     public void testQuerySubAny() throws Exception {
         Session session = getSession();
@@ -0,0 +1,98 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.directory.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.core.storage.sql.ColumnType;
+import org.nuxeo.ecm.core.storage.sql.jdbc.db.Column;
+import org.nuxeo.ecm.core.storage.sql.jdbc.db.Table;
+import org.nuxeo.ecm.core.storage.sql.jdbc.dialect.Dialect;
+import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Tests the batched loading of a data file.
+ */
+public class TestSQLHelperDataFile extends SQLDirectoryTestCase {
+
+    protected Connection connection;
+
+    protected Table table;
+
+    @Before
+    public void setUpTable() throws Exception {
+        Framework.getProperties().setProperty(SQLHelper.DATA_BATCH_SIZE_PROP,
+                "2");
+        connection = ((SQLDirectory) getDirectory("userDirectory")).getConnection();
+        connection.setAutoCommit(true);
+        Dialect dialect = Dialect.createDialect(connection, null, null);
+        table = SQLHelper.addTable("batchdata", dialect, false);
+        Column id = SQLHelper.addColumn(table, "id", ColumnType.STRING, false);
+        id.setPrimary(true);
+        id.setNullable(false);
+        SQLHelper.addColumn(table, "label", ColumnType.STRING, false);
+    }
+
+    @After
+    public void tearDownTable() throws Exception {
+        Framework.getProperties().remove(SQLHelper.DATA_BATCH_SIZE_PROP);
+        connection.close();
+    }
+
+    protected int countRows() throws Exception {
+        try (Statement st = connection.createStatement()) {
+            ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM "
+                    + table.getQuotedName());
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    @Test
+    public void testOddRowCountWithBatches() throws Exception {
+        new SQLHelper(connection, table, "test-batch-data.csv", "always").setupTable();
+        // two full batches and a last partial one
+        assertEquals(5, countRows());
+        assertTrue(connection.getAutoCommit());
+    }
+
+    @Test
+    public void testBadRowRollsBack() throws Exception {
+        try {
+            new SQLHelper(connection, table, "test-batch-data-bad.csv",
+                    "always").setupTable();
+            fail("duplicate id should fail");
+        } catch (DirectoryException e) {
+            String msg = e.getMessage();
+            assertTrue(msg, msg.contains("test-batch-data-bad.csv rows 3 to 4"));
+        }
+        // the rows of the batches before the failure are rolled back too
+        assertEquals(0, countRows());
+        assertTrue(connection.getAutoCommit());
+    }
+
+}
@@ -23,9 +23,12 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -41,12 +44,17 @@ import org.nuxeo.ecm.platform.mimetype.MimetypeDetectionException;
 import org.nuxeo.ecm.platform.mimetype.MimetypeNotFoundException;
 import org.nuxeo.ecm.platform.mimetype.interfaces.MimetypeEntry;
 import org.nuxeo.ecm.platform.mimetype.interfaces.MimetypeRegistry;
+import org.nuxeo.runtime.metrics.MetricsService;
 import org.nuxeo.runtime.model.ComponentContext;
 import org.nuxeo.runtime.model.ComponentName;
 import org.nuxeo.runtime.model.DefaultComponent;
 import org.nuxeo.runtime.model.Extension;
 import org.nuxeo.runtime.model.RuntimeContext;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
 /**
  * MimetypeEntry registry service.
  * <p>
@@ -65,8 +73,57 @@ public class MimetypeRegistryService extends DefaultComponent implements
     // 10 MB is the max size to allow full file scan
     public static final long MAX_SIZE_FOR_SCAN = 10*1024*1024;
 
+    /**
+     * Size of the content header read to sniff a blob. Beyond it, only the
+     * formats whose detection needs the whole content are spooled to a file.
+     *
+     * @since 7.1
+     */
+    public static final int HEADER_SIZE = 128 * 1024;
+
+    /**
+     * Maximum number of blob digests whose detected mimetype is kept.
+     *
+     * @since 7.1
+     */
+    public static final int MAX_CACHED_DIGESTS = 1000;
+
+    /**
+     * Signatures of the formats refined by detectors reading the whole
+     * content: zip archives, OLE2 compound documents and XML.
+     */
+    protected static final byte[][] CONTAINER_SIGNATURES = {
+            { 'P', 'K', 3, 4 },
+            { (byte) 0xd0, (byte) 0xcf, 0x11, (byte) 0xe0, (byte) 0xa1,
+                    (byte) 0xb1, 0x1a, (byte) 0xe1 },
+            { '<', '?', 'x', 'm', 'l' } };
+
+    /**
+     * Extension of the temporary file previously used to sniff blobs, whose
+     * mimetype is still the fallback when the content is not recognized.
+     */
+    protected static final String UNKNOWN_CONTENT_EXTENSION = "bin";
+
     private static final Log log = LogFactory.getLog(MimetypeRegistryService.class);
 
+    protected final Map<String, String> mimetypeByDigest = Collections.synchronizedMap(new LinkedHashMap<String, String>(
+            16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CACHED_DIGESTS;
+        }
+    });
+
+    protected final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    protected final Counter sniffCount = registry.counter(MetricRegistry.name(
+            "nuxeo", "mimetype", "sniff", "count"));
+
+    protected final Counter sniffAvoidedCount = registry.counter(MetricRegistry.name(
+            "nuxeo", "mimetype", "sniff", "avoided"));
+
     protected Map<String, MimetypeEntry> mimetypeByNormalisedRegistry;
 
     protected Map<String, MimetypeEntry> mimetypeByExtensionRegistry;
@@ -117,6 +174,7 @@ public class MimetypeRegistryService extends DefaultComponent implements
     public void registerMimetype(MimetypeEntry mimetype) {
         log.debug("Registering mimetype: " + mimetype.getNormalized());
         mimetypeByNormalisedRegistry.put(mimetype.getNormalized(), mimetype);
+        mimetypeByDigest.clear();
         for (String extension : mimetype.getExtensions()) {
             mimetypeByExtensionRegistry.put(extension, mimetype);
         }
@@ -127,6 +185,7 @@ public class MimetypeRegistryService extends DefaultComponent implements
                 + extensionDescriptor.getName());
         extensionRegistry.put(extensionDescriptor.getName(),
                 extensionDescriptor);
+        mimetypeByDigest.clear();
     }
 
     @Override
@@ -154,6 +213,7 @@ public class MimetypeRegistryService extends DefaultComponent implements
         }
         List<String> extensions = mimetype.getExtensions();
         mimetypeByNormalisedRegistry.remove(mimetypeName);
+        mimetypeByDigest.clear();
         for (String extension : extensions) {
             // FIXME: equals always fails because types are incompatible.
             if (mimetype.getNormalized().equals(
@@ -167,6 +227,7 @@ public class MimetypeRegistryService extends DefaultComponent implements
         log.debug("Unregistering file extension: "
                 + extensionDescriptor.getName());
         extensionRegistry.remove(extensionDescriptor.getName());
+        mimetypeByDigest.clear();
     }
 
     public RuntimeContext getContext() {
@@ -203,26 +264,9 @@ public class MimetypeRegistryService extends DefaultComponent implements
             }
         }
         try {
+            sniffCount.inc();
             MagicMatch match = Magic.getMagicMatch(file, true, false);
-            String mimeType;
-
-            if (match.getSubMatches().isEmpty()) {
-                mimeType = match.getMimeType();
-            } else {
-                // Submatches found
-                // TODO: we only take the first here
-                // what to do with other possible responses ?
-                // b.t.w., multiple responses denotes a non-accuracy problem in
-                // magic.xml but be careful to nested possible
-                // sub-sub-...-submatches make this as recursive ?
-                Collection<MagicMatch> possibilities = match.getSubMatches();
-                Iterator<MagicMatch> iter = possibilities.iterator();
-                MagicMatch m = iter.next();
-                mimeType = m.getMimeType();
-                // need to clean for subsequent calls
-                possibilities.clear();
-                match.setSubMatches(possibilities);
-            }
+            String mimeType = getMimetype(match);
             if ("text/plain".equals(mimeType)) {
                 // check we didn't mis-detect files with zeroes
                 // check first 16 bytes
@@ -234,11 +278,8 @@ public class MimetypeRegistryService extends DefaultComponent implements
                 } finally {
                     is.close();
                 }
-                for (int i = 0; i < n; i++) {
-                    if (bytes[i] == 0) {
-                        mimeType = "application/octet-stream";
-                        break;
-                    }
+                if (hasZeroes(bytes, n)) {
+                    mimeType = "application/octet-stream";
                 }
             }
             return mimeType;
@@ -331,18 +372,81 @@ public class MimetypeRegistryService extends DefaultComponent implements
         }
     }
 
+    /**
+     * Gets the mimetype of a blob content.
+     * <p>
+     * Sniffing is skipped when the blob filename has an explicitly
+     * unambiguous extension, or when the content digest was already sniffed.
+     * Otherwise only a header of the content is read, unless it is a
+     * container format whose detection needs the whole content.
+     */
     public String getMimetypeFromBlob(Blob blob)
             throws MimetypeNotFoundException, MimetypeDetectionException {
-        File file = null;
+        String mimetype = getMimetypeFromUnambiguousExtension(blob.getFilename());
+        if (mimetype != null) {
+            sniffAvoidedCount.inc();
+            return mimetype;
+        }
+        String digest = blob.getDigest();
+        if (digest != null) {
+            mimetype = mimetypeByDigest.get(digest);
+            if (mimetype != null) {
+                sniffAvoidedCount.inc();
+                return mimetype;
+            }
+        }
+        mimetype = sniffBlob(blob);
+        if (digest != null) {
+            mimetypeByDigest.put(digest, mimetype);
+        }
+        return mimetype;
+    }
+
+    /**
+     * Returns the mimetype of a filename extension explicitly registered as
+     * unambiguous, or {@code null}.
+     *
+     * @since 7.1
+     */
+    protected String getMimetypeFromUnambiguousExtension(String filename) {
+        if (filename == null) {
+            return null;
+        }
+        int dot = filename.lastIndexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        ExtensionDescriptor extensionDescriptor = extensionRegistry.get(filename.substring(
+                dot + 1).toLowerCase());
+        if (extensionDescriptor == null || extensionDescriptor.isAmbiguous()) {
+            return null;
+        }
+        return extensionDescriptor.getMimetype();
+    }
+
+    protected String sniffBlob(Blob blob) throws MimetypeNotFoundException,
+            MimetypeDetectionException {
         try {
             // make sure the blob can be read several times without exhausting
             // its binary source
             if (!blob.isPersistent()) {
                 blob = blob.persist();
             }
-            file = File.createTempFile("NXMimetypeBean", ".bin");
+            byte[] header = new byte[HEADER_SIZE + 1];
+            int n;
+            InputStream is = blob.getStream();
             try {
-                InputStream is = blob.getStream();
+                n = readFully(is, header);
+            } finally {
+                is.close();
+            }
+            if (n <= HEADER_SIZE || !isContainer(header, n)) {
+                return getMimetypeFromBytes(Arrays.copyOf(header,
+                        Math.min(n, HEADER_SIZE)));
+            }
+            File file = File.createTempFile("NXMimetypeBean", ".bin");
+            try {
+                is = blob.getStream();
                 try {
                     FileUtils.copyToFile(is, file);
                 } finally {
@@ -357,6 +461,84 @@ public class MimetypeRegistryService extends DefaultComponent implements
         }
     }
 
+    /**
+     * Sniffs the mimetype of some content, or of its header.
+     *
+     * @since 7.1
+     */
+    protected String getMimetypeFromBytes(byte[] data)
+            throws MimetypeNotFoundException, MimetypeDetectionException {
+        try {
+            sniffCount.inc();
+            MagicMatch match = Magic.getMagicMatch(data, false);
+            String mimeType = getMimetype(match);
+            if ("text/plain".equals(mimeType)
+                    && hasZeroes(data, Math.min(data.length, 16))) {
+                // check we didn't mis-detect files with zeroes
+                mimeType = "application/octet-stream";
+            }
+            return mimeType;
+        } catch (MagicMatchNotFoundException e) {
+            return getMimetypeFromExtension(UNKNOWN_CONTENT_EXTENSION);
+        } catch (Exception e) {
+            throw new MimetypeDetectionException(e.getMessage(), e);
+        }
+    }
+
+    protected String getMimetype(MagicMatch match) {
+        if (match.getSubMatches().isEmpty()) {
+            return match.getMimeType();
+        }
+        // Submatches found
+        // TODO: we only take the first here
+        // what to do with other possible responses ?
+        // b.t.w., multiple responses denotes a non-accuracy problem in
+        // magic.xml but be careful to nested possible
+        // sub-sub-...-submatches make this as recursive ?
+        @SuppressWarnings("unchecked")
+        Collection<MagicMatch> possibilities = match.getSubMatches();
+        Iterator<MagicMatch> iter = possibilities.iterator();
+        MagicMatch m = iter.next();
+        String mimeType = m.getMimeType();
+        // need to clean for subsequent calls
+        possibilities.clear();
+        match.setSubMatches(possibilities);
+        return mimeType;
+    }
+
+    protected static boolean hasZeroes(byte[] bytes, int n) {
+        for (int i = 0; i < n; i++) {
+            if (bytes[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected static boolean isContainer(byte[] header, int n) {
+        for (byte[] signature : CONTAINER_SIGNATURES) {
+            if (n >= signature.length
+                    && Arrays.equals(signature,
+                            Arrays.copyOf(header, signature.length))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected static int readFully(InputStream in, byte[] buffer)
+            throws IOException {
+        int n = 0;
+        while (n < buffer.length) {
+            int read = in.read(buffer, n, buffer.length - n);
+            if (read == -1) {
+                break;
+            }
+            n += read;
+        }
+        return n;
+    }
+
     public MimetypeEntry getMimetypeEntryByMimeType(String mimetype) {
         MimetypeEntry mtype = mimetypeByNormalisedRegistry.get("application/octet-stream");
         if (mimetype != null) {
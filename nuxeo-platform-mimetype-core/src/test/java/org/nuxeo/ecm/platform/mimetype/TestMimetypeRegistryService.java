@@ -163,6 +163,31 @@ public class TestMimetypeRegistryService {
         assertTrue(extensions.contains("doc"));
     }
 
+    @Test
+    public void testGetMimetypeFromBlobWithoutSniffing() throws Exception {
+        MimetypeEntry mimetypeEntry = getMimetypeSample();
+        mimetypeRegistry.registerMimetype(mimetypeEntry);
+
+        // the detected mimetype is cached by digest
+        Blob blob = getWordBlob();
+        blob.setDigest("0123456789abcdef");
+        assertEquals("application/msword",
+                mimetypeRegistry.getMimetypeFromBlob(blob));
+        Blob empty = StreamingBlob.createFromByteArray(new byte[0]);
+        empty.setDigest("0123456789abcdef");
+        assertEquals("application/msword",
+                mimetypeRegistry.getMimetypeFromBlob(empty));
+
+        // an unambiguous extension is trusted
+        ExtensionDescriptor ed = new ExtensionDescriptor("vsd");
+        ed.setMimetype("application/visio");
+        mimetypeRegistry.registerFileExtension(ed);
+        blob = getWordBlob();
+        blob.setFilename("hello.vsd");
+        assertEquals("application/visio",
+                mimetypeRegistry.getMimetypeFromBlob(blob));
+    }
+
     protected static Blob getBlob(String filename) throws FileNotFoundException {
         InputStream istream = new FileInputStream(
                 FileUtils.getResourceFileFromContext(filename));
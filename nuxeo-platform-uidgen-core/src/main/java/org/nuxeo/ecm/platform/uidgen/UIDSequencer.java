@@ -35,4 +35,16 @@ public interface UIDSequencer {
      */
     int getNext(String key);
 
+    /**
+     * For the given key reserves a block of consecutive UIDs, for instance
+     * for bulk imports. The sequence entry is incremented by the size of the
+     * block at once.
+     *
+     * @param key the sequence key
+     * @param size the number of UIDs to reserve
+     * @return the first UID of the block, the other ones following it
+     * @since 7.1
+     */
+    int getNextBlock(String key, int size);
+
 }
@@ -40,7 +40,9 @@ import org.apache.commons.logging.LogFactory;
 @Entity
 @NamedQueries( {
     @NamedQuery(name = "UIDSequence.findByKey",
-            query = "from UIDSequenceBean seq where seq.key = :key" )
+            query = "from UIDSequenceBean seq where seq.key = :key" ),
+    @NamedQuery(name = "UIDSequence.incrementByKey",
+            query = "update UIDSequenceBean seq set seq.index = seq.index + :size where seq.key = :key" )
             })
 
 @Table(name = "NXP_UIDSEQ")
@@ -106,6 +108,17 @@ public class UIDSequenceBean {
        return stringify(this);
     }
 
+    /**
+     * Constructor for a sequence created with a first block of indexes
+     * already reserved.
+     *
+     * @since 7.1
+     */
+    public UIDSequenceBean(String key, int index) {
+        this.key = key;
+        this.index = index;
+    }
+
     public int nextIndex() {
         index += 1;
         log.debug("updated to " + this);
@@ -54,6 +54,12 @@ public class UIDGeneratorService extends DefaultComponent {
 
     private final Map<String, UIDGenerator> generators = new HashMap<String, UIDGenerator>();
 
+    /**
+     * The sequencer, created on first use, holding the in-memory blocks of
+     * UIDs of the keys.
+     */
+    protected UIDSequencer sequencer;
+
     @Override
     public void activate(ComponentContext context) throws Exception {
         super.activate(context);
@@ -62,6 +68,9 @@ public class UIDGeneratorService extends DefaultComponent {
     @Override
     public void deactivate(ComponentContext context) throws Exception {
         super.deactivate(context);
+        synchronized (this) {
+            sequencer = null;
+        }
         UIDSequencerImpl.dispose();
     }
 
@@ -199,9 +208,16 @@ public class UIDGeneratorService extends DefaultComponent {
     @Override
     public <T> T getAdapter(Class<T> adapter) {
         if (UIDSequencer.class.isAssignableFrom(adapter)) {
-            return adapter.cast(new UIDSequencerImpl());
+            return adapter.cast(getOrCreateSequencer());
         }
         return null;
     }
 
+    protected synchronized UIDSequencer getOrCreateSequencer() {
+        if (sequencer == null) {
+            sequencer = new UIDSequencerImpl();
+        }
+        return sequencer;
+    }
+
 }
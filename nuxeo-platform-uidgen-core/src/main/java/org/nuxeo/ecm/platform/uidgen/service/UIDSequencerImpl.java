@@ -16,9 +16,17 @@
  */
 package org.nuxeo.ecm.platform.uidgen.service;
 
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityExistsException;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.ClientRuntimeException;
 import org.nuxeo.ecm.core.persistence.PersistenceProvider;
@@ -26,6 +34,7 @@ import org.nuxeo.ecm.core.persistence.PersistenceProvider.RunCallback;
 import org.nuxeo.ecm.core.persistence.PersistenceProviderFactory;
 import org.nuxeo.ecm.platform.uidgen.UIDSequencer;
 import org.nuxeo.ecm.platform.uidgen.ejb.UIDSequenceBean;
+import org.nuxeo.ecm.platform.util.FrameworkProperties;
 import org.nuxeo.runtime.api.Framework;
 
 /**
@@ -33,13 +42,82 @@ import org.nuxeo.runtime.api.Framework;
  * instantiate this class without passing by Framework.getService -> this is to
  * avoid potential problems do to sequencer factories. Anyway sequencer
  * factories should be removed (I don't think they are really needed).
+ * <p>
+ * Each reservation increments the sequence row with an update statement,
+ * which locks the row until the transaction commits, so that concurrent
+ * reservations from several cluster nodes never get the same UIDs. When a
+ * block size greater than 1 is configured through {@link #BLOCK_SIZE_PROP}
+ * (hi/lo mode), blocks of that size are reserved and the UIDs are then
+ * served from memory: the UIDs of a key are unique but not necessarily
+ * ordered across cluster nodes, and the unused UIDs of a block are lost when
+ * the server stops. The blocks belong to the sequencer instance, the service
+ * keeps a single one.
  *
  * @author <a href="mailto:bs@nuxeo.com">Bogdan Stefanescu</a>
  */
 public class UIDSequencerImpl implements UIDSequencer {
 
+    private static final Log log = LogFactory.getLog(UIDSequencerImpl.class);
+
+    /**
+     * Number of UIDs reserved at once for each key, 1 (the default) disables
+     * the in-memory blocks.
+     *
+     * @since 7.1
+     */
+    public static final String BLOCK_SIZE_PROP = "org.nuxeo.ecm.platform.uidgen.blockSize";
+
+    /**
+     * Number of attempts of a reservation, when the first creation of the
+     * sequence conflicts with another cluster node creating it.
+     *
+     * @since 7.1
+     */
+    protected static final int RESERVE_ATTEMPTS = 3;
+
+    /**
+     * Range of reserved UIDs of a key, served from memory.
+     */
+    protected static class Block {
+
+        protected final AtomicLong next;
+
+        protected final long last;
+
+        protected Block(long first, long last) {
+            next = new AtomicLong(first);
+            this.last = last;
+        }
+
+        /**
+         * Gets the next UID of the block, or -1 if the block is exhausted.
+         */
+        protected long next() {
+            long value = next.getAndIncrement();
+            return value <= last ? value : -1;
+        }
+    }
+
     private static volatile PersistenceProvider persistenceProvider;
 
+    protected final ConcurrentMap<String, Block> blocks = new ConcurrentHashMap<String, Block>();
+
+    protected final ConcurrentMap<String, Object> blockLocks = new ConcurrentHashMap<String, Object>();
+
+    protected final int blockSize;
+
+    public UIDSequencerImpl() {
+        this(FrameworkProperties.getInt(BLOCK_SIZE_PROP, 1));
+    }
+
+    /**
+     * @param blockSize the number of UIDs reserved at once for each key
+     * @since 7.1
+     */
+    public UIDSequencerImpl(int blockSize) {
+        this.blockSize = Math.max(blockSize, 1);
+    }
+
     /**
      * Must be called when the service is no longer needed
      */
@@ -82,30 +160,134 @@ public class UIDSequencerImpl implements UIDSequencer {
         }
     }
 
-    public int getNext(final String key) {
-        try {
-            return getOrCreatePersistenceProvider().run(true,
-                    new RunCallback<Integer>() {
-                        public Integer runWith(EntityManager em) {
-                            return getNext(em, key);
-                        }
-                    });
-        } catch (ClientException e) {
-            throw new ClientRuntimeException(e);
+    public int getNext(String key) {
+        if (blockSize == 1) {
+            return reserve(key, 1);
+        }
+        for (;;) {
+            Block block = blocks.get(key);
+            if (block != null) {
+                long value = block.next();
+                if (value != -1) {
+                    return (int) value;
+                }
+            }
+            synchronized (getBlockLock(key)) {
+                // another thread may have reserved a block meanwhile
+                if (blocks.get(key) == block) {
+                    int last = reserve(key, blockSize);
+                    blocks.put(key, new Block(last - blockSize + 1L, last));
+                }
+            }
+        }
+    }
+
+    protected Object getBlockLock(String key) {
+        Object lock = blockLocks.get(key);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = blockLocks.putIfAbsent(key, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    @Override
+    public int getNextBlock(String key, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Invalid block size: " + size);
+        }
+        return reserve(key, size) - size + 1;
+    }
+
+    /**
+     * Increments the sequence of the given key in its own transaction, again
+     * if another cluster node created the sequence meanwhile.
+     *
+     * @return the last reserved UID
+     * @since 7.1
+     */
+    protected int reserve(final String key, final int size) {
+        RunCallback<Integer> callback = new RunCallback<Integer>() {
+            public Integer runWith(EntityManager em) {
+                return reserve(em, key, size);
+            }
+        };
+        for (int attempt = 1;; attempt++) {
+            try {
+                return getOrCreatePersistenceProvider().run(true, callback);
+            } catch (ClientException e) {
+                if (attempt == RESERVE_ATTEMPTS || !isConstraintViolation(e)) {
+                    throw new ClientRuntimeException(e);
+                }
+            } catch (RuntimeException e) {
+                if (attempt == RESERVE_ATTEMPTS || !isConstraintViolation(e)) {
+                    throw e;
+                }
+            }
+            // the sequence now exists, the next attempt increments it
+            log.debug("Sequence created concurrently, retrying: " + key);
+        }
+    }
+
+    /**
+     * Checks if a failure comes from the unique key of the sequences.
+     *
+     * @since 7.1
+     */
+    protected static boolean isConstraintViolation(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof EntityExistsException) {
+                return true;
+            }
+            if (t instanceof SQLException) {
+                // integrity constraint violation class
+                String state = ((SQLException) t).getSQLState();
+                if (state != null && state.startsWith("23")) {
+                    return true;
+                }
+            }
         }
+        return false;
     }
 
     public int getNext(EntityManager em, String key) {
+        return reserve(em, key, 1);
+    }
+
+    /**
+     * Increments the sequence of the given key, creating it if needed.
+     * <p>
+     * When two cluster nodes create the same sequence at the same time, one
+     * of them fails on the unique key of the sequences: its transaction must
+     * be rolled back and the reservation run again.
+     *
+     * @return the last reserved UID
+     * @since 7.1
+     */
+    public int reserve(EntityManager em, String key, int size) {
+        // the update locks the row until commit
+        int count = em.createNamedQuery("UIDSequence.incrementByKey").setParameter(
+                "size", Integer.valueOf(size)).setParameter("key", key).executeUpdate();
+        if (count == 0) {
+            UIDSequenceBean seq = new UIDSequenceBean(key, size);
+            em.persist(seq);
+            // fail now rather than at commit if created meanwhile
+            em.flush();
+            return seq.getIndex();
+        }
         UIDSequenceBean seq;
         try {
             seq = (UIDSequenceBean) em.createNamedQuery("UIDSequence.findByKey").setParameter(
                     "key", key).getSingleResult();
-            // createQuery("FROM UIDSequenceBean seq WHERE seq.key = :key")
         } catch (NoResultException e) {
-            seq = new UIDSequenceBean(key);
-            em.persist(seq);
+            throw new ClientRuntimeException("Sequence disappeared: " + key);
         }
-        return seq.nextIndex();
+        // the bulk update bypasses the entities already loaded
+        em.refresh(seq);
+        return seq.getIndex();
     }
 
 }
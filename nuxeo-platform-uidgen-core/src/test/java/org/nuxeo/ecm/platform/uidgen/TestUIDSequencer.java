@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.uidgen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.nuxeo.ecm.platform.uidgen.service.UIDSequencerImpl;
+
+public class TestUIDSequencer extends UIDGeneratorTestCase {
+
+    @Test
+    public void testGetNextBlock() throws Exception {
+        UIDSequencer sequencer = new UIDSequencerImpl(1);
+        assertEquals(1, sequencer.getNext("blockKey"));
+        assertEquals(2, sequencer.getNextBlock("blockKey", 10));
+        assertEquals(12, sequencer.getNext("blockKey"));
+        assertEquals(1, sequencer.getNextBlock("otherBlockKey", 5));
+    }
+
+    @Test
+    public void testBlockMode() throws Exception {
+        UIDSequencer sequencer = new UIDSequencerImpl(5);
+        for (int i = 1; i <= 12; i++) {
+            assertEquals(i, sequencer.getNext("hiloKey"));
+        }
+        // the database sequence is already at the end of the third block
+        assertEquals(16, new UIDSequencerImpl(1).getNext("hiloKey"));
+        // the in-memory block is used up before reserving another one
+        assertEquals(13, sequencer.getNext("hiloKey"));
+        assertEquals(14, sequencer.getNext("hiloKey"));
+        assertEquals(15, sequencer.getNext("hiloKey"));
+        assertEquals(17, sequencer.getNext("hiloKey"));
+    }
+
+    @Test
+    public void testBlocksPerSequencer() throws Exception {
+        UIDSequencer sequencer1 = new UIDSequencerImpl(5);
+        UIDSequencer sequencer2 = new UIDSequencerImpl(5);
+        assertEquals(1, sequencer1.getNext("ownBlocksKey"));
+        assertEquals(6, sequencer2.getNext("ownBlocksKey"));
+        assertEquals(2, sequencer1.getNext("ownBlocksKey"));
+        // the service keeps its sequencer and its blocks
+        assertSame(service.getSequencer(), service.getSequencer());
+    }
+
+    /**
+     * Gets UIDs of a key from several threads, each using its sequencer.
+     */
+    protected List<Integer> getNextConcurrently(
+            List<UIDSequencer> sequencers, final String key, final int count)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(sequencers.size());
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<List<Integer>>> futures = new ArrayList<Future<List<Integer>>>();
+            for (final UIDSequencer sequencer : sequencers) {
+                futures.add(executor.submit(new Callable<List<Integer>>() {
+                    @Override
+                    public List<Integer> call() throws Exception {
+                        start.await();
+                        List<Integer> values = new ArrayList<Integer>(count);
+                        for (int i = 0; i < count; i++) {
+                            values.add(Integer.valueOf(sequencer.getNext(key)));
+                        }
+                        return values;
+                    }
+                }));
+            }
+            // all the threads create the sequence at the same time
+            start.countDown();
+            List<Integer> values = new ArrayList<Integer>();
+            for (Future<List<Integer>> future : futures) {
+                values.addAll(future.get(60, TimeUnit.SECONDS));
+            }
+            return values;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testConcurrentUniqueness() throws Exception {
+        // two threads sharing the blocks of a sequencer, and other
+        // sequencers standing for other cluster nodes
+        UIDSequencer shared = new UIDSequencerImpl(5);
+        List<UIDSequencer> sequencers = new ArrayList<UIDSequencer>();
+        sequencers.add(shared);
+        sequencers.add(shared);
+        sequencers.add(new UIDSequencerImpl(1));
+        sequencers.add(new UIDSequencerImpl(5));
+        List<Integer> values = getNextConcurrently(sequencers,
+                "concurrentKey", 50);
+        assertEquals(200, values.size());
+        assertEquals(200, new HashSet<Integer>(values).size());
+    }
+
+}
@@ -0,0 +1,353 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.usermanager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory index of the parent / sub-group relations of all the groups of a
+ * group directory, and of their member users.
+ * <p>
+ * The transitive closure of the "member of group" relation is computed once
+ * per group and kept until one of the groups it involves is updated, so that
+ * principals get all their groups without any directory access. The same
+ * goes the other way round for the users of a group and of its sub-groups.
+ *
+ * @since 7.1
+ */
+public class GroupHierarchy {
+
+    /** Ids of the groups present in the directory. */
+    protected final Set<String> groups = new HashSet<String>();
+
+    /** Group id to the ids of its direct parent groups. */
+    protected final Map<String, Set<String>> parents = new HashMap<String, Set<String>>();
+
+    /** Group id to the ids of its direct sub-groups. */
+    protected final Map<String, Set<String>> children = new HashMap<String, Set<String>>();
+
+    /** Group id to the ids of its direct member users. */
+    protected final Map<String, Set<String>> members = new HashMap<String, Set<String>>();
+
+    /** User id to the ids of the groups it is a direct member of. */
+    protected final Map<String, Set<String>> userGroups = new HashMap<String, Set<String>>();
+
+    /** Group id to the ids of the group itself and all its ancestors. */
+    protected final Map<String, Set<String>> closures = new ConcurrentHashMap<String, Set<String>>();
+
+    /** Group id to the ids of the users of the group and its descendants. */
+    protected final Map<String, Set<String>> userClosures = new ConcurrentHashMap<String, Set<String>>();
+
+    protected final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Checks whether the group is known by this index.
+     */
+    public boolean hasGroup(String groupId) {
+        lock.readLock().lock();
+        try {
+            return groups.contains(groupId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the group and all the groups it is a direct or indirect member of.
+     * Parent groups unknown to the index are ignored.
+     *
+     * @return an unmodifiable set, empty if the group is unknown
+     */
+    public Set<String> getAncestorsAndSelf(String groupId) {
+        Set<String> closure = closures.get(groupId);
+        if (closure != null) {
+            return closure;
+        }
+        lock.readLock().lock();
+        try {
+            if (!groups.contains(groupId)) {
+                return Collections.emptySet();
+            }
+            closure = Collections.unmodifiableSet(walk(groupId, parents));
+            closures.put(groupId, closure);
+            return closure;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets all the direct and indirect sub-groups of a group, not including
+     * the group itself.
+     */
+    public Set<String> getDescendants(String groupId) {
+        lock.readLock().lock();
+        try {
+            Set<String> descendants = walk(groupId, children);
+            descendants.remove(groupId);
+            return descendants;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the users that are direct members of the group or of one of its
+     * direct or indirect sub-groups.
+     *
+     * @return an unmodifiable set, empty if the group is unknown
+     */
+    public Set<String> getUsers(String groupId) {
+        Set<String> users = userClosures.get(groupId);
+        if (users != null) {
+            return users;
+        }
+        lock.readLock().lock();
+        try {
+            if (!groups.contains(groupId)) {
+                return Collections.emptySet();
+            }
+            users = new HashSet<String>();
+            for (String group : walk(groupId, children)) {
+                Set<String> groupMembers = members.get(group);
+                if (groupMembers != null) {
+                    users.addAll(groupMembers);
+                }
+            }
+            users = Collections.unmodifiableSet(users);
+            userClosures.put(groupId, users);
+            return users;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the groups that have no parent group.
+     */
+    public List<String> getTopLevelGroups() {
+        lock.readLock().lock();
+        try {
+            List<String> topLevelGroups = new ArrayList<String>();
+            for (String groupId : groups) {
+                Set<String> groupParents = parents.get(groupId);
+                if (groupParents == null || groupParents.isEmpty()) {
+                    topLevelGroups.add(groupId);
+                }
+            }
+            return topLevelGroups;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds or replaces a group, with its direct parent groups, sub-groups and
+     * member users as stored in the directory.
+     */
+    public void updateGroup(String groupId, Collection<String> parentGroups,
+            Collection<String> subGroups, Collection<String> memberUsers) {
+        lock.writeLock().lock();
+        try {
+            Set<String> impacted = walk(groupId, children);
+            Set<String> impactedParents = walk(groupId, parents);
+            unlink(groupId);
+            setMembers(groupId, memberUsers);
+            Set<String> groupParents = new HashSet<String>();
+            if (parentGroups != null) {
+                groupParents.addAll(parentGroups);
+            }
+            Set<String> groupChildren = new HashSet<String>();
+            if (subGroups != null) {
+                groupChildren.addAll(subGroups);
+            }
+            groupParents.remove(groupId);
+            groupChildren.remove(groupId);
+            groups.add(groupId);
+            parents.put(groupId, groupParents);
+            children.put(groupId, groupChildren);
+            for (String parent : groupParents) {
+                getOrCreate(children, parent).add(groupId);
+            }
+            for (String child : groupChildren) {
+                getOrCreate(parents, child).add(groupId);
+            }
+            impacted.addAll(walk(groupId, children));
+            closures.keySet().removeAll(impacted);
+            impactedParents.addAll(walk(groupId, parents));
+            userClosures.keySet().removeAll(impactedParents);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a deleted group and all its relations.
+     */
+    public void removeGroup(String groupId) {
+        lock.writeLock().lock();
+        try {
+            Set<String> impacted = walk(groupId, children);
+            Set<String> impactedParents = walk(groupId, parents);
+            unlink(groupId);
+            setMembers(groupId, null);
+            groups.remove(groupId);
+            parents.remove(groupId);
+            children.remove(groupId);
+            members.remove(groupId);
+            closures.keySet().removeAll(impacted);
+            userClosures.keySet().removeAll(impactedParents);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the groups a user is a direct member of, as stored in the
+     * directory.
+     */
+    public void updateUser(String userId, Collection<String> groupIds) {
+        lock.writeLock().lock();
+        try {
+            Set<String> impacted = new HashSet<String>();
+            Set<String> oldGroups = userGroups.remove(userId);
+            if (oldGroups != null) {
+                for (String group : oldGroups) {
+                    Set<String> groupMembers = members.get(group);
+                    if (groupMembers != null) {
+                        groupMembers.remove(userId);
+                    }
+                    impacted.addAll(walk(group, parents));
+                }
+            }
+            if (groupIds != null && !groupIds.isEmpty()) {
+                userGroups.put(userId, new HashSet<String>(groupIds));
+                for (String group : groupIds) {
+                    getOrCreate(members, group).add(userId);
+                    impacted.addAll(walk(group, parents));
+                }
+            }
+            userClosures.keySet().removeAll(impacted);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a deleted user from all its groups.
+     */
+    public void removeUser(String userId) {
+        updateUser(userId, null);
+    }
+
+    /**
+     * Replaces the direct members of a group, on both sides. Called with the
+     * write lock held.
+     */
+    protected void setMembers(String groupId, Collection<String> memberUsers) {
+        Set<String> oldMembers = members.remove(groupId);
+        if (oldMembers != null) {
+            for (String user : oldMembers) {
+                Set<String> set = userGroups.get(user);
+                if (set != null) {
+                    set.remove(groupId);
+                    if (set.isEmpty()) {
+                        userGroups.remove(user);
+                    }
+                }
+            }
+        }
+        if (memberUsers != null && !memberUsers.isEmpty()) {
+            members.put(groupId, new HashSet<String>(memberUsers));
+            for (String user : memberUsers) {
+                getOrCreate(userGroups, user).add(groupId);
+            }
+        }
+    }
+
+    /**
+     * Removes the relations between a group and its direct parents and
+     * sub-groups, on both sides. Called with the write lock held.
+     */
+    protected void unlink(String groupId) {
+        Set<String> groupParents = parents.get(groupId);
+        if (groupParents != null) {
+            for (String parent : groupParents) {
+                Set<String> set = children.get(parent);
+                if (set != null) {
+                    set.remove(groupId);
+                }
+            }
+            groupParents.clear();
+        }
+        Set<String> groupChildren = children.get(groupId);
+        if (groupChildren != null) {
+            for (String child : groupChildren) {
+                Set<String> set = parents.get(child);
+                if (set != null) {
+                    set.remove(groupId);
+                }
+            }
+            groupChildren.clear();
+        }
+    }
+
+    /**
+     * Collects the known groups reachable from a group following the given
+     * relation, including the group itself if it is known. Cycles are
+     * tolerated. Called with the lock held.
+     */
+    protected Set<String> walk(String groupId, Map<String, Set<String>> relation) {
+        Set<String> result = new HashSet<String>();
+        Deque<String> toProcess = new ArrayDeque<String>();
+        toProcess.add(groupId);
+        while (!toProcess.isEmpty()) {
+            String id = toProcess.poll();
+            if (!groups.contains(id) || !result.add(id)) {
+                continue;
+            }
+            Set<String> next = relation.get(id);
+            if (next != null) {
+                toProcess.addAll(next);
+            }
+        }
+        return result;
+    }
+
+    protected static Set<String> getOrCreate(Map<String, Set<String>> map,
+            String key) {
+        Set<String> set = map.get(key);
+        if (set == null) {
+            set = new HashSet<String>();
+            map.put(key, set);
+        }
+        return set;
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.usermanager;
+
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * Implemented by the user managers able to maintain a {@link GroupHierarchy},
+ * used to compute the groups of the principals without walking the group
+ * directory.
+ *
+ * @since 7.1
+ */
+public interface GroupHierarchyProvider {
+
+    /**
+     * Returns the index of the group hierarchy.
+     *
+     * @return the index, or {@code null} if no index is maintained
+     */
+    GroupHierarchy getGroupHierarchy() throws ClientException;
+
+}
@@ -28,10 +28,16 @@
  */
 package org.nuxeo.ecm.platform.usermanager;
 
+import java.io.Serializable;
 import java.security.Principal;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -346,15 +352,26 @@ public class NuxeoPrincipalImpl implements NuxeoPrincipal {
         } catch (Exception e) {
             throw new ClientException(e);
         }
+        GroupHierarchy hierarchy = null;
+        if (userManager instanceof GroupHierarchyProvider) {
+            hierarchy = ((GroupHierarchyProvider) userManager).getGroupHierarchy();
+        }
         Set<String> checkedGroups = new HashSet<String>();
-        List<String> groupsToProcess = new ArrayList<String>();
-        List<String> resultingGroups = new ArrayList<String>();
+        Deque<String> groupsToProcess = new ArrayDeque<String>();
+        Set<String> resultingGroups = new LinkedHashSet<String>();
         groupsToProcess.addAll(getGroups());
 
         while (!groupsToProcess.isEmpty()) {
-            String groupName = groupsToProcess.remove(0);
+            String groupName = groupsToProcess.poll();
             if (!checkedGroups.contains(groupName)) {
                 checkedGroups.add(groupName);
+                if (hierarchy != null && hierarchy.hasGroup(groupName)) {
+                    // the index already knows all the ancestors
+                    Set<String> ancestors = hierarchy.getAncestorsAndSelf(groupName);
+                    checkedGroups.addAll(ancestors);
+                    resultingGroups.addAll(ancestors);
+                    continue;
+                }
                 NuxeoGroup nxGroup = null;
                 if (userManager != null) {
                     try {
@@ -396,14 +413,14 @@ public class NuxeoPrincipalImpl implements NuxeoPrincipal {
             }
         }
 
-        allGroups = new ArrayList<String>(resultingGroups);
+        allGroups = new GroupList(resultingGroups);
 
         // set isAdministrator boolean according to groups declared on user
         // manager
         if (!isAdministrator() && userManager != null) {
             List<String> adminGroups = userManager.getAdministratorsGroups();
             for (String adminGroup : adminGroups) {
-                if (allGroups.contains(adminGroup)) {
+                if (resultingGroups.contains(adminGroup)) {
                     isAdministrator = true;
                     break;
                 }
@@ -483,4 +500,62 @@ public class NuxeoPrincipalImpl implements NuxeoPrincipal {
         return getOriginatingUser() == null ? getName() : getOriginatingUser();
     }
 
+    /**
+     * List of groups answering {@link #contains} from a hash of its content,
+     * dropped whenever the list is modified.
+     *
+     * @since 7.1
+     */
+    protected static class GroupList extends AbstractList<String> implements
+            Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final ArrayList<String> groups;
+
+        protected transient Set<String> groupSet;
+
+        protected GroupList(Collection<String> groups) {
+            this.groups = new ArrayList<String>(groups);
+        }
+
+        @Override
+        public String get(int index) {
+            return groups.get(index);
+        }
+
+        @Override
+        public int size() {
+            return groups.size();
+        }
+
+        @Override
+        public String set(int index, String group) {
+            groupSet = null;
+            return groups.set(index, group);
+        }
+
+        @Override
+        public void add(int index, String group) {
+            groupSet = null;
+            groups.add(index, group);
+        }
+
+        @Override
+        public String remove(int index) {
+            groupSet = null;
+            return groups.remove(index);
+        }
+
+        @Override
+        public boolean contains(Object group) {
+            Set<String> set = groupSet;
+            if (set == null) {
+                set = new HashSet<String>(groups);
+                groupSet = set;
+            }
+            return set.contains(group);
+        }
+    }
+
 }
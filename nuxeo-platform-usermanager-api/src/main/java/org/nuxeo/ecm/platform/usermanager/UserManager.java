@@ -45,6 +45,44 @@ import org.nuxeo.runtime.services.event.EventListener;
  */
 public interface UserManager extends Authenticator, EventListener, Serializable {
 
+    /**
+     * Topic of the events sent when users or groups change.
+     *
+     * @since 7.1
+     */
+    String USERMANAGER_TOPIC = "usermanager";
+
+    /**
+     * Event sent with the user name when a user changes. Used by
+     * JaasCacheFlusher.
+     *
+     * @since 7.1
+     */
+    String USERCHANGED_EVENT_ID = "user_changed";
+
+    /**
+     * Event sent with the group name when a group changes. Used by
+     * JaasCacheFlusher.
+     *
+     * @since 7.1
+     */
+    String GROUPCHANGED_EVENT_ID = "group_changed";
+
+    /**
+     * Event sent with the user name to invalidate the cached principal of a
+     * user.
+     *
+     * @since 7.1
+     */
+    String INVALIDATE_PRINCIPAL_EVENT_ID = "invalidatePrincipal";
+
+    /**
+     * Event sent to invalidate all the cached principals.
+     *
+     * @since 7.1
+     */
+    String INVALIDATE_ALL_PRINCIPALS_EVENT_ID = "invalidateAllPrincipals";
+
     enum MatchType {
         EXACT, SUBSTRING
     }
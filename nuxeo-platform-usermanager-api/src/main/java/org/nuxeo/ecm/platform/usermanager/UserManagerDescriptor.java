@@ -117,6 +117,47 @@ public class UserManagerDescriptor implements Serializable {
         setSubstringMatchUserSearchFields(fields);
     }
 
+    /**
+     * Keeps the search fields of all the users in memory to answer pattern
+     * searches. Only suitable when the users are only modified through the
+     * user manager.
+     *
+     * @since 7.1
+     */
+    @XNode("users/searchIndex")
+    public Boolean userSearchIndex;
+
+    /**
+     * How the user search index matches substring match search fields:
+     * {@code subinitial} (default), {@code subfinal} or {@code subany}.
+     *
+     * @since 7.1
+     */
+    @XNode("users/searchIndex@substringMatchType")
+    public String userSearchIndexMatchType;
+
+    /**
+     * Maximum number of users a pattern search of the user search index may
+     * return, like the {@code querySizeLimit} of the user directory. Larger
+     * results fail with a
+     * {@link org.nuxeo.ecm.directory.SizeLimitExceededException}. 0
+     * (default) means no limit.
+     *
+     * @since 7.1
+     */
+    @XNode("users/searchIndex@querySizeLimit")
+    public Integer userSearchIndexQuerySizeLimit;
+
+    /**
+     * Whether the user search index compares exact match search fields
+     * ignoring case, like LDAP directories (default), or not, like SQL
+     * directories on a case-sensitive database.
+     *
+     * @since 7.1
+     */
+    @XNode("users/searchIndex@ignoreCase")
+    public Boolean userSearchIndexIgnoreCase;
+
     public Pattern userPasswordPattern;
 
     @XNode("userPasswordPattern")
@@ -148,6 +189,58 @@ public class UserManagerDescriptor implements Serializable {
     @XNode("groups/listingMode")
     public String groupListingMode;
 
+    /**
+     * Keeps the group hierarchy in memory. Only suitable when the users and
+     * groups are only modified through the user manager, and on a single
+     * node: the index is updated when the changes commit on this node, other
+     * cluster nodes are not notified.
+     *
+     * @since 7.1
+     */
+    @XNode("groups/hierarchyIndex")
+    public Boolean groupHierarchyIndex;
+
+    /**
+     * Keeps the search fields of all the groups in memory to answer pattern
+     * searches. Only suitable when the groups are only modified through the
+     * user manager.
+     *
+     * @since 7.1
+     */
+    @XNode("groups/searchIndex")
+    public Boolean groupSearchIndex;
+
+    /**
+     * How the group search index matches substring match search fields:
+     * {@code subinitial} (default), {@code subfinal} or {@code subany}.
+     *
+     * @since 7.1
+     */
+    @XNode("groups/searchIndex@substringMatchType")
+    public String groupSearchIndexMatchType;
+
+    /**
+     * Maximum number of groups a pattern search of the group search index
+     * may return, like the {@code querySizeLimit} of the group directory.
+     * Larger results fail with a
+     * {@link org.nuxeo.ecm.directory.SizeLimitExceededException}. 0
+     * (default) means no limit.
+     *
+     * @since 7.1
+     */
+    @XNode("groups/searchIndex@querySizeLimit")
+    public Integer groupSearchIndexQuerySizeLimit;
+
+    /**
+     * Whether the group search index compares exact match search fields
+     * ignoring case, like LDAP directories (default), or not, like SQL
+     * directories on a case-sensitive database.
+     *
+     * @since 7.1
+     */
+    @XNode("groups/searchIndex@ignoreCase")
+    public Boolean groupSearchIndexIgnoreCase;
+
     public boolean groupSearchFieldsPresent = false;
 
     @XNode("groups/searchFields")
@@ -184,6 +277,23 @@ public class UserManagerDescriptor implements Serializable {
     @XNode("userCacheName")
     public String userCacheName;
 
+    /**
+     * Maximum number of successful password verifications kept in memory.
+     *
+     * @since 7.1
+     */
+    @XNode("authenticationCache@maxSize")
+    public Integer authenticationCacheMaxSize;
+
+    /**
+     * Time to live in seconds of the cached password verifications. The
+     * cache is disabled unless both this and the maximum size are positive.
+     *
+     * @since 7.1
+     */
+    @XNode("authenticationCache@ttl")
+    public Integer authenticationCacheTTL;
+
     /**
      * Merge with data from another descriptor.
      */
@@ -194,6 +304,12 @@ public class UserManagerDescriptor implements Serializable {
         if (other.userCacheName != null) {
             userCacheName = other.userCacheName;
         }
+        if (other.authenticationCacheMaxSize != null) {
+            authenticationCacheMaxSize = other.authenticationCacheMaxSize;
+        }
+        if (other.authenticationCacheTTL != null) {
+            authenticationCacheTTL = other.authenticationCacheTTL;
+        }
         if (other.userListingMode != null) {
             userListingMode = other.userListingMode;
         }
@@ -263,6 +379,33 @@ public class UserManagerDescriptor implements Serializable {
         if (other.groupParentGroupsField != null) {
             groupParentGroupsField = other.groupParentGroupsField;
         }
+        if (other.groupHierarchyIndex != null) {
+            groupHierarchyIndex = other.groupHierarchyIndex;
+        }
+        if (other.userSearchIndex != null) {
+            userSearchIndex = other.userSearchIndex;
+        }
+        if (other.userSearchIndexMatchType != null) {
+            userSearchIndexMatchType = other.userSearchIndexMatchType;
+        }
+        if (other.userSearchIndexQuerySizeLimit != null) {
+            userSearchIndexQuerySizeLimit = other.userSearchIndexQuerySizeLimit;
+        }
+        if (other.userSearchIndexIgnoreCase != null) {
+            userSearchIndexIgnoreCase = other.userSearchIndexIgnoreCase;
+        }
+        if (other.groupSearchIndex != null) {
+            groupSearchIndex = other.groupSearchIndex;
+        }
+        if (other.groupSearchIndexMatchType != null) {
+            groupSearchIndexMatchType = other.groupSearchIndexMatchType;
+        }
+        if (other.groupSearchIndexQuerySizeLimit != null) {
+            groupSearchIndexQuerySizeLimit = other.groupSearchIndexQuerySizeLimit;
+        }
+        if (other.groupSearchIndexIgnoreCase != null) {
+            groupSearchIndexIgnoreCase = other.groupSearchIndexIgnoreCase;
+        }
         if (other.groupSearchFieldsPresent) {
             if (other.groupSearchFieldsAppend) {
                 groupSearchFields.putAll(other.groupSearchFields);
@@ -19,6 +19,9 @@
 
 package org.nuxeo.ecm.platform.usermanager;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -65,4 +68,22 @@ public class TestNuxeoPrincipalImpl extends NXRuntimeTestCase {
         // different names, as that doesn't have to be true
     }
 
+    @Test
+    public void testIsMemberOfAfterGroupsChange() throws Exception {
+        NuxeoPrincipalImpl a = new NuxeoPrincipalImpl("foo");
+        a.setVirtualGroups(Arrays.asList("g1", "g2"), true);
+        assertTrue(a.isMemberOf("g1"));
+        assertFalse(a.isMemberOf("g3"));
+        // the groups list can be modified in place
+        a.allGroups.set(0, "g3");
+        assertTrue(a.isMemberOf("g3"));
+        assertFalse(a.isMemberOf("g1"));
+        a.allGroups.add("g4");
+        assertTrue(a.isMemberOf("g4"));
+        // or replaced by a list of the same size
+        a.allGroups = new ArrayList<String>(Arrays.asList("g5", "g6", "g7"));
+        assertTrue(a.isMemberOf("g5"));
+        assertFalse(a.isMemberOf("g2"));
+    }
+
 }
@@ -0,0 +1,257 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.usermanager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.platform.usermanager.UserManager.MatchType;
+
+/**
+ * In-memory index of the search fields of all the entries of a user or group
+ * directory, answering the pattern searches of the user manager without any
+ * directory query.
+ * <p>
+ * Lowercased values are split into trigrams, and the entries having all the
+ * trigrams of a pattern are then checked against it like the directory
+ * does: exact match fields must be equal to the pattern, ignoring case if
+ * the directory does, substring match fields must contain it,
+ * ignoring case, at the position given by the substring match type. Patterns
+ * shorter than a trigram are checked against all the entries.
+ *
+ * @since 7.1
+ */
+public class DirectorySearchIndex {
+
+    public enum SubstringMatchType {
+        subinitial, subfinal, subany
+    }
+
+    protected static final int GRAM_SIZE = 3;
+
+    protected final String schemaName;
+
+    protected final Map<String, MatchType> searchFields;
+
+    protected final SubstringMatchType substringMatchType;
+
+    protected final boolean ignoreCase;
+
+    /** Entry id to the values of its search fields. */
+    protected final Map<String, Map<String, String>> entries = new HashMap<String, Map<String, String>>();
+
+    /** Lowercased trigram to the ids of the entries having it in a value. */
+    protected final Map<String, Set<String>> grams = new HashMap<String, Set<String>>();
+
+    protected final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * @param ignoreCase whether exact match fields are compared ignoring case
+     */
+    public DirectorySearchIndex(String schemaName,
+            Map<String, MatchType> searchFields,
+            SubstringMatchType substringMatchType, boolean ignoreCase) {
+        this.schemaName = schemaName;
+        this.searchFields = new LinkedHashMap<String, MatchType>(searchFields);
+        this.substringMatchType = substringMatchType == null ? SubstringMatchType.subinitial
+                : substringMatchType;
+        this.ignoreCase = ignoreCase;
+    }
+
+    /**
+     * Adds or replaces an entry, reading its search fields.
+     */
+    public void updateEntry(DocumentModel entry) throws ClientException {
+        Map<String, String> values = new HashMap<String, String>();
+        for (String field : searchFields.keySet()) {
+            Object value = entry.getProperty(schemaName, field);
+            if (value instanceof String) {
+                values.put(field, (String) value);
+            } else if (value != null && !(value instanceof Object[])
+                    && !(value instanceof List)) {
+                values.put(field, value.toString());
+            }
+        }
+        updateEntry(entry.getId(), values);
+    }
+
+    /**
+     * Adds or replaces an entry.
+     *
+     * @param id the entry id
+     * @param values the values of the search fields of the entry
+     */
+    public void updateEntry(String id, Map<String, String> values) {
+        lock.writeLock().lock();
+        try {
+            removeEntryLocked(id);
+            entries.put(id, values);
+            for (String gram : getGrams(values.values())) {
+                Set<String> ids = grams.get(gram);
+                if (ids == null) {
+                    ids = new HashSet<String>();
+                    grams.put(gram, ids);
+                }
+                ids.add(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeEntry(String id) {
+        lock.writeLock().lock();
+        try {
+            removeEntryLocked(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    protected void removeEntryLocked(String id) {
+        Map<String, String> values = entries.remove(id);
+        if (values == null) {
+            return;
+        }
+        for (String gram : getGrams(values.values())) {
+            Set<String> ids = grams.get(gram);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    grams.remove(gram);
+                }
+            }
+        }
+    }
+
+    protected static Set<String> getGrams(Iterable<String> values) {
+        Set<String> result = new HashSet<String>();
+        for (String value : values) {
+            String lower = value.toLowerCase(Locale.ENGLISH);
+            for (int i = 0; i + GRAM_SIZE <= lower.length(); i++) {
+                result.add(lower.substring(i, i + GRAM_SIZE));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the ids of the entries matching a pattern on any search field.
+     */
+    public List<String> search(String pattern) {
+        String lower = pattern.toLowerCase(Locale.ENGLISH);
+        lock.readLock().lock();
+        try {
+            Set<String> candidates = getCandidates(lower);
+            List<String> ids = new ArrayList<String>();
+            for (String id : candidates) {
+                if (matches(entries.get(id), pattern, lower)) {
+                    ids.add(id);
+                }
+            }
+            return ids;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Called under read lock. */
+    protected Set<String> getCandidates(String lower) {
+        if (lower.length() < GRAM_SIZE) {
+            return entries.keySet();
+        }
+        // intersect the entries of all the trigrams, smallest set first
+        List<Set<String>> sets = new ArrayList<Set<String>>();
+        for (String gram : getGrams(Collections.singleton(lower))) {
+            Set<String> ids = grams.get(gram);
+            if (ids == null) {
+                return Collections.emptySet();
+            }
+            sets.add(ids);
+        }
+        Set<String> smallest = sets.get(0);
+        for (Set<String> ids : sets) {
+            if (ids.size() < smallest.size()) {
+                smallest = ids;
+            }
+        }
+        Set<String> candidates = new HashSet<String>(smallest);
+        for (Set<String> ids : sets) {
+            if (ids != smallest) {
+                candidates.retainAll(ids);
+            }
+        }
+        return candidates;
+    }
+
+    protected boolean matches(Map<String, String> values, String pattern,
+            String lower) {
+        for (Entry<String, MatchType> es : searchFields.entrySet()) {
+            String value = values.get(es.getKey());
+            if (value == null) {
+                continue;
+            }
+            String lowerValue = value.toLowerCase(Locale.ENGLISH);
+            if (es.getValue() == MatchType.EXACT) {
+                if (ignoreCase ? lowerValue.equals(lower)
+                        : value.equals(pattern)) {
+                    return true;
+                }
+                continue;
+            }
+            switch (substringMatchType) {
+            case subinitial:
+                if (lowerValue.startsWith(lower)) {
+                    return true;
+                }
+                break;
+            case subfinal:
+                if (lowerValue.endsWith(lower)) {
+                    return true;
+                }
+                break;
+            default:
+                if (lowerValue.contains(lower)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+}
@@ -24,17 +24,27 @@ import java.io.Serializable;
 import java.security.Principal;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.naming.NamingException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
@@ -55,28 +65,37 @@ import org.nuxeo.ecm.core.api.security.SecurityConstants;
 import org.nuxeo.ecm.core.cache.Cache;
 import org.nuxeo.ecm.core.cache.CacheService;
 import org.nuxeo.ecm.directory.BaseSession;
+import org.nuxeo.ecm.directory.DirectoryEntrySnapshot;
 import org.nuxeo.ecm.directory.DirectoryException;
+import org.nuxeo.ecm.directory.EntryCursor;
 import org.nuxeo.ecm.directory.Session;
+import org.nuxeo.ecm.directory.SizeLimitExceededException;
 import org.nuxeo.ecm.directory.api.DirectoryService;
+import org.nuxeo.ecm.platform.usermanager.DirectorySearchIndex.SubstringMatchType;
 import org.nuxeo.ecm.platform.usermanager.exceptions.GroupAlreadyExistsException;
 import org.nuxeo.ecm.platform.usermanager.exceptions.UserAlreadyExistsException;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.reload.ReloadEventNames;
 import org.nuxeo.runtime.services.event.Event;
 import org.nuxeo.runtime.services.event.EventService;
+import org.nuxeo.runtime.transaction.TransactionHelper;
 
 /**
  * Standard implementation of the Nuxeo UserManager.
  */
-public class UserManagerImpl implements UserManager, MultiTenantUserManager {
+public class UserManagerImpl implements UserManager, MultiTenantUserManager,
+        GroupHierarchyProvider {
 
     private static final long serialVersionUID = 1L;
 
     private static final Log log = LogFactory.getLog(UserManagerImpl.class);
 
-    public static final String USERMANAGER_TOPIC = "usermanager";
-
-    /** Used by JaasCacheFlusher. */
-    public static final String USERCHANGED_EVENT_ID = "user_changed";
+    /**
+     * Topic of the hot reload events.
+     *
+     * @since 7.1
+     */
+    public static final String RELOAD_TOPIC = "org.nuxeo.runtime.reload";
 
     public static final String USERCREATED_EVENT_ID = "user_created";
 
@@ -84,9 +103,6 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
 
     public static final String USERMODIFIED_EVENT_ID = "user_modified";
 
-    /** Used by JaasCacheFlusher. */
-    public static final String GROUPCHANGED_EVENT_ID = "group_changed";
-
     public static final String GROUPCREATED_EVENT_ID = "group_created";
 
     public static final String GROUPDELETED_EVENT_ID = "group_deleted";
@@ -97,16 +113,19 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
 
     public static final String VIRTUAL_FIELD_FILTER_PREFIX = "__";
 
-    public static final String INVALIDATE_PRINCIPAL_EVENT_ID = "invalidatePrincipal";
-
-    public static final String INVALIDATE_ALL_PRINCIPALS_EVENT_ID = "invalidateAllPrincipals";
-
     protected final DirectoryService dirService;
 
     protected final CacheService cacheService;
 
     protected Cache principalCache = null;
 
+    /**
+     * Successful password verifications, {@code null} if not configured.
+     *
+     * @since 7.1
+     */
+    protected VerifiedCredentialsCache credentialsCache;
+
     public UserMultiTenantManagement multiTenantManagement = new DefaultUserMultiTenantManagement();
 
     /**
@@ -168,6 +187,77 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
 
     protected final Map<String, VirtualUserDescriptor> virtualUsers;
 
+    protected boolean groupHierarchyIndex;
+
+    /**
+     * Index of the group hierarchy, loaded on first use when enabled.
+     *
+     * @since 7.1
+     */
+    protected volatile GroupHierarchy groupHierarchy;
+
+    /**
+     * Counts the committed user and group changes, to detect the ones
+     * happening while the group hierarchy index loads.
+     *
+     * @since 7.1
+     */
+    protected final AtomicLong groupHierarchyChanges = new AtomicLong();
+
+    protected boolean userSearchIndexEnabled;
+
+    protected SubstringMatchType userSearchIndexMatchType;
+
+    protected int userSearchIndexQuerySizeLimit;
+
+    protected boolean userSearchIndexIgnoreCase;
+
+    /**
+     * Index of the user search fields, loaded on first use when enabled.
+     *
+     * @since 7.1
+     */
+    protected volatile DirectorySearchIndex userSearchIndex;
+
+    /**
+     * Counts the committed user changes, to detect the ones happening while
+     * the user search index loads.
+     *
+     * @since 7.1
+     */
+    protected final AtomicLong userSearchIndexChanges = new AtomicLong();
+
+    protected boolean groupSearchIndexEnabled;
+
+    protected SubstringMatchType groupSearchIndexMatchType;
+
+    protected int groupSearchIndexQuerySizeLimit;
+
+    protected boolean groupSearchIndexIgnoreCase;
+
+    /**
+     * Index of the group search fields, loaded on first use when enabled.
+     *
+     * @since 7.1
+     */
+    protected volatile DirectorySearchIndex groupSearchIndex;
+
+    /**
+     * Counts the committed group changes, to detect the ones happening while
+     * the group search index loads.
+     *
+     * @since 7.1
+     */
+    protected final AtomicLong groupSearchIndexChanges = new AtomicLong();
+
+    /**
+     * Cache of the leaf permissions of each permission, cleared on hot reload
+     * as the permission registry may have changed.
+     *
+     * @since 7.1
+     */
+    protected final Map<String, Set<String>> leafPermissions = new ConcurrentHashMap<String, Set<String>>();
+
     public UserManagerImpl() {
         dirService = Framework.getLocalService(DirectoryService.class);
         cacheService = Framework.getLocalService(CacheService.class);
@@ -207,6 +297,21 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
         groupSubGroupsField = descriptor.groupSubGroupsField;
         groupParentGroupsField = descriptor.groupParentGroupsField;
         groupSearchFields = descriptor.groupSearchFields;
+        groupHierarchyIndex = Boolean.TRUE.equals(descriptor.groupHierarchyIndex);
+        groupHierarchy = null;
+        userSearchIndexEnabled = Boolean.TRUE.equals(descriptor.userSearchIndex);
+        userSearchIndexMatchType = getSubstringMatchType(descriptor.userSearchIndexMatchType);
+        userSearchIndexQuerySizeLimit = descriptor.userSearchIndexQuerySizeLimit == null ? 0
+                : descriptor.userSearchIndexQuerySizeLimit.intValue();
+        userSearchIndexIgnoreCase = !Boolean.FALSE.equals(descriptor.userSearchIndexIgnoreCase);
+        userSearchIndex = null;
+        groupSearchIndexEnabled = Boolean.TRUE.equals(descriptor.groupSearchIndex);
+        groupSearchIndexMatchType = getSubstringMatchType(descriptor.groupSearchIndexMatchType);
+        groupSearchIndexQuerySizeLimit = descriptor.groupSearchIndexQuerySizeLimit == null ? 0
+                : descriptor.groupSearchIndexQuerySizeLimit.intValue();
+        groupSearchIndexIgnoreCase = !Boolean.FALSE.equals(descriptor.groupSearchIndexIgnoreCase);
+        groupSearchIndex = null;
+        leafPermissions.clear();
         anonymousUser = descriptor.anonymousUser;
 
         setUserDirectoryName(descriptor.userDirectoryName);
@@ -225,6 +330,16 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
             principalCache = cacheService.getCache(descriptor.userCacheName);
         }
 
+        Integer cacheMaxSize = descriptor.authenticationCacheMaxSize;
+        Integer cacheTTL = descriptor.authenticationCacheTTL;
+        if (cacheMaxSize != null && cacheMaxSize.intValue() > 0
+                && cacheTTL != null && cacheTTL.intValue() > 0) {
+            credentialsCache = new VerifiedCredentialsCache(
+                    cacheMaxSize.intValue(), 1000L * cacheTTL.intValue());
+        } else {
+            credentialsCache = null;
+        }
+
     }
 
     protected void setUserDirectoryName(String userDirectoryName)
@@ -378,6 +493,11 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
             return expected.equals(password);
         }
 
+        if (credentialsCache != null
+                && credentialsCache.isVerified(username, password)) {
+            return true;
+        }
+
         Session userDir = null;
         try {
             String userDirName;
@@ -399,6 +519,9 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
             boolean authenticated = userDir.authenticate(username, password);
             if (authenticated) {
                 syncDigestAuthPassword(username, password);
+                if (credentialsCache != null) {
+                    credentialsCache.put(username, password);
+                }
             }
             return authenticated;
         } finally {
@@ -597,12 +720,28 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
 
     protected NuxeoGroup getGroup(String groupName, DocumentModel context)
             throws ClientException {
-        DocumentModel groupEntry = getGroupModel(groupName, context);
-        if (groupEntry != null) {
-            return makeGroup(groupEntry);
+        String groupId = multiTenantManagement.groupnameTranformer(this,
+                groupName, context);
+        if (groupId != null) {
+            groupId = groupId.trim();
+        }
+        Session groupDir = null;
+        try {
+            groupDir = dirService.open(groupDirectoryName, context);
+            if (groupDir instanceof BaseSession) {
+                // read-only use, the cached entry is read without building
+                // a document model
+                DirectoryEntrySnapshot groupEntry = ((BaseSession) groupDir).getEntrySnapshot(
+                        groupId, true);
+                return groupEntry == null ? null : makeGroup(groupEntry);
+            }
+            DocumentModel groupEntry = groupDir.getEntry(groupId);
+            return groupEntry == null ? null : makeGroup(groupEntry);
+        } finally {
+            if (groupDir != null) {
+                groupDir.close();
+            }
         }
-        return null;
-
     }
 
     @Override
@@ -653,6 +792,34 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
         return group;
     }
 
+    /**
+     * Makes a group from a read-only entry, copying the values that the group
+     * may modify.
+     *
+     * @since 7.1
+     */
+    @SuppressWarnings("unchecked")
+    protected NuxeoGroup makeGroup(DirectoryEntrySnapshot groupEntry) {
+        NuxeoGroup group = new NuxeoGroupImpl(groupEntry.getId());
+        List<String> list = (List<String>) groupEntry.getValue(groupMembersField);
+        if (list != null) {
+            group.setMemberUsers(new ArrayList<String>(list));
+        }
+        list = (List<String>) groupEntry.getValue(groupSubGroupsField);
+        if (list != null) {
+            group.setMemberGroups(new ArrayList<String>(list));
+        }
+        list = (List<String>) groupEntry.getValue(groupParentGroupsField);
+        if (list != null) {
+            group.setParentGroups(new ArrayList<String>(list));
+        }
+        String label = (String) groupEntry.getValue(groupLabelField);
+        if (label != null) {
+            group.setLabel(label);
+        }
+        return group;
+    }
+
     @Override
     public List<String> getTopLevelGroups() throws ClientException {
         return getTopLevelGroups(null);
@@ -678,17 +845,450 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
     protected void appendSubgroups(String groupId, Set<String> groups,
             DocumentModel context) throws ClientException {
         List<String> groupsToAppend = getGroupsInGroup(groupId, context);
-        groups.addAll(groupsToAppend);
         for (String subgroupId : groupsToAppend) {
-            groups.add(subgroupId);
             // avoiding infinite loop
-            if (!groups.contains(subgroupId)) {
+            if (groups.add(subgroupId)) {
                 appendSubgroups(subgroupId, groups, context);
             }
         }
 
     }
 
+    @Override
+    public GroupHierarchy getGroupHierarchy() throws ClientException {
+        if (!groupHierarchyIndex) {
+            return null;
+        }
+        GroupHierarchy hierarchy = groupHierarchy;
+        if (hierarchy == null) {
+            synchronized (this) {
+                hierarchy = groupHierarchy;
+                if (hierarchy == null) {
+                    long changes = groupHierarchyChanges.get();
+                    hierarchy = loadGroupHierarchy();
+                    groupHierarchy = hierarchy;
+                    if (groupHierarchyChanges.get() != changes) {
+                        // a user or group changed during the load, it may
+                        // have been read before: only use it for this call
+                        groupHierarchy = null;
+                    }
+                }
+            }
+        }
+        return hierarchy;
+    }
+
+    /**
+     * Reads the parent groups, sub-groups and members of all the groups.
+     *
+     * @since 7.1
+     */
+    protected GroupHierarchy loadGroupHierarchy() throws ClientException {
+        GroupHierarchy hierarchy = new GroupHierarchy();
+        Session groupDir = null;
+        try {
+            groupDir = dirService.open(groupDirectoryName);
+            DocumentModelList groups = groupDir.query(
+                    Collections.<String, Serializable> emptyMap(), null, null,
+                    true);
+            for (DocumentModel group : groups) {
+                updateGroupHierarchy(hierarchy, group);
+            }
+        } finally {
+            if (groupDir != null) {
+                groupDir.close();
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Loaded group hierarchy of directory "
+                    + groupDirectoryName);
+        }
+        return hierarchy;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void updateGroupHierarchy(GroupHierarchy hierarchy,
+            DocumentModel groupEntry) throws ClientException {
+        hierarchy.updateGroup(groupEntry.getId(),
+                (List<String>) groupEntry.getProperty(groupSchemaName,
+                        groupParentGroupsField),
+                (List<String>) groupEntry.getProperty(groupSchemaName,
+                        groupSubGroupsField),
+                (List<String>) groupEntry.getProperty(groupSchemaName,
+                        groupMembersField));
+    }
+
+    /**
+     * Re-reads the groups of a created, modified or deleted user into the
+     * group hierarchy index, if it is loaded, once the current transaction
+     * commits.
+     *
+     * @since 7.1
+     */
+    protected void updateGroupMemberships(final String userName) {
+        if (!groupHierarchyIndex || userName == null) {
+            return;
+        }
+        runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                groupHierarchyChanges.incrementAndGet();
+                GroupHierarchy hierarchy = groupHierarchy;
+                if (hierarchy == null) {
+                    return;
+                }
+                try {
+                    updateGroupMemberships(hierarchy, userName);
+                } catch (ClientException e) {
+                    log.error("Cannot update the group hierarchy of user "
+                            + userName + ", dropping it", e);
+                    groupHierarchy = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Re-reads the groups of a user into the group hierarchy index.
+     *
+     * @since 7.1
+     */
+    @SuppressWarnings("unchecked")
+    protected void updateGroupMemberships(GroupHierarchy hierarchy,
+            String userName) throws ClientException {
+        Session userDir = null;
+        try {
+            userDir = dirService.open(userDirectoryName);
+            DocumentModel userEntry = userDir.getEntry(userName);
+            if (userEntry == null) {
+                hierarchy.removeUser(userName);
+            } else {
+                hierarchy.updateUser(userName,
+                        (List<String>) userEntry.getProperty(userSchemaName,
+                                userConfig.groupsKey));
+            }
+        } finally {
+            if (userDir != null) {
+                userDir.close();
+            }
+        }
+    }
+
+    /**
+     * Re-reads a created, modified or deleted group into the group hierarchy
+     * index, if it is loaded, once the current transaction commits.
+     *
+     * @since 7.1
+     */
+    protected void updateGroupHierarchy(final String groupName) {
+        if (!groupHierarchyIndex || groupName == null) {
+            return;
+        }
+        runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                groupHierarchyChanges.incrementAndGet();
+                GroupHierarchy hierarchy = groupHierarchy;
+                if (hierarchy == null) {
+                    return;
+                }
+                try {
+                    updateGroupHierarchy(hierarchy, groupName);
+                } catch (ClientException e) {
+                    log.error("Cannot update the group hierarchy of group "
+                            + groupName + ", dropping it", e);
+                    groupHierarchy = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Re-reads a group into the group hierarchy index.
+     *
+     * @since 7.1
+     */
+    protected void updateGroupHierarchy(GroupHierarchy hierarchy,
+            String groupName) throws ClientException {
+        Session groupDir = null;
+        try {
+            groupDir = dirService.open(groupDirectoryName);
+            DocumentModel groupEntry = groupDir.getEntry(groupName);
+            if (groupEntry == null) {
+                hierarchy.removeGroup(groupName);
+            } else {
+                updateGroupHierarchy(hierarchy, groupEntry);
+            }
+        } finally {
+            if (groupDir != null) {
+                groupDir.close();
+            }
+        }
+    }
+
+    protected static SubstringMatchType getSubstringMatchType(String type) {
+        if (type == null) {
+            return SubstringMatchType.subinitial;
+        }
+        try {
+            return SubstringMatchType.valueOf(type);
+        } catch (IllegalArgumentException e) {
+            log.error("Invalid substring match type: " + type
+                    + ". Valid options: subinitial, subfinal, subany");
+            return SubstringMatchType.subinitial;
+        }
+    }
+
+    /**
+     * Gets the index of the user search fields, loading it if needed, or
+     * {@code null} if not enabled.
+     *
+     * @since 7.1
+     */
+    protected DirectorySearchIndex getUserSearchIndex() throws ClientException {
+        if (!userSearchIndexEnabled) {
+            return null;
+        }
+        DirectorySearchIndex index = userSearchIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = userSearchIndex;
+                if (index == null) {
+                    long changes = userSearchIndexChanges.get();
+                    index = loadSearchIndex(userDirectoryName, userSchemaName,
+                            userSearchFields, userSearchIndexMatchType,
+                            userSearchIndexIgnoreCase);
+                    userSearchIndex = index;
+                    if (userSearchIndexChanges.get() != changes) {
+                        // a user changed during the load, it may have been
+                        // read before: only use the index for this search
+                        userSearchIndex = null;
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Gets the index of the group search fields, loading it if needed, or
+     * {@code null} if not enabled.
+     *
+     * @since 7.1
+     */
+    protected DirectorySearchIndex getGroupSearchIndex()
+            throws ClientException {
+        if (!groupSearchIndexEnabled) {
+            return null;
+        }
+        DirectorySearchIndex index = groupSearchIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = groupSearchIndex;
+                if (index == null) {
+                    long changes = groupSearchIndexChanges.get();
+                    index = loadSearchIndex(groupDirectoryName,
+                            groupSchemaName, groupSearchFields,
+                            groupSearchIndexMatchType,
+                            groupSearchIndexIgnoreCase);
+                    groupSearchIndex = index;
+                    if (groupSearchIndexChanges.get() != changes) {
+                        // a group changed during the load, it may have been
+                        // read before: only use the index for this search
+                        groupSearchIndex = null;
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Reads the search fields of all the entries of a directory.
+     *
+     * @since 7.1
+     */
+    protected DirectorySearchIndex loadSearchIndex(String directoryName,
+            String schemaName, Map<String, MatchType> searchFields,
+            SubstringMatchType matchType, boolean ignoreCase)
+            throws ClientException {
+        DirectorySearchIndex index = new DirectorySearchIndex(schemaName,
+                searchFields, matchType, ignoreCase);
+        Session dir = null;
+        EntryCursor cursor = null;
+        try {
+            dir = dirService.open(directoryName);
+            cursor = dir.scroll(Collections.<String, Serializable> emptyMap(),
+                    null, false);
+            while (cursor.hasNext()) {
+                index.updateEntry(cursor.next());
+            }
+        } finally {
+            try {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            } finally {
+                if (dir != null) {
+                    dir.close();
+                }
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(String.format(
+                    "Loaded search index of directory %s: %d entries",
+                    directoryName, Integer.valueOf(index.size())));
+        }
+        return index;
+    }
+
+    /**
+     * Re-reads a created, modified or deleted user into the user search index
+     * once the current transaction commits.
+     *
+     * @since 7.1
+     */
+    protected void updateUserSearchIndex(final String userName) {
+        if (!userSearchIndexEnabled || userName == null) {
+            return;
+        }
+        runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                userSearchIndexChanges.incrementAndGet();
+                DirectorySearchIndex index = userSearchIndex;
+                if (index == null) {
+                    return;
+                }
+                try {
+                    updateSearchIndex(index, userDirectoryName, userName);
+                } catch (ClientException e) {
+                    log.error("Cannot update the search index of user "
+                            + userName + ", dropping it", e);
+                    userSearchIndex = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Re-reads a created, modified or deleted group into the group search
+     * index once the current transaction commits.
+     *
+     * @since 7.1
+     */
+    protected void updateGroupSearchIndex(final String groupName) {
+        if (!groupSearchIndexEnabled || groupName == null) {
+            return;
+        }
+        runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                groupSearchIndexChanges.incrementAndGet();
+                DirectorySearchIndex index = groupSearchIndex;
+                if (index == null) {
+                    return;
+                }
+                try {
+                    updateSearchIndex(index, groupDirectoryName, groupName);
+                } catch (ClientException e) {
+                    log.error("Cannot update the search index of group "
+                            + groupName + ", dropping it", e);
+                    groupSearchIndex = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs an update once the current transaction commits, or right away
+     * outside of any transaction. Nothing is run if the transaction rolls
+     * back.
+     *
+     * @since 7.1
+     */
+    protected static void runAfterCommit(final Runnable update) {
+        if (!TransactionHelper.isTransactionActiveOrMarkedRollback()) {
+            update.run();
+            return;
+        }
+        try {
+            TransactionHelper.lookupTransactionManager().getTransaction().registerSynchronization(
+                    new Synchronization() {
+                        @Override
+                        public void beforeCompletion() {
+                        }
+
+                        @Override
+                        public void afterCompletion(int status) {
+                            if (status == Status.STATUS_COMMITTED) {
+                                update.run();
+                            }
+                        }
+                    });
+        } catch (RollbackException e) {
+            // marked for rollback, nothing will be committed
+        } catch (NamingException | SystemException e) {
+            throw new ClientException(e);
+        }
+    }
+
+    /**
+     * Re-reads a created, modified or deleted entry into a search index.
+     *
+     * @since 7.1
+     */
+    protected void updateSearchIndex(DirectorySearchIndex index,
+            String directoryName, String id) throws ClientException {
+        Session dir = null;
+        try {
+            dir = dirService.open(directoryName);
+            DocumentModel entry = dir.getEntry(id, false);
+            if (entry == null) {
+                index.removeEntry(id);
+            } else {
+                index.updateEntry(entry);
+            }
+        } finally {
+            if (dir != null) {
+                dir.close();
+            }
+        }
+    }
+
+    /**
+     * Gets the entries of a directory matching a pattern according to its
+     * search index.
+     *
+     * @param querySizeLimit the maximum number of entries, or 0 for no limit
+     * @throws SizeLimitExceededException if more entries match
+     * @since 7.1
+     */
+    protected DocumentModelList searchIndex(DirectorySearchIndex index,
+            String directoryName, String pattern, int querySizeLimit)
+            throws ClientException {
+        List<String> ids = index.search(pattern);
+        if (ids.isEmpty()) {
+            return new DocumentModelListImpl();
+        }
+        if (querySizeLimit > 0 && ids.size() > querySizeLimit) {
+            throw new SizeLimitExceededException(String.format(
+                    "Too many entries of directory %s match '%s': %d, limit %d",
+                    directoryName, pattern, Integer.valueOf(ids.size()),
+                    Integer.valueOf(querySizeLimit)));
+        }
+        Session dir = null;
+        try {
+            dir = dirService.open(directoryName);
+            // XXX: do not fetch references, can be costly
+            return dir.getEntries(ids, false);
+        } finally {
+            if (dir != null) {
+                dir.close();
+            }
+        }
+    }
+
     protected boolean isAnonymousMatching(Map<String, Serializable> filter,
             Set<String> fulltext) {
         String anonymousUserId = getAnonymousUserId();
@@ -780,11 +1380,16 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
      * sure principals cache is reset.
      */
     protected void notifyUserChanged(String userName) throws ClientException {
+        updateGroupMemberships(userName);
+        updateUserSearchIndex(userName);
         invalidatePrincipal(userName);
         notify(userName, USERCHANGED_EVENT_ID);
     }
 
     protected void invalidatePrincipal(String userName) {
+        if (credentialsCache != null) {
+            credentialsCache.invalidate(userName);
+        }
         if (useCache()) {
             try {
                 principalCache.invalidate(userName);
@@ -799,6 +1404,8 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
      * sure principals cache is reset.
      */
     protected void notifyGroupChanged(String groupName) throws ClientException {
+        updateGroupHierarchy(groupName);
+        updateGroupSearchIndex(groupName);
         invalidateAllPrincipals();
         notify(groupName, GROUPCHANGED_EVENT_ID);
     }
@@ -1098,6 +1705,33 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
         return administratorGroups;
     }
 
+    /**
+     * Gets the leaf permissions of a permission, or all the permissions for
+     * {@link SecurityConstants#EVERYTHING}. The expansions are cached.
+     *
+     * @since 7.1
+     */
+    protected Set<String> getLeafPermissionSet(String perm)
+            throws ClientException {
+        Set<String> permissions = leafPermissions.get(perm);
+        if (permissions == null) {
+            if (SecurityConstants.EVERYTHING.equals(perm)) {
+                // Everything is a special permission (not compound)
+                try {
+                    permissions = new HashSet<String>(
+                            Arrays.asList(Framework.getService(
+                                    PermissionProvider.class).getPermissions()));
+                } catch (Exception e) {
+                    throw new Error("An unexpected error occured", e);
+                }
+            } else {
+                permissions = new HashSet<String>(getLeafPermissions(perm));
+            }
+            leafPermissions.put(perm, permissions);
+        }
+        return permissions;
+    }
+
     protected List<String> getLeafPermissions(String perm)
             throws ClientException {
         ArrayList<String> permissions = new ArrayList<String>();
@@ -1185,16 +1819,31 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
             pattern = pattern.trim();
             Map<String, DocumentModel> uniqueEntries = new HashMap<String, DocumentModel>();
 
+            DirectorySearchIndex index = context == null ? getUserSearchIndex()
+                    : null;
+            if (index != null) {
+                for (DocumentModel entry : searchIndex(index,
+                        userDirectoryName, pattern,
+                        userSearchIndexQuerySizeLimit)) {
+                    uniqueEntries.put(entry.getId(), entry);
+                }
+            }
             for (Entry<String, MatchType> fieldEntry : userSearchFields.entrySet()) {
                 Map<String, Serializable> filter = new HashMap<String, Serializable>();
                 filter.put(fieldEntry.getKey(), pattern);
-                DocumentModelList fetchedEntries;
-                if (fieldEntry.getValue() == MatchType.SUBSTRING) {
-                    fetchedEntries = searchUsers(filter, filter.keySet(), null,
-                            context);
-                } else {
-                    fetchedEntries = searchUsers(filter, null, null, context);
+                Set<String> fulltext = fieldEntry.getValue() == MatchType.SUBSTRING ? filter.keySet()
+                        : null;
+                if (index != null) {
+                    // only the virtual users are left to match
+                    if (isAnonymousMatching(filter, fulltext)) {
+                        DocumentModel entry = makeVirtualUserEntry(
+                                getAnonymousUserId(), anonymousUser);
+                        uniqueEntries.put(entry.getId(), entry);
+                    }
+                    continue;
                 }
+                DocumentModelList fetchedEntries = searchUsers(filter,
+                        fulltext, null, context);
                 for (DocumentModel entry : fetchedEntries) {
                     uniqueEntries.put(entry.getId(), entry);
                 }
@@ -1367,19 +2016,29 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
             pattern = pattern.trim();
             Map<String, DocumentModel> uniqueEntries = new HashMap<String, DocumentModel>();
 
-            for (Entry<String, MatchType> fieldEntry : groupSearchFields.entrySet()) {
-                Map<String, Serializable> filter = new HashMap<String, Serializable>();
-                filter.put(fieldEntry.getKey(), pattern);
-                DocumentModelList fetchedEntries;
-                if (fieldEntry.getValue() == MatchType.SUBSTRING) {
-                    fetchedEntries = searchGroups(filter, filter.keySet(),
-                            context);
-                } else {
-                    fetchedEntries = searchGroups(filter, null, context);
-                }
-                for (DocumentModel entry : fetchedEntries) {
+            DirectorySearchIndex index = context == null ? getGroupSearchIndex()
+                    : null;
+            if (index != null) {
+                for (DocumentModel entry : searchIndex(index,
+                        groupDirectoryName, pattern,
+                        groupSearchIndexQuerySizeLimit)) {
                     uniqueEntries.put(entry.getId(), entry);
                 }
+            } else {
+                for (Entry<String, MatchType> fieldEntry : groupSearchFields.entrySet()) {
+                    Map<String, Serializable> filter = new HashMap<String, Serializable>();
+                    filter.put(fieldEntry.getKey(), pattern);
+                    DocumentModelList fetchedEntries;
+                    if (fieldEntry.getValue() == MatchType.SUBSTRING) {
+                        fetchedEntries = searchGroups(filter, filter.keySet(),
+                                context);
+                    } else {
+                        fetchedEntries = searchGroups(filter, null, context);
+                    }
+                    for (DocumentModel entry : fetchedEntries) {
+                        uniqueEntries.put(entry.getId(), entry);
+                    }
+                }
             }
             log.debug(String.format("found %d unique group entries",
                     uniqueEntries.size()));
@@ -1567,6 +2226,11 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
             throws ClientException {
         Session groupDir = null;
         try {
+            GroupHierarchy hierarchy = context == null ? getGroupHierarchy()
+                    : null;
+            if (hierarchy != null) {
+                return hierarchy.getTopLevelGroups();
+            }
             List<String> topLevelGroups = new LinkedList<String>();
             groupDir = dirService.open(groupDirectoryName, context);
             // XXX retrieve all entries with references, can be costly.
@@ -1593,15 +2257,41 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
     @Override
     public List<String> getUsersInGroupAndSubGroups(String groupId,
             DocumentModel context) throws ClientException {
+        GroupHierarchy hierarchy = context == null ? getGroupHierarchy()
+                : null;
+        if (hierarchy != null && hierarchy.hasGroup(groupId)) {
+            return new ArrayList<String>(hierarchy.getUsers(groupId));
+        }
         Set<String> groups = new HashSet<String>();
         groups.add(groupId);
         appendSubgroups(groupId, groups, context);
+        return getUsersInGroups(groups, context);
+    }
 
+    /**
+     * Gets the members of several groups, reading all the groups at once.
+     *
+     * @since 7.1
+     */
+    @SuppressWarnings("unchecked")
+    protected List<String> getUsersInGroups(Collection<String> groupIds,
+            DocumentModel context) throws ClientException {
         Set<String> users = new HashSet<String>();
-        for (String groupid : groups) {
-            users.addAll(getGroup(groupid, context).getMemberUsers());
+        Session groupDir = null;
+        try {
+            groupDir = dirService.open(groupDirectoryName, context);
+            for (DocumentModel groupEntry : groupDir.getEntries(groupIds, true)) {
+                List<String> members = (List<String>) groupEntry.getProperty(
+                        groupSchemaName, groupMembersField);
+                if (members != null) {
+                    users.addAll(members);
+                }
+            }
+        } finally {
+            if (groupDir != null) {
+                groupDir.close();
+            }
         }
-
         return new ArrayList<String>(users);
     }
 
@@ -1616,27 +2306,14 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
         // permission
         ArrayList<ACE> filteredACEbyPerm = new ArrayList<ACE>();
 
-        List<String> currentPermissions = null;
-
         try {
-            currentPermissions = getLeafPermissions(perm);
+            Set<String> currentPermissions = getLeafPermissionSet(perm);
 
             for (ACE ace : merged.getACEs()) {
                 // Checking if the permission contains the permission we want to
                 // check (we use the security service method for coumpound
                 // permissions)
-                List<String> acePermissions;
-
-                acePermissions = getLeafPermissions(ace.getPermission());
-                // Everything is a special permission (not compound)
-                if (SecurityConstants.EVERYTHING.equals(ace.getPermission())) {
-                    try {
-                        acePermissions = Arrays.asList(Framework.getService(
-                                PermissionProvider.class).getPermissions());
-                    } catch (Exception e) {
-                        throw new Error("An unexpected error occured", e);
-                    }
-                }
+                Set<String> acePermissions = getLeafPermissionSet(ace.getPermission());
 
                 if (acePermissions.containsAll(currentPermissions)) {
                     // special case: everybody perm grant false, don't take in
@@ -1653,34 +2330,59 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
             throw new Error("An unexpected error occured", e2);
         }
 
+        GroupHierarchy hierarchy = null;
+        if (context == null) {
+            try {
+                hierarchy = getGroupHierarchy();
+            } catch (ClientException e) {
+                log.error("Cannot load group hierarchy", e);
+            }
+        }
+        Collection<String> allUsers = null;
         for (ACE ace : filteredACEbyPerm) {
             try {
                 String aceUsername = ace.getUsername();
-                List<String> users = null;
+                Collection<String> users = null;
                 // If everyone, add/remove all the users
                 if (SecurityConstants.EVERYONE.equals(aceUsername)) {
-                    users = getUserIds();
-                }
-                // if a group, add/remove all the user from the group (and
-                // subgroups)
-                if (users == null) {
-                    NuxeoGroup group;
-                    group = getGroup(aceUsername, context);
+                    if (allUsers == null) {
+                        allUsers = new HashSet<String>(getUserIds());
+                    }
+                    users = allUsers;
+                } else if (hierarchy != null) {
+                    // users of the group and subgroups, from the index
+                    if (hierarchy.hasGroup(aceUsername)) {
+                        users = hierarchy.getUsers(aceUsername);
+                    }
+                } else {
+                    // if a group, add/remove all the user from the group (and
+                    // subgroups)
+                    NuxeoGroup group = getGroup(aceUsername, context);
                     if (group != null) {
                         users = getUsersInGroupAndSubGroups(aceUsername,
                                 context);
                     }
-
                 }
-                // otherwise, add the user
+                // otherwise, the user
                 if (users == null) {
-                    users = new ArrayList<String>();
-                    users.add(aceUsername);
+                    users = Collections.singleton(aceUsername);
                 }
                 if (ace.isGranted()) {
                     usernames.addAll(users);
-                } else {
-                    usernames.removeAll(users);
+                } else if (!usernames.isEmpty()) {
+                    // iterate on the (usually) smaller side
+                    if (users.size() < usernames.size()) {
+                        for (String user : users) {
+                            usernames.remove(user);
+                        }
+                    } else {
+                        Iterator<String> it = usernames.iterator();
+                        while (it.hasNext()) {
+                            if (users.contains(it.next())) {
+                                it.remove();
+                            }
+                        }
+                    }
                 }
             } catch (ClientException e) {
                 // Unexpected: throwing a runtime exception
@@ -1702,8 +2404,19 @@ public class UserManagerImpl implements UserManager, MultiTenantUserManager {
         String id = event.getId();
         if (INVALIDATE_PRINCIPAL_EVENT_ID.equals(id)) {
             invalidatePrincipal((String) event.getData());
+        } else if (ReloadEventNames.FLUSH_EVENT_ID.equals(id)
+                || ReloadEventNames.RELOAD_EVENT_ID.equals(id)) {
+            // permissions may have been contributed or removed
+            leafPermissions.clear();
         } else if (INVALIDATE_ALL_PRINCIPALS_EVENT_ID.equals(id)) {
+            // groups may have changed: reload the indexes on next use
+            groupHierarchy = null;
+            userSearchIndex = null;
+            groupSearchIndex = null;
             invalidateAllPrincipals();
+            if (credentialsCache != null) {
+                credentialsCache.invalidateAll();
+            }
         }
     }
 
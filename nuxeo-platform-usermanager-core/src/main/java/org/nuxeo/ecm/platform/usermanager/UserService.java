@@ -52,6 +52,7 @@ public class UserService extends DefaultComponent {
             EventService eventService = Framework.getLocalService(EventService.class);
             eventService.addListener(UserManagerImpl.USERMANAGER_TOPIC,
                     userManager);
+            eventService.addListener(UserManagerImpl.RELOAD_TOPIC, userManager);
         }
         return userManager;
     }
@@ -134,6 +135,8 @@ public class UserService extends DefaultComponent {
             if (eventService != null) {
                 eventService.removeListener(UserManagerImpl.USERMANAGER_TOPIC,
                         userManager);
+                eventService.removeListener(UserManagerImpl.RELOAD_TOPIC,
+                        userManager);
             }
         }
     }
@@ -0,0 +1,109 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.usermanager;
+
+import java.security.SecureRandom;
+import java.util.Locale;
+
+import org.nuxeo.ecm.platform.util.ExpiringCache;
+
+/**
+ * Cache of the successful password verifications done by the
+ * {@link UserManager}, to avoid a directory lookup and a password hash
+ * computation when the same credentials are checked again.
+ * <p>
+ * Passwords are never kept: entries are keyed by a SHA-256 hash of the user
+ * name and password salted with a random value generated for each cache
+ * instance. Entries expire after a time to live and are invalidated when the
+ * user changes. Only successful verifications are cached, so a failed login
+ * always goes to the directory.
+ * <p>
+ * Directories may match user names regardless of case, so the entries are
+ * invalidated by their lower-cased user name: invalidating {@code bob} also
+ * removes the credentials verified for {@code BOB}. The keys still use the
+ * user name as given, so that a directory matching the case exactly is never
+ * bypassed.
+ *
+ * @since 7.1
+ */
+public class VerifiedCredentialsCache {
+
+    protected static final int SALT_SIZE = 16;
+
+    /** Verified credentials, the values being the lower-cased user names. */
+    protected final ExpiringCache<String> cache;
+
+    protected final byte[] salt = new byte[SALT_SIZE];
+
+    /**
+     * @param maxSize the maximum number of verified credentials
+     * @param ttl the time to live of the verified credentials, in
+     *            milliseconds
+     */
+    public VerifiedCredentialsCache(int maxSize, long ttl) {
+        cache = new ExpiringCache<String>(maxSize, ttl);
+        new SecureRandom().nextBytes(salt);
+    }
+
+    protected String getKey(String userName, String password) {
+        return ExpiringCache.hash(salt, userName, password);
+    }
+
+    /**
+     * Checks whether these credentials were successfully verified recently.
+     */
+    public boolean isVerified(String userName, String password) {
+        return cache.get(getKey(userName, password)) != null;
+    }
+
+    /**
+     * Records a successful verification of these credentials.
+     */
+    public void put(String userName, String password) {
+        cache.put(getKey(userName, password), normalize(userName));
+    }
+
+    /**
+     * Removes the verified credentials of a user, whatever the case of the
+     * user name they were verified with.
+     */
+    public void invalidate(String userName) {
+        if (userName == null) {
+            return;
+        }
+        final String name = normalize(userName);
+        cache.invalidate(new ExpiringCache.Filter<String>() {
+            @Override
+            public boolean accept(String value) {
+                return name.equals(value);
+            }
+        });
+    }
+
+    protected static String normalize(String userName) {
+        return userName.toLowerCase(Locale.ENGLISH);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+}
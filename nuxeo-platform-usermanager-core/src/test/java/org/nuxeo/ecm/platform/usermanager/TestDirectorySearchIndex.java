@@ -0,0 +1,125 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.usermanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.nuxeo.ecm.platform.usermanager.DirectorySearchIndex.SubstringMatchType;
+import org.nuxeo.ecm.platform.usermanager.UserManager.MatchType;
+
+public class TestDirectorySearchIndex {
+
+    protected DirectorySearchIndex newIndex(SubstringMatchType matchType) {
+        return newIndex(matchType, false);
+    }
+
+    protected DirectorySearchIndex newIndex(SubstringMatchType matchType,
+            boolean ignoreCase) {
+        Map<String, MatchType> searchFields = new LinkedHashMap<String, MatchType>();
+        searchFields.put("username", MatchType.SUBSTRING);
+        searchFields.put("lastName", MatchType.SUBSTRING);
+        searchFields.put("email", MatchType.EXACT);
+        DirectorySearchIndex index = new DirectorySearchIndex("user",
+                searchFields, matchType, ignoreCase);
+        add(index, "jsmith", "Smith", "john@example.com");
+        add(index, "ajones", "Jones", "alice@example.com");
+        add(index, "bsmithers", "Smithers", "bob@example.com");
+        return index;
+    }
+
+    protected static void add(DirectorySearchIndex index, String username,
+            String lastName, String email) {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("username", username);
+        values.put("lastName", lastName);
+        values.put("email", email);
+        index.updateEntry(username, values);
+    }
+
+    protected static List<String> search(DirectorySearchIndex index,
+            String pattern) {
+        List<String> ids = new ArrayList<String>(index.search(pattern));
+        Collections.sort(ids);
+        return ids;
+    }
+
+    @Test
+    public void testSubinitial() throws Exception {
+        DirectorySearchIndex index = newIndex(null);
+        assertEquals(3, index.size());
+        assertEquals(Collections.singletonList("jsmith"), search(index, "jsm"));
+        assertEquals(list("bsmithers", "jsmith"), search(index, "SMITH"));
+        assertEquals(list("ajones"), search(index, "a"));
+        assertTrue(search(index, "ones").isEmpty());
+        // exact match fields are case sensitive
+        assertEquals(list("bsmithers"), search(index, "bob@example.com"));
+        assertTrue(search(index, "BOB@example.com").isEmpty());
+        assertTrue(search(index, "bob@example").isEmpty());
+    }
+
+    @Test
+    public void testExactIgnoreCase() throws Exception {
+        DirectorySearchIndex index = newIndex(null, true);
+        assertEquals(list("bsmithers"), search(index, "bob@example.com"));
+        assertEquals(list("bsmithers"), search(index, "BOB@Example.com"));
+        assertTrue(search(index, "BOB@example").isEmpty());
+    }
+
+    @Test
+    public void testSubany() throws Exception {
+        DirectorySearchIndex index = newIndex(SubstringMatchType.subany);
+        assertEquals(list("ajones"), search(index, "ones"));
+        assertEquals(list("bsmithers", "jsmith"), search(index, "mit"));
+        assertEquals(list("ajones", "bsmithers", "jsmith"),
+                search(index, "s"));
+    }
+
+    @Test
+    public void testSubfinal() throws Exception {
+        DirectorySearchIndex index = newIndex(SubstringMatchType.subfinal);
+        assertEquals(list("bsmithers"), search(index, "ers"));
+        assertTrue(search(index, "smi").isEmpty());
+    }
+
+    @Test
+    public void testUpdateAndRemove() throws Exception {
+        DirectorySearchIndex index = newIndex(SubstringMatchType.subany);
+        add(index, "jsmith", "Doe", "john@example.com");
+        assertEquals(list("bsmithers", "jsmith"), search(index, "smi"));
+        assertEquals(list("jsmith"), search(index, "doe"));
+        index.removeEntry("jsmith");
+        assertEquals(list("bsmithers"), search(index, "smi"));
+        assertTrue(search(index, "doe").isEmpty());
+        assertEquals(2, index.size());
+    }
+
+    protected static List<String> list(String... ids) {
+        List<String> list = new ArrayList<String>();
+        Collections.addAll(list, ids);
+        return list;
+    }
+
+}
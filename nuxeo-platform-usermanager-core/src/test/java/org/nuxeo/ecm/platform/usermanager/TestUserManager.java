@@ -27,6 +27,7 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -48,9 +49,14 @@ import org.nuxeo.ecm.core.api.security.ACL;
 import org.nuxeo.ecm.core.api.security.SecurityConstants;
 import org.nuxeo.ecm.core.api.security.impl.ACLImpl;
 import org.nuxeo.ecm.core.api.security.impl.ACPImpl;
+import org.nuxeo.ecm.directory.SizeLimitExceededException;
+import org.nuxeo.ecm.platform.usermanager.DirectorySearchIndex.SubstringMatchType;
 import org.nuxeo.ecm.platform.usermanager.exceptions.GroupAlreadyExistsException;
 import org.nuxeo.ecm.platform.usermanager.exceptions.UserAlreadyExistsException;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.reload.ReloadEventNames;
+import org.nuxeo.runtime.services.event.Event;
+import org.nuxeo.runtime.services.event.EventService;
 
 /**
  * @author George Lefter
@@ -619,6 +625,178 @@ public class TestUserManager extends UserManagerTestCase {
         assertEquals(expectedUsersInGroup2, usersInGroupAndSubGroups2);
     }
 
+    @Test
+    public void testGroupHierarchyIndex() throws Exception {
+        assertNull(((GroupHierarchyProvider) userManager).getGroupHierarchy());
+        deployContrib("org.nuxeo.ecm.platform.usermanager.tests",
+                "test-usermanagerimpl/userservice-hierarchy-config.xml");
+        userManager = userService.getUserManager();
+        deleteTestObjects();
+
+        DocumentModel u3 = getUser("test_u3");
+        userManager.createUser(u3);
+        DocumentModel g1 = getGroup("test_g1");
+        userManager.createGroup(g1);
+        DocumentModel g2 = getGroup("test_g2");
+        g2.setProperty("group", "subGroups", Arrays.asList("test_g1"));
+        userManager.createGroup(g2);
+        DocumentModel g3 = getGroup("test_g3");
+        g3.setProperty("group", "members", Arrays.asList("test_u3"));
+        g3.setProperty("group", "subGroups", Arrays.asList("test_g2"));
+        userManager.createGroup(g3);
+        DocumentModel u1 = getUser("test_u1");
+        u1.setProperty("user", "groups", Arrays.asList("test_g1"));
+        userManager.createUser(u1);
+
+        GroupHierarchy hierarchy = ((GroupHierarchyProvider) userManager).getGroupHierarchy();
+        assertNotNull(hierarchy);
+        assertTrue(hierarchy.getAncestorsAndSelf("test_g1").containsAll(
+                Arrays.asList("test_g1", "test_g2", "test_g3")));
+
+        NuxeoPrincipal principal = userManager.getPrincipal("test_u1");
+        assertTrue(principal.isMemberOf("test_g1"));
+        assertTrue(principal.isMemberOf("test_g3"));
+
+        List<String> users = userManager.getUsersInGroupAndSubGroups("test_g3");
+        Collections.sort(users);
+        assertEquals(Arrays.asList("test_u1", "test_u3"), users);
+
+        List<String> topLevelGroups = userManager.getTopLevelGroups();
+        assertTrue(topLevelGroups.contains("test_g3"));
+        assertFalse(topLevelGroups.contains("test_g2"));
+
+        // detach test_g2 from test_g3, the index follows
+        g3 = userManager.getGroupModel("test_g3");
+        g3.setProperty("group", "subGroups", Collections.emptyList());
+        userManager.updateGroup(g3);
+        principal = userManager.getPrincipal("test_u1");
+        assertTrue(principal.isMemberOf("test_g2"));
+        assertFalse(principal.isMemberOf("test_g3"));
+        assertTrue(userManager.getTopLevelGroups().contains("test_g2"));
+
+        userManager.deleteGroup("test_g2");
+        assertFalse(hierarchy.hasGroup("test_g2"));
+        assertTrue(userManager.getTopLevelGroups().contains("test_g1"));
+    }
+
+    protected List<String> searchUserIds(String pattern) throws Exception {
+        List<String> ids = new ArrayList<String>();
+        for (DocumentModel entry : userManager.searchUsers(pattern)) {
+            ids.add(entry.getId());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    protected List<String> searchGroupIds(String pattern) throws Exception {
+        List<String> ids = new ArrayList<String>();
+        for (DocumentModel entry : userManager.searchGroups(pattern)) {
+            ids.add(entry.getId());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    @Test
+    public void testSearchIndex() throws Exception {
+        deployContrib("org.nuxeo.ecm.platform.usermanager.tests",
+                "test-usermanagerimpl/userservice-searchindex-config.xml");
+        userManager = userService.getUserManager();
+        UserManagerImpl umi = (UserManagerImpl) userManager;
+        assertTrue(umi.userSearchIndexEnabled);
+        assertEquals(SubstringMatchType.subany, umi.userSearchIndexMatchType);
+        assertEquals(3, umi.userSearchIndexQuerySizeLimit);
+        assertTrue(umi.userSearchIndexIgnoreCase);
+        assertTrue(umi.groupSearchIndexEnabled);
+        assertEquals(SubstringMatchType.subinitial,
+                umi.groupSearchIndexMatchType);
+        assertEquals(0, umi.groupSearchIndexQuerySizeLimit);
+        assertFalse(umi.groupSearchIndexIgnoreCase);
+        assertNull(umi.userSearchIndex);
+        deleteTestObjects();
+
+        DocumentModel u1 = getUser("test_u1");
+        u1.setProperty("user", "lastName", "Smith");
+        u1.setProperty("user", "email", "jsmith@example.com");
+        userManager.createUser(u1);
+        // the first search loads the index
+        assertEquals(Arrays.asList("test_u1"), searchUserIds("mit"));
+        assertNotNull(umi.userSearchIndex);
+        // exact match fields ignore case
+        assertEquals(Arrays.asList("test_u1"),
+                searchUserIds("JSmith@Example.com"));
+        assertTrue(searchUserIds("jsmith@example").isEmpty());
+
+        // created, updated and deleted users are re-read
+        DocumentModel u2 = getUser("test_u2");
+        u2.setProperty("user", "lastName", "Smithers");
+        userManager.createUser(u2);
+        assertEquals(Arrays.asList("test_u1", "test_u2"),
+                searchUserIds("smith"));
+        u2 = userManager.getUserModel("test_u2");
+        u2.setProperty("user", "lastName", "Jones");
+        userManager.updateUser(u2);
+        assertEquals(Arrays.asList("test_u1"), searchUserIds("smith"));
+        assertEquals(Arrays.asList("test_u2"), searchUserIds("jones"));
+        userManager.deleteUser("test_u1");
+        assertTrue(searchUserIds("smith").isEmpty());
+
+        // the anonymous user is not in the directory but still matches
+        assertEquals(Arrays.asList("Guest"), searchUserIds("Gu"));
+
+        // more matching users than the limit
+        userManager.createUser(getUser("test_u3"));
+        userManager.createUser(getUser("test_u4"));
+        assertEquals(3, searchUserIds("test_").size());
+        userManager.createUser(getUser("test_u5"));
+        try {
+            searchUserIds("test_");
+            fail("should have exceeded the limit");
+        } catch (SizeLimitExceededException e) {
+            // expected
+        }
+
+        DocumentModel g1 = getGroup("test_g1");
+        g1.setProperty("group", "grouplabel", "Sales");
+        userManager.createGroup(g1);
+        assertEquals(Arrays.asList("test_g1"), searchGroupIds("sal"));
+        assertNotNull(umi.groupSearchIndex);
+        g1 = userManager.getGroupModel("test_g1");
+        g1.setProperty("group", "grouplabel", "Marketing");
+        userManager.updateGroup(g1);
+        assertTrue(searchGroupIds("sal").isEmpty());
+        assertEquals(Arrays.asList("test_g1"), searchGroupIds("mark"));
+        userManager.deleteGroup("test_g1");
+        assertTrue(searchGroupIds("mark").isEmpty());
+    }
+
+    @Test
+    public void testAuthenticationCacheInvalidation() throws Exception {
+        deployContrib("org.nuxeo.ecm.platform.usermanager.tests",
+                "test-usermanagerimpl/userservice-authcache-config.xml");
+        userManager = userService.getUserManager();
+        UserManagerImpl umi = (UserManagerImpl) userManager;
+        assertNotNull(umi.credentialsCache);
+        deleteTestObjects();
+
+        DocumentModel user = getUser("test_u1");
+        user.setProperty("user", "password", "pw1");
+        userManager.createUser(user);
+        assertTrue(userManager.checkUsernamePassword("test_u1", "pw1"));
+        assertTrue(umi.credentialsCache.isVerified("test_u1", "pw1"));
+        // as verified by a directory matching the name regardless of case
+        umi.credentialsCache.put("TEST_U1", "pw1");
+
+        // changing the password evicts the credentials whatever their case
+        user = userManager.getUserModel("test_u1");
+        user.setProperty("user", "password", "pw2");
+        userManager.updateUser(user);
+        assertFalse(umi.credentialsCache.isVerified("test_u1", "pw1"));
+        assertFalse(umi.credentialsCache.isVerified("TEST_U1", "pw1"));
+        assertFalse(userManager.checkUsernamePassword("test_u1", "pw1"));
+        assertTrue(userManager.checkUsernamePassword("test_u1", "pw2"));
+    }
+
     @Test
     public void testDeletePrincipal() throws Exception {
         deleteTestObjects();
@@ -955,6 +1133,40 @@ public class TestUserManager extends UserManagerTestCase {
                 users);
     }
 
+    /**
+     * Testing getUsernamesForPermission using the group hierarchy index,
+     * updated when the groups of a user change.
+     */
+    @Test
+    public void testGetUsernamesForPermissionWithGroupHierarchyIndex()
+            throws Exception {
+        deployContrib("org.nuxeo.ecm.platform.usermanager.tests",
+                "test-usermanagerimpl/userservice-hierarchy-config.xml");
+        userManager = userService.getUserManager();
+        initTestGetUsernamesForPermission();
+
+        ACPImpl acp = new ACPImpl();
+        ACLImpl acl = new ACLImpl();
+        acl.add(new ACE("group3", SecurityConstants.READ, true));
+        acl.add(new ACE("bree", SecurityConstants.READ, false));
+        acp.addACL(acl);
+
+        // jdoe in group3, alex and bree in its subgroup group2
+        List<String> users = Arrays.asList(userManager.getUsersForPermission(
+                SecurityConstants.READ, acp));
+        Collections.sort(users);
+        assertEquals(Arrays.asList("alex", "jdoe"), users);
+
+        DocumentModel stef = userManager.getUserModel("stef");
+        stef.setProperty("user", "groups", Arrays.asList("group1", "group2"));
+        userManager.updateUser(stef);
+
+        users = Arrays.asList(userManager.getUsersForPermission(
+                SecurityConstants.READ, acp));
+        Collections.sort(users);
+        assertEquals(Arrays.asList("alex", "jdoe", "stef"), users);
+    }
+
     /**
      * Testing getUsernamesForPermission with compound permission. For example,
      * READ_WRITE contains READ.
@@ -1036,6 +1248,23 @@ public class TestUserManager extends UserManagerTestCase {
                 users);
     }
 
+    @Test
+    public void testLeafPermissionsClearedOnReload() throws Exception {
+        initTestGetUsernamesForPermission();
+        ACPImpl acp = new ACPImpl();
+        ACLImpl acl = new ACLImpl();
+        acl.add(new ACE("group3", SecurityConstants.READ_WRITE, true));
+        acp.addACL(acl);
+        userManager.getUsersForPermission(SecurityConstants.READ, acp);
+        UserManagerImpl userManagerImpl = (UserManagerImpl) userManager;
+        assertFalse(userManagerImpl.leafPermissions.isEmpty());
+
+        Framework.getLocalService(EventService.class).sendEvent(
+                new Event(UserManagerImpl.RELOAD_TOPIC,
+                        ReloadEventNames.FLUSH_EVENT_ID, this, null));
+        assertTrue(userManagerImpl.leafPermissions.isEmpty());
+    }
+
     @Test
     public void testUsersAndGroupsWithSpaces() throws Exception {
 
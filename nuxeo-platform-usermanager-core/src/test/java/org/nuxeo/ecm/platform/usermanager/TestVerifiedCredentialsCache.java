@@ -0,0 +1,86 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.usermanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestVerifiedCredentialsCache {
+
+    @Test
+    public void testVerifyAndInvalidate() throws Exception {
+        VerifiedCredentialsCache cache = new VerifiedCredentialsCache(10,
+                60000);
+        assertFalse(cache.isVerified("bob", "secret"));
+        cache.put("bob", "secret");
+        cache.put("alice", "secret");
+        assertTrue(cache.isVerified("bob", "secret"));
+        assertFalse(cache.isVerified("bob", "secret2"));
+        assertFalse(cache.isVerified("bo", "bsecret"));
+
+        cache.invalidate("bob");
+        assertFalse(cache.isVerified("bob", "secret"));
+        assertTrue(cache.isVerified("alice", "secret"));
+
+        cache.invalidateAll();
+        assertFalse(cache.isVerified("alice", "secret"));
+    }
+
+    @Test
+    public void testInvalidateIgnoresCase() throws Exception {
+        VerifiedCredentialsCache cache = new VerifiedCredentialsCache(10,
+                60000);
+        cache.put("BOB", "secret");
+        cache.put("Bob", "secret");
+        // the verified name is kept as given
+        assertTrue(cache.isVerified("BOB", "secret"));
+        assertFalse(cache.isVerified("bob", "secret"));
+
+        cache.invalidate("bob");
+        assertFalse(cache.isVerified("BOB", "secret"));
+        assertFalse(cache.isVerified("Bob", "secret"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testKeyIsSalted() throws Exception {
+        VerifiedCredentialsCache cache1 = new VerifiedCredentialsCache(10,
+                60000);
+        VerifiedCredentialsCache cache2 = new VerifiedCredentialsCache(10,
+                60000);
+        String key = cache1.getKey("bob", "secret");
+        assertFalse(key.equals(cache2.getKey("bob", "secret")));
+        assertFalse(key.contains("secret"));
+    }
+
+    @Test
+    public void testExpirationAndMaxSize() throws Exception {
+        VerifiedCredentialsCache cache = new VerifiedCredentialsCache(10, -1);
+        cache.put("bob", "secret");
+        assertFalse(cache.isVerified("bob", "secret"));
+
+        cache = new VerifiedCredentialsCache(4, 60000);
+        for (int i = 0; i < 20; i++) {
+            cache.put("user" + i, "secret");
+        }
+        assertTrue(cache.size() <= 4);
+    }
+
+}
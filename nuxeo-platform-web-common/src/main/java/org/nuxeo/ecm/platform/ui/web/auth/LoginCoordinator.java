@@ -0,0 +1,114 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.ui.web.auth;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+
+import org.nuxeo.ecm.platform.api.login.UserIdentificationInfo;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+
+/**
+ * Runs JAAS logins, serializing the logins of a same user while letting
+ * different users log in concurrently.
+ * <p>
+ * Users are mapped to a fixed set of locks by the hash of their name (or of
+ * their token when the name is only known after login), so two different
+ * users may still occasionally share a lock.
+ *
+ * @since 7.1
+ */
+public class LoginCoordinator {
+
+    public static final int DEFAULT_STRIPES = 64;
+
+    protected final ReentrantLock[] locks;
+
+    protected final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    protected final Timer loginTimer = registry.timer(MetricRegistry.name(
+            "nuxeo", "web", "authentication", "login", "duration"));
+
+    protected final Timer waitTimer = registry.timer(MetricRegistry.name(
+            "nuxeo", "web", "authentication", "login", "wait"));
+
+    public LoginCoordinator() {
+        this(DEFAULT_STRIPES);
+    }
+
+    public LoginCoordinator(int stripes) {
+        locks = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Gets the key identifying the user logging in.
+     */
+    public static String getKey(UserIdentificationInfo userInfo) {
+        if (userInfo == null) {
+            return null;
+        }
+        if (userInfo.getUserName() != null) {
+            return userInfo.getUserName();
+        }
+        return userInfo.getToken();
+    }
+
+    protected ReentrantLock getLock(String key) {
+        int h = key == null ? 0 : key.hashCode();
+        h ^= (h >>> 16);
+        return locks[(h & Integer.MAX_VALUE) % locks.length];
+    }
+
+    /**
+     * Calls {@link LoginContext#login}.
+     *
+     * @param loginContext the login context
+     * @param key the key of the user, see {@link #getKey}
+     * @param synchronize whether logins of a same user must be serialized
+     */
+    public void login(LoginContext loginContext, String key,
+            boolean synchronize) throws LoginException {
+        Timer.Context loginTime = loginTimer.time();
+        try {
+            if (!synchronize) {
+                loginContext.login();
+                return;
+            }
+            ReentrantLock lock = getLock(key);
+            Timer.Context waitTime = waitTimer.time();
+            lock.lock();
+            waitTime.stop();
+            try {
+                loginContext.login();
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            loginTime.stop();
+        }
+    }
+
+}
@@ -49,6 +49,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import javax.security.auth.Subject;
 import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.login.LoginContext;
 import javax.security.auth.login.LoginException;
@@ -128,6 +129,13 @@ public class NuxeoAuthenticationFilter implements Filter {
 
     protected static Boolean isLoginSynchronized;
 
+    /**
+     * Serializes the logins of a same user when login is synchronized.
+     *
+     * @since 7.1
+     */
+    protected static final LoginCoordinator loginCoordinator = new LoginCoordinator();
+
     /** Used internally as a marker. */
     protected static final Principal DIRECTORY_ERROR_PRINCIPAL = new PrincipalImpl(
             "__DIRECTORY_ERROR__\0\0\0");
@@ -278,17 +286,35 @@ public class NuxeoAuthenticationFilter implements Filter {
             CachableUserIdentificationInfo cachableUserIdent,
             HttpServletRequest httpRequest) {
 
+        // stateless clients don't keep the identity in a session, look for
+        // it in the server-side cache before doing a new login
+        StatelessIdentityCache identityCache = null;
+        String identityKey = null;
+        Principal cachedPrincipal = null;
+        if (!needSessionSaving(cachableUserIdent.getUserInfo())) {
+            identityCache = StatelessIdentityCache.instance();
+            if (identityCache.isEnabled()) {
+                identityKey = identityCache.getKey(cachableUserIdent.getUserInfo());
+                cachedPrincipal = identityCache.get(identityKey);
+            }
+        }
+
         LoginContext loginContext;
         try {
             CallbackHandler handler = service.getCallbackHandler(cachableUserIdent.getUserInfo());
-            loginContext = new LoginContext(securityDomain, handler);
-
-            if (isLoginSynchronized()) {
-                synchronized (NuxeoAuthenticationFilter.class) {
-                    loginContext.login();
-                }
+            if (cachedPrincipal != null) {
+                // already authenticated by a previous login with the same
+                // credentials, only bind the principal to this request
+                Subject subject = new Subject();
+                subject.getPrincipals().add(cachedPrincipal);
+                loginContext = new LoginContext(securityDomain, subject,
+                        handler);
             } else {
-                loginContext.login();
+                loginContext = new LoginContext(securityDomain, handler);
+
+                loginCoordinator.login(loginContext,
+                        LoginCoordinator.getKey(cachableUserIdent.getUserInfo()),
+                        isLoginSynchronized());
             }
 
             Principal principal = (Principal) loginContext.getSubject().getPrincipals().toArray()[0];
@@ -298,7 +324,12 @@ public class NuxeoAuthenticationFilter implements Filter {
             // the userName is not known before login is completed
             cachableUserIdent.getUserInfo().setUserName(principal.getName());
 
-            logAuthenticationAttempt(cachableUserIdent.getUserInfo(), true);
+            if (cachedPrincipal == null) {
+                logAuthenticationAttempt(cachableUserIdent.getUserInfo(), true);
+                if (identityKey != null) {
+                    identityCache.put(identityKey, principal);
+                }
+            }
         } catch (LoginException e) {
             log.info("Login failed for "
                     + cachableUserIdent.getUserInfo().getUserName());
@@ -1119,13 +1150,7 @@ public class NuxeoAuthenticationFilter implements Filter {
         LoginContext loginContext = new LoginContext(LOGIN_DOMAIN,
                 callbackHandler);
 
-        if (isLoginSynchronized()) {
-            synchronized (NuxeoAuthenticationFilter.class) {
-                loginContext.login();
-            }
-        } else {
-            loginContext.login();
-        }
+        loginCoordinator.login(loginContext, username, isLoginSynchronized());
         return loginContext;
     }
 
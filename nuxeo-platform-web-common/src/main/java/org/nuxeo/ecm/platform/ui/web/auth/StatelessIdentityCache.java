@@ -0,0 +1,183 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.ui.web.auth;
+
+import java.io.Serializable;
+import java.security.Principal;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.lang.SerializationUtils;
+import org.nuxeo.ecm.platform.api.login.UserIdentificationInfo;
+import org.nuxeo.ecm.platform.util.ExpiringCache;
+import org.nuxeo.ecm.platform.util.FrameworkProperties;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
+/**
+ * Server-side cache of the identities authenticated by stateless
+ * authentication plugins, which don't keep them in the HTTP session.
+ * <p>
+ * Principals are keyed by a SHA-256 hash of the credentials salted with a
+ * random value generated for each cache instance, so that a subsequent
+ * request presenting the same credentials gets the cached principal without a
+ * new JAAS login. Only serializable principals are cached, and each request
+ * gets its own copy so that changes made to it during a request, like a user
+ * switch, don't leak to the next ones. Entries expire after a time to live
+ * and are invalidated when the user or any group changes.
+ * <p>
+ * The cache is disabled by default: a cached identity keeps authenticating
+ * until it expires even if its token is revoked or its credentials change
+ * outside of the user manager, and invalidations only reach the local node.
+ * It is enabled by setting a time to live in {@link #TTL_PROP}.
+ *
+ * @since 7.1
+ */
+public class StatelessIdentityCache {
+
+    public static final String MAX_SIZE_PROP = "org.nuxeo.ecm.platform.ui.web.auth.statelessIdentityCache.maxSize";
+
+    /** Time to live in seconds, {@code 0} disables the cache. */
+    public static final String TTL_PROP = "org.nuxeo.ecm.platform.ui.web.auth.statelessIdentityCache.ttl";
+
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    public static final int DEFAULT_TTL = 0; // disabled
+
+    protected static final int SALT_SIZE = 16;
+
+    protected static volatile StatelessIdentityCache instance;
+
+    protected final ExpiringCache<Principal> cache;
+
+    protected final byte[] salt = new byte[SALT_SIZE];
+
+    protected final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    protected final Counter hitCount = registry.counter(MetricRegistry.name(
+            "nuxeo", "web", "authentication", "stateless-cache", "hits"));
+
+    protected final Counter missCount = registry.counter(MetricRegistry.name(
+            "nuxeo", "web", "authentication", "stateless-cache", "misses"));
+
+    /**
+     * @param maxSize the maximum number of identities
+     * @param ttl the time to live of the identities, in milliseconds
+     */
+    public StatelessIdentityCache(int maxSize, long ttl) {
+        cache = new ExpiringCache<Principal>(maxSize, ttl);
+        new SecureRandom().nextBytes(salt);
+    }
+
+    public static StatelessIdentityCache instance() {
+        if (instance == null) {
+            synchronized (StatelessIdentityCache.class) {
+                if (instance == null) {
+                    instance = new StatelessIdentityCache(
+                            FrameworkProperties.getInt(MAX_SIZE_PROP,
+                                    DEFAULT_MAX_SIZE),
+                            1000L * FrameworkProperties.getInt(TTL_PROP,
+                                    DEFAULT_TTL));
+                }
+            }
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return cache.isEnabled();
+    }
+
+    /**
+     * Computes the cache key of some credentials, a hash of everything the
+     * authentication may depend on.
+     */
+    public String getKey(UserIdentificationInfo userInfo) {
+        List<String> values = new ArrayList<String>();
+        values.add(userInfo.getAuthPluginName());
+        values.add(userInfo.getLoginPluginName());
+        values.add(userInfo.getUserName());
+        values.add(userInfo.getPassword());
+        values.add(userInfo.getToken());
+        Map<String, String> parameters = userInfo.getLoginParameters();
+        if (parameters != null) {
+            for (Map.Entry<String, String> es : new TreeMap<String, String>(
+                    parameters).entrySet()) {
+                values.add(es.getKey());
+                values.add(es.getValue());
+            }
+        }
+        return ExpiringCache.hash(salt,
+                values.toArray(new String[values.size()]));
+    }
+
+    /**
+     * Gets a copy of the principal cached for a key, if not expired.
+     */
+    public Principal get(String key) {
+        Principal principal = cache.get(key);
+        if (principal == null) {
+            missCount.inc();
+            return null;
+        }
+        hitCount.inc();
+        return copy(principal);
+    }
+
+    /**
+     * Caches a copy of an authenticated principal, if serializable.
+     */
+    public void put(String key, Principal principal) {
+        if (principal instanceof Serializable) {
+            cache.put(key, copy(principal));
+        }
+    }
+
+    protected static Principal copy(Principal principal) {
+        return (Principal) SerializationUtils.clone((Serializable) principal);
+    }
+
+    /**
+     * Removes the principals of a user, whatever the case of its name.
+     */
+    public void invalidate(final String userName) {
+        if (userName == null) {
+            return;
+        }
+        cache.invalidate(new ExpiringCache.Filter<Principal>() {
+            @Override
+            public boolean accept(Principal principal) {
+                return userName.equalsIgnoreCase(principal.getName());
+            }
+        });
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.ui.web.auth;
+
+import org.nuxeo.ecm.platform.usermanager.UserManager;
+import org.nuxeo.runtime.services.event.Event;
+import org.nuxeo.runtime.services.event.EventListener;
+
+/**
+ * Invalidates the {@link StatelessIdentityCache} when the user manager
+ * notifies user or group changes (events of the {@code usermanager} topic).
+ *
+ * @since 7.1
+ */
+public class StatelessIdentityCacheListener implements EventListener {
+
+    @Override
+    public boolean aboutToHandleEvent(Event event) {
+        return false;
+    }
+
+    @Override
+    public void handleEvent(Event event) {
+        String id = event.getId();
+        if (UserManager.USERCHANGED_EVENT_ID.equals(id)
+                || UserManager.INVALIDATE_PRINCIPAL_EVENT_ID.equals(id)) {
+            StatelessIdentityCache.instance().invalidate(
+                    (String) event.getData());
+        } else if (UserManager.GROUPCHANGED_EVENT_ID.equals(id)
+                || UserManager.INVALIDATE_ALL_PRINCIPALS_EVENT_ID.equals(id)) {
+            // group memberships are part of the cached principals
+            StatelessIdentityCache.instance().invalidateAll();
+        }
+    }
+
+}
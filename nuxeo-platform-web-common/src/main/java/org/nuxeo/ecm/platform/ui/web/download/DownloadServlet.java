@@ -20,12 +20,22 @@
 package org.nuxeo.ecm.platform.ui.web.download;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -46,6 +56,7 @@ import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
 import org.nuxeo.ecm.core.api.model.PropertyNotFoundException;
 import org.nuxeo.ecm.core.storage.StorageBlob;
+import org.nuxeo.ecm.core.storage.binary.Binary;
 import org.nuxeo.ecm.platform.web.common.ServletHelper;
 import org.nuxeo.ecm.platform.web.common.exceptionhandling.ExceptionHelper;
 import org.nuxeo.ecm.platform.web.common.requestcontroller.filter.BufferingServletOutputStream;
@@ -70,6 +81,11 @@ public class DownloadServlet extends HttpServlet {
 
     protected static final int MIN_BUFFER_SIZE = 1024 * 64;
 
+    /** Maximum number of ranges accepted in a request. */
+    protected static final int MAX_RANGES = 64;
+
+    protected static final String MULTIPART_BYTERANGES = "multipart/byteranges";
+
     protected static final Blob BLOB_NOT_FOUND = new StringBlob("404");
 
     private static final long serialVersionUID = 986876871L;
@@ -283,8 +299,8 @@ public class DownloadServlet extends HttpServlet {
     protected void downloadBlob(HttpServletRequest req,
             HttpServletResponse resp, Blob blob, String fileName)
             throws IOException, ServletException {
-        InputStream in = blob.getStream();
         OutputStream out = resp.getOutputStream();
+        RangeWriter writer = null;
         try {
 
             String digest = null;
@@ -293,7 +309,8 @@ public class DownloadServlet extends HttpServlet {
             }
 
             String previousToken = req.getHeader("If-None-Match");
-            if (previousToken != null && previousToken.equals(digest)) {
+            if (matchesETag(previousToken, digest)) {
+                // don't open the blob stream at all
                 resp.sendError(HttpServletResponse.SC_NOT_MODIFIED);
             } else {
                 resp.setHeader("ETag", digest);
@@ -313,17 +330,29 @@ public class DownloadServlet extends HttpServlet {
 
                 long fileSize = blob.getLength();
                 if (fileSize > 0) {
+                    resp.setHeader("Accept-Ranges", "bytes");
                     String range = req.getHeader("Range");
-                    ByteRange byteRange = null;
-                    if (range != null) {
+                    List<ByteRange> byteRanges = null;
+                    if (range != null
+                            && isIfRangeSatisfied(req.getHeader("If-Range"),
+                                    digest)) {
                         try {
-                            byteRange = parseRange(range, fileSize);
+                            byteRanges = parseRanges(range, fileSize);
                         } catch (ClientException e) {
                             log.error(e.getMessage(), e);
                         }
                     }
-                    if (byteRange != null) {
-                        resp.setHeader("Accept-Ranges", "bytes");
+                    writer = new RangeWriter(blob, getLocalFile(blob));
+                    // headers are set before the buffering stops, as that
+                    // may commit the response
+                    if (byteRanges == null) {
+                        if (fileSize < Integer.MAX_VALUE) {
+                            resp.setContentLength((int) fileSize);
+                        }
+                        BufferingServletOutputStream.stopBuffering(out);
+                        writer.write(new ByteRange(0, fileSize - 1), out);
+                    } else if (byteRanges.size() == 1) {
+                        ByteRange byteRange = byteRanges.get(0);
                         resp.setHeader("Content-Range",
                                 "bytes " + byteRange.getStart() + "-"
                                         + byteRange.getEnd() + "/" + fileSize);
@@ -332,12 +361,11 @@ public class DownloadServlet extends HttpServlet {
                             resp.setContentLength((int) length);
                         }
                         resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
-                        writeStream(in, out, byteRange);
+                        BufferingServletOutputStream.stopBuffering(out);
+                        writer.write(byteRange, out);
                     } else {
-                        if (fileSize < Integer.MAX_VALUE) {
-                            resp.setContentLength((int) fileSize);
-                        }
-                        writeStream(in, out, new ByteRange(0, fileSize - 1));
+                        writeMultipleRanges(resp, out, writer, byteRanges,
+                                blob.getMimeType(), fileSize);
                     }
                 }
             }
@@ -354,10 +382,114 @@ public class DownloadServlet extends HttpServlet {
                     handleClientDisconnect(ioe);
                 }
             }
-            if (in != null) {
-                in.close();
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * Writes several ranges as a {@code multipart/byteranges} response.
+     *
+     * @since 7.1
+     */
+    protected void writeMultipleRanges(HttpServletResponse resp,
+            OutputStream out, RangeWriter writer, List<ByteRange> byteRanges,
+            String mimeType, long fileSize) throws IOException {
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        List<byte[]> partHeaders = new ArrayList<byte[]>(byteRanges.size());
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(
+                StandardCharsets.US_ASCII);
+        long length = end.length;
+        for (ByteRange byteRange : byteRanges) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("\r\n--").append(boundary).append("\r\n");
+            if (mimeType != null) {
+                sb.append("Content-Type: ").append(mimeType).append("\r\n");
+            }
+            sb.append("Content-Range: bytes ").append(byteRange.getStart());
+            sb.append('-').append(byteRange.getEnd());
+            sb.append('/').append(fileSize).append("\r\n\r\n");
+            byte[] partHeader = sb.toString().getBytes(
+                    StandardCharsets.US_ASCII);
+            partHeaders.add(partHeader);
+            length += partHeader.length + byteRange.getLength();
+        }
+        resp.setContentType(MULTIPART_BYTERANGES + "; boundary=" + boundary);
+        if (length < Integer.MAX_VALUE) {
+            resp.setContentLength((int) length);
+        }
+        resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        BufferingServletOutputStream.stopBuffering(out);
+        for (int i = 0; i < byteRanges.size(); i++) {
+            out.write(partHeaders.get(i));
+            writer.write(byteRanges.get(i), out);
+        }
+        out.write(end);
+    }
+
+    /**
+     * Checks if an {@code If-None-Match} header matches the digest of a blob.
+     *
+     * @since 7.1
+     */
+    protected static boolean matchesETag(String header, String digest) {
+        if (header == null || digest == null) {
+            return false;
+        }
+        for (String token : header.split(",")) {
+            token = unquoteETag(token);
+            if (token.equals("*") || token.equals(digest)) {
+                return true;
             }
         }
+        return false;
+    }
+
+    /**
+     * Checks if the {@code Range} header must be honored given the
+     * {@code If-Range} header: ranges are only sent if the entity is
+     * unchanged, otherwise the whole entity is sent.
+     *
+     * @since 7.1
+     */
+    protected static boolean isIfRangeSatisfied(String header, String digest) {
+        if (header == null) {
+            return true;
+        }
+        // HTTP dates are not supported, only strong entity tags
+        return digest != null && !header.trim().startsWith("W/")
+                && unquoteETag(header).equals(digest);
+    }
+
+    protected static String unquoteETag(String token) {
+        token = token.trim();
+        if (token.startsWith("W/")) {
+            token = token.substring(2);
+        }
+        if (token.length() >= 2 && token.startsWith("\"")
+                && token.endsWith("\"")) {
+            token = token.substring(1, token.length() - 1);
+        }
+        return token;
+    }
+
+    /**
+     * Gets the local file holding the content of a blob, if any.
+     *
+     * @since 7.1
+     */
+    protected static File getLocalFile(Blob blob) {
+        File file = null;
+        if (blob instanceof FileBlob) {
+            file = ((FileBlob) blob).getFile();
+        } else if (blob instanceof StorageBlob) {
+            Binary binary = ((StorageBlob) blob).getBinary();
+            if (binary != null) {
+                file = binary.getFile();
+            }
+        }
+        return file != null && file.isFile() ? file : null;
     }
 
     public void handleClientDisconnect(IOException ioe) throws IOException {
@@ -392,17 +524,166 @@ public class DownloadServlet extends HttpServlet {
     public static void writeStream(InputStream in, OutputStream out,
             ByteRange range) throws IOException {
         BufferingServletOutputStream.stopBuffering(out);
-        byte[] buffer = new byte[BUFFER_SIZE];
-        long read;
-        long offset = range.getStart();
-        in.skip(offset);
-        while (offset <= range.getEnd() && (read = in.read(buffer)) != -1) {
-            read = Math.min(read, range.getEnd() - offset + 1);
-            out.write(buffer, 0, (int) read);
-            out.flush();
-            offset += read;
+        skipFully(in, range.getStart());
+        copy(in, out, range.getLength());
+    }
+
+    /**
+     * Writes a range of a file, letting the file channel do the copy instead
+     * of reading and discarding the bytes before the range.
+     *
+     * @since 7.1
+     */
+    public static void writeFile(FileChannel channel, OutputStream out,
+            ByteRange range) throws IOException {
+        BufferingServletOutputStream.stopBuffering(out);
+        WritableByteChannel target = Channels.newChannel(out);
+        long position = range.getStart();
+        long end = Math.min(range.getEnd() + 1, channel.size());
+        while (position < end) {
+            position += channel.transferTo(position, end - position, target);
         }
+    }
 
+    protected static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                // skip may return 0 before EOF, check with a read
+                if (in.read() == -1) {
+                    return;
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    protected static void copy(InputStream in, OutputStream out, long length)
+            throws IOException {
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE,
+                Math.max(length, 1))];
+        int read;
+        while (length > 0
+                && (read = in.read(buffer, 0,
+                        (int) Math.min(buffer.length, length))) != -1) {
+            out.write(buffer, 0, read);
+            length -= read;
+        }
+    }
+
+    /**
+     * Writes ranges of a blob, through a file channel if the blob is a local
+     * file, otherwise through its stream, which is only reopened if a range
+     * starts before the previous one.
+     *
+     * @since 7.1
+     */
+    protected static class RangeWriter {
+
+        protected final Blob blob;
+
+        protected final File file;
+
+        protected FileInputStream fileIn;
+
+        protected InputStream in;
+
+        protected long position;
+
+        public RangeWriter(Blob blob, File file) {
+            this.blob = blob;
+            this.file = file;
+        }
+
+        public void write(ByteRange range, OutputStream out)
+                throws IOException {
+            if (file != null) {
+                if (fileIn == null) {
+                    fileIn = new FileInputStream(file);
+                }
+                writeFile(fileIn.getChannel(), out, range);
+                return;
+            }
+            if (in == null || range.getStart() < position) {
+                if (in != null) {
+                    in.close();
+                }
+                in = blob.getStream();
+                position = 0;
+            }
+            skipFully(in, range.getStart() - position);
+            copy(in, out, range.getLength());
+            position = range.getEnd() + 1;
+        }
+
+        public void close() throws IOException {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } finally {
+                if (fileIn != null) {
+                    fileIn.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a {@code Range} header, possibly holding several ranges.
+     * <p>
+     * The ranges are sorted, and the overlapping or adjacent ones merged, so
+     * that no byte is sent twice.
+     *
+     * @return the ranges, or {@code null} if they add up to more than the
+     *         file, which should then be sent whole
+     * @since 7.1
+     */
+    public static List<ByteRange> parseRanges(String range, long fileSize)
+            throws ClientException {
+        if (!range.startsWith("bytes=")) {
+            throw new ClientException("Cannot parse range : " + range);
+        }
+        String[] specs = range.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            throw new ClientException("Too many ranges : " + range);
+        }
+        List<ByteRange> byteRanges = new ArrayList<ByteRange>(specs.length);
+        long total = 0;
+        for (String spec : specs) {
+            ByteRange byteRange = parseRange("bytes=" + spec.trim(), fileSize);
+            if (byteRange.getEnd() >= fileSize) {
+                byteRange = new ByteRange(byteRange.getStart(), fileSize - 1);
+            }
+            if (byteRange.getStart() > byteRange.getEnd()) {
+                throw new ClientException("Cannot satisfy range : " + range);
+            }
+            total += byteRange.getLength();
+            byteRanges.add(byteRange);
+        }
+        if (total > fileSize) {
+            return null;
+        }
+        Collections.sort(byteRanges, new Comparator<ByteRange>() {
+            @Override
+            public int compare(ByteRange r1, ByteRange r2) {
+                return Long.compare(r1.getStart(), r2.getStart());
+            }
+        });
+        List<ByteRange> merged = new ArrayList<ByteRange>(byteRanges.size());
+        ByteRange last = null;
+        for (ByteRange byteRange : byteRanges) {
+            if (last != null && byteRange.getStart() <= last.getEnd() + 1) {
+                last = new ByteRange(last.getStart(), Math.max(
+                        last.getEnd(), byteRange.getEnd()));
+                merged.set(merged.size() - 1, last);
+            } else {
+                last = byteRange;
+                merged.add(last);
+            }
+        }
+        return merged;
     }
 
     public static ByteRange parseRange(String range, long fileSize)
@@ -0,0 +1,109 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.web.common.requestcontroller.filter;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
+/**
+ * Pool of fixed-size memory chunks shared by all the buffered responses.
+ * <p>
+ * The total size of the chunks handed out is bounded: once the ceiling is
+ * reached no chunk is given anymore and responses have to buffer on disk.
+ * Released chunks are kept for reuse, up to a limited number.
+ *
+ * @since 7.1
+ */
+public class BufferChunkPool {
+
+    public static final int CHUNK_SIZE = 8 * 1024; // 8 KB
+
+    protected final long maxMemory;
+
+    protected final int maxIdleChunks;
+
+    protected final AtomicLong usedMemory = new AtomicLong();
+
+    protected final AtomicInteger idleChunksCount = new AtomicInteger();
+
+    protected final ConcurrentLinkedQueue<byte[]> idleChunks = new ConcurrentLinkedQueue<byte[]>();
+
+    protected final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    protected final Counter memoryCount = registry.counter(MetricRegistry.name(
+            "nuxeo", "web", "requestcontroller", "buffering", "memory"));
+
+    protected final Counter exhaustedCount = registry.counter(MetricRegistry.name(
+            "nuxeo", "web", "requestcontroller", "buffering", "exhausted"));
+
+    /**
+     * @param maxMemory the maximum total size of the chunks in use
+     * @param maxIdleChunks the maximum number of released chunks kept
+     */
+    public BufferChunkPool(long maxMemory, int maxIdleChunks) {
+        this.maxMemory = maxMemory;
+        this.maxIdleChunks = maxIdleChunks;
+    }
+
+    /**
+     * Gets a chunk of {@link #CHUNK_SIZE} bytes.
+     *
+     * @return the chunk, or {@code null} if the memory ceiling is reached
+     */
+    public byte[] acquire() {
+        if (usedMemory.addAndGet(CHUNK_SIZE) > maxMemory) {
+            usedMemory.addAndGet(-CHUNK_SIZE);
+            exhaustedCount.inc();
+            return null;
+        }
+        memoryCount.inc(CHUNK_SIZE);
+        byte[] chunk = idleChunks.poll();
+        if (chunk == null) {
+            return new byte[CHUNK_SIZE];
+        }
+        idleChunksCount.decrementAndGet();
+        return chunk;
+    }
+
+    /**
+     * Gives back a chunk obtained from {@link #acquire()}.
+     */
+    public void release(byte[] chunk) {
+        usedMemory.addAndGet(-CHUNK_SIZE);
+        memoryCount.dec(CHUNK_SIZE);
+        if (idleChunksCount.incrementAndGet() <= maxIdleChunks) {
+            idleChunks.offer(chunk);
+        } else {
+            idleChunksCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the total size of the chunks in use.
+     */
+    public long getUsedMemory() {
+        return usedMemory.get();
+    }
+
+}
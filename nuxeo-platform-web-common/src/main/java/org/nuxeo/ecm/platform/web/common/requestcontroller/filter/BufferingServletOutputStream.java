@@ -17,21 +17,29 @@
 package org.nuxeo.ecm.platform.web.common.requestcontroller.filter;
 
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.servlet.ServletOutputStream;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.platform.util.FrameworkProperties;
 import org.nuxeo.ecm.platform.web.common.exceptionhandling.ExceptionHelper;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
 
 /**
  * A {@link ServletOutputStream} that buffers everything until
@@ -40,6 +48,8 @@ import org.nuxeo.ecm.platform.web.common.exceptionhandling.ExceptionHelper;
  * There may only be one such instance per thread.
  * <p>
  * Buffering is done first in memory, then on disk if the size exceeds a limit.
+ * Memory is made of chunks taken from a pool shared by all the responses and
+ * bounded in size, so responses also go to disk when the pool is exhausted.
  */
 public class BufferingServletOutputStream extends ServletOutputStream {
 
@@ -51,11 +61,44 @@ public class BufferingServletOutputStream extends ServletOutputStream {
     /** Maximum memory buffer size, after this a file is used. */
     public static final int MAX = 64 * 1024; // 64 KB
 
-    /** Used for 0-length writes. */
-    private final static OutputStream EMPTY = new ByteArrayOutputStream(0);
+    /**
+     * Property for the maximum memory buffer size of a response, defaults to
+     * {@link #MAX}.
+     *
+     * @since 7.1
+     */
+    public static final String MAX_MEMORY_PROP = "org.nuxeo.ecm.platform.web.requestcontroller.buffering.maxMemory";
+
+    /**
+     * Property for the maximum memory used by all the buffered responses.
+     *
+     * @since 7.1
+     */
+    public static final String POOL_MAX_MEMORY_PROP = "org.nuxeo.ecm.platform.web.requestcontroller.buffering.poolMaxMemory";
+
+    /** @since 7.1 */
+    public static final long DEFAULT_POOL_MAX_MEMORY = 32 * 1024 * 1024; // 32 MB
+
+    /** Number of released chunks kept for reuse. */
+    protected static final int POOL_IDLE_CHUNKS = 256; // 2 MB
+
+    protected static final int maxMemory = (int) FrameworkProperties.getLong(
+            MAX_MEMORY_PROP, MAX);
+
+    protected static final BufferChunkPool pool = new BufferChunkPool(
+            FrameworkProperties.getLong(POOL_MAX_MEMORY_PROP, DEFAULT_POOL_MAX_MEMORY),
+            POOL_IDLE_CHUNKS);
 
     protected static ThreadLocal<BufferingServletOutputStream> threadLocal = new ThreadLocal<BufferingServletOutputStream>();
 
+    protected final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    protected final Counter spilledCount = registry.counter(MetricRegistry.name(
+            "nuxeo", "web", "requestcontroller", "buffering", "spilled"));
+
+    protected final Counter spilledBytesCount = registry.counter(MetricRegistry.name(
+            "nuxeo", "web", "requestcontroller", "buffering", "spilled-bytes"));
+
     /** Have we stopped buffering to pass writes directly to the output stream. */
     protected boolean streaming;
 
@@ -67,12 +110,23 @@ public class BufferingServletOutputStream extends ServletOutputStream {
 
     protected PrintWriter writer;
 
-    protected ByteArrayOutputStream memory;
+    /** Memory chunks, all full except the last one. */
+    protected List<byte[]> chunks;
+
+    /** Number of bytes used in the last chunk. */
+    protected int chunkPos;
+
+    /** Number of bytes buffered in memory. */
+    protected int memorySize;
+
+    protected FileChannel channel;
 
     protected OutputStream file;
 
     protected File tmp;
 
+    protected final byte[] oneByte = new byte[1];
+
     /**
      * A {@link ServletOutputStream} wrapper that buffers everything until
      * {@link #stopBuffering()} is called.
@@ -95,42 +149,69 @@ public class BufferingServletOutputStream extends ServletOutputStream {
     }
 
     /**
-     * Finds the proper output stream where we can write {@code len} bytes.
+     * Buffers {@code len} bytes, in memory chunks if possible, otherwise in a
+     * temporary file.
      */
-    protected OutputStream getOutputStream(int len) throws IOException {
-        if (streaming) {
-            return outputStream;
+    protected void buffer(byte[] b, int off, int len) throws IOException {
+        if (file == null && memorySize + len > maxMemory) {
+            spill();
         }
-        if (len == 0) {
-            return EMPTY;
+        while (file == null && len > 0) {
+            if (chunks == null || chunkPos == BufferChunkPool.CHUNK_SIZE) {
+                byte[] chunk = pool.acquire();
+                if (chunk == null) {
+                    // pool exhausted
+                    spill();
+                    break;
+                }
+                if (chunks == null) {
+                    chunks = new ArrayList<byte[]>();
+                }
+                chunks.add(chunk);
+                chunkPos = 0;
+            }
+            int n = Math.min(len, BufferChunkPool.CHUNK_SIZE - chunkPos);
+            System.arraycopy(b, off, chunks.get(chunks.size() - 1), chunkPos,
+                    n);
+            chunkPos += n;
+            memorySize += n;
+            off += n;
+            len -= n;
         }
-        if (file != null) {
-            // already to file
-            return file;
+        if (len > 0) {
+            file.write(b, off, len);
         }
-        int total;
-        if (memory == null) {
-            // no buffer yet
-            if (len <= MAX) {
-                memory = new ByteArrayOutputStream(Math.max(INITIAL, len));
-                return memory;
+    }
+
+    /**
+     * Switches buffering to a temporary file, moving there the memory chunks.
+     */
+    @SuppressWarnings("resource")
+    protected void spill() throws IOException {
+        createTempFile();
+        channel = new RandomAccessFile(tmp, "rw").getChannel();
+        file = new BufferedOutputStream(Channels.newOutputStream(channel),
+                BufferChunkPool.CHUNK_SIZE);
+        spilledCount.inc();
+        if (chunks != null) {
+            int last = chunks.size() - 1;
+            for (int i = 0; i <= last; i++) {
+                file.write(chunks.get(i), 0, i == last ? chunkPos
+                        : BufferChunkPool.CHUNK_SIZE);
             }
-            total = len;
-        } else {
-            total = memory.size() + len;
+            releaseChunks();
         }
-        if (total <= MAX) {
-            return memory;
-        } else {
-            // switch to a file
-            createTempFile();
-            file = new BufferedOutputStream(new FileOutputStream(tmp));
-            if (memory != null) {
-                memory.writeTo(file);
-                memory = null;
+    }
+
+    protected void releaseChunks() {
+        if (chunks != null) {
+            for (byte[] chunk : chunks) {
+                pool.release(chunk);
             }
-            return file;
+            chunks = null;
         }
+        chunkPos = 0;
+        memorySize = 0;
     }
 
     protected void createTempFile() throws IOException {
@@ -139,17 +220,26 @@ public class BufferingServletOutputStream extends ServletOutputStream {
 
     @Override
     public void write(int b) throws IOException {
-        getOutputStream(1).write(b);
+        if (streaming) {
+            outputStream.write(b);
+        } else {
+            oneByte[0] = (byte) b;
+            buffer(oneByte, 0, 1);
+        }
     }
 
     @Override
     public void write(byte[] b) throws IOException {
-        getOutputStream(b.length).write(b);
+        write(b, 0, b.length);
     }
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        getOutputStream(len).write(b, off, len);
+        if (streaming) {
+            outputStream.write(b, off, len);
+        } else if (len > 0) {
+            buffer(b, off, len);
+        }
     }
 
     /**
@@ -196,44 +286,32 @@ public class BufferingServletOutputStream extends ServletOutputStream {
             writer.flush(); // don't close, streaming needs it
         }
         streaming = true;
-        if (log.isDebugEnabled()) {
-            long len;
-            if (memory != null) {
-                len = memory.size();
-            } else if (file != null) {
-                len = tmp.length();
-            } else {
-                len = 0;
-            }
-            log.debug("buffered bytes: " + len);
-        }
         try {
-            if (memory != null) {
-                memory.writeTo(outputStream);
-            } else if (file != null) {
+            if (file != null) {
                 try {
                     try {
                         file.flush();
-                    } finally {
-                        file.close();
-                    }
-                    FileInputStream in = new FileInputStream(tmp);
-                    try {
-                        IOUtils.copy(in, outputStream);
-                    } catch (IOException e) {
-                        Throwable unwrappedError = ExceptionHelper.unwrapException(e);
-                        if (ExceptionHelper.isClientAbortError(unwrappedError)) {
-                            log.warn("Client disconnected: "
-                                    + unwrappedError.getMessage());
-                        } else {
-                            throw e;
+                        long len = channel.size();
+                        spilledBytesCount.inc(len);
+                        if (log.isDebugEnabled()) {
+                            log.debug("buffered bytes: " + len);
                         }
+                        transferTo(channel, len, outputStream);
                     } finally {
-                        in.close();
+                        channel.close();
                     }
                 } finally {
                     tmp.delete();
                 }
+            } else if (chunks != null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("buffered bytes: " + memorySize);
+                }
+                int last = chunks.size() - 1;
+                for (int i = 0; i <= last; i++) {
+                    outputStream.write(chunks.get(i), 0, i == last ? chunkPos
+                            : BufferChunkPool.CHUNK_SIZE);
+                }
             }
         } catch (IOException e) {
             Throwable unwrappedError = ExceptionHelper.unwrapException(e);
@@ -243,7 +321,8 @@ public class BufferingServletOutputStream extends ServletOutputStream {
                 throw e;
             }
         } finally {
-            memory = null;
+            releaseChunks();
+            channel = null;
             file = null;
             tmp = null;
             try {
@@ -266,6 +345,19 @@ public class BufferingServletOutputStream extends ServletOutputStream {
         }
     }
 
+    /**
+     * Sends the content of a file channel to an output stream, letting the
+     * channel pick the most efficient copy.
+     */
+    protected static void transferTo(FileChannel channel, long len,
+            OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        long pos = 0;
+        while (pos < len) {
+            pos += channel.transferTo(pos, len - pos, target);
+        }
+    }
+
     /**
      * Tells the given {@link OutputStream} to stop buffering (if it was).
      */
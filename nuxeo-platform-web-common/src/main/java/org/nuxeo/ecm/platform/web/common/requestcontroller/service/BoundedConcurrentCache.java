@@ -0,0 +1,88 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.web.common.requestcontroller.service;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Size-bounded cache that can be read and written concurrently without
+ * locking, unlike {@link LRUCachingMap}. {@code null} values are cached too.
+ * <p>
+ * When full, a quarter of the entries is evicted in no particular order,
+ * which is enough for caches of computed values whose working set is much
+ * smaller than the cache.
+ *
+ * @since 7.1
+ */
+public class BoundedConcurrentCache<K, V> {
+
+    protected static final Object NULL = new Object();
+
+    protected final ConcurrentMap<K, Object> map;
+
+    protected final int maxSize;
+
+    public BoundedConcurrentCache(int maxSize) {
+        this.maxSize = maxSize;
+        map = new ConcurrentHashMap<K, Object>(maxSize * 4 / 3 + 1);
+    }
+
+    /**
+     * Computes the value of a key.
+     */
+    public interface Loader<K, V> {
+        V load(K key);
+    }
+
+    /**
+     * Gets the cached value of a key, computing and caching it if needed.
+     * Concurrent misses on the same key may compute the value several times.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K key, Loader<K, V> loader) {
+        Object value = map.get(key);
+        if (value == null) {
+            V loaded = loader.load(key);
+            if (map.size() >= maxSize) {
+                evict();
+            }
+            map.put(key, loaded == null ? NULL : loaded);
+            return loaded;
+        }
+        return value == NULL ? null : (V) value;
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    protected void evict() {
+        int toEvict = Math.max(1, maxSize / 4);
+        Iterator<K> it = map.keySet().iterator();
+        while (toEvict-- > 0 && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+}
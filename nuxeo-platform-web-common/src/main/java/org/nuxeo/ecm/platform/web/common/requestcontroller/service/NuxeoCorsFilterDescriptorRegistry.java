@@ -17,6 +17,7 @@
 
 package org.nuxeo.ecm.platform.web.common.requestcontroller.service;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Pattern;
@@ -36,6 +37,13 @@ public class NuxeoCorsFilterDescriptorRegistry extends
 
     protected Map<String, NuxeoCorsFilterDescriptor> descs = new HashMap<>();
 
+    /**
+     * Precompiled patterns of the enabled descriptors, built on first use.
+     *
+     * @since 7.1
+     */
+    protected volatile URIPatternMatcher<NuxeoCorsFilterDescriptor> matcher;
+
     @Override
     public String getContributionId(NuxeoCorsFilterDescriptor contrib) {
         return contrib.name;
@@ -50,6 +58,7 @@ public class NuxeoCorsFilterDescriptorRegistry extends
         if (contrib.enabled) {
             descs.put(id, contrib);
         }
+        matcher = null;
     }
 
     @Override
@@ -57,6 +66,7 @@ public class NuxeoCorsFilterDescriptorRegistry extends
         if (descs.containsKey(id)) {
             descs.remove(id);
         }
+        matcher = null;
     }
 
     @Override
@@ -74,13 +84,36 @@ public class NuxeoCorsFilterDescriptorRegistry extends
         dst.merge(src);
     }
 
-    public NuxeoCorsFilterDescriptor getFirstMatchingDescriptor(String uri) {
-        for (NuxeoCorsFilterDescriptor filterDesc : descs.values()) {
-            Pattern pattern = Pattern.compile(filterDesc.pattern);
-            if (pattern.matcher(uri).matches()) {
-                return filterDesc;
+    /**
+     * @since 7.1
+     */
+    public Collection<NuxeoCorsFilterDescriptor> getDescriptors() {
+        return descs.values();
+    }
+
+    /**
+     * Gets the matcher of the enabled descriptors, compiling their patterns
+     * if needed.
+     *
+     * @since 7.1
+     */
+    public URIPatternMatcher<NuxeoCorsFilterDescriptor> getMatcher() {
+        URIPatternMatcher<NuxeoCorsFilterDescriptor> m = matcher;
+        if (m == null) {
+            m = new URIPatternMatcher<NuxeoCorsFilterDescriptor>();
+            for (NuxeoCorsFilterDescriptor desc : descs.values()) {
+                m.addRule(Pattern.compile(desc.pattern), desc);
             }
+            matcher = m;
         }
-        return null;
+        return m;
+    }
+
+    /**
+     * @deprecated since 7.1, use {@link #getMatcher()}
+     */
+    @Deprecated
+    public NuxeoCorsFilterDescriptor getFirstMatchingDescriptor(String uri) {
+        return getMatcher().match(uri);
     }
 }
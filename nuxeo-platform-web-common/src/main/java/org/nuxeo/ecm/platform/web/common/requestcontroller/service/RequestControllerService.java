@@ -22,17 +22,23 @@ package org.nuxeo.ecm.platform.web.common.requestcontroller.service;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.servlet.FilterConfig;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nuxeo.runtime.metrics.MetricsService;
+import org.nuxeo.runtime.model.ComponentContext;
 import org.nuxeo.runtime.model.ComponentInstance;
 import org.nuxeo.runtime.model.DefaultComponent;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+
 /**
  * Runtime component that implements the {@link RequestControllerManager}
  * interface. Contains both the Extension point logic and the service
@@ -58,11 +64,63 @@ public class RequestControllerService extends DefaultComponent implements
 
     protected static final Map<String, FilterConfigDescriptor> denyPatterns = new LinkedHashMap<String, FilterConfigDescriptor>();
 
-    // @GuardedBy("itself")
-    protected static final Map<String, RequestFilterConfig> configCache = new LRUCachingMap<String, RequestFilterConfig>(
-            250);
+    /**
+     * @since 7.1
+     */
+    protected static final int CACHE_SIZE = 1000;
+
+    protected static final BoundedConcurrentCache<String, RequestFilterConfig> configCache = new BoundedConcurrentCache<String, RequestFilterConfig>(
+            CACHE_SIZE);
+
+    protected static final BoundedConcurrentCache<String, FilterConfig> filterConfigCache = new BoundedConcurrentCache<String, FilterConfig>(
+            CACHE_SIZE);
+
+    protected static final RequestFilterConfig DENY_CONFIG = new RequestFilterConfigImpl(
+            false, false, false, false, false, "");
+
+    /**
+     * Deny rules followed by grant rules, built on first use.
+     *
+     * @since 7.1
+     */
+    protected static volatile URIPatternMatcher<RequestFilterConfig> configMatcher;
+
+    protected final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    protected final Timer matchTimer = registry.timer(MetricRegistry.name(
+            "nuxeo", "web", "requestcontroller", "match"));
+
+    protected final Counter requestsCount = registry.counter(MetricRegistry.name(
+            "nuxeo", "web", "requestcontroller", "cache", "requests"));
 
-    protected static final Map<String, FilterConfig> filterConfigCache = new LRUCachingMap<>(250);
+    protected final Counter missesCount = registry.counter(MetricRegistry.name(
+            "nuxeo", "web", "requestcontroller", "cache", "misses"));
+
+    protected final BoundedConcurrentCache.Loader<String, RequestFilterConfig> configLoader = new BoundedConcurrentCache.Loader<String, RequestFilterConfig>() {
+        @Override
+        public RequestFilterConfig load(String uri) {
+            missesCount.inc();
+            Timer.Context context = matchTimer.time();
+            try {
+                return computeConfigForRequest(uri);
+            } finally {
+                context.stop();
+            }
+        }
+    };
+
+    protected final BoundedConcurrentCache.Loader<String, FilterConfig> corsConfigLoader = new BoundedConcurrentCache.Loader<String, FilterConfig>() {
+        @Override
+        public FilterConfig load(String uri) {
+            missesCount.inc();
+            Timer.Context context = matchTimer.time();
+            try {
+                return computeCorsFilterConfigForUri(uri);
+            } finally {
+                context.stop();
+            }
+        }
+    };
 
     protected static final NuxeoCorsFilterDescriptorRegistry corsFilterRegistry = new NuxeoCorsFilterDescriptorRegistry();
 
@@ -70,6 +128,20 @@ public class RequestControllerService extends DefaultComponent implements
 
     protected Map<String, String> headersCache;
 
+    @Override
+    public void activate(ComponentContext context) throws Exception {
+        String hitRatioName = MetricRegistry.name("nuxeo", "web",
+                "requestcontroller", "cache", "hit-ratio");
+        registry.remove(hitRatioName);
+        registry.register(hitRatioName, new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                long requests = requestsCount.getCount();
+                return Ratio.of(requests - missesCount.getCount(), requests);
+            }
+        });
+    }
+
     @Override
     public void registerContribution(Object contribution,
             String extensionPoint, ComponentInstance contributor)
@@ -79,6 +151,7 @@ public class RequestControllerService extends DefaultComponent implements
             registerFilterConfig(desc);
         } else if (CORS_CONFIG_EP.equals(extensionPoint)) {
             corsFilterRegistry.addContribution((NuxeoCorsFilterDescriptor)contribution);
+            invalidateCorsConfigs();
         }  else if (HEADERS_CONFIG_EP.equals(extensionPoint)) {
             headersRegistry.addContribution((NuxeoHeaderDescriptor)contribution);
         } else {
@@ -102,6 +175,15 @@ public class RequestControllerService extends DefaultComponent implements
             denyPatterns.put(desc.getName(), desc);
             log.debug("Registered deny filter config");
         }
+        configMatcher = null;
+        configCache.clear();
+    }
+
+    /**
+     * @since 7.1
+     */
+    protected void invalidateCorsConfigs() {
+        filterConfigCache.clear();
     }
 
     @Override
@@ -110,6 +192,7 @@ public class RequestControllerService extends DefaultComponent implements
             throws Exception {
         if (CORS_CONFIG_EP.equals(extensionPoint)) {
             corsFilterRegistry.removeContribution((NuxeoCorsFilterDescriptor) contribution);
+            invalidateCorsConfigs();
         }
     }
 
@@ -117,68 +200,54 @@ public class RequestControllerService extends DefaultComponent implements
 
     @Override
     public FilterConfig getCorsConfigForRequest(HttpServletRequest request) {
-        String uri = request.getRequestURI();
-        FilterConfig filterConfig = null;
-        synchronized (filterConfigCache) {
-            filterConfig = filterConfigCache.get(uri);
-        }
-
-        if (filterConfig == null) {
-            filterConfig = computeCorsFilterConfigForUri(uri);
-            synchronized (filterConfigCache) {
-                filterConfigCache.put(uri, filterConfig);
-            }
-        }
-
-        return filterConfig;
+        requestsCount.inc();
+        return filterConfigCache.get(request.getRequestURI(), corsConfigLoader);
     }
 
     public FilterConfig computeCorsFilterConfigForUri(String uri) {
-        NuxeoCorsFilterDescriptor descriptor = corsFilterRegistry.getFirstMatchingDescriptor(uri);
+        NuxeoCorsFilterDescriptor descriptor = getCorsMatcher().match(uri);
         return descriptor != null ? descriptor.buildFilterConfig() : null;
     }
 
-    public RequestFilterConfig getConfigForRequest(HttpServletRequest request) {
-        String uri = request.getRequestURI();
-        RequestFilterConfig config = null;
+    protected URIPatternMatcher<NuxeoCorsFilterDescriptor> getCorsMatcher() {
+        return corsFilterRegistry.getMatcher();
+    }
 
-        synchronized (configCache) {
-            config = configCache.get(uri);
-        }
-        if (config == null) {
-            config = computeConfigForRequest(uri);
-            synchronized (configCache) {
-                configCache.put(uri, config);
-            }
-        }
-        return config;
+    public RequestFilterConfig getConfigForRequest(HttpServletRequest request) {
+        requestsCount.inc();
+        return configCache.get(request.getRequestURI(), configLoader);
     }
 
     public RequestFilterConfig computeConfigForRequest(String uri) {
-        // handle deny patterns
-        for (FilterConfigDescriptor desc : denyPatterns.values()) {
-            Pattern pat = desc.getCompiledPattern();
-            Matcher m = pat.matcher(uri);
-            if (m.matches()) {
-                return new RequestFilterConfigImpl(false, false, false, false,
-                        false, "");
-            }
-        }
+        RequestFilterConfig config = getConfigMatcher().match(uri);
+        // return deny by default
+        return config != null ? config : DENY_CONFIG;
+    }
 
-        // handle grant patterns
-        for (FilterConfigDescriptor desc : grantPatterns.values()) {
-            Pattern pat = desc.getCompiledPattern();
-            Matcher m = pat.matcher(uri);
-            if (m.matches()) {
-                return new RequestFilterConfigImpl(desc.useSync(),
-                        desc.useTx(), desc.useTxBuffered(), desc.isCached(),
-                        desc.isPrivate(), desc.getCacheTime());
+    /**
+     * Gets the matcher evaluating the deny patterns, then the grant patterns.
+     *
+     * @since 7.1
+     */
+    protected URIPatternMatcher<RequestFilterConfig> getConfigMatcher() {
+        URIPatternMatcher<RequestFilterConfig> matcher = configMatcher;
+        if (matcher == null) {
+            matcher = new URIPatternMatcher<RequestFilterConfig>();
+            // handle deny patterns
+            for (FilterConfigDescriptor desc : denyPatterns.values()) {
+                matcher.addRule(desc.getCompiledPattern(), DENY_CONFIG);
+            }
+            // handle grant patterns
+            for (FilterConfigDescriptor desc : grantPatterns.values()) {
+                matcher.addRule(desc.getCompiledPattern(),
+                        new RequestFilterConfigImpl(desc.useSync(),
+                                desc.useTx(), desc.useTxBuffered(),
+                                desc.isCached(), desc.isPrivate(),
+                                desc.getCacheTime()));
             }
+            configMatcher = matcher;
         }
-
-        // return deny by default
-        return new RequestFilterConfigImpl(false, false, false, false, false,
-                "");
+        return matcher;
     }
 
     public Map<String, String> getResponseHeaders() {
@@ -0,0 +1,144 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.web.common.requestcontroller.service;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable matcher of URIs against an ordered list of regular expressions,
+ * the first matching rule winning.
+ * <p>
+ * The literal prefix of each pattern (the characters before its first
+ * regular expression construct) is indexed in a trie: a single walk of the
+ * URI along the trie gives the rules that can possibly match, and only these
+ * ones are evaluated, in order.
+ *
+ * @since 7.1
+ */
+public class URIPatternMatcher<T> {
+
+    protected static final String META_CHARACTERS = ".[]{}()*+?^$|";
+
+    protected static final String OPTIONAL_QUANTIFIERS = "?*{";
+
+    protected static class Node {
+
+        protected final Map<Character, Node> children = new HashMap<Character, Node>();
+
+        /** Indexes of the rules whose literal prefix ends at this node. */
+        protected final BitSet rules = new BitSet();
+    }
+
+    protected final List<Pattern> patterns = new ArrayList<Pattern>();
+
+    protected final List<T> values = new ArrayList<T>();
+
+    protected final Node root = new Node();
+
+    /**
+     * Adds a rule, with a lower priority than the previously added ones.
+     */
+    public void addRule(Pattern pattern, T value) {
+        int index = patterns.size();
+        patterns.add(pattern);
+        values.add(value);
+        Node node = root;
+        String prefix = getLiteralPrefix(pattern.pattern());
+        for (int i = 0; i < prefix.length(); i++) {
+            Character c = Character.valueOf(prefix.charAt(i));
+            Node child = node.children.get(c);
+            if (child == null) {
+                child = new Node();
+                node.children.put(c, child);
+            }
+            node = child;
+        }
+        node.rules.set(index);
+    }
+
+    /**
+     * Gets the value of the first rule matching the whole URI.
+     *
+     * @return the value, or {@code null} if no rule matches
+     */
+    public T match(String uri) {
+        BitSet candidates = (BitSet) root.rules.clone();
+        Node node = root;
+        for (int i = 0; i < uri.length(); i++) {
+            node = node.children.get(Character.valueOf(uri.charAt(i)));
+            if (node == null) {
+                break;
+            }
+            candidates.or(node.rules);
+        }
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if (patterns.get(i).matcher(uri).matches()) {
+                return values.get(i);
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return patterns.size();
+    }
+
+    /**
+     * Computes the literal prefix that any string fully matching the regular
+     * expression starts with. The computation is conservative: an empty
+     * prefix is returned for expressions using alternatives.
+     */
+    protected static String getLiteralPrefix(String regex) {
+        if (regex.indexOf('|') >= 0) {
+            return "";
+        }
+        StringBuilder prefix = new StringBuilder();
+        int i = 0;
+        if (regex.startsWith("^")) {
+            i++;
+        }
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 >= regex.length()
+                        || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    // character class, back reference or quoting
+                    break;
+                }
+                prefix.append(regex.charAt(i + 1));
+                i += 2;
+            } else if (META_CHARACTERS.indexOf(c) >= 0) {
+                if (OPTIONAL_QUANTIFIERS.indexOf(c) >= 0
+                        && prefix.length() > 0) {
+                    // the last literal character may be absent
+                    prefix.setLength(prefix.length() - 1);
+                }
+                break;
+            } else {
+                prefix.append(c);
+                i++;
+            }
+        }
+        return prefix.toString();
+    }
+
+}
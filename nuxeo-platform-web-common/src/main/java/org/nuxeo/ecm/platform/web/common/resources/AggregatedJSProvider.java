@@ -20,15 +20,23 @@
 package org.nuxeo.ecm.platform.web.common.resources;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -39,21 +47,106 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.common.utils.Path;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
 
 public class AggregatedJSProvider extends HttpServlet {
 
     public static final String MINIMIZER_IMPL_KEY = "org.nuxeo.ecm.platform.web.common.resources.JSMinimizer";
 
-    protected static final ReadWriteLock cacheLock = new ReentrantReadWriteLock();
-    protected static final Map<String, String> cachedResponses = new HashMap<String, String>();
+    /**
+     * Maximum number of bundles kept in cache.
+     *
+     * @since 7.1
+     */
+    public static final int MAX_BUNDLES = 200;
+
+    /**
+     * Bundles being built or built, by cache key. Concurrent requests for the
+     * same key wait for a single build.
+     *
+     * @since 7.1
+     */
+    protected static final ConcurrentMap<String, Future<ScriptBundle>> bundles = new ConcurrentHashMap<String, Future<ScriptBundle>>();
 
     protected static JSMinimizer minimizer;
 
     protected static final String SCRIPT_SEP = "\\|";
 
+    protected static final String CONTENT_TYPE = "text/javascript; charset=UTF-8";
+
+    protected static final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    protected static final Counter hitCount = registry.counter(MetricRegistry.name(
+            "nuxeo", "web", "resources", "scripts", "cache", "hits"));
+
+    protected static final Counter missCount = registry.counter(MetricRegistry.name(
+            "nuxeo", "web", "resources", "scripts", "cache", "misses"));
+
+    static {
+        String name = MetricRegistry.name("nuxeo", "web", "resources",
+                "scripts", "cache", "size");
+        registry.remove(name);
+        registry.register(name, new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return Integer.valueOf(bundles.size());
+            }
+        });
+    }
+
     private static final long serialVersionUID = 1L;
     private static final Log log = LogFactory.getLog(AggregatedJSProvider.class);
 
+    /**
+     * An aggregated script, ready to be sent plain or compressed.
+     *
+     * @since 7.1
+     */
+    protected static class ScriptBundle {
+
+        protected final byte[] content;
+
+        protected final byte[] gzippedContent;
+
+        /** Quoted hash of the content. */
+        protected final String etag;
+
+        /** Quoted hash of the content, suffixed for the compressed variant. */
+        protected final String gzipEtag;
+
+        protected ScriptBundle(String script) throws IOException {
+            content = script.getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    content.length / 4 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(content);
+            }
+            gzippedContent = out.toByteArray();
+            String hash = digest(content);
+            etag = '"' + hash + '"';
+            gzipEtag = '"' + hash + "-gz\"";
+        }
+
+        protected static String digest(byte[] bytes) {
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest(bytes)) {
+                sb.append(String.format("%02x", Integer.valueOf(b & 0xff)));
+            }
+            return sb.toString();
+        }
+    }
+
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
@@ -70,32 +163,134 @@ public class AggregatedJSProvider extends HttpServlet {
         }
 
         String cacheKey = scriptsStr + "*" + minimize;
+        String[] scripts = scriptsStr.split(SCRIPT_SEP);
 
-        String resultScript = null;
-        if (!refresh && !Framework.isDevModeSet()) {
-            cacheLock.readLock().lock();
-            try {
-                resultScript = cachedResponses.get(cacheKey);
-            } finally {
-                cacheLock.readLock().unlock();
-            }
+        ScriptBundle bundle;
+        if (Framework.isDevModeSet()) {
+            bundle = new ScriptBundle(computeResult(scripts, minimize));
+        } else {
+            bundle = getBundle(cacheKey, scripts, minimize, refresh);
         }
 
-        if (resultScript == null) {
-            String[] scripts = scriptsStr.split(SCRIPT_SEP);
-            resultScript = computeResult(scripts, minimize);
+        // each variant has its own validator, for caches that ignore Vary
+        boolean gzip = acceptsGzip(req.getHeader("Accept-Encoding"));
+        String etag = gzip ? bundle.gzipEtag : bundle.etag;
+        resp.setHeader("Vary", "Accept-Encoding");
+        resp.setHeader("ETag", etag);
+        if (matches(req.getHeader("If-None-Match"), etag)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        resp.setContentType(CONTENT_TYPE);
+        byte[] bytes;
+        if (gzip) {
+            resp.setHeader("Content-Encoding", "gzip");
+            bytes = bundle.gzippedContent;
+        } else {
+            bytes = bundle.content;
+        }
+        resp.setContentLength(bytes.length);
+        resp.getOutputStream().write(bytes);
+    }
 
-            if (!Framework.isDevModeSet()) {
-                cacheLock.writeLock().lock();
-                try {
-                    cachedResponses.put(cacheKey, resultScript);
-                } finally {
-                    cacheLock.writeLock().unlock();
+    /**
+     * Gets a bundle from the cache, building it if needed or if a refresh is
+     * requested.
+     *
+     * @since 7.1
+     */
+    protected ScriptBundle getBundle(String cacheKey, final String[] scripts,
+            final boolean minimize, boolean refresh) throws IOException {
+        Future<ScriptBundle> future = refresh ? null : bundles.get(cacheKey);
+        if (future == null) {
+            FutureTask<ScriptBundle> task = new FutureTask<ScriptBundle>(
+                    new Callable<ScriptBundle>() {
+                        @Override
+                        public ScriptBundle call() throws IOException {
+                            return new ScriptBundle(computeResult(scripts,
+                                    minimize));
+                        }
+                    });
+            if (refresh) {
+                bundles.put(cacheKey, task);
+                future = task;
+            } else {
+                future = bundles.putIfAbsent(cacheKey, task);
+                if (future == null) {
+                    future = task;
                 }
             }
+            if (future == task) {
+                missCount.inc();
+                if (bundles.size() > MAX_BUNDLES) {
+                    evict(cacheKey);
+                }
+                task.run();
+            } else {
+                hitCount.inc();
+            }
+        } else {
+            hitCount.inc();
         }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            // don't keep failures
+            bundles.remove(cacheKey, future);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
 
-        resp.getWriter().write(resultScript);
+    /**
+     * Evicts a quarter of the bundles, in no particular order, but not the
+     * one being built.
+     */
+    protected static void evict(String keep) {
+        int toEvict = MAX_BUNDLES / 4;
+        for (Iterator<String> it = bundles.keySet().iterator(); toEvict > 0
+                && it.hasNext();) {
+            if (!it.next().equals(keep)) {
+                it.remove();
+                toEvict--;
+            }
+        }
+    }
+
+    protected static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String token : ifNoneMatch.split(",")) {
+            token = token.trim();
+            if (token.equals("*") || token.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if ("gzip".equalsIgnoreCase(parts[0].trim())) {
+                // honor an explicit refusal
+                return parts.length == 1
+                        || !parts[1].trim().matches("q\\s*=\\s*0(\\.0*)?");
+            }
+        }
+        return false;
     }
 
     protected String computeResult(String[] scripts, boolean minimize)
@@ -104,7 +299,7 @@ public class AggregatedJSProvider extends HttpServlet {
 
         Path dirPath = new Path(fsPath).append("scripts");
 
-        StringBuffer buf = new StringBuffer();
+        StringBuilder buf = new StringBuilder();
         for (String script : scripts) {
 
             script = script.replaceAll("\\.\\./", ""); // be sure to remove any ../
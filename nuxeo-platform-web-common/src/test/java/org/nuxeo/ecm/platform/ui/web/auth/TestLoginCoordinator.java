@@ -0,0 +1,108 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.ui.web.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.login.LoginContext;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class TestLoginCoordinator {
+
+    protected final LoginCoordinator coordinator = new LoginCoordinator(1024);
+
+    protected final AtomicInteger inLogin = new AtomicInteger();
+
+    protected final CountDownLatch release = new CountDownLatch(1);
+
+    protected LoginContext getBlockingLoginContext(
+            final CountDownLatch entered) throws Exception {
+        LoginContext loginContext = mock(LoginContext.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                inLogin.incrementAndGet();
+                entered.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(loginContext).login();
+        return loginContext;
+    }
+
+    protected Thread login(final LoginContext loginContext, final String key) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    coordinator.login(loginContext, key, true);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void testDifferentUsersLogInConcurrently() throws Exception {
+        assertNotSame(coordinator.getLock("user1"),
+                coordinator.getLock("user2"));
+        CountDownLatch entered = new CountDownLatch(2);
+        LoginContext loginContext = getBlockingLoginContext(entered);
+        Thread t1 = login(loginContext, "user1");
+        Thread t2 = login(loginContext, "user2");
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        assertEquals(2, inLogin.get());
+        release.countDown();
+        t1.join();
+        t2.join();
+    }
+
+    @Test
+    public void testSameUserLoginsAreSerialized() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        LoginContext loginContext = getBlockingLoginContext(entered);
+        Thread t1 = login(loginContext, "user1");
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        Thread t2 = login(loginContext, "user1");
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!coordinator.getLock("user1").hasQueuedThreads()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(coordinator.getLock("user1").hasQueuedThreads());
+        assertEquals(1, inLogin.get());
+        release.countDown();
+        t1.join();
+        t2.join();
+        assertEquals(2, inLogin.get());
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.ui.web.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.Principal;
+
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.ecm.platform.api.login.UserIdentificationInfo;
+import org.nuxeo.ecm.platform.usermanager.NuxeoPrincipalImpl;
+
+public class TestStatelessIdentityCache {
+
+    protected CachableUserIdentificationInfo getIdentity(String userName,
+            String password) throws Exception {
+        UserIdentificationInfo userInfo = new UserIdentificationInfo(userName,
+                password);
+        userInfo.setAuthPluginName("BASIC_AUTH");
+        CachableUserIdentificationInfo identity = new CachableUserIdentificationInfo(
+                userInfo);
+        identity.setPrincipal(new NuxeoPrincipalImpl(userName, false, false,
+                false));
+        return identity;
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        StatelessIdentityCache cache = new StatelessIdentityCache(
+                StatelessIdentityCache.DEFAULT_MAX_SIZE,
+                1000L * StatelessIdentityCache.DEFAULT_TTL);
+        assertFalse(cache.isEnabled());
+        assertTrue(new StatelessIdentityCache(10, 60000).isEnabled());
+    }
+
+    @Test
+    public void testKeyDependsOnCredentials() throws Exception {
+        StatelessIdentityCache cache = new StatelessIdentityCache(10, 60000);
+        String key = cache.getKey(getIdentity("bob", "secret").getUserInfo());
+        assertEquals(key,
+                cache.getKey(getIdentity("bob", "secret").getUserInfo()));
+        assertFalse(key.equals(cache.getKey(getIdentity("bob", "secret2").getUserInfo())));
+        assertFalse(key.equals(cache.getKey(getIdentity("bo", "bsecret").getUserInfo())));
+        assertFalse(key.contains("secret"));
+    }
+
+    @Test
+    public void testKeyIsSalted() throws Exception {
+        UserIdentificationInfo userInfo = getIdentity("bob", "secret").getUserInfo();
+        assertFalse(new StatelessIdentityCache(10, 60000).getKey(userInfo).equals(
+                new StatelessIdentityCache(10, 60000).getKey(userInfo)));
+    }
+
+    @Test
+    public void testGetAndInvalidate() throws Exception {
+        StatelessIdentityCache cache = new StatelessIdentityCache(10, 60000);
+        CachableUserIdentificationInfo bob = getIdentity("bob", "secret");
+        CachableUserIdentificationInfo alice = getIdentity("alice", "secret");
+        String bobKey = cache.getKey(bob.getUserInfo());
+        String aliceKey = cache.getKey(alice.getUserInfo());
+        cache.put(bobKey, bob.getPrincipal());
+        cache.put(aliceKey, alice.getPrincipal());
+        assertEquals("bob", cache.get(bobKey).getName());
+
+        cache.invalidate("BOB");
+        assertNull(cache.get(bobKey));
+        assertEquals("alice", cache.get(aliceKey).getName());
+
+        cache.invalidateAll();
+        assertNull(cache.get(aliceKey));
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        StatelessIdentityCache cache = new StatelessIdentityCache(10, -1);
+        CachableUserIdentificationInfo bob = getIdentity("bob", "secret");
+        String key = cache.getKey(bob.getUserInfo());
+        cache.put(key, bob.getPrincipal());
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void testEachRequestGetsItsOwnPrincipal() throws Exception {
+        StatelessIdentityCache cache = new StatelessIdentityCache(10, 60000);
+        CachableUserIdentificationInfo bob = getIdentity("bob", "secret");
+        String key = cache.getKey(bob.getUserInfo());
+        cache.put(key, bob.getPrincipal());
+        // changing the principal of a request doesn't change the cached one
+        ((NuxeoPrincipal) bob.getPrincipal()).setOriginatingUser("admin");
+        Principal first = cache.get(key);
+        assertNotSame(bob.getPrincipal(), first);
+        assertNull(((NuxeoPrincipal) first).getOriginatingUser());
+        ((NuxeoPrincipal) first).setOriginatingUser("admin");
+        Principal second = cache.get(key);
+        assertNotSame(first, second);
+        assertNull(((NuxeoPrincipal) second).getOriginatingUser());
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+        StatelessIdentityCache cache = new StatelessIdentityCache(4, 60000);
+        for (int i = 0; i < 20; i++) {
+            CachableUserIdentificationInfo identity = getIdentity("user" + i,
+                    "secret");
+            cache.put(cache.getKey(identity.getUserInfo()),
+                    identity.getPrincipal());
+        }
+        assertTrue(cache.size() <= 4);
+    }
+
+}
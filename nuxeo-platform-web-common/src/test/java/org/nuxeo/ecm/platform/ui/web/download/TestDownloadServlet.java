@@ -1,8 +1,11 @@
 package org.nuxeo.ecm.platform.ui.web.download;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -12,6 +15,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -77,6 +81,70 @@ public class TestDownloadServlet {
                                                               // multiple ranges
     }
 
+    @Test
+    public void testParseMultipleByteRanges() throws Exception {
+        List<ByteRange> byteRanges = DownloadServlet.parseRanges(
+                "bytes=0-9, 100-199,-5", 12345);
+        assertEquals(3, byteRanges.size());
+        assertEquals(0, byteRanges.get(0).getStart());
+        assertEquals(9, byteRanges.get(0).getEnd());
+        assertEquals(100, byteRanges.get(1).getStart());
+        assertEquals(199, byteRanges.get(1).getEnd());
+        assertEquals(12340, byteRanges.get(2).getStart());
+        assertEquals(12344, byteRanges.get(2).getEnd());
+    }
+
+    @Test
+    public void testParseOverlappingByteRanges() throws Exception {
+        List<ByteRange> byteRanges = DownloadServlet.parseRanges(
+                "bytes=100-199,0-9,150-249,10-19", 12345);
+        assertEquals(2, byteRanges.size());
+        assertEquals(0, byteRanges.get(0).getStart());
+        assertEquals(19, byteRanges.get(0).getEnd());
+        assertEquals(100, byteRanges.get(1).getStart());
+        assertEquals(249, byteRanges.get(1).getEnd());
+    }
+
+    @Test
+    public void testParseByteRangesLargerThanFile() throws Exception {
+        assertNull(DownloadServlet.parseRanges("bytes=0-99,0-99", 100));
+        assertNull(DownloadServlet.parseRanges("bytes=-60,0-50", 100));
+    }
+
+    @Test
+    public void testRepeatedRangesSendWholeFile() throws Exception {
+        StorageBlob blob = getBlobWithFakeDigest("Hello, world!", "12345");
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getHeader("Range")).thenReturn("bytes=0-12,0-12,0-12");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HttpServletResponse resp = getMockResponse(out);
+
+        DownloadServlet servlet = new DownloadServlet();
+        servlet.downloadBlob(req, resp, blob, (String) null);
+
+        verify(resp, never()).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        assertEquals("Hello, world!", out.toString());
+    }
+
+    @Test
+    public void testMultipleRanges() throws Exception {
+        StorageBlob blob = getBlobWithFakeDigest("Hello, world!", "12345");
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getHeader("Range")).thenReturn("bytes=0-4,7-11");
+        when(req.getHeader("If-Range")).thenReturn("\"12345\"");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HttpServletResponse resp = getMockResponse(out);
+
+        DownloadServlet servlet = new DownloadServlet();
+        servlet.downloadBlob(req, resp, blob, (String) null);
+
+        verify(resp).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        String content = out.toString();
+        assertTrue(content, content.contains("Content-Range: bytes 0-4/13\r\n\r\nHello\r\n"));
+        assertTrue(content, content.contains("Content-Range: bytes 7-11/13\r\n\r\nworld\r\n"));
+        assertTrue(content, content.endsWith("--\r\n"));
+    }
+
     @Test
     public void testWriteStream() throws Exception {
         InputStream in = new ByteArrayInputStream("Hello, world!".getBytes());
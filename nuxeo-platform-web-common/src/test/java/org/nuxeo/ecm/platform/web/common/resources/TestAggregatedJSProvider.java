@@ -0,0 +1,249 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ */
+package org.nuxeo.ecm.platform.web.common.resources;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.ecm.platform.web.common.requestcontroller.filter.BufferingServletOutputStream;
+
+public class TestAggregatedJSProvider {
+
+    protected static final String SCRIPT = "var a = 1;\n";
+
+    /**
+     * Provider serving a fixed script, counting its builds.
+     */
+    protected static class CountingProvider extends AggregatedJSProvider {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final AtomicInteger builds = new AtomicInteger();
+
+        protected volatile CountDownLatch buildStarted;
+
+        protected volatile CountDownLatch buildAllowed;
+
+        @Override
+        protected String computeResult(String[] scripts, boolean minimize)
+                throws IOException {
+            builds.incrementAndGet();
+            if (buildStarted != null) {
+                buildStarted.countDown();
+                try {
+                    buildAllowed.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            return SCRIPT;
+        }
+    }
+
+    protected CountingProvider provider;
+
+    @Before
+    public void setUp() {
+        AggregatedJSProvider.bundles.clear();
+        provider = new CountingProvider();
+    }
+
+    protected HttpServletRequest getRequest(String scripts,
+            String ifNoneMatch, String acceptEncoding) {
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getParameter("scripts")).thenReturn(scripts);
+        when(req.getHeader("If-None-Match")).thenReturn(ifNoneMatch);
+        when(req.getHeader("Accept-Encoding")).thenReturn(acceptEncoding);
+        return req;
+    }
+
+    protected HttpServletResponse getResponse(ByteArrayOutputStream out)
+            throws IOException {
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        when(resp.getOutputStream()).thenReturn(
+                new BufferingServletOutputStream(out));
+        return resp;
+    }
+
+    protected byte[] doGet(HttpServletRequest req, HttpServletResponse resp,
+            ByteArrayOutputStream out) throws Exception {
+        provider.doGet(req, resp);
+        BufferingServletOutputStream.stopBuffering(resp.getOutputStream());
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testNotModified() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HttpServletResponse resp = getResponse(out);
+        byte[] bytes = doGet(getRequest("a.js|b.js", null, null), resp, out);
+        assertEquals(SCRIPT, new String(bytes, StandardCharsets.UTF_8));
+        String etag = '"' + AggregatedJSProvider.ScriptBundle.digest(bytes) + '"';
+        verify(resp).setHeader("ETag", etag);
+
+        // a matching validator gets a 304 without any body
+        out = new ByteArrayOutputStream();
+        resp = getResponse(out);
+        bytes = doGet(getRequest("a.js|b.js", "\"other\", " + etag, null),
+                resp, out);
+        verify(resp).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(resp).setHeader("ETag", etag);
+        verify(resp).setHeader("Vary", "Accept-Encoding");
+        assertEquals(0, bytes.length);
+
+        // the validator of the plain variant does not match the gzipped one
+        out = new ByteArrayOutputStream();
+        resp = getResponse(out);
+        bytes = doGet(getRequest("a.js|b.js", etag, "gzip"), resp, out);
+        verify(resp, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(resp).setHeader("Content-Encoding", "gzip");
+        assertEquals(SCRIPT, new String(gunzip(bytes), StandardCharsets.UTF_8));
+
+        // a stale validator gets the content
+        out = new ByteArrayOutputStream();
+        resp = getResponse(out);
+        bytes = doGet(getRequest("a.js|b.js", "\"other\"", null), resp, out);
+        verify(resp, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        assertEquals(SCRIPT, new String(bytes, StandardCharsets.UTF_8));
+        assertEquals(1, provider.builds.get());
+    }
+
+    protected static byte[] gunzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(
+                bytes))) {
+            byte[] buf = new byte[1024];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HttpServletResponse resp = getResponse(out);
+        byte[] bytes = doGet(getRequest("a.js", null, "deflate, gzip"), resp,
+                out);
+        verify(resp).setHeader("Content-Encoding", "gzip");
+        verify(resp).setHeader("Vary", "Accept-Encoding");
+        verify(resp).setContentLength(bytes.length);
+        byte[] content = gunzip(bytes);
+        assertArrayEquals(SCRIPT.getBytes(StandardCharsets.UTF_8), content);
+        String gzipEtag = '"' + AggregatedJSProvider.ScriptBundle.digest(content)
+                + "-gz\"";
+        verify(resp).setHeader("ETag", gzipEtag);
+
+        // a matching validator gets a 304, still varying on the encoding
+        out = new ByteArrayOutputStream();
+        resp = getResponse(out);
+        bytes = doGet(getRequest("a.js", gzipEtag, "gzip"), resp, out);
+        verify(resp).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(resp).setHeader("ETag", gzipEtag);
+        verify(resp).setHeader("Vary", "Accept-Encoding");
+        assertEquals(0, bytes.length);
+
+        // an explicit refusal gets the plain content
+        out = new ByteArrayOutputStream();
+        resp = getResponse(out);
+        bytes = doGet(getRequest("a.js", null, "gzip;q=0, deflate"), resp,
+                out);
+        verify(resp, never()).setHeader("Content-Encoding", "gzip");
+        verify(resp, never()).setHeader("ETag", gzipEtag);
+        assertEquals(SCRIPT, new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testAcceptsGzip() {
+        assertFalse(AggregatedJSProvider.acceptsGzip(null));
+        assertFalse(AggregatedJSProvider.acceptsGzip("deflate"));
+        assertTrue(AggregatedJSProvider.acceptsGzip("GZIP"));
+        assertTrue(AggregatedJSProvider.acceptsGzip("deflate, gzip;q=0.5"));
+        assertFalse(AggregatedJSProvider.acceptsGzip("gzip;q=0"));
+        assertFalse(AggregatedJSProvider.acceptsGzip("gzip; q=0.00"));
+    }
+
+    @Test
+    public void testSingleBuild() throws Exception {
+        provider.buildStarted = new CountDownLatch(1);
+        provider.buildAllowed = new CountDownLatch(1);
+        int nThreads = 5;
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < nThreads; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        byte[] bytes = doGet(getRequest("a.js", null, null),
+                                getResponse(out), out);
+                        return new String(bytes, StandardCharsets.UTF_8);
+                    }
+                }));
+            }
+            assertTrue(provider.buildStarted.await(10, TimeUnit.SECONDS));
+            // let the other requests reach the cache before the build ends
+            Thread.sleep(100);
+            provider.buildAllowed.countDown();
+            for (Future<String> result : results) {
+                assertEquals(SCRIPT, result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, provider.builds.get());
+
+        // a refresh builds the bundle again
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HttpServletRequest req = getRequest("a.js", null, null);
+        when(req.getParameter("refresh")).thenReturn("true");
+        doGet(req, getResponse(out), out);
+        assertEquals(2, provider.builds.get());
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Nuxeo - initial API and implementation
+ *
+ * $Id$
+ */
+
+package org.nuxeo.ecm.platform.web.requestcontroller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+import org.nuxeo.ecm.platform.web.common.requestcontroller.service.URIPatternMatcher;
+
+public class TestURIPatternMatcher {
+
+    @Test
+    public void testFirstMatchingRuleWins() {
+        URIPatternMatcher<String> matcher = new URIPatternMatcher<String>();
+        matcher.addRule(Pattern.compile("/nuxeo/site/deny/.*"), "deny");
+        matcher.addRule(Pattern.compile("/nuxeo/site/.*"), "site");
+        matcher.addRule(Pattern.compile("(.*)/nxfile/.*"), "file");
+        matcher.addRule(Pattern.compile("^/nuxeo/api/v1\\.?(.*)"), "api");
+        matcher.addRule(Pattern.compile("/nuxeo/a|/nuxeo/b"), "alt");
+        matcher.addRule(Pattern.compile("/nuxeo/xy?z"), "optional");
+
+        assertEquals("deny", matcher.match("/nuxeo/site/deny/foo"));
+        assertEquals("site", matcher.match("/nuxeo/site/foo"));
+        assertEquals("site", matcher.match("/nuxeo/site/nxfile/foo"));
+        assertEquals("file", matcher.match("/nuxeo/nxfile/default/1234"));
+        assertEquals("api", matcher.match("/nuxeo/api/v1/path"));
+        assertEquals("api", matcher.match("/nuxeo/api/v1.2"));
+        assertEquals("alt", matcher.match("/nuxeo/b"));
+        assertEquals("optional", matcher.match("/nuxeo/xz"));
+        assertEquals("optional", matcher.match("/nuxeo/xyz"));
+        assertNull(matcher.match("/nuxeo/other"));
+        assertNull(matcher.match(""));
+    }
+
+}
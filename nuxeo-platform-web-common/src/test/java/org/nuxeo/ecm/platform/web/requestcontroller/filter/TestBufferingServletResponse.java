@@ -34,6 +34,7 @@ import static org.junit.Assert.*;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.platform.web.common.requestcontroller.filter.BufferChunkPool;
 import org.nuxeo.ecm.platform.web.common.requestcontroller.filter.BufferingServletOutputStream;
 import org.nuxeo.ecm.platform.web.common.requestcontroller.filter.BufferingHttpServletResponse;
 
@@ -93,6 +94,22 @@ public class TestBufferingServletResponse {
         assertEquals("abcdef", bout.toString());
     }
 
+    @Test
+    public void testSeveralChunks() throws Exception {
+        BufferingServletOutputStream out = response.getOutputStream();
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        for (int i = 0; i < BufferChunkPool.CHUNK_SIZE * 2 + 10; i++) {
+            buf.write('a' + i % 26);
+        }
+        byte[] bytes = buf.toByteArray();
+        out.write(bytes, 0, 10);
+        out.write(bytes, 10, bytes.length - 10);
+        out.flush();
+        assertEquals("", bout.toString());
+        out.stopBuffering();
+        assertEquals(buf.toString(), bout.toString());
+    }
+
     protected void doBig(String initial) throws Exception {
         BufferingServletOutputStream out = response.getOutputStream();
         if (StringUtils.isEmpty(initial)) {